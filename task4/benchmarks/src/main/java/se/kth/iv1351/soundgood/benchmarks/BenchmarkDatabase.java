@@ -0,0 +1,113 @@
+package se.kth.iv1351.soundgood.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import se.kth.iv1351.soundgood.jdbc.integration.ConnectionPool;
+import se.kth.iv1351.soundgood.jdbc.model.IDGenerator;
+
+/**
+ * Creates and seeds the database used by the benchmarks. The database is specified with the system properties
+ * <code>soundgood.bench.url</code>, <code>soundgood.bench.user</code> and <code>soundgood.bench.password</code>, it
+ * must exist and all its Soundgood tables are dropped and created again each time it is seeded.
+ */
+final class BenchmarkDatabase {
+    static final String URL = System.getProperty("soundgood.bench.url",
+            "jdbc:postgresql://localhost:5432/soundgood_bench");
+    static final String USER = System.getProperty("soundgood.bench.user", "postgres");
+    static final String PASSWORD = System.getProperty("soundgood.bench.password", "kth");
+
+    /**
+     * Number of distinct instrument types, each type matches <code>instruments / INSTRUMENT_TYPES</code> instruments.
+     */
+    static final int INSTRUMENT_TYPES = 50;
+    /**
+     * Number of students without any seeded rentals, these are the students that rent in the benchmarks.
+     */
+    static final int FREE_STUDENTS = 100_000;
+
+    private static final String SCHEMA_RESOURCE = "/postgres-soundgoodb.sql";
+    private static final int INITIAL_STOCK = 1_000_000;
+
+    private BenchmarkDatabase() {
+    }
+
+    /**
+     * Recreates the schema and seeds it. Every seeded student has two rentals, one that has expired and one that is
+     * active, the students with ids after the seeded students have no rentals.
+     *
+     * @param instruments The number of instruments, each with one current price.
+     * @param rentals     The number of rentals.
+     * @return The id of the first student without rentals.
+     */
+    static int seed(int instruments, int rentals) throws SQLException, IOException {
+        int seededStudents = (rentals + 1) / 2;
+        int students = seededStudents + FREE_STUDENTS;
+        try (Connection conn = DriverManager.getConnection(URL, USER, PASSWORD);
+                Statement stmt = conn.createStatement()) {
+            stmt.execute(readSchema());
+            conn.setAutoCommit(false);
+            // Skips triggers and foreign key checks while seeding, the seeded data is consistent.
+            stmt.execute("SET LOCAL session_replication_role = replica");
+            stmt.execute("TRUNCATE instrument_rental, student_instrument, stock_reservation, rental_price_history, "
+                    + "instrument, student, person");
+            stmt.execute("UPDATE system_config SET config_value = " + Integer.MAX_VALUE
+                    + " WHERE config_type = 'max_active_rentals_per_student'");
+            stmt.execute("INSERT INTO person (person_id, person_number, first_name, last_name) "
+                    + "SELECT g, LPAD(g::TEXT, 12, '0'), 'First' || g, 'Last' || g "
+                    + "FROM generate_series(1, " + students + ") g");
+            stmt.execute("INSERT INTO student (student_id, person_id, skill_level) "
+                    + "SELECT g, g, 'beginner' FROM generate_series(1, " + students + ") g");
+            stmt.execute("INSERT INTO instrument (instrument_id, instrument_type, instrument_brand, available_stock) "
+                    + "SELECT 'I' || g, 'Type' || (g % " + INSTRUMENT_TYPES + "), 'Brand' || (g % 97), "
+                    + INITIAL_STOCK + " FROM generate_series(1, " + instruments + ") g");
+            stmt.execute("INSERT INTO rental_price_history "
+                    + "(rental_price_id, instrument_id, start_date, end_date, is_current, price) "
+                    + "SELECT 'P' || g, 'I' || g, DATE '2020-01-01', DATE '2030-12-31', TRUE, 100 + g % 200 "
+                    + "FROM generate_series(1, " + instruments + ") g");
+            stmt.execute("INSERT INTO instrument_rental (rental_id, rental_start_time, lease_expiry_time, "
+                    + "rental_price_id, instrument_id, student_id, stock_released) "
+                    + "SELECT 'R' || CASE WHEN g < 1000 THEN LPAD(g::TEXT, 3, '0') ELSE g::TEXT END, "
+                    + "CASE WHEN g % 2 = 0 THEN NOW() - INTERVAL '400 days' ELSE NOW() - INTERVAL '10 days' END, "
+                    + "CASE WHEN g % 2 = 0 THEN NOW() - INTERVAL '370 days' ELSE NOW() + INTERVAL '20 days' END, "
+                    + "'P' || (1 + g % " + instruments + "), 'I' || (1 + g % " + instruments + "), (g + 1) / 2, "
+                    + "g % 2 = 0 "
+                    + "FROM generate_series(1, " + rentals + ") g");
+            stmt.execute("INSERT INTO student_instrument (student_id, instrument_id, rental_id, rental_start_time) "
+                    + "SELECT student_id, instrument_id, rental_id, rental_start_time FROM instrument_rental");
+            stmt.execute("SELECT setval('rental_id_seq', " + (rentals + 1) + ", false)");
+            conn.commit();
+            conn.setAutoCommit(true);
+            stmt.execute("ANALYZE");
+        }
+        return seededStudents + 1;
+    }
+
+    /**
+     * @return A connection pool to the benchmark database, as large as the number of benchmark threads needs.
+     */
+    static ConnectionPool createPool(int maxSize) throws SQLException {
+        return new ConnectionPool(URL, USER, PASSWORD, maxSize, maxSize, 30_000);
+    }
+
+    /**
+     * @return The id of the seeded rental with the specified number, between one and the number of rentals.
+     */
+    static String rentalID(long rentalNumber) {
+        return IDGenerator.formatId(rentalNumber);
+    }
+
+    private static String readSchema() throws IOException {
+        try (InputStream schema = BenchmarkDatabase.class.getResourceAsStream(SCHEMA_RESOURCE)) {
+            if (schema == null) {
+                throw new IOException("Could not find " + SCHEMA_RESOURCE + " on the class path.");
+            }
+            return new String(schema.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
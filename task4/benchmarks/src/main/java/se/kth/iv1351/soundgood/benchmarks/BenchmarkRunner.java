@@ -0,0 +1,44 @@
+package se.kth.iv1351.soundgood.benchmarks;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks. Accepts the same command line options as the JMH runner, but unless another result format is
+ * specified the results are written as JSON to <code>jmh-result-&lt;timestamp&gt;.json</code>, so that runs of
+ * different releases can be compared.
+ * <p>
+ * The controller benchmarks need a local PostgreSQL server with an empty database called
+ * <code>soundgood_bench</code>, see <code>BenchmarkDatabase</code> for how to use another database.
+ */
+public class BenchmarkRunner {
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    /**
+     * @param args JMH command line options, for example <code>-p rentals=100000 ControllerBenchmark</code>.
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if (cmdOptions.shouldHelp()) {
+            cmdOptions.showHelp();
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions);
+        if (!cmdOptions.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-" + LocalDateTime.now().format(TIMESTAMP) + ".json");
+        }
+        Runner runner = new Runner(options.build());
+        if (cmdOptions.shouldList()) {
+            runner.list();
+            return;
+        }
+        runner.run();
+    }
+}
@@ -0,0 +1,98 @@
+package se.kth.iv1351.soundgood.benchmarks;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.kth.iv1351.soundgood.jdbc.controller.Controller;
+import se.kth.iv1351.soundgood.jdbc.integration.BackgroundJobs;
+import se.kth.iv1351.soundgood.jdbc.integration.DataSourceConfig;
+import se.kth.iv1351.soundgood.jdbc.integration.SoundgoodDAO;
+import se.kth.iv1351.soundgood.jdbc.integration.SoundgoodDBException;
+import se.kth.iv1351.soundgood.jdbc.model.Instrument;
+
+/**
+ * Benchmarks of the controller operations against a seeded PostgreSQL database, see <code>BenchmarkDatabase</code>.
+ * The data volume is set with the <code>instruments</code> and <code>rentals</code> parameters, for example
+ * <code>-p instruments=10000 -p rentals=1000000</code>. The database is seeded once per fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ControllerBenchmark {
+    private static final int POOL_SIZE = Integer.getInteger("soundgood.bench.poolSize", 16);
+
+    @Param({ "10000" })
+    public int instruments;
+
+    @Param({ "1000000" })
+    public int rentals;
+
+    private Controller controller;
+    private int firstFreeStudent;
+    private final AtomicLong listings = new AtomicLong();
+    private final AtomicLong rents = new AtomicLong();
+    private final AtomicLong terminations = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void seedDatabase() throws SQLException, IOException, SoundgoodDBException {
+        firstFreeStudent = BenchmarkDatabase.seed(instruments, rentals);
+        DataSourceConfig config = DataSourceConfig.load();
+        SoundgoodDAO dao = new SoundgoodDAO(BenchmarkDatabase.createPool(POOL_SIZE), config);
+        // The caches are only used while their notifications are listened to.
+        new BackgroundJobs(dao, config).startConnections();
+        controller = new Controller(dao);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeConnections() {
+        controller.close();
+    }
+
+    @Benchmark
+    public List<Instrument> listInstrumentsByType() throws Exception {
+        long n = listings.getAndIncrement();
+        return controller.listInstrumentsByType("Type" + (n % BenchmarkDatabase.INSTRUMENT_TYPES));
+    }
+
+    /**
+     * Every call rents an instrument the student has not rented before, students are reused only after all free
+     * students have rented once.
+     */
+    @Benchmark
+    public void createRental() throws Exception {
+        long n = rents.getAndIncrement();
+        int student = firstFreeStudent + (int) (n % BenchmarkDatabase.FREE_STUDENTS);
+        long instrument = 1 + (n / BenchmarkDatabase.FREE_STUDENTS) % instruments;
+        controller.createRental("I" + instrument, student, "P" + instrument);
+    }
+
+    /**
+     * Terminates the seeded active rentals, which have odd numbers, one after the other. Terminating a rental that
+     * has already been terminated moves its expiry time again.
+     */
+    @Benchmark
+    public void terminateRental() throws Exception {
+        long n = terminations.getAndIncrement();
+        controller.terminateRental(BenchmarkDatabase.rentalID(1 + 2 * (n % (rentals / 2))));
+    }
+}
@@ -0,0 +1,68 @@
+package se.kth.iv1351.soundgood.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.kth.iv1351.soundgood.jdbc.model.IDGenerator;
+import se.kth.iv1351.soundgood.jdbc.model.Instrument;
+import se.kth.iv1351.soundgood.jdbc.model.Rental;
+import se.kth.iv1351.soundgood.jdbc.model.Student;
+
+/**
+ * Benchmarks of the model code that runs for every rental and every listed row, these do not need a database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ModelBenchmark {
+    private Instrument instrument;
+    private Rental rental;
+    private Student student;
+
+    @Setup
+    public void createModelObjects() {
+        instrument = new Instrument("I4711", "Guitar", "Yamaha", 5, 100.0);
+        rental = new Rental("R4711", 1_704_099_600_000L, 1_706_778_000_000L, "P4711", "I4711", 17);
+        student = new Student(17, "200001011234", "beginner");
+    }
+
+    @State(Scope.Thread)
+    public static class RentalNumber {
+        @Param({ "42", "99999" })
+        public long value;
+    }
+
+    @Benchmark
+    public String formatId(RentalNumber rentalNumber) {
+        return IDGenerator.formatId(rentalNumber.value);
+    }
+
+    @Benchmark
+    public String instrumentToString() {
+        return instrument.toString();
+    }
+
+    @Benchmark
+    public String rentalToString() {
+        return rental.toString();
+    }
+
+    @Benchmark
+    public String studentToString() {
+        return student.toString();
+    }
+}
@@ -0,0 +1,220 @@
+package se.kth.iv1351.soundgood.jdbc.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.kth.iv1351.soundgood.jdbc.model.BulkResult;
+import se.kth.iv1351.soundgood.jdbc.model.Instrument;
+import se.kth.iv1351.soundgood.jdbc.model.InstrumentException;
+import se.kth.iv1351.soundgood.jdbc.model.RentalException;
+import se.kth.iv1351.soundgood.jdbc.model.RentalRequest;
+import se.kth.iv1351.soundgood.jdbc.model.RentalResult;
+
+/**
+ * Runs the operations of a <code>Controller</code> without blocking the caller. The operations run on a fixed number
+ * of threads, one per database connection, and at most a bounded number of operations wait for a thread. When that
+ * queue is full, the returned future fails with <code>RejectedExecutionException</code>.
+ * <p>
+ * Rentals and terminations that are requested while all threads are busy are grouped. The first free thread takes all
+ * waiting rentals, up to <code>MAX_GROUP_SIZE</code>, and makes them in one transaction, and the same goes for
+ * terminations. If a group fails as a whole, its operations are run again one by one, so that each future gets the
+ * outcome of its own operation. A grouped rental is checked against the cached rental rules and run again on
+ * serialization failures just like a single one, but takes its instrument directly from the stock, not from a stock
+ * reservation, see <code>SoundgoodDAO.createRentalGroup</code>.
+ */
+public class AsyncController implements AutoCloseable {
+    private static final int MAX_GROUP_SIZE = 100;
+    private static final int QUEUED_OPERATIONS_PER_THREAD = 64;
+    private static final int SHUTDOWN_GRACE_SECONDS = 10;
+
+    private final Controller ctrl;
+    private final ThreadPoolExecutor executor;
+    private final Queue<PendingOperation<RentalRequest, RentalResult>> pendingRentals = new ConcurrentLinkedQueue<>();
+    private final Queue<PendingOperation<String, Void>> pendingTerminations = new ConcurrentLinkedQueue<>();
+
+    private static class PendingOperation<T, R> {
+        private final T request;
+        private final CompletableFuture<R> result = new CompletableFuture<>();
+
+        private PendingOperation(T request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Creates a new instance that runs the operations of the specified controller. The controller is not closed by
+     * this instance.
+     *
+     * @param ctrl The controller performing the operations.
+     */
+    public AsyncController(Controller ctrl) {
+        this.ctrl = ctrl;
+        int threads = ctrl.getMaxConcurrency();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * QUEUED_OPERATIONS_PER_THREAD), task -> {
+                    Thread thread = new Thread(task, "soundgood-async-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public CompletableFuture<RentalResult> createRental(String instrumentID, int studentID, String priceID) {
+        if (instrumentID == null) {
+            return CompletableFuture.failedFuture(
+                    new InstrumentException("Could not create rental for student " + studentID));
+        }
+        return enqueue(pendingRentals, new RentalRequest(instrumentID, studentID, priceID), this::rentPendingGroup);
+    }
+
+    public CompletableFuture<Void> terminateRental(String rentalID) {
+        return enqueue(pendingTerminations, rentalID, this::terminatePendingGroup);
+    }
+
+    public CompletableFuture<List<Instrument>> listInstrumentsByType(String instrumentType) {
+        return supply(() -> ctrl.listInstrumentsByType(instrumentType));
+    }
+
+    public CompletableFuture<Double> findCurrentPrice(String instrumentID) {
+        return supply(() -> ctrl.findCurrentPrice(instrumentID));
+    }
+
+    /**
+     * Stops accepting operations and waits for the started ones to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> CompletableFuture<T> supply(Callable<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(operation.call());
+                } catch (Exception failure) {
+                    result.completeExceptionally(failure);
+                }
+            });
+        } catch (RejectedExecutionException busy) {
+            result.completeExceptionally(busy);
+        }
+        return result;
+    }
+
+    /**
+     * Queues an operation and schedules a task that performs all queued operations of its kind. Tasks that find the
+     * queue already emptied by an earlier task return at once.
+     */
+    private <T, R> CompletableFuture<R> enqueue(Queue<PendingOperation<T, R>> queue, T request,
+            Runnable groupTask) {
+        PendingOperation<T, R> pending = new PendingOperation<>(request);
+        queue.add(pending);
+        try {
+            executor.execute(groupTask);
+        } catch (RejectedExecutionException busy) {
+            if (queue.remove(pending)) {
+                pending.result.completeExceptionally(busy);
+            }
+        }
+        return pending.result;
+    }
+
+    private static <T, R> List<PendingOperation<T, R>> takeGroup(Queue<PendingOperation<T, R>> queue) {
+        List<PendingOperation<T, R>> group = new ArrayList<>();
+        PendingOperation<T, R> pending;
+        while (group.size() < MAX_GROUP_SIZE && (pending = queue.poll()) != null) {
+            group.add(pending);
+        }
+        return group;
+    }
+
+    private void rentPendingGroup() {
+        List<PendingOperation<RentalRequest, RentalResult>> group = takeGroup(pendingRentals);
+        try {
+            if (group.size() > 1) {
+                List<RentalRequest> requests = new ArrayList<>(group.size());
+                for (PendingOperation<RentalRequest, RentalResult> pending : group) {
+                    requests.add(pending.request);
+                }
+                List<RentalResult> results = ctrl.createRentalGroup(requests);
+                for (int i = 0; i < group.size(); i++) {
+                    group.get(i).result.complete(results.get(i));
+                }
+                return;
+            }
+        } catch (RentalException groupFailed) {
+            // Each rental is made on its own below.
+        } catch (RuntimeException bug) {
+            failAll(group, bug);
+            return;
+        }
+        for (PendingOperation<RentalRequest, RentalResult> pending : group) {
+            RentalRequest request = pending.request;
+            try {
+                pending.result.complete(
+                        ctrl.createRental(request.getInstrumentID(), request.getStudentID(), request.getPriceID()));
+            } catch (Exception failure) {
+                pending.result.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private void terminatePendingGroup() {
+        List<PendingOperation<String, Void>> group = takeGroup(pendingTerminations);
+        try {
+            if (group.size() > 1) {
+                List<String> rentalIDs = new ArrayList<>(group.size());
+                for (PendingOperation<String, Void> pending : group) {
+                    rentalIDs.add(pending.request);
+                }
+                List<BulkResult> results = ctrl.terminateRentals(rentalIDs, MAX_GROUP_SIZE);
+                for (int i = 0; i < group.size(); i++) {
+                    BulkResult result = results.get(i);
+                    if (result.isSuccessful()) {
+                        group.get(i).result.complete(null);
+                    } else {
+                        group.get(i).result.completeExceptionally(new RentalException(
+                                "Could not terminate rental " + group.get(i).request + ": "
+                                        + result.getFailureMessage()));
+                    }
+                }
+                return;
+            }
+        } catch (RentalException groupFailed) {
+            // Each termination is made on its own below.
+        } catch (RuntimeException bug) {
+            failAll(group, bug);
+            return;
+        }
+        for (PendingOperation<String, Void> pending : group) {
+            try {
+                ctrl.terminateRental(pending.request);
+                pending.result.complete(null);
+            } catch (Exception failure) {
+                pending.result.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static <T, R> void failAll(List<PendingOperation<T, R>> group, Throwable failure) {
+        for (PendingOperation<T, R> pending : group) {
+            pending.result.completeExceptionally(failure);
+        }
+    }
+}
@@ -1,11 +1,29 @@
 package se.kth.iv1351.soundgood.jdbc.controller;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Stream;
 
 import se.kth.iv1351.soundgood.jdbc.integration.*;
 import se.kth.iv1351.soundgood.jdbc.model.*;
 
 public class Controller {
+    private static final int DEFAULT_CHUNK_SIZE = 500;
+    private static final int DEFAULT_PAGE_SIZE = 200;
+    private static final int SEARCH_PAGE_SIZE = 20;
+    private static final String CSV_DELIMITER = ",";
+    private static final String CSV_COMMENT = "#";
+    private static final String[] RENTAL_HEADER = { "instrumentID", "studentID", "priceID" };
+
     // Add more DAOs below if needed
     private final SoundgoodDAO database;
 
@@ -14,7 +32,11 @@ public class Controller {
         database = new SoundgoodDAO();
     }
 
-    public void createRental(String instrumentID, int studentID, String priceID)
+    public Controller(SoundgoodDAO database) {
+        this.database = database;
+    }
+
+    public RentalResult createRental(String instrumentID, int studentID, String priceID)
             throws RentalException, InstrumentException {
         String failureMsg = "Could not create rental for student " + studentID;
 
@@ -23,16 +45,142 @@ public class Controller {
         }
 
         try {
-            database.createRental(new Instrument(instrumentID), new Student(studentID), priceID);
+            return database.createRental(new Instrument(instrumentID), new Student(studentID), priceID);
         } catch (Exception e) {
             throw new RentalException(failureMsg, e);
         }
     }
 
+    /**
+     * Creates several rentals in one transaction, see <code>SoundgoodDAO.createRentalGroup</code>.
+     */
+    public List<RentalResult> createRentalGroup(List<RentalRequest> rentals) throws RentalException {
+        try {
+            return database.createRentalGroup(rentals);
+        } catch (SoundgoodDBException e) {
+            throw new RentalException("Could not create rentals.", e);
+        }
+    }
+
+    /**
+     * Rents several instruments to one student, all or none of them, see <code>SoundgoodDAO.createRentalBasket</code>.
+     */
+    public List<RentalResult> createRentalBasket(int studentID, List<RentalRequest> rentals) throws RentalException {
+        if (rentals.isEmpty()) {
+            throw new IllegalArgumentException("The basket of student " + studentID + " is empty.");
+        }
+        if (rentals.stream().map(RentalRequest::getInstrumentID).distinct().count() < rentals.size()) {
+            throw new IllegalArgumentException("An instrument can only be rented once, the basket of student "
+                    + studentID + " has duplicates.");
+        }
+        try {
+            return database.createRentalBasket(studentID, rentals);
+        } catch (SoundgoodDBException e) {
+            throw new RentalException("Could not rent the basket of student " + studentID + ".", e);
+        }
+    }
+
     public List<Instrument> listInstrumentsByType(String instrumentType) throws SoundgoodDBException {
         return database.findInstrumentsByType(instrumentType);
     }
 
+    /**
+     * Reads the current rental price of an instrument, see <code>SoundgoodDAO.findCurrentPrice</code>.
+     * 
+     * @throws InstrumentException If the instrument has no current price, or if failed to read it.
+     */
+    public double findCurrentPrice(String instrumentID) throws InstrumentException {
+        String failureMsg = "Could not read the price of instrument " + instrumentID + ".";
+        Double price;
+        try {
+            price = database.findCurrentPrice(instrumentID);
+        } catch (SoundgoodDBException e) {
+            throw new InstrumentException(failureMsg, e);
+        }
+        if (price == null) {
+            throw new InstrumentException("Instrument " + instrumentID + " has no current price.");
+        }
+        return price;
+    }
+
+    /**
+     * Lists the available instruments of a type, seeing the writes up to <code>afterPosition</code>, see
+     * <code>SoundgoodDAO.findInstrumentsByType(String, String)</code>.
+     */
+    public List<Instrument> listInstrumentsByType(String instrumentType, String afterPosition)
+            throws SoundgoodDBException {
+        return database.findInstrumentsByType(instrumentType, afterPosition);
+    }
+
+    /**
+     * @return how far the writes made through this controller have come, see
+     *         <code>SoundgoodDAO.getWritePosition</code>.
+     */
+    public String getWritePosition() {
+        return database.getWritePosition();
+    }
+
+    /**
+     * Streams the available instruments of a type without loading all of them, see
+     * <code>SoundgoodDAO.streamInstrumentsByType</code>.
+     */
+    public Stream<InstrumentDTO> streamInstrumentsByType(String instrumentType) {
+        return database.streamInstrumentsByType(instrumentType, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Searches the instruments by type and brand, see <code>SoundgoodDAO.searchInstruments</code>.
+     * 
+     * @param page the page of matches to return, starting from zero. A page has at most
+     *             <code>getSearchPageSize()</code> matches.
+     */
+    public List<InstrumentMatch> searchInstruments(String query, int page) throws InstrumentException {
+        if (page < 0) {
+            throw new IllegalArgumentException("Page must not be negative, was " + page);
+        }
+        try {
+            return database.searchInstruments(query, page * SEARCH_PAGE_SIZE, SEARCH_PAGE_SIZE);
+        } catch (SoundgoodDBException e) {
+            throw new InstrumentException("Could not search instruments.", e);
+        }
+    }
+
+    public int getSearchPageSize() {
+        return SEARCH_PAGE_SIZE;
+    }
+
+    public List<RentalDTO> getRentalHistory(int studentID) throws RentalException {
+        try {
+            return database.findRentalHistory(studentID);
+        } catch (SoundgoodDBException e) {
+            throw new RentalException("Could not read the rentals of student " + studentID + ".", e);
+        }
+    }
+
+    public List<TypeUtilization> getTypeUtilization() throws InstrumentException {
+        try {
+            return database.findTypeUtilization();
+        } catch (SoundgoodDBException e) {
+            throw new InstrumentException("Could not read the utilization report.", e);
+        }
+    }
+
+    /**
+     * Reports the rental revenue of the specified number of months, ending with the current month. See
+     * <code>SoundgoodDAO.findMonthlyRevenue</code>.
+     */
+    public List<MonthlyRevenue> getMonthlyRevenue(int months) throws RentalException {
+        if (months < 1) {
+            throw new IllegalArgumentException("Number of months must be positive, was " + months);
+        }
+        YearMonth to = YearMonth.now();
+        try {
+            return database.findMonthlyRevenue(to.minusMonths(months - 1), to);
+        } catch (SoundgoodDBException e) {
+            throw new RentalException("Could not read the revenue report.", e);
+        }
+    }
+
     public void terminateRental(String rentalID) throws RentalException {
         String failureMsg = "Could not terminate rental " + rentalID;
         try {
@@ -42,4 +190,182 @@ public class Controller {
             throw new RentalException(failureMsg, e);
         }
     }
+
+    public List<BulkResult> createRentals(Collection<RentalRequest> rentals) throws RentalException {
+        return createRentals(rentals, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates all specified rentals, committing after every <code>chunkSize</code> rentals. Rentals that fail do not
+     * stop the others.
+     * 
+     * @return the outcome of each rental, in the same order as <code>rentals</code>.
+     * @throws RentalException If the database could not be reached.
+     */
+    public List<BulkResult> createRentals(Collection<RentalRequest> rentals, int chunkSize) throws RentalException {
+        try {
+            return database.createRentals(new ArrayList<>(rentals), validChunkSize(chunkSize));
+        } catch (SoundgoodDBException e) {
+            throw new RentalException("Could not create rentals.", e);
+        }
+    }
+
+    /**
+     * Creates the rentals in a CSV stream. Each line is <code>instrumentID,studentID,priceID</code>, blank lines and
+     * lines starting with # are skipped. The first line is skipped too if it is the header
+     * <code>instrumentID,studentID,priceID</code>, in any case. Any other line that can not be parsed fails on its
+     * own.
+     * 
+     * @return the outcome of each rental, the row of a result is the line number in <code>csv</code>, starting
+     *         from zero.
+     * @throws RentalException If the stream could not be read or the database could not be reached.
+     */
+    public List<BulkResult> importRentals(Reader csv, int chunkSize) throws RentalException {
+        List<RentalRequest> rentals = new ArrayList<>();
+        List<Integer> lineNumbers = new ArrayList<>();
+        List<BulkResult> results = new ArrayList<>();
+
+        try (BufferedReader lines = new BufferedReader(csv)) {
+            String line;
+            boolean firstRow = true;
+            for (int lineNumber = 0; (line = lines.readLine()) != null; lineNumber++) {
+                if (isSkipped(line)) {
+                    continue;
+                }
+                String[] fields = line.split(CSV_DELIMITER);
+                if (firstRow) {
+                    firstRow = false;
+                    if (isRentalHeader(fields)) {
+                        continue;
+                    }
+                }
+                try {
+                    if (fields.length != 3) {
+                        throw new NumberFormatException("Expected instrumentID,studentID,priceID");
+                    }
+                    rentals.add(new RentalRequest(fields[0].trim(), Integer.parseInt(fields[1].trim()),
+                            fields[2].trim()));
+                    lineNumbers.add(lineNumber);
+                } catch (NumberFormatException malformed) {
+                    results.add(new BulkResult(lineNumber, null, "Malformed line: " + line));
+                }
+            }
+        } catch (IOException e) {
+            throw new RentalException("Could not read rentals.", e);
+        }
+
+        for (BulkResult result : createRentals(rentals, chunkSize)) {
+            results.add(new BulkResult(lineNumbers.get(result.getRow()), result.getRentalID(),
+                    result.getFailureMessage()));
+        }
+        results.sort(Comparator.comparingInt(BulkResult::getRow));
+        return results;
+    }
+
+    public List<BulkResult> terminateRentals(Collection<String> rentalIDs) throws RentalException {
+        return terminateRentals(rentalIDs, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Terminates all specified rentals, committing after every <code>chunkSize</code> terminations. Terminations
+     * that fail do not stop the others.
+     * 
+     * @return the outcome of each termination, in the same order as <code>rentalIDs</code>.
+     * @throws RentalException If the database could not be reached.
+     */
+    public List<BulkResult> terminateRentals(Collection<String> rentalIDs, int chunkSize) throws RentalException {
+        try {
+            return database.deleteRentals(new ArrayList<>(rentalIDs), validChunkSize(chunkSize));
+        } catch (SoundgoodDBException e) {
+            throw new RentalException("Could not terminate rentals.", e);
+        }
+    }
+
+    /**
+     * Terminates the rentals in a CSV stream, the first field of each line is a rental ID. Blank lines and lines
+     * starting with # are skipped.
+     * 
+     * @return the outcome of each termination, the row of a result is the line number in <code>csv</code>, starting
+     *         from zero.
+     * @throws RentalException If the stream could not be read or the database could not be reached.
+     */
+    public List<BulkResult> importTerminations(Reader csv, int chunkSize) throws RentalException {
+        List<String> rentalIDs = new ArrayList<>();
+        List<Integer> lineNumbers = new ArrayList<>();
+
+        try (BufferedReader lines = new BufferedReader(csv)) {
+            String line;
+            for (int lineNumber = 0; (line = lines.readLine()) != null; lineNumber++) {
+                if (!isSkipped(line)) {
+                    rentalIDs.add(line.split(CSV_DELIMITER)[0].trim());
+                    lineNumbers.add(lineNumber);
+                }
+            }
+        } catch (IOException e) {
+            throw new RentalException("Could not read rentals.", e);
+        }
+
+        List<BulkResult> results = new ArrayList<>(rentalIDs.size());
+        for (BulkResult result : terminateRentals(rentalIDs, chunkSize)) {
+            results.add(new BulkResult(lineNumbers.get(result.getRow()), result.getRentalID(),
+                    result.getFailureMessage()));
+        }
+        return results;
+    }
+
+    public List<LatencySnapshot> getStatistics() {
+        return database.getStatistics();
+    }
+
+    /**
+     * Tells when the database is ready, see <code>SoundgoodDAO.whenReady</code>.
+     */
+    public CompletionStage<Integer> whenDatabaseReady() {
+        return database.whenReady();
+    }
+
+    /**
+     * @return why the database is not ready, or <code>null</code> if it is ready or has not been tried yet.
+     */
+    public String getDatabaseProblem() {
+        CompletableFuture<Integer> ready = database.whenReady().toCompletableFuture();
+        if (ready.isCompletedExceptionally()) {
+            return ready.handle((version, failure) -> (failure instanceof CompletionException ? failure.getCause()
+                    : failure).getMessage()).join();
+        }
+        Exception connectFailure = database.getLastConnectFailure();
+        return ready.isDone() || connectFailure == null ? null : connectFailure.getMessage();
+    }
+
+    public int getMaxConcurrency() {
+        return database.getMaxConnections();
+    }
+
+    public void close() {
+        database.close();
+    }
+
+    private boolean isRentalHeader(String[] fields) {
+        if (fields.length != RENTAL_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (!fields[i].trim().equalsIgnoreCase(RENTAL_HEADER[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isSkipped(String line) {
+        String trimmed = line.trim();
+        return trimmed.isEmpty() || trimmed.startsWith(CSV_COMMENT);
+    }
+
+    private int validChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive, was " + chunkSize);
+        }
+        return chunkSize;
+    }
 }
@@ -0,0 +1,105 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+/**
+ * The background threads that work with a <code>SoundgoodDAO</code>. The DAO starts none of them, the process that
+ * creates it starts the ones it needs, so that a short-lived client or a test does not sweep leases, refresh reports
+ * or create partitions.
+ * <ul>
+ * <li><code>startConnections</code> warms up the pool and checks the schema, see <code>SoundgoodDAO.whenReady</code>,
+ * listens for the notifications that keep the caches of the DAO up to date, and checks how far behind the read
+ * replicas are. Until then, the caches are not used and all reads go to the primary.</li>
+ * <li><code>startMaintenance</code> gives the instruments of expired leases and reservations back to stock, refreshes
+ * the reports and creates and archives rental partitions. Each of them is coordinated with an advisory lock, so it is
+ * harmless but unnecessary to run them in more than one process.</li>
+ * <li><code>startOutboxRelay</code> publishes the outbox. It is only started by the rental server, and only if
+ * <code>soundgood.outbox.relay</code> is on, since the events go to the subscribers of a single process.</li>
+ * </ul>
+ * The settings of each job are read from <code>DataSourceConfig</code>.
+ */
+public class BackgroundJobs implements AutoCloseable {
+    private final SoundgoodDAO dao;
+    private final DataSourceConfig config;
+    private final LeaseExpirySweeper sweeper;
+    private final ReportRefresher reportRefresher;
+    private final RentalPartitionMaintainer partitionMaintainer;
+    private OutboxRelay outboxRelay;
+
+    /**
+     * Creates the jobs, none of them is started.
+     *
+     * @param dao    The DAO the jobs work with. Its connections must not be started yet.
+     * @param config The settings of the jobs.
+     */
+    public BackgroundJobs(SoundgoodDAO dao, DataSourceConfig config) {
+        this.dao = dao;
+        this.config = config;
+        this.sweeper = new LeaseExpirySweeper(dao, config.getSweepIntervalMillis(), config.getSweepBatchSize(),
+                config.getSweepMaxBatchesPerRun(), config.getSweepPauseMillis());
+        this.reportRefresher = new ReportRefresher(dao, config.getReportRefreshIntervalMillis());
+        this.partitionMaintainer = new RentalPartitionMaintainer(dao, config.getPartitionIntervalMillis(),
+                config.getPartitionMonthsAhead(), config.getPartitionRetentionMonths());
+    }
+
+    /**
+     * Starts warming up the DAO, listening for notifications and checking the read replicas.
+     */
+    public void startConnections() {
+        dao.getWarmUp().start();
+        dao.getNotificationListener().start();
+        dao.getReplicaRouter().start();
+    }
+
+    /**
+     * Starts the jobs that keep the database tidy.
+     */
+    public void startMaintenance() {
+        sweeper.start();
+        reportRefresher.start();
+        partitionMaintainer.start();
+        dao.getStockReservations().start();
+    }
+
+    /**
+     * Starts publishing the outbox. Must be called before <code>startConnections</code>, since the relay is woken
+     * by notifications.
+     *
+     * @throws IllegalArgumentException If <code>soundgood.outbox.logFile</code> is not set.
+     * @throws IllegalStateException    If the connections are already started.
+     */
+    public synchronized void startOutboxRelay() {
+        if (outboxRelay != null) {
+            return;
+        }
+        outboxRelay = new OutboxRelay(dao, dao.getPool(), dao.getNotificationListener(),
+                config.getOutboxPollIntervalMillis(), config.getOutboxBatchSize(), config.getOutboxLogFile());
+        outboxRelay.start();
+    }
+
+    /**
+     * Subscribes to the rental and stock changes committed from now on. Changes are published by the one process that
+     * owns the outbox relay, see <code>OutboxRelay</code>, so subscribe in that process.
+     *
+     * @param subscriber receives the changes in batches, see <code>RentalEventSubscriber</code>.
+     * @throws IllegalStateException If the outbox relay is not started in this process.
+     */
+    public synchronized void subscribeToRentalEvents(RentalEventSubscriber subscriber) {
+        if (outboxRelay == null) {
+            throw new IllegalStateException("The outbox relay is off in this process, events are published by the "
+                    + "process that has it on.");
+        }
+        outboxRelay.subscribe(subscriber);
+    }
+
+    /**
+     * Stops the jobs. The threads of the DAO itself are stopped when the DAO is closed.
+     */
+    @Override
+    public synchronized void close() {
+        sweeper.close();
+        reportRefresher.close();
+        partitionMaintainer.close();
+        if (outboxRelay != null) {
+            outboxRelay.close();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of connections to the Soundgood database. At most <code>maxSize</code> connections are lent out at
+ * the same time, callers wait at most <code>acquireTimeoutMillis</code> for one to become free. Connections that have
+ * been idle for a while are validated before they are lent out again.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 1000;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final Semaphore permits;
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new pool and opens <code>minSize</code> connections right away.
+     *
+     * @param url                  The JDBC url of the database.
+     * @param user                 The database user.
+     * @param password             The password of <code>user</code>.
+     * @param minSize              The number of connections opened when the pool is created.
+     * @param maxSize              The maximum number of connections lent out at the same time.
+     * @param acquireTimeoutMillis How long <code>borrow</code> waits for a free connection.
+     * @throws SQLException If the initial connections could not be opened.
+     */
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+            long acquireTimeoutMillis) throws SQLException {
+        this(url, user, password, minSize, maxSize, acquireTimeoutMillis, false);
+    }
+
+    /**
+     * Creates a new pool. Unless <code>openLazily</code>, <code>minSize</code> connections are opened right away.
+     * Otherwise no connection is opened until one is borrowed, or until <code>warmUp</code> is called.
+     *
+     * @param url                  The JDBC url of the database.
+     * @param user                 The database user.
+     * @param password             The password of <code>user</code>.
+     * @param minSize              The number of connections opened when the pool is created or warmed up.
+     * @param maxSize              The maximum number of connections lent out at the same time.
+     * @param acquireTimeoutMillis How long <code>borrow</code> waits for a free connection.
+     * @param openLazily           <code>true</code> if the pool is created without connecting to the database.
+     * @throws SQLException If the initial connections could not be opened.
+     */
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+            long acquireTimeoutMillis, boolean openLazily) throws SQLException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size, min: " + minSize + ", max: " + maxSize);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+        if (openLazily) {
+            return;
+        }
+        try {
+            for (int i = 0; i < minSize; i++) {
+                idle.add(openConnection());
+            }
+        } catch (SQLException sqle) {
+            close();
+            throw sqle;
+        }
+    }
+
+    /**
+     * Opens the connections that are missing for the pool to have <code>minSize</code> idle connections, all at the
+     * same time, each in a thread of its own.
+     *
+     * @return The number of connections that were opened.
+     * @throws SQLException If any of the connections could not be opened. The ones that were opened are kept.
+     */
+    int warmUp() throws SQLException {
+        int missing = minSize - idle.size();
+        if (missing <= 0 || closed) {
+            return 0;
+        }
+        ExecutorService openers = Executors.newFixedThreadPool(missing, task -> {
+            Thread thread = new Thread(task, "soundgood-pool-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> opened = new ArrayList<>();
+            for (int i = 0; i < missing; i++) {
+                // Each opener adds its connection itself, so that none is lost if the caller stops waiting.
+                opened.add(openers.submit(() -> {
+                    addIdle(openConnection());
+                    return null;
+                }));
+            }
+            int count = 0;
+            SQLException failure = null;
+            for (Future<?> connection : opened) {
+                try {
+                    connection.get();
+                    count++;
+                } catch (ExecutionException ee) {
+                    failure = ee.getCause() instanceof SQLException ? (SQLException) ee.getCause()
+                            : new SQLException("Could not open a database connection.", ee.getCause());
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return count;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while opening database connections.", ie);
+        } finally {
+            openers.shutdown();
+        }
+    }
+
+    /**
+     * @return The maximum number of connections lent out at the same time.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Lends out a connection. Every borrowed connection must be given back with <code>release</code>.
+     *
+     * @return A connection with no transaction in progress.
+     * @throws SQLException If no connection became free within the acquire timeout, or if a new connection could not
+     *                      be opened.
+     */
+    PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool is closed.");
+        }
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException(
+                        "Timed out after " + acquireTimeoutMillis + " ms waiting for a database connection.");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", ie);
+        }
+        try {
+            PooledConnection conn;
+            while ((conn = idle.pollFirst()) != null) {
+                if (conn.getIdleMillis() < VALIDATE_AFTER_IDLE_MILLIS || conn.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                    return conn;
+                }
+                conn.closeQuietly();
+            }
+            return openConnection();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back a connection lent out by <code>borrow</code>. Any transaction still in progress is rolled back.
+     *
+     * @param conn The connection to give back, <code>null</code> is ignored.
+     */
+    void release(PooledConnection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.rollback();
+            if (closed) {
+                conn.closeQuietly();
+            } else {
+                conn.markReleased();
+                idle.offerFirst(conn);
+            }
+        } catch (SQLException sqle) {
+            conn.closeQuietly();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes all idle connections. Connections that are lent out are closed when they are given back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            conn.closeQuietly();
+        }
+    }
+
+    /**
+     * Opens a connection to the pool's database that is not part of the pool. The caller must close it.
+     *
+     * @return A new connection.
+     * @throws SQLException If the connection could not be opened.
+     */
+    Connection openUnpooledConnection() throws SQLException {
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    private void addIdle(PooledConnection conn) {
+        conn.markReleased();
+        idle.offerLast(conn);
+        if (closed && idle.remove(conn)) {
+            // The pool was closed while the connection was opened.
+            conn.closeQuietly();
+        }
+    }
+
+    private PooledConnection openConnection() throws SQLException {
+        return new PooledConnection(openUnpooledConnection());
+    }
+}
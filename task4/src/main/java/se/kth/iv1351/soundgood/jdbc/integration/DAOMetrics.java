@@ -0,0 +1,172 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms of the <code>SoundgoodDAO</code> operations. Each operation has one histogram of its total time,
+ * including errors and retries, and one of the time spent executing its statements. The time spent waiting for a pooled
+ * connection and the time spent committing are kept apart, since neither belongs to a single statement. Each
+ * histogram is registered as an MXBean under <code>se.kth.iv1351.soundgood:type=DAOMetrics</code>.
+ */
+class DAOMetrics implements AutoCloseable {
+    private static final String JMX_DOMAIN = "se.kth.iv1351.soundgood";
+
+    /**
+     * The measured DAO operations.
+     */
+    enum Operation {
+        LIST_INSTRUMENTS("listInstruments"),
+        LIST_INSTRUMENTS_PAGE("listInstrumentsPage"),
+        SEARCH_INSTRUMENTS("searchInstruments"),
+        FIND_PRICE("findCurrentPrice"),
+        CREATE_RENTAL("createRental"),
+        CREATE_RENTAL_GROUP("createRentalGroup"),
+        CREATE_RENTAL_BASKET("createRentalBasket"),
+        DELETE_RENTAL("deleteRental"),
+        CREATE_RENTALS("createRentals"),
+        DELETE_RENTALS("deleteRentals"),
+        RELEASE_EXPIRED_STOCK("releaseExpiredStock"),
+        READ_REPORT("readReport"),
+        REFRESH_REPORTS("refreshReports"),
+        PUBLISH_EVENTS("publishRentalEvents"),
+        CLAIM_STOCK("claimStock"),
+        SETTLE_RESERVATIONS("settleStockReservations"),
+        MAINTAIN_PARTITIONS("maintainRentalPartitions");
+
+        private final String displayName;
+
+        private Operation(String displayName) {
+            this.displayName = displayName;
+        }
+    }
+
+    private final LatencyHistogram[] operations = new LatencyHistogram[Operation.values().length];
+    private final LatencyHistogram[] statements = new LatencyHistogram[Operation.values().length];
+    private final LatencyHistogram connectionWait = new LatencyHistogram("connectionWait");
+    private final LatencyHistogram commit = new LatencyHistogram("commit");
+    private final List<ObjectName> registeredNames = new ArrayList<>();
+    private boolean closed = false;
+
+    DAOMetrics() {
+        for (Operation operation : Operation.values()) {
+            operations[operation.ordinal()] = new LatencyHistogram(operation.displayName);
+            statements[operation.ordinal()] = new LatencyHistogram(operation.displayName + ".statement");
+        }
+    }
+
+    /**
+     * Records one call of an operation.
+     *
+     * @param operation  The called operation.
+     * @param startNanos The value of <code>System.nanoTime()</code> when the operation started.
+     * @param completed  <code>false</code> if the operation failed.
+     */
+    void recordOperation(Operation operation, long startNanos, boolean completed) {
+        long nanos = System.nanoTime() - startNanos;
+        if (completed) {
+            operations[operation.ordinal()].record(nanos);
+        } else {
+            operations[operation.ordinal()].recordError(nanos);
+        }
+    }
+
+    /**
+     * Records that an operation is retried.
+     *
+     * @param operation The retried operation.
+     */
+    void recordRetry(Operation operation) {
+        operations[operation.ordinal()].recordRetry();
+    }
+
+    /**
+     * Records the execution of the statements of an operation.
+     *
+     * @param operation  The operation that executed the statements.
+     * @param startNanos The value of <code>System.nanoTime()</code> when the execution started.
+     */
+    void recordStatement(Operation operation, long startNanos) {
+        statements[operation.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param startNanos The value of <code>System.nanoTime()</code> when the wait for a connection started.
+     */
+    void recordConnectionWait(long startNanos) {
+        connectionWait.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param startNanos The value of <code>System.nanoTime()</code> when the commit started.
+     */
+    void recordCommit(long startNanos) {
+        commit.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return The current values of all histograms.
+     */
+    List<LatencySnapshot> snapshot() {
+        List<LatencySnapshot> snapshots = new ArrayList<>();
+        for (LatencyHistogram histogram : allHistograms()) {
+            snapshots.add(histogram.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Registers all histograms with the platform MBean server. Histograms with a name that is already registered, for
+     * example by another DAO in the same JVM, are left out. Nothing is registered once the metrics are closed.
+     */
+    synchronized void registerMXBeans() {
+        if (closed) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (LatencyHistogram histogram : allHistograms()) {
+            try {
+                ObjectName name = new ObjectName(JMX_DOMAIN + ":type=DAOMetrics,name=" + histogram.getName());
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(histogram, name);
+                    registeredNames.add(name);
+                }
+            } catch (JMException notRegistered) {
+                // The metrics are still available through snapshot().
+            }
+        }
+    }
+
+    /**
+     * Unregisters the histograms registered by <code>registerMXBeans</code>.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException alreadyGone) {
+                // Nothing left to clean up.
+            }
+        }
+        registeredNames.clear();
+    }
+
+    private List<LatencyHistogram> allHistograms() {
+        List<LatencyHistogram> all = new ArrayList<>();
+        for (Operation operation : Operation.values()) {
+            all.add(operations[operation.ordinal()]);
+            all.add(statements[operation.ordinal()]);
+        }
+        all.add(connectionWait);
+        all.add(commit);
+        return all;
+    }
+}
@@ -0,0 +1,157 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Listens for Postgres notifications on a connection of its own, outside the connection pool, and passes them on to
+ * the subscribers of each channel. Notifications sent while the listener is not connected are lost, that is why
+ * subscribers are told to resynchronize each time the listener connects or loses its connection.
+ */
+class DBNotificationListener implements Runnable, AutoCloseable {
+    private static final int POLL_TIMEOUT_MILLIS = 500;
+    private static final long RECONNECT_DELAY_MILLIS = 5000;
+
+    /**
+     * Receives the notifications of one channel.
+     */
+    interface Subscriber {
+        /**
+         * Called for each notification on the subscribed channel.
+         *
+         * @param payload The payload of the notification.
+         */
+        void notified(String payload);
+
+        /**
+         * Called when notifications might have been missed, everything cached must be considered stale.
+         */
+        void resynchronize();
+    }
+
+    private final ConnectionPool pool;
+    private final Map<String, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private volatile boolean listening = false;
+    private volatile boolean closed = false;
+    private Thread listenerThread;
+
+    /**
+     * @param pool The pool whose database is listened to. No connection is borrowed from the pool.
+     */
+    DBNotificationListener(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Subscribes to a channel. All subscriptions must be made before the listener is started.
+     *
+     * @param channel    The channel to listen to.
+     * @param subscriber Receives the notifications on <code>channel</code>.
+     */
+    void subscribe(String channel, Subscriber subscriber) {
+        if (listenerThread != null) {
+            throw new IllegalStateException("Can not subscribe after the listener is started.");
+        }
+        subscribers.computeIfAbsent(channel, ignored -> new CopyOnWriteArrayList<>()).add(subscriber);
+    }
+
+    /**
+     * Starts listening in a background thread.
+     */
+    synchronized void start() {
+        if (listenerThread == null && !subscribers.isEmpty()) {
+            listenerThread = new Thread(this, "soundgood-db-notifications");
+            listenerThread.setDaemon(true);
+            listenerThread.start();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the listener is connected, and therefore receives all notifications.
+     */
+    boolean isListening() {
+        return listening;
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try (Connection connection = pool.openUnpooledConnection()) {
+                connection.setAutoCommit(true);
+                try (Statement listenStmt = connection.createStatement()) {
+                    for (String channel : subscribers.keySet()) {
+                        listenStmt.execute("LISTEN " + channel);
+                    }
+                }
+                listening = true;
+                resynchronizeAll();
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (!closed) {
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if (notifications != null) {
+                        dispatch(notifications);
+                    }
+                }
+            } catch (SQLException connectionLost) {
+                // Reconnects below.
+            } finally {
+                if (listening) {
+                    listening = false;
+                    resynchronizeAll();
+                }
+            }
+            pauseBeforeReconnect();
+        }
+    }
+
+    /**
+     * Stops listening and closes the listener's connection.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (listenerThread != null) {
+            listenerThread.interrupt();
+        }
+    }
+
+    private void dispatch(PGNotification[] notifications) {
+        for (PGNotification notification : notifications) {
+            List<Subscriber> channelSubscribers = subscribers.get(notification.getName());
+            if (channelSubscribers != null) {
+                for (Subscriber subscriber : channelSubscribers) {
+                    subscriber.notified(notification.getParameter());
+                }
+            }
+        }
+    }
+
+    private void resynchronizeAll() {
+        List<Subscriber> all = new ArrayList<>();
+        subscribers.values().forEach(all::addAll);
+        for (Subscriber subscriber : all) {
+            subscriber.resynchronize();
+        }
+    }
+
+    private void pauseBeforeReconnect() {
+        if (closed) {
+            return;
+        }
+        try {
+            Thread.sleep(RECONNECT_DELAY_MILLIS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+}
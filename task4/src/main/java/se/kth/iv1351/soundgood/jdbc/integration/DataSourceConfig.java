@@ -0,0 +1,286 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Tells where the Soundgood database and its read replicas are, and how the DAO and its background tasks are tuned.
+ * The settings are read from <code>soundgood.properties</code> on the class path, then from the file named by the
+ * system property <code>soundgood.config</code>, if any, and last from the system properties. A later source
+ * overrides an earlier one.
+ * <ul>
+ * <li><code>soundgood.db.url</code>, <code>soundgood.db.user</code> and <code>soundgood.db.password</code> locate the
+ * primary database, all writes go there.</li>
+ * <li><code>soundgood.db.replicas</code> is a comma-separated list of JDBC urls of read replicas of the primary. They
+ * are logged in to with the same user and password.</li>
+ * <li><code>soundgood.db.maxReplicaLagMillis</code> is how far behind the primary a replica may be and still be
+ * read from.</li>
+ * <li><code>soundgood.pool.minSize</code>, <code>soundgood.pool.maxSize</code> and
+ * <code>soundgood.pool.acquireTimeoutMillis</code> size the pool of each database.</li>
+ * <li><code>soundgood.db.lazyConnect</code> is <code>false</code> if the primary is connected to, and its schema
+ * checked, before the DAO is created. By default that is done in the background by
+ * <code>BackgroundJobs.startConnections</code>, and the first connection is opened when it is needed if the
+ * background is not done yet.</li>
+ * <li><code>soundgood.db.warmUpRetryMillis</code> is how often the background warm-up tries again while the database
+ * can not be reached.</li>
+ * <li><code>soundgood.priceCache.maxSize</code> is the number of current prices that are cached.</li>
+ * <li><code>soundgood.identityMap.maxSize</code> is the number of listed instruments that stay the same objects as
+ * long as they do not change.</li>
+ * <li><code>soundgood.studentCache.maxSize</code> is the number of students known to be at the rental limit that are
+ * cached, so that their rentals are rejected without asking the database.</li>
+ * <li><code>soundgood.rent.leaseDays</code> is the length of a lease.</li>
+ * <li><code>soundgood.rent.serializable</code> runs rentals at serializable instead of read committed.</li>
+ * <li><code>soundgood.rent.maxRetries</code> is how many times a rental that fails with a serialization failure, a
+ * deadlock or a rental ID collision is retried.</li>
+ * <li><code>soundgood.sweeper.intervalMillis</code> (0 turns it off) is how often the instruments of leases that ran
+ * out are given back to stock, in batches of <code>soundgood.sweeper.batchSize</code> rentals, at most
+ * <code>soundgood.sweeper.maxBatchesPerRun</code> batches per run with a pause of
+ * <code>soundgood.sweeper.pauseMillis</code> between them.</li>
+ * <li><code>soundgood.reports.refreshIntervalMillis</code> (0 turns it off) is how often the reports are
+ * refreshed.</li>
+ * <li><code>soundgood.outbox.relay</code> is <code>true</code> only for the rental server that publishes the rental
+ * and stock changes, see <code>OutboxRelay</code>. It is off by default, and never on in other modes. The changes are
+ * appended to the file <code>soundgood.outbox.logFile</code>, which must be set if the relay is on (empty for no
+ * file), as soon as they are committed, and at least every <code>soundgood.outbox.pollIntervalMillis</code>, in
+ * batches of <code>soundgood.outbox.batchSize</code> events.</li>
+ * <li><code>soundgood.reservations.blockSize</code>, if greater than 0, makes rentals take their instruments from
+ * reservations of up to that many instruments, claimed from stock for <code>soundgood.reservations.ttlMillis</code>,
+ * instead of updating the stock of the instrument one by one.</li>
+ * <li><code>soundgood.partitions.intervalMillis</code> (0 turns it off) is how often the rental partitions of the next
+ * <code>soundgood.partitions.monthsAhead</code> months are created, and the partitions older than
+ * <code>soundgood.partitions.retentionMonths</code> months (0 keeps all) are archived.</li>
+ * </ul>
+ */
+public class DataSourceConfig {
+    private static final String CLASSPATH_RESOURCE = "/soundgood.properties";
+    private static final String CONFIG_FILE_PROPERTY = "soundgood.config";
+    private static final int DEFAULT_POOL_MIN_SIZE = 1;
+    private static final int DEFAULT_POOL_MAX_SIZE = 10;
+    private static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 5000;
+    private static final long DEFAULT_MAX_REPLICA_LAG_MILLIS = 1000;
+    private static final long DEFAULT_WARM_UP_RETRY_MILLIS = 5000;
+    private static final int DEFAULT_PRICE_CACHE_SIZE = 10_000;
+    private static final int DEFAULT_IDENTITY_MAP_SIZE = 100_000;
+    private static final int DEFAULT_STUDENT_CACHE_SIZE = 10_000;
+    private static final int DEFAULT_LEASE_DAYS = 30;
+    private static final int DEFAULT_MAX_RENT_RETRIES = 5;
+    private static final long DEFAULT_SWEEP_INTERVAL_MILLIS = 60_000;
+    private static final int DEFAULT_SWEEP_BATCH_SIZE = 100;
+    private static final int DEFAULT_SWEEP_MAX_BATCHES = 50;
+    private static final long DEFAULT_SWEEP_PAUSE_MILLIS = 100;
+    private static final long DEFAULT_REPORT_REFRESH_INTERVAL_MILLIS = 300_000;
+    private static final long DEFAULT_OUTBOX_POLL_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_OUTBOX_BATCH_SIZE = 500;
+    private static final int DEFAULT_RESERVATION_BLOCK_SIZE = 0;
+    private static final long DEFAULT_RESERVATION_TTL_MILLIS = 30_000;
+    private static final long DEFAULT_PARTITION_INTERVAL_MILLIS = 86_400_000;
+    private static final int DEFAULT_PARTITION_MONTHS_AHEAD = 3;
+    private static final int DEFAULT_PARTITION_RETENTION_MONTHS = 0;
+
+    private final Properties settings;
+
+    /**
+     * Creates a configuration from the specified settings only, nothing is read from files or system properties.
+     *
+     * @param settings The settings, missing ones get their default value.
+     */
+    public DataSourceConfig(Properties settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Reads the configuration from the class path, the file named by <code>soundgood.config</code> and the system
+     * properties.
+     *
+     * @return The configuration.
+     * @throws SoundgoodDBException If a configuration file could not be read.
+     */
+    public static DataSourceConfig load() throws SoundgoodDBException {
+        Properties settings = new Properties();
+        try (InputStream defaults = DataSourceConfig.class.getResourceAsStream(CLASSPATH_RESOURCE)) {
+            if (defaults != null) {
+                settings.load(defaults);
+            }
+            String configFile = System.getProperty(CONFIG_FILE_PROPERTY);
+            if (configFile != null) {
+                try (Reader in = Files.newBufferedReader(Path.of(configFile), StandardCharsets.UTF_8)) {
+                    settings.load(in);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new SoundgoodDBException("Could not read the datasource configuration.", ioe);
+        }
+        settings.putAll(System.getProperties());
+        return new DataSourceConfig(settings);
+    }
+
+    public String getPrimaryUrl() {
+        return settings.getProperty("soundgood.db.url", SoundgoodDAO.DB_URL);
+    }
+
+    public String getUser() {
+        return settings.getProperty("soundgood.db.user", SoundgoodDAO.DB_USER);
+    }
+
+    public String getPassword() {
+        return settings.getProperty("soundgood.db.password", SoundgoodDAO.DB_PASSWORD);
+    }
+
+    /**
+     * @return The urls of the read replicas, empty if all reads go to the primary.
+     */
+    public List<String> getReplicaUrls() {
+        String replicas = settings.getProperty("soundgood.db.replicas", "").trim();
+        if (replicas.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> urls = new ArrayList<>();
+        for (String url : replicas.split(",")) {
+            if (!url.isBlank()) {
+                urls.add(url.trim());
+            }
+        }
+        return urls;
+    }
+
+    public long getMaxReplicaLagMillis() {
+        return getLong("soundgood.db.maxReplicaLagMillis", DEFAULT_MAX_REPLICA_LAG_MILLIS);
+    }
+
+    public int getPoolMinSize() {
+        return (int) getLong("soundgood.pool.minSize", DEFAULT_POOL_MIN_SIZE);
+    }
+
+    public int getPoolMaxSize() {
+        return (int) getLong("soundgood.pool.maxSize", DEFAULT_POOL_MAX_SIZE);
+    }
+
+    public boolean isLazyConnect() {
+        return getBoolean("soundgood.db.lazyConnect", true);
+    }
+
+    public long getAcquireTimeoutMillis() {
+        return getLong("soundgood.pool.acquireTimeoutMillis", DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+    }
+
+    public long getWarmUpRetryMillis() {
+        return getLong("soundgood.db.warmUpRetryMillis", DEFAULT_WARM_UP_RETRY_MILLIS);
+    }
+
+    public int getPriceCacheSize() {
+        return (int) getLong("soundgood.priceCache.maxSize", DEFAULT_PRICE_CACHE_SIZE);
+    }
+
+    public int getIdentityMapSize() {
+        return (int) getLong("soundgood.identityMap.maxSize", DEFAULT_IDENTITY_MAP_SIZE);
+    }
+
+    public int getStudentCacheSize() {
+        return (int) getLong("soundgood.studentCache.maxSize", DEFAULT_STUDENT_CACHE_SIZE);
+    }
+
+    public int getLeaseDays() {
+        return (int) getLong("soundgood.rent.leaseDays", DEFAULT_LEASE_DAYS);
+    }
+
+    public boolean isRentSerializable() {
+        return getBoolean("soundgood.rent.serializable", false);
+    }
+
+    public int getMaxRentRetries() {
+        return (int) getLong("soundgood.rent.maxRetries", DEFAULT_MAX_RENT_RETRIES);
+    }
+
+    public long getSweepIntervalMillis() {
+        return getLong("soundgood.sweeper.intervalMillis", DEFAULT_SWEEP_INTERVAL_MILLIS);
+    }
+
+    public int getSweepBatchSize() {
+        return (int) getLong("soundgood.sweeper.batchSize", DEFAULT_SWEEP_BATCH_SIZE);
+    }
+
+    public int getSweepMaxBatchesPerRun() {
+        return (int) getLong("soundgood.sweeper.maxBatchesPerRun", DEFAULT_SWEEP_MAX_BATCHES);
+    }
+
+    public long getSweepPauseMillis() {
+        return getLong("soundgood.sweeper.pauseMillis", DEFAULT_SWEEP_PAUSE_MILLIS);
+    }
+
+    public long getReportRefreshIntervalMillis() {
+        return getLong("soundgood.reports.refreshIntervalMillis", DEFAULT_REPORT_REFRESH_INTERVAL_MILLIS);
+    }
+
+    public boolean isOutboxRelay() {
+        return getBoolean("soundgood.outbox.relay", false);
+    }
+
+    /**
+     * @return The file the published rental and stock changes are appended to, <code>null</code> for no file.
+     * @throws IllegalArgumentException If the file is not set, there is no default since it must not be written by
+     *                                  more than one process.
+     */
+    public Path getOutboxLogFile() {
+        String logFile = settings.getProperty("soundgood.outbox.logFile");
+        if (logFile == null) {
+            throw new IllegalArgumentException("Not set: soundgood.outbox.logFile, set it empty for no log file");
+        }
+        return logFile.isBlank() ? null : Path.of(logFile.trim());
+    }
+
+    public long getOutboxPollIntervalMillis() {
+        return getLong("soundgood.outbox.pollIntervalMillis", DEFAULT_OUTBOX_POLL_INTERVAL_MILLIS);
+    }
+
+    public int getOutboxBatchSize() {
+        return (int) getLong("soundgood.outbox.batchSize", DEFAULT_OUTBOX_BATCH_SIZE);
+    }
+
+    public int getReservationBlockSize() {
+        return (int) getLong("soundgood.reservations.blockSize", DEFAULT_RESERVATION_BLOCK_SIZE);
+    }
+
+    public long getReservationTtlMillis() {
+        return getLong("soundgood.reservations.ttlMillis", DEFAULT_RESERVATION_TTL_MILLIS);
+    }
+
+    public long getPartitionIntervalMillis() {
+        return getLong("soundgood.partitions.intervalMillis", DEFAULT_PARTITION_INTERVAL_MILLIS);
+    }
+
+    public int getPartitionMonthsAhead() {
+        return (int) getLong("soundgood.partitions.monthsAhead", DEFAULT_PARTITION_MONTHS_AHEAD);
+    }
+
+    public int getPartitionRetentionMonths() {
+        return (int) getLong("soundgood.partitions.retentionMonths", DEFAULT_PARTITION_RETENTION_MONTHS);
+    }
+
+    private boolean getBoolean(String key, boolean defaultValue) {
+        String value = settings.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    private long getLong(String key, long defaultValue) {
+        String value = settings.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Not a number: " + key + "=" + value, nfe);
+        }
+    }
+}
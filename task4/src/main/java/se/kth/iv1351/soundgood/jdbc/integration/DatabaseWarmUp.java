@@ -0,0 +1,104 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets the DAO ready in a background thread, so that the application can start without waiting for the database: the
+ * pool opens its first connections in parallel, the schema version is checked, and the metrics are registered. If the
+ * database can not be reached, the warm-up is tried again every <code>retryMillis</code> until it succeeds. Operations
+ * do not wait for the warm-up, a connection that is not open yet is opened by the operation that needs it.
+ */
+class DatabaseWarmUp implements AutoCloseable {
+    private final SoundgoodDAO dao;
+    private final ConnectionPool pool;
+    private final DAOMetrics metrics;
+    private final long retryMillis;
+    private final CompletableFuture<Integer> ready = new CompletableFuture<>();
+    private volatile SQLException lastFailure;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param dao         The DAO checking the schema version.
+     * @param pool        The pool of connections to the primary database.
+     * @param metrics     The metrics registered with the MBean server.
+     * @param retryMillis The time between two attempts while the database can not be reached.
+     */
+    DatabaseWarmUp(SoundgoodDAO dao, ConnectionPool pool, DAOMetrics metrics, long retryMillis) {
+        this.dao = dao;
+        this.pool = pool;
+        this.metrics = metrics;
+        this.retryMillis = retryMillis;
+    }
+
+    /**
+     * Starts warming up in a background thread.
+     */
+    synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "soundgood-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.execute(() -> {
+            warmUp();
+            // Registered after the first attempt, so that it does not hold up the connections.
+            metrics.registerMXBeans();
+        });
+    }
+
+    /**
+     * @return Completes with the schema version once the database has been reached, or exceptionally with a
+     *         <code>SoundgoodDBException</code> if the schema does not have the version this DAO needs.
+     */
+    CompletionStage<Integer> whenReady() {
+        return ready.minimalCompletionStage();
+    }
+
+    /**
+     * @return Why the database could not be reached the last time it was tried, <code>null</code> if it was reached or
+     *         has not been tried yet.
+     */
+    SQLException getLastFailure() {
+        return lastFailure;
+    }
+
+    private void warmUp() {
+        try {
+            pool.warmUp();
+            int version = dao.checkSchemaVersion();
+            lastFailure = null;
+            ready.complete(version);
+        } catch (SoundgoodDBException incompatibleSchema) {
+            ready.completeExceptionally(incompatibleSchema);
+        } catch (SQLException unreachable) {
+            lastFailure = unreachable;
+            retry();
+        }
+    }
+
+    private synchronized void retry() {
+        if (scheduler != null && !Thread.currentThread().isInterrupted()) {
+            scheduler.schedule(this::warmUp, retryMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the background thread. Connections that are being opened are still added to the pool, which closes them
+     * if it is closed.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
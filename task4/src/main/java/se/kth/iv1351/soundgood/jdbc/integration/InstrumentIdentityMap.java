@@ -0,0 +1,69 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import se.kth.iv1351.soundgood.jdbc.model.Instrument;
+
+/**
+ * Hands out one <code>Instrument</code> per instrument ID, as long as the instrument reads the same from the database,
+ * so that listings that are held on to share their objects instead of each keeping a copy. Types and brands are shared
+ * between instruments too, since many instruments have the same ones. The least recently used entries are evicted
+ * when the map is full.
+ * <p>
+ * No notification is needed to keep the map up to date: a row is only matched with an instance that has the same
+ * values, a changed row replaces the instance.
+ */
+class InstrumentIdentityMap {
+    private final Map<String, Instrument> instruments;
+    private final Map<String, String> labels;
+
+    /**
+     * @param maxSize The maximum number of instruments, and of distinct types and brands, that are kept.
+     */
+    InstrumentIdentityMap(int maxSize) {
+        this.instruments = new LinkedHashMap<String, Instrument>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Instrument> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.labels = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the instance of an instrument that has the specified values, creating it if the instrument is not known
+     * or has changed.
+     *
+     * @return An instrument with the specified values.
+     */
+    synchronized Instrument get(String instrumentID, String instrumentType, String instrumentBrand, int inStock,
+            double price) {
+        Instrument known = instruments.get(instrumentID);
+        if (known != null && known.instrumentsInStock() == inStock && known.price() == price
+                && known.instrumentType().equals(instrumentType) && known.instrumentBrand().equals(instrumentBrand)) {
+            return known;
+        }
+        Instrument current = new Instrument(known != null ? known.instrumentID() : instrumentID,
+                label(instrumentType), label(instrumentBrand), inStock, price);
+        instruments.put(current.instrumentID(), current);
+        return current;
+    }
+
+    /**
+     * @return The number of instruments in the map.
+     */
+    synchronized int size() {
+        return instruments.size();
+    }
+
+    private String label(String value) {
+        String shared = labels.putIfAbsent(value, value);
+        return shared != null ? shared : value;
+    }
+}
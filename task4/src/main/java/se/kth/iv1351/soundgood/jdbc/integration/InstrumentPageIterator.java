@@ -0,0 +1,80 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import se.kth.iv1351.soundgood.jdbc.model.InstrumentDTO;
+
+/**
+ * Iterates over the available instruments of one type, reading one page at a time. Each page starts after the last
+ * instrument ID of the previous page, so no page is more expensive to read than the first, and at most one page is
+ * held in memory.
+ */
+class InstrumentPageIterator implements Iterator<InstrumentDTO> {
+
+    /**
+     * Reads one page of instruments.
+     */
+    interface PageReader {
+        /**
+         * @param afterInstrumentID Only instruments with a greater ID are read, the empty string reads the first
+         *                          page.
+         * @param pageSize          The maximum number of instruments read.
+         * @return The instruments ordered by ID.
+         * @throws SoundgoodDBException If failed to read the page.
+         */
+        List<InstrumentDTO> readPage(String afterInstrumentID, int pageSize) throws SoundgoodDBException;
+    }
+
+    private final PageReader reader;
+    private final int pageSize;
+    private List<InstrumentDTO> page = new ArrayList<>();
+    private int nextInPage = 0;
+    private String lastInstrumentID = "";
+    private boolean lastPageRead = false;
+
+    InstrumentPageIterator(PageReader reader, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Invalid page size: " + pageSize);
+        }
+        this.reader = reader;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @throws UncheckedSoundgoodDBException If failed to read the next page.
+     */
+    @Override
+    public boolean hasNext() {
+        if (nextInPage < page.size()) {
+            return true;
+        }
+        if (lastPageRead) {
+            return false;
+        }
+        try {
+            page = reader.readPage(lastInstrumentID, pageSize);
+        } catch (SoundgoodDBException dbFailure) {
+            throw new UncheckedSoundgoodDBException(dbFailure);
+        }
+        nextInPage = 0;
+        lastPageRead = page.size() < pageSize;
+        if (!page.isEmpty()) {
+            lastInstrumentID = page.get(page.size() - 1).getInstrumentID();
+        }
+        return !page.isEmpty();
+    }
+
+    /**
+     * @throws UncheckedSoundgoodDBException If failed to read the next page.
+     */
+    @Override
+    public InstrumentDTO next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(nextInPage++);
+    }
+}
@@ -0,0 +1,562 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import se.kth.iv1351.soundgood.jdbc.model.InstrumentMatch;
+
+/**
+ * An in-memory inverted index of the type and brand of every instrument. A query word matches the indexed words that
+ * are equal to it or start with it. A word of four letters or more that matches nothing that way matches the words
+ * within one typo of it, or two typos if it is longer than five letters. An instrument matches a query if each query
+ * word matches a word of its type or brand. Equal words score highest, then prefixes, then words with typos, and the
+ * scores of all query words are added. Matches with the same score are ordered by instrument ID, except that
+ * instruments added after the index was loaded come after the others.
+ * <p>
+ * The index is kept up to date through the <code>instrument_changed</code> notification, which is sent by a trigger
+ * on <code>instrument</code> and carries the new type and brand, so changes are applied without reading the
+ * database. Stock is not indexed. While notifications can not be received the index is not live, and must be loaded
+ * again before it is used.
+ */
+class InstrumentSearchIndex implements DBNotificationListener.Subscriber {
+    static final String CHANGE_CHANNEL = "instrument_changed";
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String WORD_SEPARATOR = "[^\\p{L}\\p{N}]+";
+    private static final int EXACT_SCORE = 3;
+    private static final int PREFIX_SCORE = 2;
+    private static final int TYPO_SCORE = 1;
+    private static final int MIN_TYPO_WORD_LENGTH = 4;
+    private static final int MAX_ONE_TYPO_WORD_LENGTH = 5;
+    // Above this many tied matches per wanted match, scanning all instruments in order beats sorting the ties.
+    private static final int SCAN_INSTEAD_OF_SORT_RATIO = 8;
+
+    private static class IndexedInstrument {
+        private final String instrumentID;
+        private final String type;
+        private final String brand;
+        private final Set<String> words;
+
+        private IndexedInstrument(String instrumentID, String type, String brand) {
+            this.instrumentID = instrumentID;
+            this.type = type;
+            this.brand = brand;
+            this.words = words(type + " " + brand);
+        }
+    }
+
+    /**
+     * The numbers of the instruments having one word, in ascending order.
+     */
+    private static class Postings {
+        private int[] docs = new int[4];
+        private int size = 0;
+
+        private void add(int doc) {
+            int position = Arrays.binarySearch(docs, 0, size, doc);
+            if (position >= 0) {
+                return;
+            }
+            position = -position - 1;
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            System.arraycopy(docs, position, docs, position + 1, size - position);
+            docs[position] = doc;
+            size++;
+        }
+
+        private void remove(int doc) {
+            int position = Arrays.binarySearch(docs, 0, size, doc);
+            if (position >= 0) {
+                System.arraycopy(docs, position + 1, docs, position, size - position - 1);
+                size--;
+            }
+        }
+    }
+
+    /**
+     * The score of a query word for the instruments having one indexed word.
+     */
+    private static class WordMatch {
+        private final Postings postings;
+        private final int score;
+
+        private WordMatch(Postings postings, int score) {
+            this.postings = postings;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Working memory of one search, indexed by instrument number. All entries are zero between searches.
+     */
+    private static class Scratch {
+        private int[] scores = new int[0];
+        private int[] matchedWords = new int[0];
+        private int[] candidates = new int[0];
+    }
+
+    private final DBNotificationListener listener;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> docsByInstrumentID = new HashMap<>();
+    private final NavigableMap<String, Postings> postingsByWord = new TreeMap<>();
+    private final Map<String, Set<String>> wordsByTrigram = new HashMap<>();
+    private final Queue<Scratch> freeScratches = new ConcurrentLinkedQueue<>();
+    private final List<String> changesDuringLoad = new ArrayList<>();
+    private IndexedInstrument[] docs = new IndexedInstrument[0];
+    private int docCount = 0;
+    private volatile boolean loaded = false;
+    private boolean loading = false;
+    private long generation = 0;
+
+    /**
+     * @param listener The listener that delivers instrument changes, it must not yet be started.
+     */
+    InstrumentSearchIndex(DBNotificationListener listener) {
+        this.listener = listener;
+        listener.subscribe(CHANGE_CHANNEL, this);
+    }
+
+    /**
+     * @return <code>true</code> if instrument changes are received, so that a loaded index stays up to date.
+     */
+    boolean isLive() {
+        return listener.isListening();
+    }
+
+    /**
+     * @return <code>true</code> if the index holds all instruments, as of the last received change.
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Must be called before the instruments are read from the database. Changes received from now on are applied
+     * after the instruments read from the database, so that none of them is lost.
+     *
+     * @return A token that must be passed to <code>finishLoad</code>.
+     */
+    long beginLoad() {
+        lock.writeLock().lock();
+        try {
+            loading = true;
+            changesDuringLoad.clear();
+            return generation;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the content of the index with the specified instruments. The index is not considered loaded if
+     * changes might have been missed since <code>beginLoad</code>.
+     *
+     * @param rows       The ID, type and brand of every instrument, ordered by ID.
+     * @param generation The token returned by <code>beginLoad</code>.
+     */
+    void finishLoad(List<String[]> rows, long generation) {
+        lock.writeLock().lock();
+        try {
+            docsByInstrumentID.clear();
+            postingsByWord.clear();
+            wordsByTrigram.clear();
+            freeScratches.clear();
+            docs = new IndexedInstrument[Math.max(16, rows.size())];
+            docCount = 0;
+            for (String[] row : rows) {
+                put(row[0], row[1], row[2]);
+            }
+            for (String change : changesDuringLoad) {
+                apply(change);
+            }
+            changesDuringLoad.clear();
+            loading = false;
+            loaded = this.generation == generation;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Ends a load that failed, the index is left as it was.
+     */
+    void abortLoad() {
+        lock.writeLock().lock();
+        try {
+            changesDuringLoad.clear();
+            loading = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the instruments matching all words of a query.
+     *
+     * @param query  The words to search for, separated by spaces or punctuation.
+     * @param offset The number of best matches to skip.
+     * @param limit  The maximum number of matches to return.
+     * @return The matches, best first.
+     */
+    List<InstrumentMatch> search(String query, int offset, int limit) {
+        Set<String> queryWords = words(query);
+        if (queryWords.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            List<List<WordMatch>> matchesPerWord = new ArrayList<>();
+            for (String queryWord : queryWords) {
+                List<WordMatch> wordMatches = matchWord(queryWord);
+                if (wordMatches.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                matchesPerWord.add(wordMatches);
+            }
+            // The rarest word decides the candidates, the others only filter them.
+            matchesPerWord.sort((a, b) -> Long.compare(countPostings(a), countPostings(b)));
+            Scratch scratch = borrowScratch();
+            int candidateCount = 0;
+            try {
+                candidateCount = score(matchesPerWord, scratch);
+                return page(scratch, candidateCount, matchesPerWord.size(), offset, limit);
+            } finally {
+                for (int i = 0; i < candidateCount; i++) {
+                    scratch.scores[scratch.candidates[i]] = 0;
+                    scratch.matchedWords[scratch.candidates[i]] = 0;
+                }
+                freeScratches.add(scratch);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void notified(String change) {
+        lock.writeLock().lock();
+        try {
+            if (loading) {
+                changesDuringLoad.add(change);
+            } else if (loaded) {
+                apply(change);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void resynchronize() {
+        lock.writeLock().lock();
+        try {
+            generation++;
+            loaded = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies one notification, which is either the ID of a removed instrument, or the ID, type and brand of an added
+     * or changed instrument. An empty notification means that the table was truncated.
+     */
+    private void apply(String change) {
+        if (change.isEmpty()) {
+            generation++;
+            loaded = false;
+            return;
+        }
+        String[] fields = change.split(FIELD_SEPARATOR, -1);
+        if (fields.length == 3) {
+            put(fields[0], fields[1], fields[2]);
+        } else {
+            remove(fields[0]);
+        }
+    }
+
+    /**
+     * Indexes an instrument. A changed instrument keeps its number, so that its place among tied matches is kept.
+     */
+    private void put(String instrumentID, String type, String brand) {
+        Integer doc = docsByInstrumentID.get(instrumentID);
+        if (doc == null) {
+            if (docCount == docs.length) {
+                docs = Arrays.copyOf(docs, Math.max(16, docCount * 2));
+            }
+            doc = docCount++;
+            docsByInstrumentID.put(instrumentID, doc);
+        } else {
+            unindexWords(doc);
+        }
+        IndexedInstrument instrument = new IndexedInstrument(instrumentID, type, brand);
+        docs[doc] = instrument;
+        for (String word : instrument.words) {
+            Postings postings = postingsByWord.get(word);
+            if (postings == null) {
+                postings = new Postings();
+                postingsByWord.put(word, postings);
+                for (String trigram : trigrams(word)) {
+                    wordsByTrigram.computeIfAbsent(trigram, ignored -> new HashSet<>()).add(word);
+                }
+            }
+            postings.add(doc);
+        }
+    }
+
+    private void remove(String instrumentID) {
+        Integer doc = docsByInstrumentID.remove(instrumentID);
+        if (doc != null) {
+            unindexWords(doc);
+            docs[doc] = null;
+        }
+    }
+
+    private void unindexWords(int doc) {
+        for (String word : docs[doc].words) {
+            Postings postings = postingsByWord.get(word);
+            postings.remove(doc);
+            if (postings.size == 0) {
+                postingsByWord.remove(word);
+                for (String trigram : trigrams(word)) {
+                    Set<String> words = wordsByTrigram.get(trigram);
+                    words.remove(word);
+                    if (words.isEmpty()) {
+                        wordsByTrigram.remove(trigram);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The indexed words matched by one query word, best score first.
+     */
+    private List<WordMatch> matchWord(String queryWord) {
+        List<WordMatch> matches = new ArrayList<>();
+        Postings exact = postingsByWord.get(queryWord);
+        if (exact != null) {
+            matches.add(new WordMatch(exact, EXACT_SCORE));
+        }
+        for (Postings prefixed : postingsByWord.subMap(queryWord, false, queryWord + Character.MAX_VALUE, false)
+                .values()) {
+            matches.add(new WordMatch(prefixed, PREFIX_SCORE));
+        }
+        if (matches.isEmpty()) {
+            for (String typoWord : wordsWithTypos(queryWord)) {
+                matches.add(new WordMatch(postingsByWord.get(typoWord), TYPO_SCORE));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the indexed words within one typo of a query word, or two typos if the word is long. Only words sharing
+     * enough trigrams with the query word are compared, each typo changes at most three trigrams.
+     */
+    private List<String> wordsWithTypos(String queryWord) {
+        if (queryWord.length() < MIN_TYPO_WORD_LENGTH) {
+            return Collections.emptyList();
+        }
+        int maxTypos = queryWord.length() <= MAX_ONE_TYPO_WORD_LENGTH ? 1 : 2;
+        Set<String> queryTrigrams = trigrams(queryWord);
+        Map<String, Integer> sharedTrigrams = new HashMap<>();
+        for (String trigram : queryTrigrams) {
+            for (String word : wordsByTrigram.getOrDefault(trigram, Collections.emptySet())) {
+                sharedTrigrams.merge(word, 1, Integer::sum);
+            }
+        }
+        int minShared = Math.max(1, queryTrigrams.size() - 3 * maxTypos);
+        List<String> matches = new ArrayList<>();
+        for (Map.Entry<String, Integer> candidate : sharedTrigrams.entrySet()) {
+            String word = candidate.getKey();
+            if (candidate.getValue() >= minShared && Math.abs(word.length() - queryWord.length()) <= maxTypos
+                    && editDistance(queryWord, word, maxTypos) <= maxTypos) {
+                matches.add(word);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Adds the best score of each query word to every instrument matching all query words so far. An instrument's
+     * <code>matchedWords</code> is the number of query words it has matched, so instruments that missed a word are
+     * left behind. Only the first query word can add candidates.
+     *
+     * @return The number of candidates, their numbers are the first entries of <code>candidates</code>.
+     */
+    private int score(List<List<WordMatch>> matchesPerWord, Scratch scratch) {
+        int candidateCount = 0;
+        for (int word = 0; word < matchesPerWord.size(); word++) {
+            for (WordMatch match : matchesPerWord.get(word)) {
+                int[] postings = match.postings.docs;
+                for (int i = 0; i < match.postings.size; i++) {
+                    int doc = postings[i];
+                    if (scratch.matchedWords[doc] == word) {
+                        scratch.matchedWords[doc] = word + 1;
+                        scratch.scores[doc] += match.score;
+                        if (word == 0) {
+                            scratch.candidates[candidateCount++] = doc;
+                        }
+                    }
+                }
+            }
+        }
+        return candidateCount;
+    }
+
+    /**
+     * Picks one page of the candidates that matched all query words. The lowest score on the page is found from the
+     * number of matches per score, so that only the tied matches at that score need to be ordered.
+     */
+    private List<InstrumentMatch> page(Scratch scratch, int candidateCount, int wordCount, int offset, int limit) {
+        int needed = offset + limit;
+        int[] matchesPerScore = new int[EXACT_SCORE * wordCount + 1];
+        for (int i = 0; i < candidateCount; i++) {
+            int doc = scratch.candidates[i];
+            if (scratch.matchedWords[doc] == wordCount) {
+                matchesPerScore[scratch.scores[doc]]++;
+            }
+        }
+        int lowestScore = matchesPerScore.length - 1;
+        int better = 0;
+        while (lowestScore > 0 && better + matchesPerScore[lowestScore] < needed) {
+            better += matchesPerScore[lowestScore];
+            lowestScore--;
+        }
+
+        int wantedTies = Math.min(needed - better, matchesPerScore[lowestScore]);
+        boolean scanForTies = matchesPerScore[lowestScore] > wantedTies * SCAN_INSTEAD_OF_SORT_RATIO;
+        int[] tied = new int[scanForTies ? 0 : matchesPerScore[lowestScore]];
+        int tiedCount = 0;
+        List<Integer> ranked = new ArrayList<>(better + wantedTies);
+        for (int i = 0; i < candidateCount; i++) {
+            int doc = scratch.candidates[i];
+            if (scratch.matchedWords[doc] == wordCount && scratch.scores[doc] >= lowestScore) {
+                if (scratch.scores[doc] > lowestScore) {
+                    ranked.add(doc);
+                } else if (!scanForTies) {
+                    tied[tiedCount++] = doc;
+                }
+            }
+        }
+        ranked.sort((a, b) -> scratch.scores[a] != scratch.scores[b]
+                ? Integer.compare(scratch.scores[b], scratch.scores[a]) : Integer.compare(a, b));
+        if (scanForTies) {
+            for (int doc = 0; doc < docCount && wantedTies > 0; doc++) {
+                if (scratch.matchedWords[doc] == wordCount && scratch.scores[doc] == lowestScore) {
+                    ranked.add(doc);
+                    wantedTies--;
+                }
+            }
+        } else {
+            Arrays.sort(tied);
+            for (int i = 0; i < wantedTies; i++) {
+                ranked.add(tied[i]);
+            }
+        }
+
+        List<InstrumentMatch> matches = new ArrayList<>(limit);
+        for (int i = offset; i < ranked.size(); i++) {
+            IndexedInstrument instrument = docs[ranked.get(i)];
+            matches.add(new InstrumentMatch(instrument.instrumentID, instrument.type, instrument.brand,
+                    scratch.scores[ranked.get(i)]));
+        }
+        return matches;
+    }
+
+    private static long countPostings(List<WordMatch> matches) {
+        long count = 0;
+        for (WordMatch match : matches) {
+            count += match.postings.size;
+        }
+        return count;
+    }
+
+    /**
+     * Takes working memory for one search, large enough for all instruments. Called with the read lock held, so
+     * <code>docCount</code> does not change until the scratch is given back.
+     */
+    private Scratch borrowScratch() {
+        Scratch scratch = freeScratches.poll();
+        if (scratch == null) {
+            scratch = new Scratch();
+        }
+        if (scratch.scores.length < docCount) {
+            scratch.scores = new int[docs.length];
+            scratch.matchedWords = new int[docs.length];
+            scratch.candidates = new int[docs.length];
+        }
+        return scratch;
+    }
+
+    private static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split(WORD_SEPARATOR)) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * The trigrams of a word padded like in <code>pg_trgm</code>, two spaces before and one after.
+     */
+    private static Set<String> trigrams(String word) {
+        String padded = "  " + word + " ";
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    /**
+     * The number of insertions, deletions, substitutions and swaps of adjacent letters that turn one word into the
+     * other. Stops counting at <code>max + 1</code>.
+     */
+    static int editDistance(String a, String b, int max) {
+        int[] previousRow = new int[b.length() + 1];
+        int[] row = new int[b.length() + 1];
+        int[] nextRow = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            row[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            int[] twoBack = previousRow;
+            previousRow = row;
+            row = nextRow;
+            row[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                row[j] = Math.min(Math.min(row[j - 1] + 1, previousRow[j] + 1), previousRow[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    row[j] = Math.min(row[j], twoBack[j - 2] + 1);
+                }
+                rowMin = Math.min(rowMin, row[j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            nextRow = twoBack;
+        }
+        return row[b.length()];
+    }
+}
@@ -0,0 +1,173 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies that is safe to record into from many threads at once. Recording a value only increments
+ * a few atomic counters, it never allocates or takes a lock. The buckets are log-linear: every power of two is split
+ * into 32 buckets, so a percentile is off by at most about 3% of its value.
+ */
+class LatencyHistogram implements LatencyHistogramMXBean {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param name The name of the measured operation, statement or phase.
+     */
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records one call.
+     *
+     * @param nanos The latency of the call, negative values are recorded as zero.
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        totalNanos.addAndGet(value);
+        long max = maxNanos.get();
+        while (value > max && !maxNanos.compareAndSet(max, value)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Records one call that failed. The latency of the call is recorded too.
+     *
+     * @param nanos The latency of the failed call.
+     */
+    void recordError(long nanos) {
+        errorCount.incrementAndGet();
+        record(nanos);
+    }
+
+    /**
+     * Records that a call is retried. The call itself is recorded once, when it completes or fails.
+     */
+    void recordRetry() {
+        retryCount.incrementAndGet();
+    }
+
+    /**
+     * @return The current values of this histogram.
+     */
+    LatencySnapshot snapshot() {
+        return new LatencySnapshot(name, getCount(), getErrorCount(), getRetryCount(), getMeanMicros(), getP50Micros(),
+                getP99Micros(), getP999Micros(), getMaxMicros());
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        long calls = count.get();
+        return calls == 0 ? 0 : totalNanos.get() / 1000.0 / calls;
+    }
+
+    @Override
+    public long getP50Micros() {
+        return toMicros(percentileNanos(0.5));
+    }
+
+    @Override
+    public long getP99Micros() {
+        return toMicros(percentileNanos(0.99));
+    }
+
+    @Override
+    public long getP999Micros() {
+        return toMicros(percentileNanos(0.999));
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return toMicros(maxNanos.get());
+    }
+
+    /**
+     * @param quantile The quantile, between 0 and 1.
+     * @return The smallest recorded value that at least <code>quantile</code> of the calls did not exceed, rounded
+     *         to the middle of its bucket. Zero if nothing is recorded.
+     */
+    long percentileNanos(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(middleOf(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int highestBit = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    private static long middleOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return lowestValueOf(bucket) + (1L << shift) / 2;
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,51 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+/**
+ * The JMX view of one latency histogram. All times are in microseconds.
+ */
+public interface LatencyHistogramMXBean {
+    /**
+     * @return The name of the measured operation, statement or phase.
+     */
+    String getName();
+
+    /**
+     * @return The number of recorded calls.
+     */
+    long getCount();
+
+    /**
+     * @return The number of calls that failed.
+     */
+    long getErrorCount();
+
+    /**
+     * @return The number of times a call was retried.
+     */
+    long getRetryCount();
+
+    /**
+     * @return The mean latency.
+     */
+    double getMeanMicros();
+
+    /**
+     * @return The median latency.
+     */
+    long getP50Micros();
+
+    /**
+     * @return The 99th percentile latency.
+     */
+    long getP99Micros();
+
+    /**
+     * @return The 99.9th percentile latency.
+     */
+    long getP999Micros();
+
+    /**
+     * @return The highest recorded latency.
+     */
+    long getMaxMicros();
+}
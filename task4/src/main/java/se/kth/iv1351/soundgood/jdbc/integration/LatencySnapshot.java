@@ -0,0 +1,89 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+/**
+ * The values of one latency histogram at one point in time. All times are in microseconds.
+ */
+public class LatencySnapshot {
+    private final String name;
+    private final long count;
+    private final long errorCount;
+    private final long retryCount;
+    private final double meanMicros;
+    private final long p50Micros;
+    private final long p99Micros;
+    private final long p999Micros;
+    private final long maxMicros;
+
+    LatencySnapshot(String name, long count, long errorCount, long retryCount, double meanMicros, long p50Micros,
+            long p99Micros, long p999Micros, long maxMicros) {
+        this.name = name;
+        this.count = count;
+        this.errorCount = errorCount;
+        this.retryCount = retryCount;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.p999Micros = p999Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public long getP50Micros() {
+        return p50Micros;
+    }
+
+    public long getP99Micros() {
+        return p99Micros;
+    }
+
+    public long getP999Micros() {
+        return p999Micros;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringRepresentation = new StringBuilder();
+        stringRepresentation.append(name);
+        stringRepresentation.append(": [Count: ");
+        stringRepresentation.append(count);
+        stringRepresentation.append(", Errors: ");
+        stringRepresentation.append(errorCount);
+        stringRepresentation.append(", Retries: ");
+        stringRepresentation.append(retryCount);
+        stringRepresentation.append(", Mean: ");
+        stringRepresentation.append(Math.round(meanMicros));
+        stringRepresentation.append(" us, p50: ");
+        stringRepresentation.append(p50Micros);
+        stringRepresentation.append(" us, p99: ");
+        stringRepresentation.append(p99Micros);
+        stringRepresentation.append(" us, p999: ");
+        stringRepresentation.append(p999Micros);
+        stringRepresentation.append(" us, Max: ");
+        stringRepresentation.append(maxMicros);
+        stringRepresentation.append(" us]");
+        return stringRepresentation.toString();
+    }
+}
@@ -0,0 +1,85 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives the instruments of rentals whose lease has run out back to stock, in a background thread. Each run handles at
+ * most <code>maxBatchesPerRun</code> batches, each in a transaction of its own, and pauses between the batches so that
+ * a large backlog never keeps the database busy for long.
+ */
+class LeaseExpirySweeper implements AutoCloseable {
+    private final SoundgoodDAO dao;
+    private final long intervalMillis;
+    private final int batchSize;
+    private final int maxBatchesPerRun;
+    private final long pauseMillis;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param dao              The DAO giving back the instruments.
+     * @param intervalMillis   The time between two runs, 0 means that the sweeper is never started.
+     * @param batchSize        The maximum number of rentals handled in one transaction.
+     * @param maxBatchesPerRun The maximum number of transactions in one run.
+     * @param pauseMillis      The pause between two transactions.
+     */
+    LeaseExpirySweeper(SoundgoodDAO dao, long intervalMillis, int batchSize, int maxBatchesPerRun,
+            long pauseMillis) {
+        this.dao = dao;
+        this.intervalMillis = intervalMillis;
+        this.batchSize = batchSize;
+        this.maxBatchesPerRun = maxBatchesPerRun;
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * Starts sweeping in a background thread, unless the interval is 0.
+     */
+    synchronized void start() {
+        if (scheduler != null || intervalMillis <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "soundgood-lease-expiry-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::sweep, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs batches until there are no more expired rentals, or until the limit of a run is reached.
+     *
+     * @return The number of rentals whose instrument was given back.
+     */
+    int sweep() {
+        int total = 0;
+        try {
+            for (int batch = 0; batch < maxBatchesPerRun; batch++) {
+                int released = dao.releaseExpiredStock(batchSize);
+                total += released;
+                if (released < batchSize) {
+                    break;
+                }
+                Thread.sleep(pauseMillis);
+            }
+        } catch (SoundgoodDBException failedBatch) {
+            // Counted as an error in the DAO metrics, the next run tries again.
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return total;
+    }
+
+    /**
+     * Stops the background thread. A batch in progress is finished first.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
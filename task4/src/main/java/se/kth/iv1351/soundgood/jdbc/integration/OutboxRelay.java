@@ -0,0 +1,262 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static se.kth.iv1351.soundgood.jdbc.model.JsonText.quote;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import se.kth.iv1351.soundgood.jdbc.model.RentalEvent;
+
+/**
+ * Publishes the events in the <code>rental_event</code> outbox to the subscribers and to an append-only log file, one
+ * JSON object per line. The relay runs in a background thread, it is woken by the notification the outbox triggers
+ * send, and also runs every <code>pollIntervalMillis</code> in case a notification was missed.
+ * <p>
+ * A batch is removed from the outbox in the same transaction it is read in, after it has been written to the log,
+ * forced to disk, and handed to all subscribers. If any of that fails, the transaction is rolled back and the batch is
+ * published again by the next run, so events are delivered at least once.
+ * <p>
+ * Since published events are removed, there is one relay per database: every event goes to the subscribers and the
+ * log of a single process. A relay only publishes while it owns the relay lock, a session lock held on a connection
+ * of its own, and the relays of other processes wait as standbys until the owner stops. The relay is off unless it is
+ * turned on for a rental server, see <code>BackgroundJobs.startOutboxRelay</code>, so subscribe in the server meant
+ * to publish. Subscribing where the relay is off fails, instead of silently receiving nothing. If the owner stops, a
+ * standby takes over, and its subscribers receive the events from then on.
+ */
+class OutboxRelay implements DBNotificationListener.Subscriber, AutoCloseable {
+    static final String CHANNEL = "rental_event";
+    private static final long SHUTDOWN_WAIT_MILLIS = 5000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final String TRY_RELAY_LOCK_SQL = "SELECT pg_try_advisory_lock(" + SoundgoodDAO.RELAY_LOCK_KEY
+            + ")";
+
+    private final SoundgoodDAO dao;
+    private final ConnectionPool pool;
+    private final long pollIntervalMillis;
+    private final int batchSize;
+    private final Path logFile;
+    private final List<RentalEventSubscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean relayQueued = new AtomicBoolean();
+    private volatile ScheduledExecutorService scheduler;
+    private FileChannel log;
+    private Connection relayLock;
+    private boolean ownsRelayLock = false;
+
+    /**
+     * @param dao                The DAO reading and removing the events.
+     * @param pool               The pool of the database, the relay lock is held on a connection that is not
+     *                           borrowed from it.
+     * @param listener           The listener delivering the wake-up notifications. Must not be started yet.
+     * @param pollIntervalMillis The longest time between two runs, 0 means that the relay is off in this process.
+     * @param batchSize          The maximum number of events published in one transaction.
+     * @param logFile            The file the events are appended to, or <code>null</code> for no log.
+     */
+    OutboxRelay(SoundgoodDAO dao, ConnectionPool pool, DBNotificationListener listener, long pollIntervalMillis,
+            int batchSize, Path logFile) {
+        this.dao = dao;
+        this.pool = pool;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.batchSize = batchSize;
+        this.logFile = logFile;
+        listener.subscribe(CHANNEL, this);
+    }
+
+    /**
+     * Adds a subscriber, it receives the events published by this process from now on.
+     *
+     * @param subscriber The subscriber to add.
+     * @throws IllegalStateException If the relay is off in this process, so that the subscriber would never receive
+     *                               anything.
+     */
+    void subscribe(RentalEventSubscriber subscriber) {
+        if (pollIntervalMillis <= 0) {
+            throw new IllegalStateException("The outbox relay is off in this process, events are published by the "
+                    + "process that has it on.");
+        }
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Starts relaying in a background thread, unless the poll interval is 0.
+     */
+    synchronized void start() {
+        if (scheduler != null || pollIntervalMillis <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "soundgood-outbox-relay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::relay, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void notified(String payload) {
+        wakeUp();
+    }
+
+    @Override
+    public void resynchronize() {
+        wakeUp();
+    }
+
+    /**
+     * Publishes batches until the outbox is empty.
+     *
+     * @return The number of events published.
+     */
+    int relay() {
+        relayQueued.set(false);
+        if (!holdRelayLock()) {
+            return 0;
+        }
+        int total = 0;
+        try {
+            int published;
+            do {
+                published = dao.publishRentalEvents(batchSize, this::publish);
+                total += published;
+            } while (published == batchSize && !Thread.currentThread().isInterrupted());
+        } catch (SoundgoodDBException failedBatch) {
+            // Counted as an error in the DAO metrics, the batch stays in the outbox until the next run.
+        }
+        return total;
+    }
+
+    /**
+     * Stops the background thread and closes the log. A batch in progress is rolled back unless it is done first.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(SHUTDOWN_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            scheduler = null;
+        }
+        releaseRelayLock();
+        closeLog();
+    }
+
+    /**
+     * Makes sure this relay owns the relay lock, taking it if it is free. A lost connection gives up the lock, it is
+     * taken again on a new connection if no other relay took it first.
+     *
+     * @return <code>true</code> if this relay owns the lock.
+     */
+    private boolean holdRelayLock() {
+        try {
+            if (relayLock != null && !relayLock.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                releaseRelayLock();
+            }
+            if (relayLock == null) {
+                relayLock = pool.openUnpooledConnection();
+                relayLock.setAutoCommit(true);
+            }
+            if (!ownsRelayLock) {
+                try (Statement lockStmt = relayLock.createStatement();
+                        ResultSet result = lockStmt.executeQuery(TRY_RELAY_LOCK_SQL)) {
+                    ownsRelayLock = result.next() && result.getBoolean(1);
+                }
+            }
+        } catch (SQLException lockNotTaken) {
+            releaseRelayLock();
+        }
+        return ownsRelayLock;
+    }
+
+    private void releaseRelayLock() {
+        ownsRelayLock = false;
+        if (relayLock != null) {
+            try {
+                // Closing the session releases the lock.
+                relayLock.close();
+            } catch (SQLException ignored) {
+                // The lock is released when the database notices the session is gone.
+            }
+            relayLock = null;
+        }
+    }
+
+    private void wakeUp() {
+        ScheduledExecutorService current = scheduler;
+        if (current != null && relayQueued.compareAndSet(false, true)) {
+            try {
+                current.execute(this::relay);
+            } catch (RejectedExecutionException closed) {
+                relayQueued.set(false);
+            }
+        }
+    }
+
+    private void publish(List<RentalEvent> events) throws Exception {
+        appendToLog(events);
+        for (RentalEventSubscriber subscriber : subscribers) {
+            subscriber.published(events);
+        }
+    }
+
+    private void appendToLog(List<RentalEvent> events) throws IOException {
+        if (logFile == null) {
+            return;
+        }
+        if (log == null || !log.isOpen()) {
+            log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        StringBuilder lines = new StringBuilder();
+        for (RentalEvent event : events) {
+            appendJson(event, lines);
+            lines.append('\n');
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(lines.toString());
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        log.force(false);
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException ignored) {
+                // Everything written was forced to disk already.
+            }
+            log = null;
+        }
+    }
+
+    private static void appendJson(RentalEvent event, StringBuilder json) {
+        json.append("{\"id\":").append(event.getEventID())
+                .append(",\"type\":").append(quote(event.getType().name()))
+                .append(",\"instrument\":").append(quote(event.getInstrumentID()));
+        if (event.getType() == RentalEvent.Type.STOCK_CHANGED) {
+            json.append(",\"stock\":").append(event.getAvailableStock());
+        } else {
+            json.append(",\"rental\":").append(quote(event.getRentalID()))
+                    .append(",\"student\":").append(event.getStudentID())
+                    .append(",\"expiry\":").append(quote(event.getLeaseExpiryTime()));
+        }
+        json.append(",\"created\":").append(quote(event.getCreatedAt().toString())).append('}');
+    }
+}
@@ -0,0 +1,114 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A connection owned by a <code>ConnectionPool</code>. Prepared statements are created once per connection and reused
+ * every time the same SQL is prepared again.
+ */
+class PooledConnection {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private long lastReleasedMillis = System.currentTimeMillis();
+    private boolean readOnly = false;
+    private int isolation = Connection.TRANSACTION_READ_COMMITTED;
+
+    PooledConnection(Connection connection) throws SQLException {
+        this.connection = connection;
+        connection.setAutoCommit(false);
+    }
+
+    /**
+     * Returns the cached statement for the specified SQL, preparing it first if this connection has not seen it
+     * before.
+     *
+     * @param sql The statement to prepare.
+     * @return A prepared statement for <code>sql</code>.
+     * @throws SQLException If the statement could not be prepared.
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * @return The underlying JDBC connection.
+     */
+    Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Makes the following transactions on this connection read-only, or read-write. Must not be called while a
+     * transaction is in progress.
+     *
+     * @param readOnly <code>true</code> if the following transactions are read-only.
+     * @throws SQLException If the mode could not be changed.
+     */
+    void setReadOnly(boolean readOnly) throws SQLException {
+        if (this.readOnly != readOnly) {
+            connection.setReadOnly(readOnly);
+            this.readOnly = readOnly;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the following transactions are read-only.
+     */
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Sets the isolation level of the following transactions. Must not be called while a transaction is in progress.
+     *
+     * @param isolation One of the <code>Connection.TRANSACTION_*</code> levels.
+     * @throws SQLException If the level could not be changed.
+     */
+    void setTransactionIsolation(int isolation) throws SQLException {
+        if (this.isolation != isolation) {
+            connection.setTransactionIsolation(isolation);
+            this.isolation = isolation;
+        }
+    }
+
+    void commit() throws SQLException {
+        connection.commit();
+    }
+
+    void rollback() throws SQLException {
+        connection.rollback();
+    }
+
+    boolean isValid(int timeoutSeconds) {
+        try {
+            return !connection.isClosed() && connection.isValid(timeoutSeconds);
+        } catch (SQLException sqle) {
+            return false;
+        }
+    }
+
+    long getIdleMillis() {
+        return System.currentTimeMillis() - lastReleasedMillis;
+    }
+
+    void markReleased() {
+        lastReleasedMillis = System.currentTimeMillis();
+    }
+
+    void closeQuietly() {
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+            // The connection is discarded either way.
+        }
+    }
+}
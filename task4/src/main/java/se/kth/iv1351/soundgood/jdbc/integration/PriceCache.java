@@ -0,0 +1,99 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the current rental price of each instrument, keyed by instrument ID. The least recently used prices are
+ * evicted when the cache is full. The cache is kept up to date through the <code>rental_price_changed</code>
+ * notification, which is sent by a trigger on <code>rental_price_history</code>. While notifications can not be
+ * received the cache is not live, and must not be used.
+ */
+class PriceCache implements DBNotificationListener.Subscriber {
+    static final String CHANGE_CHANNEL = "rental_price_changed";
+
+    /**
+     * The current price of one instrument.
+     */
+    static class CurrentPrice {
+        private final String priceID;
+        private final double price;
+
+        CurrentPrice(String priceID, double price) {
+            this.priceID = priceID;
+            this.price = price;
+        }
+
+        String getPriceID() {
+            return priceID;
+        }
+
+        double getPrice() {
+            return price;
+        }
+    }
+
+    private final DBNotificationListener listener;
+    private final Map<String, CurrentPrice> prices;
+    private long generation = 0;
+
+    /**
+     * @param listener The listener that delivers price changes, it must not yet be started.
+     * @param maxSize  The maximum number of cached prices.
+     */
+    PriceCache(DBNotificationListener listener, int maxSize) {
+        this.listener = listener;
+        this.prices = new LinkedHashMap<String, CurrentPrice>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CurrentPrice> eldest) {
+                return size() > maxSize;
+            }
+        };
+        listener.subscribe(CHANGE_CHANNEL, this);
+    }
+
+    /**
+     * @return <code>true</code> if price changes are received, so that cached prices can be trusted.
+     */
+    boolean isLive() {
+        return listener.isListening();
+    }
+
+    /**
+     * @return The cached price of the specified instrument, or <code>null</code> if it is not cached.
+     */
+    synchronized CurrentPrice get(String instrumentID) {
+        return prices.get(instrumentID);
+    }
+
+    /**
+     * Returns a token that must be passed to <code>put</code>. Get it before reading prices from the database, then
+     * prices that change while they are read are not cached.
+     *
+     * @return The number of invalidations so far.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches a price read from the database, unless any price was invalidated since <code>generation</code>.
+     */
+    synchronized void put(String instrumentID, CurrentPrice price, long generation) {
+        if (this.generation == generation) {
+            prices.put(instrumentID, price);
+        }
+    }
+
+    @Override
+    public synchronized void notified(String instrumentID) {
+        generation++;
+        prices.remove(instrumentID);
+    }
+
+    @Override
+    public synchronized void resynchronize() {
+        generation++;
+        prices.clear();
+    }
+}
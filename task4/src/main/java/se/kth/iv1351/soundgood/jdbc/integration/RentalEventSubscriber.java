@@ -0,0 +1,20 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.util.List;
+
+import se.kth.iv1351.soundgood.jdbc.model.RentalEvent;
+
+/**
+ * Receives the rental and stock changes published by <code>SoundgoodDAO</code>.
+ */
+public interface RentalEventSubscriber {
+    /**
+     * Called with each batch of events, in the order of their IDs. If this method throws, the whole batch is
+     * published again later, also to the other subscribers, so a subscriber must tolerate events it has already
+     * received.
+     *
+     * @param events The events of the batch, never empty.
+     * @throws Exception If the events could not be handled, and must be published again.
+     */
+    void published(List<RentalEvent> events) throws Exception;
+}
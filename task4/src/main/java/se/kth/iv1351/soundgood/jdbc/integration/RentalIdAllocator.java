@@ -0,0 +1,47 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import se.kth.iv1351.soundgood.jdbc.model.IDGenerator;
+
+/**
+ * Hands out rental IDs from blocks reserved in the <code>rental_id_seq</code> sequence. Each call to
+ * <code>nextval</code> reserves <code>BLOCK_SIZE</code> numbers, so only one rental in every block needs an extra
+ * round trip. Blocks are never handed out twice, which means that several DAOs, also in different processes, never
+ * generate the same ID. Numbers that are reserved but not used when the application stops are skipped.
+ */
+class RentalIdAllocator {
+    /**
+     * Must be equal to <code>INCREMENT BY</code> of the sequence.
+     */
+    static final int BLOCK_SIZE = 50;
+    private static final String RESERVE_BLOCK_SQL = "SELECT nextval('rental_id_seq')";
+
+    private long nextNumber = 0;
+    private long blockEnd = 0;
+
+    /**
+     * Returns the next free rental ID, on the form <code>R###</code>.
+     *
+     * @param conn The connection used if a new block must be reserved.
+     * @return A rental ID that has not been handed out before.
+     * @throws SQLException If a new block could not be reserved.
+     */
+    synchronized String nextId(PooledConnection conn) throws SQLException {
+        if (nextNumber >= blockEnd) {
+            reserveBlock(conn);
+        }
+        return IDGenerator.formatId(nextNumber++);
+    }
+
+    private void reserveBlock(PooledConnection conn) throws SQLException {
+        try (ResultSet result = conn.prepare(RESERVE_BLOCK_SQL).executeQuery()) {
+            if (!result.next()) {
+                throw new SQLException("Could not reserve rental IDs.");
+            }
+            nextNumber = result.getLong(1);
+            blockEnd = nextNumber + BLOCK_SIZE;
+        }
+    }
+}
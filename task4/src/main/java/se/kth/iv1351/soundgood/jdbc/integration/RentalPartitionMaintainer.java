@@ -0,0 +1,66 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maintains the monthly partitions of the rental table in a background thread: creates the partitions of the coming
+ * months before any rental needs them, and archives the partitions that are older than the retention period. Rentals
+ * of a month without a partition are kept in the default partition until the partition of their month is created.
+ */
+class RentalPartitionMaintainer implements AutoCloseable {
+    private final SoundgoodDAO dao;
+    private final long intervalMillis;
+    private final int monthsAhead;
+    private final int retentionMonths;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param dao             The DAO maintaining the partitions.
+     * @param intervalMillis  The time between two runs, 0 means that the maintainer is never started.
+     * @param monthsAhead     The number of months after the current one that have a partition.
+     * @param retentionMonths The number of months before the current one whose partitions are kept, 0 means that no
+     *                        partition is archived.
+     */
+    RentalPartitionMaintainer(SoundgoodDAO dao, long intervalMillis, int monthsAhead, int retentionMonths) {
+        this.dao = dao;
+        this.intervalMillis = intervalMillis;
+        this.monthsAhead = monthsAhead;
+        this.retentionMonths = retentionMonths;
+    }
+
+    /**
+     * Starts maintaining in a background thread, unless the interval is 0. The first run is right away.
+     */
+    synchronized void start() {
+        if (scheduler != null || intervalMillis <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "soundgood-partition-maintainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::maintain, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void maintain() {
+        try {
+            dao.maintainRentalPartitions(monthsAhead, retentionMonths);
+        } catch (SoundgoodDBException failedRun) {
+            // Counted as an error in the DAO metrics, the partitions ahead leave time until the next run.
+        }
+    }
+
+    /**
+     * Stops the background thread. A run in progress is rolled back unless it is done first.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
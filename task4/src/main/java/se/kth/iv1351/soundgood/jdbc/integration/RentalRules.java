@@ -0,0 +1,116 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+
+/**
+ * The rental rules in <code>system_config</code>, cached by the application. The rules are read once and read again
+ * after they have changed, which the database notifies. While notifications can not be received the cached rules are
+ * not used, so the database is always asked.
+ */
+class RentalRules implements DBNotificationListener.Subscriber {
+    static final String CHANGE_CHANNEL = "system_config_changed";
+    private static final String MAX_DURATION_CONFIG = "max_rental_duration_months";
+    private static final String MAX_ACTIVE_RENTALS_CONFIG = "max_active_rentals_per_student";
+    private static final String FIND_RULES_SQL = "SELECT config_type, config_value FROM system_config "
+            + "WHERE config_type IN ('" + MAX_DURATION_CONFIG + "', '" + MAX_ACTIVE_RENTALS_CONFIG + "')";
+
+    /**
+     * The rules at one point in time.
+     */
+    static class Rules {
+        private final int maxRentalDurationMonths;
+        private final int maxActiveRentalsPerStudent;
+
+        Rules(int maxRentalDurationMonths, int maxActiveRentalsPerStudent) {
+            this.maxRentalDurationMonths = maxRentalDurationMonths;
+            this.maxActiveRentalsPerStudent = maxActiveRentalsPerStudent;
+        }
+
+        /**
+         * Compares like the database does, where a month is 30 days long.
+         *
+         * @return <code>true</code> if a lease of the specified length is longer than allowed.
+         */
+        boolean exceedsMaxDuration(Duration lease) {
+            return lease.compareTo(Duration.ofDays(30L * maxRentalDurationMonths)) > 0;
+        }
+
+        int getMaxActiveRentalsPerStudent() {
+            return maxActiveRentalsPerStudent;
+        }
+    }
+
+    private final DBNotificationListener listener;
+    private Rules rules;
+    private long generation = 0;
+
+    /**
+     * @param listener The listener that delivers rule changes, it must not yet be started.
+     */
+    RentalRules(DBNotificationListener listener) {
+        this.listener = listener;
+        listener.subscribe(CHANGE_CHANNEL, this);
+    }
+
+    /**
+     * Returns the cached rules, reading them with the specified connection first if they are not cached.
+     *
+     * @param conn The connection used to read the rules, if needed.
+     * @return The current rules, or <code>null</code> if changes to them can not be received right now, or if the
+     *         configuration lacks a rule.
+     * @throws SQLException If the rules could not be read.
+     */
+    Rules get(PooledConnection conn) throws SQLException {
+        if (!listener.isListening()) {
+            return null;
+        }
+        long readGeneration;
+        synchronized (this) {
+            if (rules != null) {
+                return rules;
+            }
+            readGeneration = generation;
+        }
+        Rules readRules = read(conn);
+        synchronized (this) {
+            if (generation == readGeneration) {
+                rules = readRules;
+            }
+        }
+        return readRules;
+    }
+
+    @Override
+    public synchronized void notified(String payload) {
+        generation++;
+        rules = null;
+    }
+
+    @Override
+    public synchronized void resynchronize() {
+        generation++;
+        rules = null;
+    }
+
+    private static Rules read(PooledConnection conn) throws SQLException {
+        Integer maxDuration = null;
+        Integer maxActiveRentals = null;
+        PreparedStatement findRulesStmt = conn.prepare(FIND_RULES_SQL);
+        try (ResultSet result = findRulesStmt.executeQuery()) {
+            while (result.next()) {
+                if (MAX_DURATION_CONFIG.equals(result.getString(1))) {
+                    maxDuration = result.getInt(2);
+                } else {
+                    maxActiveRentals = result.getInt(2);
+                }
+            }
+        }
+        if (maxDuration == null || maxActiveRentals == null) {
+            return null;
+        }
+        return new Rules(maxDuration, maxActiveRentals);
+    }
+}
@@ -0,0 +1,274 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the read replica a read-only operation runs on. The replicas are taken in turn, skipping those that are too
+ * far behind the primary. A background thread asks each replica how far behind it is; a replica that is not streaming
+ * from the primary, or whose lag may have grown past <code>maxLagMillis</code> since it was last asked, is not read
+ * from.
+ * <p>
+ * Reads see the writes made earlier through the same router, whichever thread made them. After each write the router
+ * remembers how far the WAL of the primary has come, and reads only go to replicas that have replayed that far. A
+ * client whose writes went through another process passes the position of its last write, see
+ * <code>formatLsn</code>, and is only read from replicas that have replayed that far as well.
+ */
+class ReplicaRouter implements AutoCloseable {
+    private static final long MIN_CHECK_INTERVAL_MILLIS = 50;
+    private static final long MAX_CHECK_INTERVAL_MILLIS = 1000;
+    private static final String CURRENT_LSN_SQL = "SELECT CAST(pg_current_wal_lsn() AS TEXT)";
+    // A replica that has replayed all it received is as far as the primary, unless it is no longer streaming.
+    private static final String REPLICA_STATUS_SQL = "SELECT pg_is_in_recovery(), "
+            + "CAST(pg_last_wal_replay_lsn() AS TEXT), "
+            + "COALESCE((SELECT status = 'streaming' FROM pg_stat_wal_receiver), false), "
+            + "CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 ELSE "
+            + "COALESCE(EXTRACT(EPOCH FROM clock_timestamp() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long maxLagMillis;
+    private final long checkIntervalMillis;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final AtomicLong writtenLsn = new AtomicLong(-1);
+    private volatile long primaryOnlyUntilMillis = 0;
+    private ScheduledExecutorService monitor;
+
+    /**
+     * A read replica, and what was known about it at the last check.
+     */
+    static class Replica {
+        private final ConnectionPool pool;
+        private Connection statusConnection;
+        private volatile Status status = Status.UNKNOWN;
+
+        private Replica(ConnectionPool pool) {
+            this.pool = pool;
+        }
+
+        ConnectionPool getPool() {
+            return pool;
+        }
+
+        void setStatus(boolean streaming, long replayedLsn, long lagMillis, long checkedAtMillis) {
+            status = new Status(streaming, replayedLsn, lagMillis, checkedAtMillis);
+        }
+    }
+
+    private static class Status {
+        private static final Status UNKNOWN = new Status(false, -1, 0, 0);
+
+        private final boolean streaming;
+        private final long replayedLsn;
+        private final long lagMillis;
+        private final long checkedAtMillis;
+
+        private Status(boolean streaming, long replayedLsn, long lagMillis, long checkedAtMillis) {
+            this.streaming = streaming;
+            this.replayedLsn = replayedLsn;
+            this.lagMillis = lagMillis;
+            this.checkedAtMillis = checkedAtMillis;
+        }
+    }
+
+    /**
+     * @param replicaPools The pools of the replicas, closed by this instance.
+     * @param maxLagMillis How far behind the primary a replica may be and still be read from.
+     */
+    ReplicaRouter(List<ConnectionPool> replicaPools, long maxLagMillis) {
+        for (ConnectionPool pool : replicaPools) {
+            replicas.add(new Replica(pool));
+        }
+        this.maxLagMillis = maxLagMillis;
+        this.checkIntervalMillis = Math.max(MIN_CHECK_INTERVAL_MILLIS,
+                Math.min(MAX_CHECK_INTERVAL_MILLIS, maxLagMillis / 4));
+    }
+
+    /**
+     * Starts checking the replicas in a background thread. Until a replica has been checked, it is not read from.
+     */
+    synchronized void start() {
+        if (monitor != null || replicas.isEmpty()) {
+            return;
+        }
+        monitor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "soundgood-replica-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        monitor.scheduleWithFixedDelay(this::checkReplicas, 0, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The replicas, in the order they are taken in.
+     */
+    List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Picks the next replica that is close enough to the primary, and that has replayed the last write made through
+     * this router.
+     *
+     * @param afterLsn A WAL position the replica must also have replayed, -1 if there is none.
+     * @return The replica to read from, or <code>null</code> if the read must go to the primary.
+     */
+    Replica choose(long afterLsn) {
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        long nowMillis = System.currentTimeMillis();
+        if (nowMillis < primaryOnlyUntilMillis) {
+            return null;
+        }
+        long requiredLsn = Math.max(writtenLsn.get(), afterLsn);
+        int first = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((first + i) % replicas.size());
+            Status status = replica.status;
+            if (status.streaming && status.replayedLsn >= requiredLsn
+                    && status.lagMillis + (nowMillis - status.checkedAtMillis) <= maxLagMillis) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops reading from a replica that failed, until the next check finds it working.
+     *
+     * @param replica The replica that failed.
+     */
+    void markFailed(Replica replica) {
+        replica.status = Status.UNKNOWN;
+    }
+
+    /**
+     * Remembers how far the primary's WAL has come after a write committed on the specified connection, so that the
+     * following reads through this router see the write. Does nothing if there are no replicas.
+     *
+     * @param conn The connection to the primary the write was committed on.
+     */
+    void recordWrite(PooledConnection conn) {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        try (Statement stmt = conn.getConnection().createStatement();
+                ResultSet result = stmt.executeQuery(CURRENT_LSN_SQL)) {
+            result.next();
+            recordWrite(parseLsn(result.getString(1)));
+        } catch (SQLException sqle) {
+            // Any replica within the lag bound has the write once the bound has passed.
+            primaryOnlyUntilMillis = System.currentTimeMillis() + maxLagMillis + checkIntervalMillis;
+        }
+    }
+
+    /**
+     * Remembers that a write reached the specified WAL position of the primary.
+     */
+    void recordWrite(long lsn) {
+        writtenLsn.accumulateAndGet(lsn, Math::max);
+    }
+
+    /**
+     * @return The WAL position of the last write made through this router, -1 if none is known.
+     */
+    long getWrittenLsn() {
+        return writtenLsn.get();
+    }
+
+    /**
+     * Stops checking the replicas and closes their pools.
+     */
+    @Override
+    public synchronized void close() {
+        if (monitor != null) {
+            monitor.shutdownNow();
+            try {
+                monitor.awaitTermination(checkIntervalMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            monitor = null;
+        }
+        for (Replica replica : replicas) {
+            closeStatusConnection(replica);
+            replica.pool.close();
+        }
+    }
+
+    private void checkReplicas() {
+        for (Replica replica : replicas) {
+            try {
+                if (replica.statusConnection == null) {
+                    replica.statusConnection = replica.pool.openUnpooledConnection();
+                }
+                try (Statement stmt = replica.statusConnection.createStatement();
+                        ResultSet result = stmt.executeQuery(REPLICA_STATUS_SQL)) {
+                    result.next();
+                    boolean isReplica = result.getBoolean(1);
+                    replica.setStatus(isReplica && result.getBoolean(3),
+                            isReplica ? parseLsn(result.getString(2)) : -1, result.getLong(4),
+                            System.currentTimeMillis());
+                }
+            } catch (SQLException | RuntimeException failedCheck) {
+                replica.status = Status.UNKNOWN;
+                closeStatusConnection(replica);
+            }
+        }
+    }
+
+    private static void closeStatusConnection(Replica replica) {
+        if (replica.statusConnection != null) {
+            try {
+                replica.statusConnection.close();
+            } catch (SQLException ignored) {
+                // A new connection is opened by the next check.
+            }
+            replica.statusConnection = null;
+        }
+    }
+
+    /**
+     * Converts a WAL position written like <code>16/B374D848</code> to a number that orders like the position.
+     *
+     * @return The position, -1 if <code>lsn</code> is <code>null</code>.
+     * @throws IllegalArgumentException If <code>lsn</code> is not a WAL position.
+     */
+    static long parseLsn(String lsn) {
+        if (lsn == null) {
+            return -1;
+        }
+        int separator = lsn.indexOf('/');
+        try {
+            long high = Long.parseLong(lsn.substring(0, Math.max(separator, 0)), 16);
+            long low = Long.parseLong(lsn.substring(separator + 1), 16);
+            if (high < 0 || high > 0xFFFF_FFFFL || low < 0 || low > 0xFFFF_FFFFL) {
+                throw new NumberFormatException("Out of range");
+            }
+            return (high << 32) | low;
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Not a WAL position: " + lsn, nfe);
+        }
+    }
+
+    /**
+     * Writes a position returned by <code>parseLsn</code> the way the database does.
+     *
+     * @return The position, <code>null</code> if <code>lsn</code> is negative.
+     */
+    static String formatLsn(long lsn) {
+        if (lsn < 0) {
+            return null;
+        }
+        return Long.toHexString(lsn >>> 32).toUpperCase() + "/" + Long.toHexString(lsn & 0xFFFF_FFFFL).toUpperCase();
+    }
+}
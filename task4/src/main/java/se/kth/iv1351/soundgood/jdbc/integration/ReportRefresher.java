@@ -0,0 +1,58 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes the materialized views behind the reports in a background thread, so that reading a report never has to
+ * aggregate the rentals.
+ */
+class ReportRefresher implements AutoCloseable {
+    private final SoundgoodDAO dao;
+    private final long intervalMillis;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param dao            The DAO refreshing the reports.
+     * @param intervalMillis The time between two refreshes, 0 means that the refresher is never started.
+     */
+    ReportRefresher(SoundgoodDAO dao, long intervalMillis) {
+        this.dao = dao;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts refreshing in a background thread, unless the interval is 0.
+     */
+    synchronized void start() {
+        if (scheduler != null || intervalMillis <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "soundgood-report-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh() {
+        try {
+            dao.refreshReports();
+        } catch (SoundgoodDBException failedRefresh) {
+            // Counted as an error in the DAO metrics, the reports stay as they were until the next run.
+        }
+    }
+
+    /**
+     * Stops the background thread. A refresh in progress is finished first.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
@@ -23,21 +23,59 @@
 
 package se.kth.iv1351.soundgood.jdbc.integration;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Savepoint;
 import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.YearMonth;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import se.kth.iv1351.soundgood.jdbc.model.IDGenerator;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.ServerErrorMessage;
+
+import se.kth.iv1351.soundgood.jdbc.model.BulkResult;
 import se.kth.iv1351.soundgood.jdbc.model.Instrument;
 import se.kth.iv1351.soundgood.jdbc.model.InstrumentDTO;
+import se.kth.iv1351.soundgood.jdbc.model.InstrumentMatch;
+import se.kth.iv1351.soundgood.jdbc.model.MonthlyRevenue;
+import se.kth.iv1351.soundgood.jdbc.model.Rental;
 import se.kth.iv1351.soundgood.jdbc.model.RentalDTO;
+import se.kth.iv1351.soundgood.jdbc.model.RentalEvent;
+import se.kth.iv1351.soundgood.jdbc.model.RentalRequest;
+import se.kth.iv1351.soundgood.jdbc.model.RentalResult;
+import se.kth.iv1351.soundgood.jdbc.model.RentalStatus;
 import se.kth.iv1351.soundgood.jdbc.model.StudentDTO;
+import se.kth.iv1351.soundgood.jdbc.model.TypeUtilization;
 
+/**
+ * Reads and writes the Soundgood database. Where the database is, how the pool is sized and how the DAO is tuned is
+ * configured by <code>DataSourceConfig</code>. The DAO starts no threads of its own, see <code>BackgroundJobs</code>
+ * for the ones that work with it.
+ */
 public class SoundgoodDAO {
     private static final String RENTAL_TABLE_NAME = "instrument_rental";
     private static final String EXPIRY_DATE_COLUMN_NAME = "lease_expiry_time";
@@ -46,6 +84,9 @@ public class SoundgoodDAO {
     private static final String PRICE_ID_COLUMN_NAME = "rental_price_id";
     private static final String INSTR_ID_COLUMN_NAME = "instrument_id";
     private static final String STDNT_ID_COLUMN_NAME = "student_id";
+    private static final String STOCK_RELEASED_COLUMN_NAME = "stock_released";
+    private static final String STUDENT_INSTRUMENT_TABLE_NAME = "student_instrument";
+    private static final String STUDENT_TABLE_NAME = "student";
 
     private static final String INSTRUMENT_TABLE_NAME = "instrument";
     private static final String INSTRUMENT_ID_COLUMN_NAME = "instrument_id";
@@ -56,98 +97,749 @@ public class SoundgoodDAO {
     private static final String RENTAL_PRICE_HISTORY_TABLE_NAME = "rental_price_history";
     private static final String IS_CURRENT_COLUMN_NAME = "is_current";
     private static final String PRICE_COLUMN_NAME = "price";
+    private static final String RENTAL_PRICE_ID_COLUMN_NAME = "rental_price_id";
+
+    static final String DB_URL = "jdbc:postgresql://localhost:5432/soundgood_school";
+    static final String DB_USER = "postgres";
+    static final String DB_PASSWORD = "kth";
+    private static final long BASE_RETRY_DELAY_MILLIS = 5;
+    private static final long MAX_RETRY_DELAY_MILLIS = 200;
+    private static final String SERIALIZATION_FAILURE = "40001";
+    private static final String DEADLOCK_DETECTED = "40P01";
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final String UNDEFINED_TABLE = "42P01";
+    static final int SCHEMA_VERSION = 1;
+    private static final String RENTAL_PRIMARY_KEY = "instrument_rental_pkey";
+    private static final String RENTAL_ID_KEY = "student_instrument_rental_id_key";
+    private static final long SWEEPER_LOCK_KEY = 1_351_014L;
+    private static final long REPORT_REFRESH_LOCK_KEY = 1_351_018L;
+    private static final long OUTBOX_LOCK_KEY = 1_351_020L;
+    static final long RELAY_LOCK_KEY = 1_351_021L;
+    private static final long PARTITION_LOCK_KEY = 1_351_023L;
+    private static final String RESERVATION_EXPIRED = "RESERVATION_EXPIRED";
+    private static final int SEARCH_INDEX_FETCH_SIZE = 1000;
+    static final String OUT_OF_STOCK_MSG = "There is no such instrument in stock.";
+    private static final String NO_SUCH_RENTAL_MSG = "There is no such rental.";
+
+    // The start time is looked up first, so that only the partition holding the rental is updated.
+    static final String UPDATE_RENTAL_TO_EXPIRY_SQL = "UPDATE " + RENTAL_TABLE_NAME + " SET "
+            + EXPIRY_DATE_COLUMN_NAME + " = CURRENT_TIMESTAMP(0) WHERE (" + RENTAL_ID_COLUMN_NAME + ", "
+            + START_DATE_COLUMN_NAME + ") = (SELECT " + RENTAL_ID_COLUMN_NAME + ", " + START_DATE_COLUMN_NAME
+            + " FROM " + STUDENT_INSTRUMENT_TABLE_NAME + " WHERE " + RENTAL_ID_COLUMN_NAME + " = ?)";
+
+    // No lease has been longer than the longest rental duration, older partitions can not hold active rentals.
+    static final String COUNT_ACTIVE_RENTALS_SQL = "SELECT COUNT(*), MIN(" + EXPIRY_DATE_COLUMN_NAME
+            + ") FROM " + RENTAL_TABLE_NAME + " WHERE " + STDNT_ID_COLUMN_NAME + " = ? AND "
+            + EXPIRY_DATE_COLUMN_NAME + " > LOCALTIMESTAMP AND " + START_DATE_COLUMN_NAME
+            + " > LOCALTIMESTAMP - make_interval(months => (SELECT config_value FROM system_config "
+            + "WHERE config_type = 'longest_rental_duration_months'))";
+
+    private static final String CREATE_RENTAL_PARTITIONS_SQL = "SELECT create_rental_partitions("
+            + "LOCALTIMESTAMP - INTERVAL '1 day', LOCALTIMESTAMP + make_interval(months => ?))";
+
+    private static final String ARCHIVE_RENTAL_PARTITIONS_SQL = "SELECT archive_rental_partitions("
+            + "date_trunc('month', LOCALTIMESTAMP) - make_interval(months => ?))";
+
+    private static final String FIND_SCHEMA_VERSION_SQL = "SELECT MAX(version) FROM schema_version";
+
+    private static final String TRY_ADVISORY_LOCK_SQL = "SELECT pg_try_advisory_xact_lock(?)";
+
+    static final String RELEASE_EXPIRED_STOCK_SQL = "WITH expired AS (SELECT " + RENTAL_ID_COLUMN_NAME + ", "
+            + START_DATE_COLUMN_NAME + " FROM " + RENTAL_TABLE_NAME + " WHERE NOT " + STOCK_RELEASED_COLUMN_NAME + " AND " + EXPIRY_DATE_COLUMN_NAME
+            + " <= LOCALTIMESTAMP ORDER BY " + EXPIRY_DATE_COLUMN_NAME + " LIMIT ? FOR UPDATE SKIP LOCKED), "
+            + "released AS (UPDATE " + RENTAL_TABLE_NAME + " r SET " + STOCK_RELEASED_COLUMN_NAME + " = true "
+            + "FROM expired e WHERE r." + RENTAL_ID_COLUMN_NAME + " = e." + RENTAL_ID_COLUMN_NAME + " AND r."
+            + START_DATE_COLUMN_NAME + " = e." + START_DATE_COLUMN_NAME + " RETURNING r." + INSTR_ID_COLUMN_NAME + "), "
+            + "restocked AS (UPDATE " + INSTRUMENT_TABLE_NAME + " i SET " + AVAILABLE_STOCK_COLUMN_NAME + " = i."
+            + AVAILABLE_STOCK_COLUMN_NAME + " + c.released FROM (SELECT " + INSTR_ID_COLUMN_NAME
+            + ", COUNT(*) AS released FROM released GROUP BY " + INSTR_ID_COLUMN_NAME + ") c WHERE i."
+            + INSTRUMENT_ID_COLUMN_NAME + " = c." + INSTR_ID_COLUMN_NAME + ") "
+            + "SELECT COUNT(*) FROM released";
+
+    private static final String RENT_INSTRUMENT_SQL = "SELECT rent_instrument(?, CAST(? AS TIMESTAMP), "
+            + "CAST(? AS TIMESTAMP), ?, ?, ?, CAST(? AS BIGINT))";
+
+    private static final String CLAIM_STOCK_SQL = "SELECT reservation_id, units FROM claim_stock(?, ?, ?)";
+
+    private static final String SETTLE_STOCK_RESERVATIONS_SQL = "SELECT settle_stock_reservations(?)";
+
+    private static final String RENT_INSTRUMENT_GROUP_SQL = "SELECT r.n, rent_instrument(r.rental_id, "
+            + "CAST(? AS TIMESTAMP), CAST(? AS TIMESTAMP), r.price_id, r.instrument_id, r.student_id) "
+            + "FROM unnest(CAST(? AS VARCHAR[]), CAST(? AS VARCHAR[]), CAST(? AS VARCHAR[]), CAST(? AS INT[])) "
+            + "WITH ORDINALITY AS r(rental_id, price_id, instrument_id, student_id, n)";
+
+    private static final String RENT_BASKET_SQL = "SELECT n, status FROM rent_basket(?, CAST(? AS TIMESTAMP), "
+            + "CAST(? AS TIMESTAMP), CAST(? AS VARCHAR[]), CAST(? AS VARCHAR[]), CAST(? AS VARCHAR[]))";
+
+    private static final String CREATE_RENTAL_IF_IN_STOCK_SQL = "INSERT INTO " + RENTAL_TABLE_NAME
+            + " (" + RENTAL_ID_COLUMN_NAME
+            + ", " + START_DATE_COLUMN_NAME
+            + ", " + EXPIRY_DATE_COLUMN_NAME
+            + ", " + PRICE_ID_COLUMN_NAME
+            + ", " + INSTR_ID_COLUMN_NAME
+            + ", " + STDNT_ID_COLUMN_NAME
+            + ") "
+            + "SELECT ?, CAST(? AS TIMESTAMP), CAST(? AS TIMESTAMP), ?, ?, ? WHERE EXISTS (SELECT 1 FROM "
+            + INSTRUMENT_TABLE_NAME + " WHERE " + INSTRUMENT_ID_COLUMN_NAME + " = ? AND "
+            + AVAILABLE_STOCK_COLUMN_NAME + " > 0 FOR NO KEY UPDATE)";
+    private static final String LOCK_STUDENTS_SQL = "SELECT 1 FROM " + STUDENT_TABLE_NAME + " WHERE "
+            + STDNT_ID_COLUMN_NAME + " = ANY(?) ORDER BY " + STDNT_ID_COLUMN_NAME + " FOR NO KEY UPDATE";
+    private static final String LOCK_INSTRUMENTS_SQL = "SELECT 1 FROM " + INSTRUMENT_TABLE_NAME + " WHERE "
+            + INSTRUMENT_ID_COLUMN_NAME + " = ANY(?) ORDER BY " + INSTRUMENT_ID_COLUMN_NAME + " FOR NO KEY UPDATE";
+
+    static final String FIND_INSTRUMENTS_BY_TYPE_SQL = "SELECT i." + INSTRUMENT_ID_COLUMN_NAME + ", i."
+            + INSTRUMENT_TYPE_COLUMN_NAME + ", i." + INSTRUMENT_BRAND_COLUMN_NAME + ", i."
+            + AVAILABLE_STOCK_COLUMN_NAME + ", rph." + PRICE_COLUMN_NAME + " " +
+            "FROM " + INSTRUMENT_TABLE_NAME + " i " +
+            "JOIN " + RENTAL_PRICE_HISTORY_TABLE_NAME + " rph ON i." + INSTRUMENT_ID_COLUMN_NAME + " = rph."
+            + INSTRUMENT_ID_COLUMN_NAME + " " +
+            "WHERE i." + INSTRUMENT_TYPE_COLUMN_NAME + " = ? AND i." + AVAILABLE_STOCK_COLUMN_NAME
+            + " > 0 AND rph." + IS_CURRENT_COLUMN_NAME + " = true";
+
+    static final String FIND_INSTRUMENTS_BY_TYPE_PAGE_SQL = FIND_INSTRUMENTS_BY_TYPE_SQL + " AND i."
+            + INSTRUMENT_ID_COLUMN_NAME + " > ? ORDER BY i." + INSTRUMENT_ID_COLUMN_NAME + " LIMIT ?";
+
+    static final String FIND_INSTRUMENTS_BY_TYPE_WITHOUT_PRICE_SQL = "SELECT " + INSTRUMENT_ID_COLUMN_NAME + ", "
+            + INSTRUMENT_TYPE_COLUMN_NAME + ", " + INSTRUMENT_BRAND_COLUMN_NAME + ", " + AVAILABLE_STOCK_COLUMN_NAME
+            + " FROM " + INSTRUMENT_TABLE_NAME + " WHERE " + INSTRUMENT_TYPE_COLUMN_NAME + " = ? AND "
+            + AVAILABLE_STOCK_COLUMN_NAME + " > 0";
+
+    private static final String FIND_ALL_INSTRUMENTS_SQL = "SELECT " + INSTRUMENT_ID_COLUMN_NAME + ", "
+            + INSTRUMENT_TYPE_COLUMN_NAME + ", " + INSTRUMENT_BRAND_COLUMN_NAME + " FROM " + INSTRUMENT_TABLE_NAME
+            + " ORDER BY " + INSTRUMENT_ID_COLUMN_NAME;
+
+    private static final String UTILIZATION_VIEW_NAME = "instrument_type_utilization";
+    private static final String INSTRUMENTS_COLUMN_NAME = "instruments";
+    private static final String IN_STOCK_COLUMN_NAME = "in_stock";
+    private static final String ACTIVE_RENTALS_COLUMN_NAME = "active_rentals";
+    private static final String TOTAL_RENTALS_COLUMN_NAME = "total_rentals";
+    private static final String REFRESHED_AT_COLUMN_NAME = "refreshed_at";
+
+    private static final String REVENUE_VIEW_NAME = "monthly_rental_revenue";
+    private static final String MONTH_COLUMN_NAME = "month";
+    private static final String BILLED_RENTALS_COLUMN_NAME = "billed_rentals";
+    private static final String REVENUE_COLUMN_NAME = "revenue";
+
+    private static final String EVENT_TABLE_NAME = "rental_event";
+    private static final String EVENT_ID_COLUMN_NAME = "event_id";
+    private static final String EVENT_TYPE_COLUMN_NAME = "event_type";
+    private static final String CREATED_AT_COLUMN_NAME = "created_at";
+
+    private static final String FIND_RENTAL_EVENTS_SQL = "SELECT " + EVENT_ID_COLUMN_NAME + ", "
+            + EVENT_TYPE_COLUMN_NAME + ", " + INSTR_ID_COLUMN_NAME + ", " + RENTAL_ID_COLUMN_NAME + ", "
+            + STDNT_ID_COLUMN_NAME + ", " + EXPIRY_DATE_COLUMN_NAME + ", " + AVAILABLE_STOCK_COLUMN_NAME + ", "
+            + CREATED_AT_COLUMN_NAME + " FROM " + EVENT_TABLE_NAME + " ORDER BY " + EVENT_ID_COLUMN_NAME
+            + " LIMIT ?";
+
+    private static final String DELETE_RENTAL_EVENTS_SQL = "DELETE FROM " + EVENT_TABLE_NAME + " WHERE "
+            + EVENT_ID_COLUMN_NAME + " = ANY(?)";
+
+    static final String FIND_RENTAL_HISTORY_SQL = "SELECT " + RENTAL_ID_COLUMN_NAME + ", " + START_DATE_COLUMN_NAME
+            + ", " + EXPIRY_DATE_COLUMN_NAME + ", " + PRICE_ID_COLUMN_NAME + ", " + INSTR_ID_COLUMN_NAME + ", "
+            + STDNT_ID_COLUMN_NAME + " FROM " + RENTAL_TABLE_NAME + " WHERE " + STDNT_ID_COLUMN_NAME
+            + " = ? AND " + START_DATE_COLUMN_NAME + " >= (SELECT MIN(" + START_DATE_COLUMN_NAME + ") FROM "
+            + STUDENT_INSTRUMENT_TABLE_NAME + " WHERE " + STDNT_ID_COLUMN_NAME + " = ?) ORDER BY "
+            + START_DATE_COLUMN_NAME + " DESC";
+
+    private static final String FIND_TYPE_UTILIZATION_SQL = "SELECT " + INSTRUMENT_TYPE_COLUMN_NAME + ", "
+            + INSTRUMENTS_COLUMN_NAME + ", " + IN_STOCK_COLUMN_NAME + ", " + ACTIVE_RENTALS_COLUMN_NAME + ", "
+            + TOTAL_RENTALS_COLUMN_NAME + ", " + REFRESHED_AT_COLUMN_NAME + " FROM " + UTILIZATION_VIEW_NAME
+            + " ORDER BY " + INSTRUMENT_TYPE_COLUMN_NAME;
+
+    private static final String FIND_MONTHLY_REVENUE_SQL = "SELECT " + MONTH_COLUMN_NAME + ", "
+            + BILLED_RENTALS_COLUMN_NAME + ", " + REVENUE_COLUMN_NAME + ", " + REFRESHED_AT_COLUMN_NAME + " FROM "
+            + REVENUE_VIEW_NAME + " WHERE " + MONTH_COLUMN_NAME + " BETWEEN ? AND ? ORDER BY " + MONTH_COLUMN_NAME;
+
+    private static final String REFRESH_UTILIZATION_SQL = "REFRESH MATERIALIZED VIEW CONCURRENTLY "
+            + UTILIZATION_VIEW_NAME;
+
+    private static final String REFRESH_REVENUE_SQL = "REFRESH MATERIALIZED VIEW CONCURRENTLY " + REVENUE_VIEW_NAME;
+
+    static final String FIND_CURRENT_PRICES_SQL = "SELECT " + INSTRUMENT_ID_COLUMN_NAME + ", "
+            + RENTAL_PRICE_ID_COLUMN_NAME + ", " + PRICE_COLUMN_NAME + " FROM " + RENTAL_PRICE_HISTORY_TABLE_NAME
+            + " WHERE " + IS_CURRENT_COLUMN_NAME + " = true AND " + INSTRUMENT_ID_COLUMN_NAME + " = ANY(?)";
 
-    private Connection connection;
-    private PreparedStatement updateRentalToExpiryStmt;
-    private PreparedStatement createRentalStmt;
-    private PreparedStatement findMaxRentalIdStmt;
-    private PreparedStatement findInstrumentsByTypeStmt;
+    private final ConnectionPool pool;
+    private final ReplicaRouter replicaRouter;
+    private final RentalIdAllocator rentalIdAllocator = new RentalIdAllocator();
+    private final DBNotificationListener notificationListener;
+    private final PriceCache priceCache;
+    private final InstrumentIdentityMap identityMap;
+    private final InstrumentSearchIndex searchIndex;
+    private final Object searchIndexLoadLock = new Object();
+    private final RentalRules rentalRules;
+    private final StudentRentalCounts studentRentalCounts;
+    private final long leaseDurationMillis;
+    private final DAOMetrics metrics = new DAOMetrics();
+    private final StockReservations stockReservations;
+    private final DatabaseWarmUp warmUp;
+    private volatile String incompatibleSchema;
+    private final int rentIsolation;
+    private final int maxRentRetries;
 
     /**
-     * Constructs a new DAO object connected to the Soundgood database.
+     * Constructs a new DAO object connected to the Soundgood database, and to its read replicas, as configured by
+     * <code>DataSourceConfig.load</code>.
      * 
      * @throws SoundgoodDBException an exception which specifies a database error.
      */
     public SoundgoodDAO() throws SoundgoodDBException {
-        try {
-            connectToDatabase();
-        } catch (SQLException exception) {
-            throw new SoundgoodDBException("could not connect to datasource.", exception);
+        this(DataSourceConfig.load());
+    }
+
+    /**
+     * Constructs a new DAO object connected to the databases of the specified configuration.
+     * 
+     * @param config where the primary database and its read replicas are.
+     * @throws SoundgoodDBException an exception which specifies a database error.
+     */
+    public SoundgoodDAO(DataSourceConfig config) throws SoundgoodDBException {
+        this(createPool(config, config.getPrimaryUrl(), config.getPoolMinSize(), config.isLazyConnect()),
+                createReplicaPools(config), config);
+        if (!config.isLazyConnect()) {
+            try {
+                checkSchemaVersion();
+            } catch (SQLException | SoundgoodDBException e) {
+                close();
+                throw new SoundgoodDBException("could not connect to datasource.", e);
+            }
         }
     }
 
     /**
-     * Lists all available instruments of a specific type.
+     * Constructs a new DAO object that borrows a connection from the specified pool for each operation, with the
+     * default settings of <code>DataSourceConfig</code>.
+     * 
+     * @param pool the pool of connections to the Soundgood database.
+     */
+    public SoundgoodDAO(ConnectionPool pool) {
+        this(pool, new DataSourceConfig(new Properties()));
+    }
+
+    /**
+     * Constructs a new DAO object that borrows a connection from the specified pool for each operation, see
+     * <code>SoundgoodDAO(ConnectionPool)</code>, tuned by the specified configuration. Where the database is, and
+     * how the pool is sized, is not read from the configuration.
+     * 
+     * @param pool   the pool of connections to the Soundgood database.
+     * @param config how the DAO is tuned.
+     */
+    public SoundgoodDAO(ConnectionPool pool, DataSourceConfig config) {
+        this(pool, Collections.emptyList(), config);
+    }
+
+    /**
+     * Constructs a new DAO object that writes to the primary database and reads instrument listings from read
+     * replicas, see <code>SoundgoodDAO(ConnectionPool)</code> for everything else. A listing goes to the primary if
+     * no replica is within <code>DataSourceConfig.getMaxReplicaLagMillis</code> of it, or if no replica has replayed
+     * the last write made through this DAO, so that its clients always see their own rentals, whichever thread they
+     * run on. Clients that write through another DAO pass the position of their write, see
+     * <code>getWritePosition</code>.
+     * 
+     * @param pool         the pool of connections to the primary database.
+     * @param replicaPools the pools of connections to the read replicas of the primary.
+     * @param config       how the DAO is tuned.
+     */
+    public SoundgoodDAO(ConnectionPool pool, List<ConnectionPool> replicaPools, DataSourceConfig config) {
+        this.pool = pool;
+        this.replicaRouter = new ReplicaRouter(replicaPools, config.getMaxReplicaLagMillis());
+        this.identityMap = new InstrumentIdentityMap(config.getIdentityMapSize());
+        this.leaseDurationMillis = Duration.ofDays(config.getLeaseDays()).toMillis();
+        this.rentIsolation = config.isRentSerializable()
+                ? Connection.TRANSACTION_SERIALIZABLE : Connection.TRANSACTION_READ_COMMITTED;
+        this.maxRentRetries = config.getMaxRentRetries();
+        this.notificationListener = new DBNotificationListener(pool);
+        this.priceCache = new PriceCache(notificationListener, config.getPriceCacheSize());
+        this.rentalRules = new RentalRules(notificationListener);
+        this.searchIndex = new InstrumentSearchIndex(notificationListener);
+        this.studentRentalCounts = new StudentRentalCounts(notificationListener, config.getStudentCacheSize());
+        this.stockReservations = new StockReservations(this, config.getReservationBlockSize(),
+                config.getReservationTtlMillis());
+        this.warmUp = new DatabaseWarmUp(this, pool, metrics, config.getWarmUpRetryMillis());
+    }
+
+    ConnectionPool getPool() {
+        return pool;
+    }
+
+    DBNotificationListener getNotificationListener() {
+        return notificationListener;
+    }
+
+    ReplicaRouter getReplicaRouter() {
+        return replicaRouter;
+    }
+
+    StockReservations getStockReservations() {
+        return stockReservations;
+    }
+
+    DatabaseWarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * Tells how far the writes made through this DAO have come, so that a client can read its own writes through
+     * another DAO, see <code>findInstrumentsByType(String, String)</code>. The position is taken after the client's
+     * write, it may include later writes of other clients.
+     * 
+     * @return the position of the last write, or <code>null</code> if there are no read replicas or no write is known.
+     */
+    public String getWritePosition() {
+        return ReplicaRouter.formatLsn(replicaRouter.getWrittenLsn());
+    }
+
+    /**
+     * Tells when the database is ready, once the warm-up has been started by
+     * <code>BackgroundJobs.startConnections</code>. The DAO can be used right away, but operations that are made
+     * before the database is ready may have to wait for a connection to be opened, or fail if the database can not be
+     * reached.
+     * 
+     * @return Completes with the schema version once the database has been reached and its schema checked, or
+     *         exceptionally with a <code>SoundgoodDBException</code> if the schema is not the version this DAO needs.
+     *         All operations fail in that case.
+     */
+    public CompletionStage<Integer> whenReady() {
+        return warmUp.whenReady();
+    }
+
+    /**
+     * @return Why the database could not be reached the last time the warm-up tried, <code>null</code> if it was
+     *         reached or has not been tried yet.
+     */
+    public SQLException getLastConnectFailure() {
+        return warmUp.getLastFailure();
+    }
+
+    /**
+     * Lists all available instruments of a specific type. The listing runs in a read-only transaction and takes no
+     * locks, so it never waits for, or blocks, rentals of the listed instruments. It is read from a replica when
+     * there is one that is up to date enough.
      * 
      * @param instrumentType the type of instrument to list.
      * @return a list of available instruments of the specified type.
      * @throws SoundgoodDBException If failed to list the instruments.
      */
     public List<Instrument> findInstrumentsByType(String instrumentType) throws SoundgoodDBException {
+        return findInstrumentsByType(instrumentType, null);
+    }
+
+    /**
+     * Lists all available instruments of a specific type, see <code>findInstrumentsByType(String)</code>, without
+     * reading from a replica that has not replayed a write the client made through another DAO.
+     * 
+     * @param instrumentType the type of instrument to list.
+     * @param afterPosition  the position of the client's last write, returned by <code>getWritePosition</code> of the
+     *                       DAO it was made through, or <code>null</code> if there is none.
+     * @return a list of available instruments of the specified type.
+     * @throws SoundgoodDBException     If failed to list the instruments.
+     * @throws IllegalArgumentException If <code>afterPosition</code> is not a write position.
+     */
+    public List<Instrument> findInstrumentsByType(String instrumentType, String afterPosition)
+            throws SoundgoodDBException {
+        long afterLsn = ReplicaRouter.parseLsn(afterPosition);
         String failureMsg = "Could not list instruments.";
-        ResultSet result = null;
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
         List<Instrument> instruments = new ArrayList<>();
 
         try {
-            findInstrumentsByTypeStmt.setString(1, instrumentType);
-            result = findInstrumentsByTypeStmt.executeQuery();
-            while (result.next()) {
-                Instrument instrument = new Instrument(
-                        result.getString(INSTRUMENT_ID_COLUMN_NAME),
-                        result.getString(INSTRUMENT_TYPE_COLUMN_NAME),
-                        result.getString(INSTRUMENT_BRAND_COLUMN_NAME),
-                        result.getInt(AVAILABLE_STOCK_COLUMN_NAME),
-                        result.getDouble(PRICE_COLUMN_NAME));
-                instruments.add(instrument);
+            List<Instrument> replicated = readFromReplica(afterLsn,
+                    replicaConn -> findInstrumentsByTypeWithPrices(replicaConn, instrumentType));
+            if (replicated != null) {
+                completed = true;
+                return replicated;
             }
-            connection.commit();
+            conn = borrow();
+            conn.setReadOnly(true);
+            if (priceCache.isLive()) {
+                long statementStartNanos = System.nanoTime();
+                instruments = findInstrumentsByTypeWithCachedPrices(conn, instrumentType);
+                metrics.recordStatement(DAOMetrics.Operation.LIST_INSTRUMENTS, statementStartNanos);
+            } else {
+                instruments = findInstrumentsByTypeWithPrices(conn, instrumentType);
+            }
+            commit(conn);
+            completed = true;
         } catch (SQLException sqle) {
-            handleException(failureMsg, sqle);
+            handleException(conn, failureMsg, sqle);
         } finally {
-            closeResultSet(failureMsg, result);
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.LIST_INSTRUMENTS, startNanos, completed);
         }
         return instruments;
     }
 
     /**
-     * Creates a new rental
+     * Reads the current rental price of an instrument, from the price cache when cached prices can be trusted.
+     * 
+     * @param instrumentID the instrument whose price to read.
+     * @return the current price, or <code>null</code> if the instrument does not exist or has no current price.
+     * @throws SoundgoodDBException If failed to read the price.
+     */
+    public Double findCurrentPrice(String instrumentID) throws SoundgoodDBException {
+        String failureMsg = "Could not read the price of instrument " + instrumentID + ".";
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+        PriceCache.CurrentPrice price = null;
+
+        try {
+            if (priceCache.isLive()) {
+                price = priceCache.get(instrumentID);
+            }
+            if (price == null) {
+                long cacheGeneration = priceCache.getGeneration();
+                conn = borrow();
+                conn.setReadOnly(true);
+                long statementStartNanos = System.nanoTime();
+                price = findCurrentPrices(conn, List.of(instrumentID), cacheGeneration).get(instrumentID);
+                metrics.recordStatement(DAOMetrics.Operation.FIND_PRICE, statementStartNanos);
+                commit(conn);
+            }
+            completed = true;
+        } catch (SQLException sqle) {
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.FIND_PRICE, startNanos, completed);
+        }
+        return price == null ? null : price.getPrice();
+    }
+
+    /**
+     * Streams all available instruments of a specific type, ordered by instrument ID. The instruments are read lazily,
+     * one page of <code>pageSize</code> instruments at a time, each page in a short read-only transaction of its own.
+     * No connection is held between pages, so a stream that is not read to the end needs no closing. Since each page
+     * is read separately, an instrument that changes between two pages may be listed with data of either state.
+     * 
+     * @param instrumentType the type of instrument to list.
+     * @param pageSize       the number of instruments read per query.
+     * @return a stream of the available instruments of the specified type. Reading the stream throws
+     *         <code>UncheckedSoundgoodDBException</code> if a page could not be read.
+     */
+    public Stream<InstrumentDTO> streamInstrumentsByType(String instrumentType, int pageSize) {
+        Iterator<InstrumentDTO> instruments = new InstrumentPageIterator(
+                (afterInstrumentID, size) -> findInstrumentsByTypePage(instrumentType, afterInstrumentID, size),
+                pageSize);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(instruments,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Searches the instruments by type and brand, see <code>InstrumentSearchIndex</code> for how queries are matched
+     * and ranked. The search is answered from memory, the database is only read the first time, and again if
+     * instrument changes might have been missed. Unlike the listings, all instruments are searched, not only those in
+     * stock.
+     * 
+     * @param query  the words to search for.
+     * @param offset the number of best matches to skip.
+     * @param limit  the maximum number of matches to return.
+     * @return the matching instruments, best first.
+     * @throws SoundgoodDBException If the instruments could not be read.
+     */
+    public List<InstrumentMatch> searchInstruments(String query, int offset, int limit)
+            throws SoundgoodDBException {
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        try {
+            if (!searchIndex.isLoaded() || !searchIndex.isLive()) {
+                loadSearchIndex();
+            }
+            List<InstrumentMatch> matches = searchIndex.search(query, offset, limit);
+            completed = true;
+            return matches;
+        } finally {
+            metrics.recordOperation(DAOMetrics.Operation.SEARCH_INSTRUMENTS, startNanos, completed);
+        }
+    }
+
+    /**
+     * Creates a new rental in one round trip, through the <code>rent_instrument</code> database function. The
+     * function checks the rental limit of the student, the lease duration and the stock, takes the instrument from
+     * stock and inserts the rental. Concurrent rentals of the same student are serialized by the database, so they
+     * can not both pass the rental limit. Attempts that lose a race to another transaction are retried after a short,
+     * random delay. When stock reservations are used, the instrument is taken from a reservation of this process, so
+     * that concurrent rentals of the same instrument do not wait for each other to update its stock.
      * 
-     * @param rental     the rental object.
      * @param instrument the instrument object.
      * @param student    the student object.
-     * @param priceID    the priceID for said instrument. This is free to choose.
+     * @param priceID    the priceID for said instrument. This is free to choose, <code>null</code> or an empty
+     *                   string means the current price of the instrument.
+     * @return the outcome of the rental, and the ID of the created rental if it was created.
      * @throws SoundgoodDBException If failed to create the specific rental.
      */
-    public void createRental(InstrumentDTO instrument, StudentDTO student, String priceID)
+    public RentalResult createRental(InstrumentDTO instrument, StudentDTO student, String priceID)
             throws SoundgoodDBException {
         String failureMsg = "Could not rent the instrument " + instrument.getInstrumentID()
                 + " for student " + student.getStudentID();
 
         Timestamp expectedLeaseStartDate = new Timestamp(System.currentTimeMillis());
-        Timestamp expectedLeaseEndDate = new Timestamp(System.currentTimeMillis() + 30L * 24 * 60 * 60 * 1000);
+        Timestamp expectedLeaseEndDate = new Timestamp(System.currentTimeMillis() + leaseDurationMillis);
+        long startNanos = System.nanoTime();
+        PooledConnection conn = null;
+        RentalResult rentalResult = null;
+        StockReservations.Reservation reservation = null;
 
         try {
-            String greatestID = findGreatestRentalID();
-            String nextID = IDGenerator.generateId(greatestID);
-            int updatedRows = 0;
-
-            createRentalStmt.setString(1, nextID);
-            createRentalStmt.setTimestamp(2, expectedLeaseStartDate);
-            createRentalStmt.setTimestamp(3, expectedLeaseEndDate);
-            createRentalStmt.setString(4, priceID);
-            createRentalStmt.setString(5, instrument.getInstrumentID());
-            createRentalStmt.setInt(6, student.getStudentID());
-
-            updatedRows = createRentalStmt.executeUpdate();
-            if (updatedRows != 1) {
-                handleException(failureMsg, null);
+            conn = borrow();
+            conn.setReadOnly(false);
+            conn.setTransactionIsolation(rentIsolation);
+            RentalRules.Rules rules = rentalRules.get(conn);
+            RentalStatus knownRejection = checkCachedRules(rules, student.getStudentID(), expectedLeaseStartDate,
+                    expectedLeaseEndDate);
+            if (knownRejection != null) {
+                rentalResult = new RentalResult(knownRejection, null);
+                return rentalResult;
             }
+            String rentedPriceID = priceID;
+            if (priceID == null || priceID.isEmpty()) {
+                rentedPriceID = findCachedPriceID(instrument.getInstrumentID());
+            }
+            reservation = reserve(conn, instrument.getInstrumentID());
 
-            connection.commit();
+            for (int attempt = 0; rentalResult == null; attempt++) {
+                long countsGeneration = studentRentalCounts.getGeneration();
+                String nextID = rentalIdAllocator.nextId(conn);
+                try {
+                    RentalStatus status = rentInstrument(conn, nextID, expectedLeaseStartDate, expectedLeaseEndDate,
+                            rentedPriceID, instrument, student, reservation);
+                    if (status == null) {
+                        // The reservation expired before it was used up, take the instrument from stock instead.
+                        stockReservations.expired(instrument.getInstrumentID(), reservation);
+                        reservation = null;
+                        conn.rollback();
+                    } else if (status == RentalStatus.OK) {
+                        commit(conn);
+                        rentalResult = new RentalResult(status, nextID);
+                    } else {
+                        if (status == RentalStatus.LIMIT_REACHED) {
+                            cacheActiveRentals(conn, student.getStudentID(), countsGeneration);
+                        }
+                        conn.rollback();
+                        rentalResult = new RentalResult(status, null);
+                    }
+                } catch (SQLException sqle) {
+                    if (attempt >= maxRentRetries || !isRetryable(sqle)) {
+                        throw sqle;
+                    }
+                    conn.rollback();
+                    metrics.recordRetry(DAOMetrics.Operation.CREATE_RENTAL);
+                    backOff(attempt);
+                }
+            }
 
         } catch (SQLException sqle) {
-            handleException(failureMsg, sqle);
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            if (reservation != null && (rentalResult == null || !rentalResult.isRented())) {
+                stockReservations.giveBack(reservation);
+            }
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.CREATE_RENTAL, startNanos, rentalResult != null);
         }
+        return rentalResult;
+    }
+
+    /**
+     * Creates several rentals in one transaction, with one round trip and one commit for all of them. Each rental is
+     * first checked against the cached rules and rental counts, like in <code>createRental</code>, and the rest are
+     * checked by <code>rent_instrument</code>, so a rental that is rejected with a status does not affect the others.
+     * The rentals are made in the order of the student and instrument IDs, which is the order the rows are locked in.
+     * A group that loses a race to another transaction is run again after a short, random delay. Unlike in
+     * <code>createRental</code>, the instruments are taken directly from stock, not from stock reservations, since
+     * the rentals of one transaction update each instrument row only once anyway.
+     * 
+     * @param rentals the rentals to create, a missing price ID means the current price.
+     * @return the outcome of each rental, in the same order as <code>rentals</code>.
+     * @throws SoundgoodDBException If the group failed, for example because one of the rentals broke a constraint.
+     *                              No rental of the group is created in that case.
+     */
+    public List<RentalResult> createRentalGroup(List<RentalRequest> rentals) throws SoundgoodDBException {
+        String failureMsg = "Could not create the group of " + rentals.size() + " rentals.";
+        Timestamp leaseStartDate = new Timestamp(System.currentTimeMillis());
+        Timestamp leaseEndDate = new Timestamp(leaseStartDate.getTime() + leaseDurationMillis);
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+        RentalResult[] results = new RentalResult[rentals.size()];
+
+        try {
+            conn = borrow();
+            conn.setReadOnly(false);
+            conn.setTransactionIsolation(rentIsolation);
+            RentalRules.Rules rules = rentalRules.get(conn);
+            List<Integer> lockOrder = new ArrayList<>(rentals.size());
+            for (int i = 0; i < rentals.size(); i++) {
+                RentalStatus knownRejection = checkCachedRules(rules, rentals.get(i).getStudentID(), leaseStartDate,
+                        leaseEndDate);
+                if (knownRejection != null) {
+                    results[i] = new RentalResult(knownRejection, null);
+                } else {
+                    lockOrder.add(i);
+                }
+            }
+            lockOrder.sort(Comparator.comparingInt((Integer i) -> rentals.get(i).getStudentID())
+                    .thenComparing(i -> rentals.get(i).getInstrumentID()));
+
+            String[] priceIDs = new String[lockOrder.size()];
+            String[] instrumentIDs = new String[lockOrder.size()];
+            Integer[] studentIDs = new Integer[lockOrder.size()];
+            for (int k = 0; k < lockOrder.size(); k++) {
+                RentalRequest rental = rentals.get(lockOrder.get(k));
+                priceIDs[k] = rental.getPriceID();
+                if (priceIDs[k] == null || priceIDs[k].isEmpty()) {
+                    priceIDs[k] = findCachedPriceID(rental.getInstrumentID());
+                }
+                instrumentIDs[k] = rental.getInstrumentID();
+                studentIDs[k] = rental.getStudentID();
+            }
+
+            Set<Integer> studentsAtLimit = new HashSet<>();
+            long countsGeneration = 0;
+            for (int attempt = 0; !completed && !lockOrder.isEmpty(); attempt++) {
+                countsGeneration = studentRentalCounts.getGeneration();
+                studentsAtLimit.clear();
+                String[] rentalIDs = new String[lockOrder.size()];
+                for (int k = 0; k < rentalIDs.length; k++) {
+                    rentalIDs[k] = rentalIdAllocator.nextId(conn);
+                }
+                try {
+                    PreparedStatement rentGroupStmt = conn.prepare(RENT_INSTRUMENT_GROUP_SQL);
+                    rentGroupStmt.setTimestamp(1, leaseStartDate);
+                    rentGroupStmt.setTimestamp(2, leaseEndDate);
+                    rentGroupStmt.setArray(3, conn.getConnection().createArrayOf("varchar", rentalIDs));
+                    rentGroupStmt.setArray(4, conn.getConnection().createArrayOf("varchar", priceIDs));
+                    rentGroupStmt.setArray(5, conn.getConnection().createArrayOf("varchar", instrumentIDs));
+                    rentGroupStmt.setArray(6, conn.getConnection().createArrayOf("integer", studentIDs));
+                    long statementStartNanos = System.nanoTime();
+                    try (ResultSet result = rentGroupStmt.executeQuery()) {
+                        while (result.next()) {
+                            int k = result.getInt(1) - 1;
+                            RentalStatus status = RentalStatus.valueOf(result.getString(2));
+                            results[lockOrder.get(k)] = new RentalResult(status,
+                                    status == RentalStatus.OK ? rentalIDs[k] : null);
+                            if (status == RentalStatus.LIMIT_REACHED) {
+                                studentsAtLimit.add(studentIDs[k]);
+                            }
+                        }
+                    }
+                    metrics.recordStatement(DAOMetrics.Operation.CREATE_RENTAL_GROUP, statementStartNanos);
+                    commit(conn);
+                    completed = true;
+                } catch (SQLException sqle) {
+                    if (attempt >= maxRentRetries || !isRetryable(sqle)) {
+                        throw sqle;
+                    }
+                    conn.rollback();
+                    metrics.recordRetry(DAOMetrics.Operation.CREATE_RENTAL_GROUP);
+                    backOff(attempt);
+                }
+            }
+            completed = true;
+            cacheActiveRentalsAfterGroup(conn, studentsAtLimit, countsGeneration);
+        } catch (SQLException sqle) {
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.CREATE_RENTAL_GROUP, startNanos, completed);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Rents several instruments to one student, all or none of them. The student, the lease duration and the rental
+     * limit are checked once for the whole basket, so the basket is rejected if the student's active rentals and the
+     * basket together are more than the limit. The stock of all instruments is then taken, and all rentals are
+     * inserted, with one statement each, in one round trip. The instruments are taken directly from stock, not from
+     * stock reservations.
+     * 
+     * @param studentID the renting student.
+     * @param rentals   the instruments to rent, each at most once. The student IDs of the requests are ignored, a
+     *                  missing price ID means the current price.
+     * @return the outcome of each rental, in the same order as <code>rentals</code>. Either all are OK, or none of the
+     *         rentals was created and the instruments that could have been rented are BASKET_REJECTED.
+     * @throws SoundgoodDBException If the basket failed, for example because the student has rented one of the
+     *                              instruments before. No rental of the basket is created in that case.
+     */
+    public List<RentalResult> createRentalBasket(int studentID, List<RentalRequest> rentals)
+            throws SoundgoodDBException {
+        String failureMsg = "Could not rent the basket of " + rentals.size() + " instruments for student "
+                + studentID;
+        Timestamp leaseStartDate = new Timestamp(System.currentTimeMillis());
+        Timestamp leaseEndDate = new Timestamp(leaseStartDate.getTime() + leaseDurationMillis);
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+        RentalResult[] results = new RentalResult[rentals.size()];
+
+        String[] priceIDs = new String[rentals.size()];
+        String[] instrumentIDs = new String[rentals.size()];
+        for (int i = 0; i < rentals.size(); i++) {
+            RentalRequest rental = rentals.get(i);
+            priceIDs[i] = rental.getPriceID();
+            if (priceIDs[i] == null || priceIDs[i].isEmpty()) {
+                priceIDs[i] = findCachedPriceID(rental.getInstrumentID());
+            }
+            instrumentIDs[i] = rental.getInstrumentID();
+        }
+
+        try {
+            conn = borrow();
+            conn.setReadOnly(false);
+            conn.setTransactionIsolation(rentIsolation);
+            for (int attempt = 0; !completed; attempt++) {
+                String[] rentalIDs = new String[rentals.size()];
+                for (int i = 0; i < rentals.size(); i++) {
+                    rentalIDs[i] = rentalIdAllocator.nextId(conn);
+                }
+                try {
+                    PreparedStatement rentBasketStmt = conn.prepare(RENT_BASKET_SQL);
+                    rentBasketStmt.setInt(1, studentID);
+                    rentBasketStmt.setTimestamp(2, leaseStartDate);
+                    rentBasketStmt.setTimestamp(3, leaseEndDate);
+                    rentBasketStmt.setArray(4, conn.getConnection().createArrayOf("varchar", rentalIDs));
+                    rentBasketStmt.setArray(5, conn.getConnection().createArrayOf("varchar", priceIDs));
+                    rentBasketStmt.setArray(6, conn.getConnection().createArrayOf("varchar", instrumentIDs));
+                    boolean allRented = true;
+                    long statementStartNanos = System.nanoTime();
+                    try (ResultSet result = rentBasketStmt.executeQuery()) {
+                        while (result.next()) {
+                            int i = result.getInt(1) - 1;
+                            RentalStatus status = RentalStatus.valueOf(result.getString(2));
+                            results[i] = new RentalResult(status, status == RentalStatus.OK ? rentalIDs[i] : null);
+                            allRented &= status == RentalStatus.OK;
+                        }
+                    }
+                    metrics.recordStatement(DAOMetrics.Operation.CREATE_RENTAL_BASKET, statementStartNanos);
+                    if (allRented) {
+                        commit(conn);
+                    } else {
+                        conn.rollback();
+                        for (int i = 0; i < results.length; i++) {
+                            if (results[i].isRented()) {
+                                results[i] = new RentalResult(RentalStatus.BASKET_REJECTED, null);
+                            }
+                        }
+                    }
+                    completed = true;
+                } catch (SQLException sqle) {
+                    if (attempt >= maxRentRetries || !isRetryable(sqle)) {
+                        throw sqle;
+                    }
+                    conn.rollback();
+                    metrics.recordRetry(DAOMetrics.Operation.CREATE_RENTAL_BASKET);
+                    backOff(attempt);
+                }
+            }
+        } catch (SQLException sqle) {
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.CREATE_RENTAL_BASKET, startNanos, completed);
+        }
+        return Arrays.asList(results);
     }
 
     /**
@@ -160,100 +852,1123 @@ public class SoundgoodDAO {
      */
     public void deleteRental(RentalDTO rental) throws SoundgoodDBException {
         String failureMsg = "Failed to terminate rental: " + rental.getRentalID();
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
 
         try {
+            conn = borrow();
+            conn.setReadOnly(false);
+            PreparedStatement updateRentalToExpiryStmt = conn.prepare(UPDATE_RENTAL_TO_EXPIRY_SQL);
             updateRentalToExpiryStmt.setString(1, rental.getRentalID());
+            long statementStartNanos = System.nanoTime();
             int updatedRows = updateRentalToExpiryStmt.executeUpdate();
+            metrics.recordStatement(DAOMetrics.Operation.DELETE_RENTAL, statementStartNanos);
 
             if (updatedRows != 1) {
-                handleException(failureMsg, null);
+                handleException(conn, failureMsg, null);
             }
-            connection.commit();
+            commit(conn);
+            completed = true;
         } catch (SQLException sqle) {
-            handleException(failureMsg, sqle);
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.DELETE_RENTAL, startNanos, completed);
         }
     }
 
-    private String findGreatestRentalID() throws SQLException {
-        ResultSet result = null;
-        result = findMaxRentalIdStmt.executeQuery();
-        if (result.next()) {
-            return result.getString("max_rental_id");
+    /**
+     * Creates many rentals, using JDBC batches of <code>chunkSize</code> rentals. Each batch is committed on its own.
+     * A rental that fails, for example because the instrument is out of stock or a trigger rejects it, does not stop
+     * the other rentals, instead its failure is reported in the returned list.
+     * 
+     * @param rentals   the rentals to create.
+     * @param chunkSize the number of rentals in each transaction.
+     * @return the outcome of each rental, in the same order as <code>rentals</code>.
+     * @throws SoundgoodDBException If failed to reach the database. Chunks committed before the failure stay
+     *                              committed.
+     */
+    public List<BulkResult> createRentals(List<RentalRequest> rentals, int chunkSize) throws SoundgoodDBException {
+        String failureMsg = "Could not create rentals.";
+        List<BulkResult> results = new ArrayList<>(rentals.size());
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+
+        try {
+            conn = borrow();
+            conn.setReadOnly(false);
+            for (int chunkStart = 0; chunkStart < rentals.size(); chunkStart += chunkSize) {
+                int chunkEnd = Math.min(chunkStart + chunkSize, rentals.size());
+                String[] rentalIDs = new String[chunkEnd - chunkStart];
+                for (int i = 0; i < rentalIDs.length; i++) {
+                    rentalIDs[i] = rentalIdAllocator.nextId(conn);
+                }
+                createRentalChunk(conn, rentals.subList(chunkStart, chunkEnd), chunkStart, rentalIDs, results);
+            }
+            completed = true;
+        } catch (SQLException sqle) {
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.CREATE_RENTALS, startNanos, completed);
         }
-        return "";
+        return results;
     }
 
-    private void closeResultSet(String failureMsg, ResultSet result) throws SoundgoodDBException {
+    /**
+     * Terminates many rentals, using JDBC batches of <code>chunkSize</code> rentals. Each batch is committed on its
+     * own. A termination that fails does not stop the others, instead its failure is reported in the returned list.
+     * 
+     * @param rentalIDs the rentals to terminate.
+     * @param chunkSize the number of terminations in each transaction.
+     * @return the outcome of each termination, in the same order as <code>rentalIDs</code>.
+     * @throws SoundgoodDBException If failed to reach the database. Chunks committed before the failure stay
+     *                              committed.
+     */
+    public List<BulkResult> deleteRentals(List<String> rentalIDs, int chunkSize) throws SoundgoodDBException {
+        String failureMsg = "Could not terminate rentals.";
+        List<BulkResult> results = new ArrayList<>(rentalIDs.size());
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+
         try {
-            result.close();
-        } catch (Exception e) {
-            throw new SoundgoodDBException(failureMsg + " Could not close result set...", e);
+            conn = borrow();
+            conn.setReadOnly(false);
+            for (int chunkStart = 0; chunkStart < rentalIDs.size(); chunkStart += chunkSize) {
+                int chunkEnd = Math.min(chunkStart + chunkSize, rentalIDs.size());
+                deleteRentalChunk(conn, rentalIDs.subList(chunkStart, chunkEnd), chunkStart, results);
+            }
+            completed = true;
+        } catch (SQLException sqle) {
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.DELETE_RENTALS, startNanos, completed);
         }
+        return results;
     }
 
     /**
-     * Handles exceptions and rolls back transactions.
+     * Gives the instruments of rentals whose lease has run out back to stock, in one short transaction. Rentals that
+     * are locked, for example because they are being terminated, are skipped and left for the next call. Only one
+     * call at a time, on any node, does the work, the others return 0 at once.
+     * 
+     * @param batchSize the maximum number of rentals handled.
+     * @return the number of rentals whose instrument was given back.
+     * @throws SoundgoodDBException If failed to give back the instruments.
      */
-    private void handleException(String failureMsg, Exception cause) throws SoundgoodDBException {
+    public int releaseExpiredStock(int batchSize) throws SoundgoodDBException {
+        String failureMsg = "Could not give back the instruments of expired rentals.";
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+        int released = 0;
+
         try {
-            connection.rollback();
-        } catch (SQLException rollbackExc) {
-            failureMsg += " Also failed to rollback transaction: " + rollbackExc.getMessage();
+            conn = borrow();
+            conn.setReadOnly(false);
+            if (tryAdvisoryLock(conn, SWEEPER_LOCK_KEY)) {
+                PreparedStatement releaseStmt = conn.prepare(RELEASE_EXPIRED_STOCK_SQL);
+                releaseStmt.setInt(1, batchSize);
+                long statementStartNanos = System.nanoTime();
+                try (ResultSet result = releaseStmt.executeQuery()) {
+                    result.next();
+                    released = result.getInt(1);
+                }
+                metrics.recordStatement(DAOMetrics.Operation.RELEASE_EXPIRED_STOCK, statementStartNanos);
+            }
+            commit(conn);
+            completed = true;
+        } catch (SQLException sqle) {
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.RELEASE_EXPIRED_STOCK, startNanos, completed);
         }
-        throw new SoundgoodDBException(failureMsg, cause);
+        return released;
+    }
+
+    /**
+     * Claims up to <code>maxUnits</code> instruments from stock into a new reservation, and commits the claim.
+     * 
+     * @param conn         the connection to claim on, it must not be in the middle of a transaction that matters.
+     * @param instrumentID the instrument to claim.
+     * @param maxUnits     the maximum number of instruments to claim.
+     * @param ttlMillis    the time after which the reservation expires.
+     * @return the reservation, or <code>null</code> if the instrument is out of stock or does not exist.
+     * @throws SQLException If failed to claim the instruments. The transaction is not rolled back.
+     */
+    StockReservations.Reservation claimStock(PooledConnection conn, String instrumentID, int maxUnits,
+            long ttlMillis) throws SQLException {
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        StockReservations.Reservation reservation = null;
+
+        try {
+            PreparedStatement claimStmt = conn.prepare(CLAIM_STOCK_SQL);
+            claimStmt.setString(1, instrumentID);
+            claimStmt.setInt(2, maxUnits);
+            claimStmt.setLong(3, ttlMillis);
+            long statementStartNanos = System.nanoTime();
+            try (ResultSet result = claimStmt.executeQuery()) {
+                if (result.next() && result.getObject(1) != null) {
+                    reservation = new StockReservations.Reservation(result.getLong(1), result.getInt(2), ttlMillis);
+                }
+            }
+            metrics.recordStatement(DAOMetrics.Operation.CLAIM_STOCK, statementStartNanos);
+            commit(conn);
+            completed = true;
+        } finally {
+            metrics.recordOperation(DAOMetrics.Operation.CLAIM_STOCK, startNanos, completed);
+        }
+        return reservation;
     }
 
     /**
-     * Commits the transaction.
+     * Gives back the instruments of the specified reservations, and of all expired reservations, that no rental was
+     * made from, and removes the reservations. Waits for the rentals in progress that use the reservations.
      * 
-     * @throws SoundgoodDBException If failed to commit.
+     * @param reservationIDs the reservations that are no longer used, they do not have to have expired.
+     * @return the number of reservations that were settled.
+     * @throws SoundgoodDBException If failed to settle the reservations.
      */
-    public void commit() throws SoundgoodDBException {
+    int settleStockReservations(List<Long> reservationIDs) throws SoundgoodDBException {
+        String failureMsg = "Could not settle the stock reservations.";
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+        int settled = 0;
+
         try {
-            connection.commit();
-        } catch (SQLException e) {
-            handleException("Failed to commit", e);
-        }
-    }
-
-    private void prepareStatements(Connection connection) throws SQLException {
-        updateRentalToExpiryStmt = connection.prepareStatement(
-                "UPDATE " + RENTAL_TABLE_NAME + " SET " + EXPIRY_DATE_COLUMN_NAME
-                        + " = CURRENT_TIMESTAMP(0) WHERE " + RENTAL_ID_COLUMN_NAME + " = ?");
-
-        createRentalStmt = connection.prepareStatement(
-                "INSERT INTO " + RENTAL_TABLE_NAME
-                        + " (" + RENTAL_ID_COLUMN_NAME
-                        + ", " + START_DATE_COLUMN_NAME
-                        + ", " + EXPIRY_DATE_COLUMN_NAME
-                        + ", " + PRICE_ID_COLUMN_NAME
-                        + ", " + INSTR_ID_COLUMN_NAME
-                        + ", " + STDNT_ID_COLUMN_NAME
-                        + ") "
-                        + "VALUES (?, ?, ?, ?, ?, ?)");
-
-        findMaxRentalIdStmt = connection.prepareStatement(
-                "SELECT MAX(" + RENTAL_ID_COLUMN_NAME + ") AS max_rental_id FROM " + RENTAL_TABLE_NAME);
-
-        findInstrumentsByTypeStmt = connection.prepareStatement(
-                "SELECT i." + INSTRUMENT_ID_COLUMN_NAME + ", i." + INSTRUMENT_TYPE_COLUMN_NAME + ", i."
-                        + INSTRUMENT_BRAND_COLUMN_NAME + ", i." + AVAILABLE_STOCK_COLUMN_NAME + ", rph."
-                        + PRICE_COLUMN_NAME + " " +
-                        "FROM " + INSTRUMENT_TABLE_NAME + " i " +
-                        "JOIN " + RENTAL_PRICE_HISTORY_TABLE_NAME + " rph ON i." + INSTRUMENT_ID_COLUMN_NAME + " = rph."
-                        + INSTRUMENT_ID_COLUMN_NAME + " " +
-                        "WHERE i." + INSTRUMENT_TYPE_COLUMN_NAME + " = ? AND i." + AVAILABLE_STOCK_COLUMN_NAME
-                        + " > 0 AND rph." + IS_CURRENT_COLUMN_NAME + " = true FOR NO KEY UPDATE");
-    }
-
-    /**
-     * Handles connection to soundgood database.
-     */
-    void connectToDatabase() throws SQLException {
-        connection = DriverManager.getConnection(
-                "jdbc:postgresql://localhost:5432/soundgood_school",
-                "postgres", "kth");
-        connection.setAutoCommit(false);
-        prepareStatements(connection);
+            conn = borrow();
+            conn.setReadOnly(false);
+            PreparedStatement settleStmt = conn.prepare(SETTLE_STOCK_RESERVATIONS_SQL);
+            settleStmt.setArray(1, conn.getConnection().createArrayOf("bigint", reservationIDs.toArray()));
+            long statementStartNanos = System.nanoTime();
+            try (ResultSet result = settleStmt.executeQuery()) {
+                result.next();
+                settled = result.getInt(1);
+            }
+            metrics.recordStatement(DAOMetrics.Operation.SETTLE_RESERVATIONS, statementStartNanos);
+            commit(conn);
+            completed = true;
+        } catch (SQLException sqle) {
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.SETTLE_RESERVATIONS, startNanos, completed);
+        }
+        return settled;
+    }
+
+    /**
+     * Hands the oldest events in the outbox to <code>publisher</code> and removes them, in one transaction. If
+     * another process is publishing, nothing is done.
+     * 
+     * @param batchSize the maximum number of events to publish.
+     * @param publisher receives the events. If it throws, the events stay in the outbox.
+     * @return the number of events published.
+     * @throws SoundgoodDBException If failed to read or remove the events, or if the publisher failed.
+     */
+    int publishRentalEvents(int batchSize, RentalEventSubscriber publisher) throws SoundgoodDBException {
+        String failureMsg = "Could not publish the rental events.";
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+        int published = 0;
+
+        try {
+            conn = borrow();
+            conn.setReadOnly(false);
+            if (tryAdvisoryLock(conn, OUTBOX_LOCK_KEY)) {
+                PreparedStatement findEventsStmt = conn.prepare(FIND_RENTAL_EVENTS_SQL);
+                findEventsStmt.setInt(1, batchSize);
+                long statementStartNanos = System.nanoTime();
+                List<RentalEvent> events = new ArrayList<>();
+                try (ResultSet result = findEventsStmt.executeQuery()) {
+                    while (result.next()) {
+                        events.add(new RentalEvent(
+                                result.getLong(EVENT_ID_COLUMN_NAME),
+                                RentalEvent.Type.valueOf(result.getString(EVENT_TYPE_COLUMN_NAME)),
+                                result.getString(INSTR_ID_COLUMN_NAME),
+                                result.getString(RENTAL_ID_COLUMN_NAME),
+                                (Integer) result.getObject(STDNT_ID_COLUMN_NAME),
+                                result.getString(EXPIRY_DATE_COLUMN_NAME),
+                                (Integer) result.getObject(AVAILABLE_STOCK_COLUMN_NAME),
+                                result.getTimestamp(CREATED_AT_COLUMN_NAME).toLocalDateTime()));
+                    }
+                }
+                metrics.recordStatement(DAOMetrics.Operation.PUBLISH_EVENTS, statementStartNanos);
+                if (!events.isEmpty()) {
+                    publisher.published(events);
+                    Long[] eventIDs = new Long[events.size()];
+                    for (int i = 0; i < eventIDs.length; i++) {
+                        eventIDs[i] = events.get(i).getEventID();
+                    }
+                    PreparedStatement deleteEventsStmt = conn.prepare(DELETE_RENTAL_EVENTS_SQL);
+                    deleteEventsStmt.setArray(1, conn.getConnection().createArrayOf("bigint", eventIDs));
+                    deleteEventsStmt.executeUpdate();
+                }
+                published = events.size();
+            }
+            commit(conn);
+            completed = true;
+        } catch (Exception failedPublish) {
+            handleException(conn, failureMsg, failedPublish);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.PUBLISH_EVENTS, startNanos, completed);
+        }
+        return published;
+    }
+
+    /**
+     * Lists all rentals a student has made, including terminated and expired ones, the latest first.
+     * 
+     * @param studentID the student whose rentals are listed.
+     * @return the rentals of the student.
+     * @throws SoundgoodDBException If failed to read the rentals.
+     */
+    public List<RentalDTO> findRentalHistory(int studentID) throws SoundgoodDBException {
+        return readReport("Could not read the rentals of student " + studentID, conn -> {
+            List<RentalDTO> rentals = new ArrayList<>();
+            PreparedStatement findHistoryStmt = conn.prepare(FIND_RENTAL_HISTORY_SQL);
+            findHistoryStmt.setInt(1, studentID);
+            findHistoryStmt.setInt(2, studentID);
+            try (ResultSet result = findHistoryStmt.executeQuery()) {
+                while (result.next()) {
+                    rentals.add(new Rental(
+                            result.getString(RENTAL_ID_COLUMN_NAME),
+                            result.getTimestamp(START_DATE_COLUMN_NAME).getTime(),
+                            result.getTimestamp(EXPIRY_DATE_COLUMN_NAME).getTime(),
+                            result.getString(PRICE_ID_COLUMN_NAME),
+                            result.getString(INSTR_ID_COLUMN_NAME),
+                            result.getInt(STDNT_ID_COLUMN_NAME)));
+                }
+            }
+            return rentals;
+        });
+    }
+
+    /**
+     * Reports how much the instruments of each type are rented. The report is read from a materialized view, it is
+     * as old as the last <code>refreshReports</code>.
+     * 
+     * @return the utilization of each instrument type, ordered by type.
+     * @throws SoundgoodDBException If failed to read the report.
+     */
+    public List<TypeUtilization> findTypeUtilization() throws SoundgoodDBException {
+        return readReport("Could not read the utilization report.", conn -> {
+            List<TypeUtilization> utilization = new ArrayList<>();
+            try (ResultSet result = conn.prepare(FIND_TYPE_UTILIZATION_SQL).executeQuery()) {
+                while (result.next()) {
+                    utilization.add(new TypeUtilization(
+                            result.getString(INSTRUMENT_TYPE_COLUMN_NAME),
+                            result.getInt(INSTRUMENTS_COLUMN_NAME),
+                            result.getInt(IN_STOCK_COLUMN_NAME),
+                            result.getInt(ACTIVE_RENTALS_COLUMN_NAME),
+                            result.getInt(TOTAL_RENTALS_COLUMN_NAME),
+                            result.getTimestamp(REFRESHED_AT_COLUMN_NAME).toLocalDateTime()));
+                }
+            }
+            return utilization;
+        });
+    }
+
+    /**
+     * Reports the rental revenue of each month in a range. The report is read from a materialized view, it is as old
+     * as the last <code>refreshReports</code>. Months without revenue are left out.
+     * 
+     * @param from the first month of the range.
+     * @param to   the last month of the range.
+     * @return the revenue of each month, ordered by month.
+     * @throws SoundgoodDBException If failed to read the report.
+     */
+    public List<MonthlyRevenue> findMonthlyRevenue(YearMonth from, YearMonth to) throws SoundgoodDBException {
+        return readReport("Could not read the revenue report.", conn -> {
+            List<MonthlyRevenue> revenue = new ArrayList<>();
+            PreparedStatement findRevenueStmt = conn.prepare(FIND_MONTHLY_REVENUE_SQL);
+            findRevenueStmt.setDate(1, Date.valueOf(from.atDay(1)));
+            findRevenueStmt.setDate(2, Date.valueOf(to.atDay(1)));
+            try (ResultSet result = findRevenueStmt.executeQuery()) {
+                while (result.next()) {
+                    revenue.add(new MonthlyRevenue(
+                            YearMonth.from(result.getDate(MONTH_COLUMN_NAME).toLocalDate()),
+                            result.getInt(BILLED_RENTALS_COLUMN_NAME),
+                            result.getDouble(REVENUE_COLUMN_NAME),
+                            result.getTimestamp(REFRESHED_AT_COLUMN_NAME).toLocalDateTime()));
+                }
+            }
+            return revenue;
+        });
+    }
+
+    /**
+     * Checks that the database has the schema version this DAO was written for. If it does not, all operations fail
+     * from now on, with a message that tells which version was found.
+     * 
+     * @return the schema version.
+     * @throws SQLException         If the database could not be reached.
+     * @throws SoundgoodDBException If the schema is not the expected version, or has no version at all.
+     */
+    int checkSchemaVersion() throws SQLException, SoundgoodDBException {
+        PooledConnection conn = null;
+        int version = 0;
+        try {
+            conn = borrow();
+            conn.setReadOnly(true);
+            try (ResultSet result = conn.prepare(FIND_SCHEMA_VERSION_SQL).executeQuery()) {
+                if (result.next()) {
+                    version = result.getInt(1);
+                }
+            }
+            conn.commit();
+        } catch (SQLException sqle) {
+            if (!UNDEFINED_TABLE.equals(sqle.getSQLState())) {
+                throw sqle;
+            }
+        } finally {
+            pool.release(conn);
+        }
+        if (version != SCHEMA_VERSION) {
+            incompatibleSchema = (version == 0 ? "The database has no schema version"
+                    : "The database has schema version " + version) + ", but version " + SCHEMA_VERSION
+                    + " is needed. Load postgres-soundgoodb.sql again.";
+            throw new SoundgoodDBException(incompatibleSchema);
+        }
+        return version;
+    }
+
+    /**
+     * Creates the rental partitions of the current month and of the <code>monthsAhead</code> next months that are
+     * missing, and archives the partitions of the months more than <code>retentionMonths</code> months back that hold
+     * no active rental. Archived rentals are no longer terminated, counted or reported. If another process is already
+     * maintaining the partitions, nothing is done.
+     * 
+     * @param monthsAhead     the number of months after the current one that must have a partition.
+     * @param retentionMonths the number of months before the current one whose partitions are kept, 0 archives none.
+     * @return the number of partitions that were created or archived.
+     * @throws SoundgoodDBException If failed to maintain the partitions, for example because archiving had to wait
+     *                              too long for rentals in progress.
+     */
+    public int maintainRentalPartitions(int monthsAhead, int retentionMonths) throws SoundgoodDBException {
+        String failureMsg = "Could not maintain the rental partitions.";
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+        int changed = 0;
+
+        try {
+            conn = borrow();
+            conn.setReadOnly(false);
+            if (tryAdvisoryLock(conn, PARTITION_LOCK_KEY)) {
+                long statementStartNanos = System.nanoTime();
+                PreparedStatement createStmt = conn.prepare(CREATE_RENTAL_PARTITIONS_SQL);
+                createStmt.setInt(1, monthsAhead);
+                try (ResultSet result = createStmt.executeQuery()) {
+                    result.next();
+                    changed += result.getInt(1);
+                }
+                if (retentionMonths > 0) {
+                    PreparedStatement archiveStmt = conn.prepare(ARCHIVE_RENTAL_PARTITIONS_SQL);
+                    archiveStmt.setInt(1, retentionMonths);
+                    try (ResultSet result = archiveStmt.executeQuery()) {
+                        result.next();
+                        changed += result.getInt(1);
+                    }
+                }
+                metrics.recordStatement(DAOMetrics.Operation.MAINTAIN_PARTITIONS, statementStartNanos);
+            }
+            commit(conn);
+            completed = true;
+        } catch (SQLException sqle) {
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.MAINTAIN_PARTITIONS, startNanos, completed);
+        }
+        return changed;
+    }
+
+    /**
+     * Recomputes the reports from the rentals. The materialized views are refreshed concurrently, so the reports can
+     * be read meanwhile. If another process is already refreshing them, nothing is done.
+     * 
+     * @return <code>true</code> if the reports were refreshed.
+     * @throws SoundgoodDBException If failed to refresh the reports.
+     */
+    public boolean refreshReports() throws SoundgoodDBException {
+        String failureMsg = "Could not refresh the reports.";
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+        boolean refreshed = false;
+
+        try {
+            conn = borrow();
+            conn.setReadOnly(false);
+            if (tryAdvisoryLock(conn, REPORT_REFRESH_LOCK_KEY)) {
+                long statementStartNanos = System.nanoTime();
+                conn.prepare(REFRESH_UTILIZATION_SQL).execute();
+                conn.prepare(REFRESH_REVENUE_SQL).execute();
+                metrics.recordStatement(DAOMetrics.Operation.REFRESH_REPORTS, statementStartNanos);
+                refreshed = true;
+            }
+            commit(conn);
+            completed = true;
+        } catch (SQLException sqle) {
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.REFRESH_REPORTS, startNanos, completed);
+        }
+        return refreshed;
+    }
+
+    /**
+     * @return the maximum number of operations that can use the database at the same time.
+     */
+    public int getMaxConnections() {
+        return pool.getMaxSize();
+    }
+
+    /**
+     * Returns the latency of each DAO operation, and of its statements, since the DAO was created. The time spent
+     * waiting for a connection and committing is listed separately, as <code>connectionWait</code> and
+     * <code>commit</code>. The same values are published over JMX.
+     * 
+     * @return the current value of every latency histogram.
+     */
+    public List<LatencySnapshot> getStatistics() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Closes all connections to the database. The DAO can not be used after it has been closed.
+     */
+    public void close() {
+        warmUp.close();
+        stockReservations.close();
+        metrics.close();
+        notificationListener.close();
+        replicaRouter.close();
+        pool.close();
+    }
+
+    /**
+     * Reads the available instruments of a type with an ID greater than <code>afterInstrumentID</code>.
+     */
+    private List<InstrumentDTO> findInstrumentsByTypePage(String instrumentType, String afterInstrumentID,
+            int pageSize) throws SoundgoodDBException {
+        String failureMsg = "Could not list instruments.";
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+        List<InstrumentDTO> instruments = null;
+
+        try {
+            instruments = readFromReplica(-1,
+                    replicaConn -> readInstrumentPage(replicaConn, instrumentType, afterInstrumentID, pageSize));
+            if (instruments == null) {
+                conn = borrow();
+                conn.setReadOnly(true);
+                instruments = readInstrumentPage(conn, instrumentType, afterInstrumentID, pageSize);
+                commit(conn);
+            }
+            completed = true;
+        } catch (SQLException sqle) {
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.LIST_INSTRUMENTS_PAGE, startNanos, completed);
+        }
+        return instruments;
+    }
+
+    private List<InstrumentDTO> readInstrumentPage(PooledConnection conn, String instrumentType,
+            String afterInstrumentID, int pageSize) throws SQLException {
+        List<InstrumentDTO> instruments = new ArrayList<>(pageSize);
+        PreparedStatement findPageStmt = conn.prepare(FIND_INSTRUMENTS_BY_TYPE_PAGE_SQL);
+        findPageStmt.setFetchSize(pageSize);
+        findPageStmt.setString(1, instrumentType);
+        findPageStmt.setString(2, afterInstrumentID);
+        findPageStmt.setInt(3, pageSize);
+        long statementStartNanos = System.nanoTime();
+        try (ResultSet result = findPageStmt.executeQuery()) {
+            while (result.next()) {
+                instruments.add(identityMap.get(
+                        result.getString(INSTRUMENT_ID_COLUMN_NAME),
+                        result.getString(INSTRUMENT_TYPE_COLUMN_NAME),
+                        result.getString(INSTRUMENT_BRAND_COLUMN_NAME),
+                        result.getInt(AVAILABLE_STOCK_COLUMN_NAME),
+                        result.getDouble(PRICE_COLUMN_NAME)));
+            }
+        }
+        metrics.recordStatement(DAOMetrics.Operation.LIST_INSTRUMENTS_PAGE, statementStartNanos);
+        return instruments;
+    }
+
+    /**
+     * Runs a report query in a read-only transaction, on a replica if there is one that is up to date enough.
+     */
+    private <T> T readReport(String failureMsg, ReplicaRead<T> read) throws SoundgoodDBException {
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        PooledConnection conn = null;
+        T report = null;
+
+        try {
+            long statementStartNanos = System.nanoTime();
+            report = readFromReplica(-1, read);
+            if (report == null) {
+                conn = borrow();
+                conn.setReadOnly(true);
+                statementStartNanos = System.nanoTime();
+                report = read.read(conn);
+                commit(conn);
+            }
+            metrics.recordStatement(DAOMetrics.Operation.READ_REPORT, statementStartNanos);
+            completed = true;
+        } catch (SQLException sqle) {
+            handleException(conn, failureMsg, sqle);
+        } finally {
+            pool.release(conn);
+            metrics.recordOperation(DAOMetrics.Operation.READ_REPORT, startNanos, completed);
+        }
+        return report;
+    }
+
+    /**
+     * Takes an advisory lock that is held until the transaction ends, unless another transaction holds it.
+     */
+    private boolean tryAdvisoryLock(PooledConnection conn, long key) throws SQLException {
+        PreparedStatement lockStmt = conn.prepare(TRY_ADVISORY_LOCK_SQL);
+        lockStmt.setLong(1, key);
+        try (ResultSet result = lockStmt.executeQuery()) {
+            return result.next() && result.getBoolean(1);
+        }
+    }
+
+    /**
+     * Reads the type and brand of all instruments into the search index. Always reads the primary, a replica could
+     * be behind the changes the index has been notified of.
+     */
+    private void loadSearchIndex() throws SoundgoodDBException {
+        synchronized (searchIndexLoadLock) {
+            if (searchIndex.isLoaded() && searchIndex.isLive()) {
+                return;
+            }
+            PooledConnection conn = null;
+            long generation = searchIndex.beginLoad();
+            List<String[]> rows = new ArrayList<>();
+            try {
+                conn = borrow();
+                conn.setReadOnly(true);
+                PreparedStatement findAllStmt = conn.prepare(FIND_ALL_INSTRUMENTS_SQL);
+                findAllStmt.setFetchSize(SEARCH_INDEX_FETCH_SIZE);
+                long statementStartNanos = System.nanoTime();
+                try (ResultSet result = findAllStmt.executeQuery()) {
+                    while (result.next()) {
+                        rows.add(new String[] { result.getString(INSTRUMENT_ID_COLUMN_NAME),
+                                result.getString(INSTRUMENT_TYPE_COLUMN_NAME),
+                                result.getString(INSTRUMENT_BRAND_COLUMN_NAME) });
+                    }
+                }
+                metrics.recordStatement(DAOMetrics.Operation.SEARCH_INSTRUMENTS, statementStartNanos);
+                commit(conn);
+                searchIndex.finishLoad(rows, generation);
+            } catch (SQLException sqle) {
+                searchIndex.abortLoad();
+                handleException(conn, "Could not load the instruments to search.", sqle);
+            } finally {
+                pool.release(conn);
+            }
+        }
+    }
+
+    /**
+     * Lists instruments with their current price in one query, joining <code>rental_price_history</code>.
+     */
+    private List<Instrument> findInstrumentsByTypeWithPrices(PooledConnection conn, String instrumentType)
+            throws SQLException {
+        List<Instrument> instruments = new ArrayList<>();
+        PreparedStatement findInstrumentsByTypeStmt = conn.prepare(FIND_INSTRUMENTS_BY_TYPE_SQL);
+        findInstrumentsByTypeStmt.setString(1, instrumentType);
+        long statementStartNanos = System.nanoTime();
+        try (ResultSet result = findInstrumentsByTypeStmt.executeQuery()) {
+            while (result.next()) {
+                instruments.add(identityMap.get(
+                        result.getString(INSTRUMENT_ID_COLUMN_NAME),
+                        result.getString(INSTRUMENT_TYPE_COLUMN_NAME),
+                        result.getString(INSTRUMENT_BRAND_COLUMN_NAME),
+                        result.getInt(AVAILABLE_STOCK_COLUMN_NAME),
+                        result.getDouble(PRICE_COLUMN_NAME)));
+            }
+        }
+        metrics.recordStatement(DAOMetrics.Operation.LIST_INSTRUMENTS, statementStartNanos);
+        return instruments;
+    }
+
+    private interface ReplicaRead<T> {
+        T read(PooledConnection conn) throws SQLException;
+    }
+
+    /**
+     * Runs a read-only transaction on a replica chosen by the replica router. Replicas are not used to fill the price
+     * cache, since a price read from a replica could be older than the last change the cache was told about.
+     * 
+     * @param afterLsn a WAL position the replica must have replayed, -1 if there is none besides the writes made
+     *                 through this DAO.
+     * @return the result of the read, or <code>null</code> if there is no replica to read from, or if the replica
+     *         failed, in both cases the read must be made on the primary.
+     */
+    private <T> T readFromReplica(long afterLsn, ReplicaRead<T> read) {
+        ReplicaRouter.Replica replica = replicaRouter.choose(afterLsn);
+        if (replica == null) {
+            return null;
+        }
+        PooledConnection conn = null;
+        try {
+            long startNanos = System.nanoTime();
+            conn = replica.getPool().borrow();
+            metrics.recordConnectionWait(startNanos);
+            conn.setReadOnly(true);
+            T result = read.read(conn);
+            commit(conn);
+            return result;
+        } catch (SQLTimeoutException busy) {
+            return null;
+        } catch (SQLException sqle) {
+            replicaRouter.markFailed(replica);
+            return null;
+        } finally {
+            replica.getPool().release(conn);
+        }
+    }
+
+    /**
+     * Lists instruments without joining <code>rental_price_history</code>, the prices are taken from the price cache.
+     * Prices that are not cached are read with one extra query. Like the join, instruments without a current price
+     * are not listed.
+     */
+    private List<Instrument> findInstrumentsByTypeWithCachedPrices(PooledConnection conn, String instrumentType)
+            throws SQLException {
+        long cacheGeneration = priceCache.getGeneration();
+        List<String> instrumentIDs = new ArrayList<>();
+        List<String> instrumentTypes = new ArrayList<>();
+        List<String> instrumentBrands = new ArrayList<>();
+        int[] availableStocks = new int[16];
+
+        PreparedStatement findInstrumentsStmt = conn.prepare(FIND_INSTRUMENTS_BY_TYPE_WITHOUT_PRICE_SQL);
+        findInstrumentsStmt.setString(1, instrumentType);
+        try (ResultSet result = findInstrumentsStmt.executeQuery()) {
+            while (result.next()) {
+                instrumentIDs.add(result.getString(INSTRUMENT_ID_COLUMN_NAME));
+                instrumentTypes.add(result.getString(INSTRUMENT_TYPE_COLUMN_NAME));
+                instrumentBrands.add(result.getString(INSTRUMENT_BRAND_COLUMN_NAME));
+                if (instrumentIDs.size() > availableStocks.length) {
+                    availableStocks = Arrays.copyOf(availableStocks, availableStocks.length * 2);
+                }
+                availableStocks[instrumentIDs.size() - 1] = result.getInt(AVAILABLE_STOCK_COLUMN_NAME);
+            }
+        }
+
+        Map<String, PriceCache.CurrentPrice> prices = new HashMap<>();
+        List<String> uncachedIDs = new ArrayList<>();
+        for (String instrumentID : instrumentIDs) {
+            PriceCache.CurrentPrice price = priceCache.get(instrumentID);
+            if (price == null) {
+                uncachedIDs.add(instrumentID);
+            } else {
+                prices.put(instrumentID, price);
+            }
+        }
+        if (!uncachedIDs.isEmpty()) {
+            prices.putAll(findCurrentPrices(conn, uncachedIDs, cacheGeneration));
+        }
+
+        List<Instrument> instruments = new ArrayList<>(instrumentIDs.size());
+        for (int i = 0; i < instrumentIDs.size(); i++) {
+            PriceCache.CurrentPrice price = prices.get(instrumentIDs.get(i));
+            if (price != null) {
+                instruments.add(identityMap.get(instrumentIDs.get(i), instrumentTypes.get(i),
+                        instrumentBrands.get(i), availableStocks[i], price.getPrice()));
+            }
+        }
+        return instruments;
+    }
+
+    /**
+     * Reads the current prices of the specified instruments and caches them.
+     */
+    private Map<String, PriceCache.CurrentPrice> findCurrentPrices(PooledConnection conn,
+            Collection<String> instrumentIDs, long cacheGeneration) throws SQLException {
+        Map<String, PriceCache.CurrentPrice> prices = new HashMap<>();
+        PreparedStatement findPricesStmt = conn.prepare(FIND_CURRENT_PRICES_SQL);
+        findPricesStmt.setArray(1, conn.getConnection().createArrayOf("varchar", instrumentIDs.toArray()));
+        try (ResultSet result = findPricesStmt.executeQuery()) {
+            while (result.next()) {
+                String instrumentID = result.getString(INSTRUMENT_ID_COLUMN_NAME);
+                PriceCache.CurrentPrice price = new PriceCache.CurrentPrice(
+                        result.getString(RENTAL_PRICE_ID_COLUMN_NAME), result.getDouble(PRICE_COLUMN_NAME));
+                prices.put(instrumentID, price);
+                priceCache.put(instrumentID, price, cacheGeneration);
+            }
+        }
+        return prices;
+    }
+
+    /**
+     * @return the ID of the current price of the specified instrument if it is cached, otherwise <code>null</code>,
+     *         which makes <code>rent_instrument</code> look it up.
+     */
+    private String findCachedPriceID(String instrumentID) {
+        if (priceCache.isLive()) {
+            PriceCache.CurrentPrice cached = priceCache.get(instrumentID);
+            if (cached != null) {
+                return cached.getPriceID();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Inserts one chunk of rentals as a batch. If the batch fails the chunk is inserted again row by row, each row
+     * inside its own savepoint, so that only the failing rows are skipped. The students and instruments of the chunk
+     * are locked first, see <code>lockChunk</code>.
+     */
+    private void createRentalChunk(PooledConnection conn, List<RentalRequest> chunk, int firstRow,
+            String[] rentalIDs, List<BulkResult> results) throws SQLException {
+        Timestamp leaseStartDate = new Timestamp(System.currentTimeMillis());
+        Timestamp leaseEndDate = new Timestamp(leaseStartDate.getTime() + leaseDurationMillis);
+        PreparedStatement createRentalStmt = conn.prepare(CREATE_RENTAL_IF_IN_STOCK_SQL);
+
+        try {
+            lockChunk(conn, chunk);
+            for (int i = 0; i < chunk.size(); i++) {
+                setCreateRentalParams(createRentalStmt, rentalIDs[i], leaseStartDate, leaseEndDate, chunk.get(i));
+                createRentalStmt.addBatch();
+            }
+            long statementStartNanos = System.nanoTime();
+            int[] updatedRows = createRentalStmt.executeBatch();
+            metrics.recordStatement(DAOMetrics.Operation.CREATE_RENTALS, statementStartNanos);
+            commit(conn);
+            for (int i = 0; i < chunk.size(); i++) {
+                results.add(rentalResult(firstRow + i, rentalIDs[i], updatedRows[i]));
+            }
+        } catch (BatchUpdateException batchFailure) {
+            createRentalStmt.clearBatch();
+            conn.rollback();
+            lockChunk(conn, chunk);
+            for (int i = 0; i < chunk.size(); i++) {
+                Savepoint savepoint = conn.getConnection().setSavepoint();
+                try {
+                    setCreateRentalParams(createRentalStmt, rentalIDs[i], leaseStartDate, leaseEndDate, chunk.get(i));
+                    results.add(rentalResult(firstRow + i, rentalIDs[i], createRentalStmt.executeUpdate()));
+                    conn.getConnection().releaseSavepoint(savepoint);
+                } catch (SQLException rowFailure) {
+                    conn.getConnection().rollback(savepoint);
+                    results.add(new BulkResult(firstRow + i, null, rowFailure.getMessage()));
+                }
+            }
+            commit(conn);
+        }
+    }
+
+    /**
+     * Locks the students of a chunk, and then its instruments, each in ID order, the same order as
+     * <code>rent_instrument</code> and <code>rent_basket</code> lock them. The rental limit trigger counts the active
+     * rentals of a student after locking the student row, but a batch reaches the rows in file order, so two imports,
+     * or an import and a basket, could otherwise lock the same rows in opposite orders and deadlock. Locking them all
+     * up front also means no other rental of these students is counted halfway through the chunk.
+     */
+    private void lockChunk(PooledConnection conn, List<RentalRequest> chunk) throws SQLException {
+        Set<Integer> studentIDs = new HashSet<>();
+        Set<String> instrumentIDs = new HashSet<>();
+        for (RentalRequest rental : chunk) {
+            studentIDs.add(rental.getStudentID());
+            instrumentIDs.add(rental.getInstrumentID());
+        }
+        PreparedStatement lockStudentsStmt = conn.prepare(LOCK_STUDENTS_SQL);
+        lockStudentsStmt.setArray(1, conn.getConnection().createArrayOf("integer", studentIDs.toArray()));
+        lockStudentsStmt.executeQuery().close();
+        PreparedStatement lockInstrumentsStmt = conn.prepare(LOCK_INSTRUMENTS_SQL);
+        lockInstrumentsStmt.setArray(1, conn.getConnection().createArrayOf("varchar", instrumentIDs.toArray()));
+        lockInstrumentsStmt.executeQuery().close();
+    }
+
+    private void setCreateRentalParams(PreparedStatement createRentalStmt, String rentalID, Timestamp leaseStartDate,
+            Timestamp leaseEndDate, RentalRequest rental) throws SQLException {
+        createRentalStmt.setString(1, rentalID);
+        createRentalStmt.setTimestamp(2, leaseStartDate);
+        createRentalStmt.setTimestamp(3, leaseEndDate);
+        createRentalStmt.setString(4, rental.getPriceID());
+        createRentalStmt.setString(5, rental.getInstrumentID());
+        createRentalStmt.setInt(6, rental.getStudentID());
+        createRentalStmt.setString(7, rental.getInstrumentID());
+    }
+
+    private BulkResult rentalResult(int row, String rentalID, int updatedRows) {
+        if (updatedRows == 1) {
+            return new BulkResult(row, rentalID, null);
+        }
+        return new BulkResult(row, null, OUT_OF_STOCK_MSG);
+    }
+
+    /**
+     * Terminates one chunk of rentals as a batch, falling back to one savepoint per row if the batch fails.
+     */
+    private void deleteRentalChunk(PooledConnection conn, List<String> chunk, int firstRow, List<BulkResult> results)
+            throws SQLException {
+        PreparedStatement updateRentalToExpiryStmt = conn.prepare(UPDATE_RENTAL_TO_EXPIRY_SQL);
+
+        try {
+            for (String rentalID : chunk) {
+                updateRentalToExpiryStmt.setString(1, rentalID);
+                updateRentalToExpiryStmt.addBatch();
+            }
+            long statementStartNanos = System.nanoTime();
+            int[] updatedRows = updateRentalToExpiryStmt.executeBatch();
+            metrics.recordStatement(DAOMetrics.Operation.DELETE_RENTALS, statementStartNanos);
+            commit(conn);
+            for (int i = 0; i < chunk.size(); i++) {
+                results.add(terminationResult(firstRow + i, chunk.get(i), updatedRows[i]));
+            }
+        } catch (BatchUpdateException batchFailure) {
+            updateRentalToExpiryStmt.clearBatch();
+            conn.rollback();
+            for (int i = 0; i < chunk.size(); i++) {
+                Savepoint savepoint = conn.getConnection().setSavepoint();
+                try {
+                    updateRentalToExpiryStmt.setString(1, chunk.get(i));
+                    results.add(terminationResult(firstRow + i, chunk.get(i),
+                            updateRentalToExpiryStmt.executeUpdate()));
+                    conn.getConnection().releaseSavepoint(savepoint);
+                } catch (SQLException rowFailure) {
+                    conn.getConnection().rollback(savepoint);
+                    results.add(new BulkResult(firstRow + i, chunk.get(i), rowFailure.getMessage()));
+                }
+            }
+            commit(conn);
+        }
+    }
+
+    private BulkResult terminationResult(int row, String rentalID, int updatedRows) {
+        if (updatedRows == 1) {
+            return new BulkResult(row, rentalID, null);
+        }
+        return new BulkResult(row, rentalID, NO_SUCH_RENTAL_MSG);
+    }
+
+    /**
+     * Checks a rental against the cached rules and rental counts, without asking the database.
+     * 
+     * @return the reason the rental would be rejected, or <code>null</code> if it has to be tried.
+     */
+    private RentalStatus checkCachedRules(RentalRules.Rules rules, int studentID, Timestamp leaseStartDate,
+            Timestamp leaseEndDate) {
+        if (rules == null) {
+            return null;
+        }
+        if (rules.exceedsMaxDuration(Duration.ofMillis(leaseEndDate.getTime() - leaseStartDate.getTime()))) {
+            return RentalStatus.DURATION_EXCEEDED;
+        }
+        if (studentRentalCounts.isAtLimit(studentID, rules.getMaxActiveRentalsPerStudent(),
+                leaseStartDate.getTime())) {
+            return RentalStatus.LIMIT_REACHED;
+        }
+        return null;
+    }
+
+    /**
+     * Counts the active rentals of the students of a committed group that reached the limit. The counts are read
+     * after the commit, so that they hold the rentals of the group only if those were committed. A failure only means
+     * that the counts are not cached, the read transaction is rolled back when the connection is released.
+     */
+    private void cacheActiveRentalsAfterGroup(PooledConnection conn, Set<Integer> studentIDs, long countsGeneration) {
+        try {
+            for (int studentID : studentIDs) {
+                cacheActiveRentals(conn, studentID, countsGeneration);
+            }
+        } catch (SQLException notCached) {
+            // The next rejection of the student caches the count.
+        }
+    }
+
+    /**
+     * Counts the active rentals of a student that reached the limit, so that the next rentals of the student are
+     * rejected without asking the database.
+     */
+    private void cacheActiveRentals(PooledConnection conn, int studentID, long countsGeneration)
+            throws SQLException {
+        if (!studentRentalCounts.isLive()) {
+            return;
+        }
+        PreparedStatement countStmt = conn.prepare(COUNT_ACTIVE_RENTALS_SQL);
+        countStmt.setInt(1, studentID);
+        try (ResultSet result = countStmt.executeQuery()) {
+            if (result.next() && result.getTimestamp(2) != null) {
+                studentRentalCounts.put(studentID, result.getInt(1), result.getTimestamp(2).getTime(),
+                        countsGeneration);
+            }
+        }
+    }
+
+    /**
+     * Takes the instrument of a rental from a stock reservation, if reservations are used. A failed claim is rolled
+     * back, and the rental takes its instrument from stock instead.
+     * 
+     * @return the reservation, or <code>null</code> if the rental has to take its instrument from stock.
+     */
+    private StockReservations.Reservation reserve(PooledConnection conn, String instrumentID) throws SQLException {
+        if (!stockReservations.isEnabled()) {
+            return null;
+        }
+        try {
+            return stockReservations.reserve(instrumentID, conn);
+        } catch (SQLException failedClaim) {
+            conn.rollback();
+            return null;
+        }
+    }
+
+    /**
+     * Runs one attempt of a rental, without committing it.
+     * 
+     * @return the outcome, or <code>null</code> if the reservation has expired.
+     */
+    private RentalStatus rentInstrument(PooledConnection conn, String rentalID, Timestamp leaseStartDate,
+            Timestamp leaseEndDate, String priceID, InstrumentDTO instrument, StudentDTO student,
+            StockReservations.Reservation reservation) throws SQLException {
+        PreparedStatement rentInstrumentStmt = conn.prepare(RENT_INSTRUMENT_SQL);
+        rentInstrumentStmt.setString(1, rentalID);
+        rentInstrumentStmt.setTimestamp(2, leaseStartDate);
+        rentInstrumentStmt.setTimestamp(3, leaseEndDate);
+        rentInstrumentStmt.setString(4, priceID);
+        rentInstrumentStmt.setString(5, instrument.getInstrumentID());
+        rentInstrumentStmt.setInt(6, student.getStudentID());
+        if (reservation != null) {
+            rentInstrumentStmt.setLong(7, reservation.getReservationID());
+        } else {
+            rentInstrumentStmt.setNull(7, Types.BIGINT);
+        }
+
+        long statementStartNanos = System.nanoTime();
+        try (ResultSet result = rentInstrumentStmt.executeQuery()) {
+            if (!result.next()) {
+                throw new SQLException("rent_instrument returned no result.");
+            }
+            String status = result.getString(1);
+            return RESERVATION_EXPIRED.equals(status) ? null : RentalStatus.valueOf(status);
+        } finally {
+            metrics.recordStatement(DAOMetrics.Operation.CREATE_RENTAL, statementStartNanos);
+        }
+    }
+
+    /**
+     * A transaction that failed with a serialization failure or a deadlock succeeds if it is run again, the same goes
+     * for a rental that collided with an ID inserted by someone not using the rental ID sequence.
+     */
+    private static boolean isRetryable(SQLException failure) {
+        String sqlState = failure.getSQLState();
+        if (SERIALIZATION_FAILURE.equals(sqlState) || DEADLOCK_DETECTED.equals(sqlState)) {
+            return true;
+        }
+        if (UNIQUE_VIOLATION.equals(sqlState) && failure instanceof PSQLException) {
+            ServerErrorMessage serverError = ((PSQLException) failure).getServerErrorMessage();
+            return serverError != null && (RENTAL_PRIMARY_KEY.equals(serverError.getConstraint())
+                    || RENTAL_ID_KEY.equals(serverError.getConstraint()));
+        }
+        return false;
+    }
+
+    /**
+     * Sleeps a random time, up to twice as long after each failed attempt, so that the transactions that collided do
+     * not collide again.
+     */
+    private void backOff(int attempt) throws SQLException {
+        long maxDelayMillis = Math.min(MAX_RETRY_DELAY_MILLIS, BASE_RETRY_DELAY_MILLIS << Math.min(attempt, 16));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelayMillis + 1));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting to retry.", ie);
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool, recording how long it took. The connection runs at read committed, unless
+     * the caller changes it.
+     */
+    private PooledConnection borrow() throws SQLException {
+        if (incompatibleSchema != null) {
+            throw new SQLException(incompatibleSchema);
+        }
+        long startNanos = System.nanoTime();
+        PooledConnection conn = pool.borrow();
+        metrics.recordConnectionWait(startNanos);
+        try {
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        } catch (SQLException sqle) {
+            pool.release(conn);
+            throw sqle;
+        }
+        return conn;
+    }
+
+    /**
+     * Commits the transaction in progress on the specified connection, recording how long it took. After a write the
+     * replica router is told how far the primary has come, so that the caller's next reads see the write.
+     */
+    private void commit(PooledConnection conn) throws SQLException {
+        long startNanos = System.nanoTime();
+        conn.commit();
+        metrics.recordCommit(startNanos);
+        if (!conn.isReadOnly()) {
+            replicaRouter.recordWrite(conn);
+        }
+    }
+
+    /**
+     * Handles exceptions and rolls back transactions.
+     */
+    private void handleException(PooledConnection conn, String failureMsg, Exception cause)
+            throws SoundgoodDBException {
+        if (conn != null) {
+            try {
+                conn.rollback();
+            } catch (SQLException rollbackExc) {
+                failureMsg += " Also failed to rollback transaction: " + rollbackExc.getMessage();
+            }
+        }
+        throw new SoundgoodDBException(failureMsg, cause);
+    }
+
+    /**
+     * Creates a connection pool to one of the configured databases.
+     */
+    private static ConnectionPool createPool(DataSourceConfig config, String url, int minSize, boolean openLazily)
+            throws SoundgoodDBException {
+        try {
+            return new ConnectionPool(url, config.getUser(), config.getPassword(), minSize, config.getPoolMaxSize(),
+                    config.getAcquireTimeoutMillis(), openLazily);
+        } catch (SQLException exception) {
+            throw new SoundgoodDBException("could not connect to datasource.", exception);
+        }
+    }
+
+    /**
+     * Creates the pools of the read replicas. No connection is opened until a replica is used, so that a replica that
+     * is down does not keep the application from starting.
+     */
+    private static List<ConnectionPool> createReplicaPools(DataSourceConfig config) throws SoundgoodDBException {
+        List<ConnectionPool> replicaPools = new ArrayList<>();
+        for (String url : config.getReplicaUrls()) {
+            replicaPools.add(createPool(config, url, 0, true));
+        }
+        return replicaPools;
     }
 }
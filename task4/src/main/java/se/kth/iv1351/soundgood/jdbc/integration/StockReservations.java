@@ -0,0 +1,225 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out instruments to rentals from stock reservations, so that a rental does not have to update the row of its
+ * instrument. A reservation of up to <code>blockSize</code> instruments is claimed from the database with one update,
+ * and its instruments are then counted down in memory, without any lock. Claims for the same instrument are
+ * serialized by one of a fixed number of lock stripes, claims for other instruments are not held up.
+ * <p>
+ * A reservation is used until it runs out or is close to expiring, then it is settled: the instruments no rental was
+ * made from are given back to stock. The database knows every reservation and when it expires, so reservations left
+ * behind by a process that crashed are settled by the next process that starts its maintenance jobs, see
+ * <code>BackgroundJobs</code>, or by any process using reservations once they have expired. Stock in the database
+ * therefore always converges to the stock in memory.
+ */
+class StockReservations implements AutoCloseable {
+    private static final int STRIPES = 64;
+
+    private final SoundgoodDAO dao;
+    private final int blockSize;
+    private final long ttlMillis;
+    private final Map<String, Reservation> reservations = new ConcurrentHashMap<>();
+    private final Object[] stripes = new Object[STRIPES];
+    private final Queue<Long> unsettled = new ConcurrentLinkedQueue<>();
+    private ScheduledExecutorService settler;
+
+    /**
+     * Instruments claimed from the stock of one instrument.
+     */
+    static class Reservation {
+        private final long reservationID;
+        private final AtomicInteger remaining;
+        private final long usableUntilMillis;
+
+        /**
+         * @param reservationID The ID of the reservation in the database.
+         * @param units         The number of instruments that were claimed.
+         * @param ttlMillis     The time until the reservation expires in the database.
+         */
+        Reservation(long reservationID, int units, long ttlMillis) {
+            this.reservationID = reservationID;
+            this.remaining = new AtomicInteger(units);
+            // Not used during the last quarter of its time, so that a rental can not outlive it.
+            this.usableUntilMillis = System.currentTimeMillis() + ttlMillis * 3 / 4;
+        }
+
+        long getReservationID() {
+            return reservationID;
+        }
+
+        private boolean take() {
+            if (System.currentTimeMillis() > usableUntilMillis) {
+                return false;
+            }
+            for (int left = remaining.get(); left > 0; left = remaining.get()) {
+                if (remaining.compareAndSet(left, left - 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param dao       The DAO claiming and settling the reservations.
+     * @param blockSize The maximum number of instruments claimed at a time, 0 means that reservations are not used.
+     * @param ttlMillis The time after which a reservation expires.
+     */
+    StockReservations(SoundgoodDAO dao, int blockSize, long ttlMillis) {
+        this.dao = dao;
+        this.blockSize = blockSize;
+        this.ttlMillis = ttlMillis;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if rentals take their instruments from reservations.
+     */
+    boolean isEnabled() {
+        return blockSize > 0;
+    }
+
+    /**
+     * Starts settling reservations in a background thread. The reservations that expired while no process was
+     * running are settled right away, also if this instance does not use reservations. Started by the first claim if
+     * it was not started before.
+     */
+    synchronized void start() {
+        if (settler != null) {
+            return;
+        }
+        settler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "soundgood-stock-settler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (isEnabled()) {
+            long intervalMillis = Math.max(1, ttlMillis / 4);
+            settler.scheduleWithFixedDelay(this::settle, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            settler.execute(this::settle);
+            settler.shutdown();
+        }
+    }
+
+    /**
+     * Takes one instrument for a rental, claiming a new reservation if there is no usable one.
+     *
+     * @param instrumentID The instrument to rent.
+     * @param conn         The connection a new reservation is claimed on, the claim is committed on its own.
+     * @return The reservation the instrument was taken from, or <code>null</code> if the instrument is out of stock or
+     *         does not exist.
+     * @throws SQLException If a new reservation could not be claimed.
+     */
+    Reservation reserve(String instrumentID, PooledConnection conn) throws SQLException {
+        Reservation current = reservations.get(instrumentID);
+        if (current != null && current.take()) {
+            return current;
+        }
+        synchronized (stripes[Math.floorMod(instrumentID.hashCode(), STRIPES)]) {
+            current = reservations.get(instrumentID);
+            if (current != null && current.take()) {
+                return current;
+            }
+            // The reservations of this process must be settled, also if no background jobs are running.
+            start();
+            Reservation claimed = dao.claimStock(conn, instrumentID, blockSize, ttlMillis);
+            if (claimed == null) {
+                // The current reservation is kept, instruments that are given back to it can still be rented.
+                return null;
+            }
+            if (current != null) {
+                retire(instrumentID, current);
+            }
+            claimed.take();
+            reservations.put(instrumentID, claimed);
+            return claimed;
+        }
+    }
+
+    /**
+     * Gives back an instrument that was taken with <code>reserve</code>, but not rented.
+     *
+     * @param reservation The reservation the instrument was taken from.
+     */
+    void giveBack(Reservation reservation) {
+        reservation.remaining.incrementAndGet();
+    }
+
+    /**
+     * Stops using a reservation the database found to be expired. It is settled by the next run of the settler.
+     *
+     * @param instrumentID The instrument of the reservation.
+     * @param reservation  The expired reservation.
+     */
+    void expired(String instrumentID, Reservation reservation) {
+        retire(instrumentID, reservation);
+    }
+
+    /**
+     * Settles the reservations that are no longer used, and the expired reservations of all processes.
+     *
+     * @return The number of reservations that were settled.
+     */
+    int settle() {
+        long nowMillis = System.currentTimeMillis();
+        for (Map.Entry<String, Reservation> entry : reservations.entrySet()) {
+            if (nowMillis > entry.getValue().usableUntilMillis) {
+                retire(entry.getKey(), entry.getValue());
+            }
+        }
+        List<Long> reservationIDs = new ArrayList<>();
+        for (Long reservationID = unsettled.poll(); reservationID != null; reservationID = unsettled.poll()) {
+            reservationIDs.add(reservationID);
+        }
+        try {
+            return dao.settleStockReservations(reservationIDs);
+        } catch (SoundgoodDBException failedSettlement) {
+            // Counted as an error in the DAO metrics, the reservations expire and are settled by a later run.
+            return 0;
+        }
+    }
+
+    /**
+     * Stops the background thread and settles all reservations of this process, so that their instruments are back in
+     * stock right away.
+     */
+    @Override
+    public synchronized void close() {
+        if (settler != null) {
+            settler.shutdownNow();
+            try {
+                settler.awaitTermination(ttlMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            settler = null;
+        }
+        for (Map.Entry<String, Reservation> entry : reservations.entrySet()) {
+            retire(entry.getKey(), entry.getValue());
+        }
+        if (!unsettled.isEmpty()) {
+            settle();
+        }
+    }
+
+    private void retire(String instrumentID, Reservation reservation) {
+        if (reservations.remove(instrumentID, reservation)) {
+            unsettled.add(reservation.reservationID);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the students that had reached the rental limit, so that their next rentals are rejected without asking
+ * the database. A cached count may only be too low, never too high, since that would reject rentals the database
+ * allows. Counts only rise when rentals are created, and when a rental ends early or is removed the database
+ * notifies, which drops the count. A lease that runs out drops the count too, the expiry time of the first lease to
+ * run out is cached along with it.
+ */
+class StudentRentalCounts implements DBNotificationListener.Subscriber {
+    static final String CHANGE_CHANNEL = "student_rentals_released";
+
+    private static class ActiveRentals {
+        private final int count;
+        private final long firstExpiryMillis;
+
+        private ActiveRentals(int count, long firstExpiryMillis) {
+            this.count = count;
+            this.firstExpiryMillis = firstExpiryMillis;
+        }
+    }
+
+    private final DBNotificationListener listener;
+    private final Map<Integer, ActiveRentals> students;
+    private long generation = 0;
+
+    /**
+     * @param listener The listener that delivers ended rentals, it must not yet be started.
+     * @param maxSize  The maximum number of cached students.
+     */
+    StudentRentalCounts(DBNotificationListener listener, int maxSize) {
+        this.listener = listener;
+        this.students = new LinkedHashMap<Integer, ActiveRentals>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ActiveRentals> eldest) {
+                return size() > maxSize;
+            }
+        };
+        listener.subscribe(CHANGE_CHANNEL, this);
+    }
+
+    /**
+     * @return <code>true</code> if ended rentals are received, so that cached counts can be trusted.
+     */
+    boolean isLive() {
+        return listener.isListening();
+    }
+
+    /**
+     * @param studentID          The student about to rent.
+     * @param maxActiveRentals   The rental limit.
+     * @param currentTimeMillis  The time of the rental.
+     * @return <code>true</code> if the student is known to have reached the limit.
+     */
+    synchronized boolean isAtLimit(int studentID, int maxActiveRentals, long currentTimeMillis) {
+        if (!isLive()) {
+            return false;
+        }
+        ActiveRentals active = students.get(studentID);
+        if (active == null) {
+            return false;
+        }
+        if (currentTimeMillis >= active.firstExpiryMillis) {
+            students.remove(studentID);
+            return false;
+        }
+        return active.count >= maxActiveRentals;
+    }
+
+    /**
+     * Returns a token that must be passed to <code>put</code>. Get it before counting rentals in the database, then
+     * counts that drop while they are read are not cached.
+     *
+     * @return The number of invalidations so far.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches a count read from the database, unless any count was dropped since <code>generation</code>.
+     *
+     * @param studentID         The student whose rentals were counted.
+     * @param count             The number of active rentals.
+     * @param firstExpiryMillis When the first of the active rentals runs out.
+     * @param generation        The value of <code>getGeneration</code> before the rentals were counted.
+     */
+    synchronized void put(int studentID, int count, long firstExpiryMillis, long generation) {
+        if (this.generation == generation) {
+            students.put(studentID, new ActiveRentals(count, firstExpiryMillis));
+        }
+    }
+
+    @Override
+    public synchronized void notified(String studentID) {
+        generation++;
+        try {
+            students.remove(Integer.valueOf(studentID));
+        } catch (NumberFormatException unknownStudent) {
+            students.clear();
+        }
+    }
+
+    @Override
+    public synchronized void resynchronize() {
+        generation++;
+        students.clear();
+    }
+}
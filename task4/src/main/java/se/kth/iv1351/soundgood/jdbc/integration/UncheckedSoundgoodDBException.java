@@ -0,0 +1,25 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+/**
+ * Wraps a <code>SoundgoodDBException</code> thrown where checked exceptions are not allowed, for example while
+ * iterating over a stream of instruments that is read page by page.
+ */
+public class UncheckedSoundgoodDBException extends RuntimeException {
+
+    /**
+     * Create a new instance wrapping the specified exception.
+     *
+     * @param cause The database failure.
+     */
+    public UncheckedSoundgoodDBException(SoundgoodDBException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    /**
+     * @return The database failure wrapped by this exception.
+     */
+    @Override
+    public synchronized SoundgoodDBException getCause() {
+        return (SoundgoodDBException) super.getCause();
+    }
+}
@@ -0,0 +1,68 @@
+package se.kth.iv1351.soundgood.jdbc.model;
+
+/**
+ * The outcome of one row in a bulk rental or bulk termination.
+ */
+public class BulkResult {
+    private final int row;
+    private final String rentalID;
+    private final String failureMessage;
+
+    /**
+     * @param row            the position of the row in the input, the first row is zero.
+     * @param rentalID       the created or terminated rental, <code>null</code> if no rental was created.
+     * @param failureMessage why the row failed, <code>null</code> if it succeeded.
+     */
+    public BulkResult(int row, String rentalID, String failureMessage) {
+        this.row = row;
+        this.rentalID = rentalID;
+        this.failureMessage = failureMessage;
+    }
+
+    /**
+     * @return the position of the row in the input, the first row is zero.
+     */
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * @return the created or terminated rental, <code>null</code> if no rental was created.
+     */
+    public String getRentalID() {
+        return rentalID;
+    }
+
+    /**
+     * @return <code>true</code> if the row was committed.
+     */
+    public boolean isSuccessful() {
+        return failureMessage == null;
+    }
+
+    /**
+     * @return why the row failed, <code>null</code> if it succeeded.
+     */
+    public String getFailureMessage() {
+        return failureMessage;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringRepresentation = new StringBuilder();
+        stringRepresentation.append("Row ");
+        stringRepresentation.append(row);
+        stringRepresentation.append(": [");
+        stringRepresentation.append(isSuccessful() ? "OK" : "FAILED");
+        if (rentalID != null) {
+            stringRepresentation.append(", Rental ID: ");
+            stringRepresentation.append(rentalID);
+        }
+        if (failureMessage != null) {
+            stringRepresentation.append(", Reason: ");
+            stringRepresentation.append(failureMessage);
+        }
+        stringRepresentation.append("]");
+        return stringRepresentation.toString();
+    }
+}
@@ -1,22 +1,31 @@
 package se.kth.iv1351.soundgood.jdbc.model;
 
 /**
- * Generates a unique ID.
- * 
- * @returns a rental id.
+ * Converts between rental numbers, which are taken from the <code>rental_id_seq</code> sequence, and rental IDs.
  */
 public class IDGenerator {
-    public static String generateId(String maxRentalId) {
-        String newRentalId;
-        if (maxRentalId != null && maxRentalId != "") {
-            String numericPart = maxRentalId.substring(1);
-            int rentalNumber = Integer.parseInt(numericPart);
-            rentalNumber++;
+    private static final String RENTAL_ID_PREFIX = "R";
 
-            newRentalId = String.format("R%03d", rentalNumber);
-        } else {
-            newRentalId = "R001";
+    /**
+     * Formats a rental number as a rental ID. Numbers below 1000 are padded to
+     * three digits, so 7 becomes R007 while 1234 becomes R1234.
+     *
+     * @param rentalNumber the number of the rental.
+     * @return the rental ID.
+     * @throws IllegalArgumentException If <code>rentalNumber</code> is negative.
+     */
+    public static String formatId(long rentalNumber) {
+        if (rentalNumber < 0) {
+            throw new IllegalArgumentException("A rental number must not be negative, was " + rentalNumber);
         }
-        return newRentalId;
+        return String.format(RENTAL_ID_PREFIX + "%03d", rentalNumber);
+    }
+
+    /**
+     * @param rentalId a rental ID such as R007.
+     * @return the number of the rental.
+     */
+    public static long parseId(String rentalId) {
+        return Long.parseLong(rentalId.substring(RENTAL_ID_PREFIX.length()));
     }
 }
@@ -24,45 +24,34 @@
 package se.kth.iv1351.soundgood.jdbc.model;
 
 /**
- * Object representing a instrument.
+ * Object representing a instrument. Instances are immutable, and a DAO hands out the same instance for an instrument
+ * as long as none of its fields has changed.
  */
-public class Instrument implements InstrumentDTO {
-    private String instrId;
-    private String instrType;
-    private String instrBrand;
-    private int instrInStock;
-    private double price;
+public record Instrument(String instrumentID, String instrumentType, String instrumentBrand, int instrumentsInStock,
+        double price) implements InstrumentDTO {
 
-    public Instrument(String instrId, String instrType, String instrBrand, int instrInStock, double price) {
-        this.instrId = instrId;
-        this.instrType = instrType;
-        this.instrBrand = instrBrand;
-        this.instrInStock = instrInStock;
-        this.price = price;
-    }
-
-    public Instrument(String instrId) {
-        this(instrId, null, null, 0, 0);
+    public Instrument(String instrumentID) {
+        this(instrumentID, null, null, 0, 0);
     }
 
     @Override
     public String getInstrumentID() {
-        return instrId;
+        return instrumentID;
     }
 
     @Override
     public String getInstrumentType() {
-        return instrType;
+        return instrumentType;
     }
 
     @Override
     public String getInstrumentBrand() {
-        return instrBrand;
+        return instrumentBrand;
     }
 
     @Override
     public int getInstrumentsInStock() {
-        return instrInStock;
+        return instrumentsInStock;
     }
 
     @Override
@@ -72,19 +61,7 @@ public class Instrument implements InstrumentDTO {
 
     @Override
     public String toString() {
-        StringBuilder stringRepresentation = new StringBuilder();
-        stringRepresentation.append("Instrument: [");
-        stringRepresentation.append("ID: ");
-        stringRepresentation.append(instrId);
-        stringRepresentation.append(", Type: ");
-        stringRepresentation.append(instrType);
-        stringRepresentation.append(", Brand: ");
-        stringRepresentation.append(instrBrand);
-        stringRepresentation.append(", Available Stock: ");
-        stringRepresentation.append(instrInStock);
-        stringRepresentation.append(", Price: ");
-        stringRepresentation.append(price);
-        stringRepresentation.append("]");
-        return stringRepresentation.toString();
+        return "Instrument: [ID: " + instrumentID + ", Type: " + instrumentType + ", Brand: " + instrumentBrand
+                + ", Available Stock: " + instrumentsInStock + ", Price: " + price + "]";
     }
 }
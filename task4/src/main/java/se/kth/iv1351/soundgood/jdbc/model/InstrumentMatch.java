@@ -0,0 +1,50 @@
+package se.kth.iv1351.soundgood.jdbc.model;
+
+/**
+ * An instrument found by a search, with how well it matched. A higher score is a better match.
+ */
+public class InstrumentMatch {
+    private final String instrumentID;
+    private final String instrumentType;
+    private final String instrumentBrand;
+    private final int score;
+
+    public InstrumentMatch(String instrumentID, String instrumentType, String instrumentBrand, int score) {
+        this.instrumentID = instrumentID;
+        this.instrumentType = instrumentType;
+        this.instrumentBrand = instrumentBrand;
+        this.score = score;
+    }
+
+    public String getInstrumentID() {
+        return instrumentID;
+    }
+
+    public String getInstrumentType() {
+        return instrumentType;
+    }
+
+    public String getInstrumentBrand() {
+        return instrumentBrand;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringRepresentation = new StringBuilder();
+        stringRepresentation.append("Match: [");
+        stringRepresentation.append("ID: ");
+        stringRepresentation.append(instrumentID);
+        stringRepresentation.append(", Type: ");
+        stringRepresentation.append(instrumentType);
+        stringRepresentation.append(", Brand: ");
+        stringRepresentation.append(instrumentBrand);
+        stringRepresentation.append(", Score: ");
+        stringRepresentation.append(score);
+        stringRepresentation.append("]");
+        return stringRepresentation.toString();
+    }
+}
@@ -0,0 +1,31 @@
+package se.kth.iv1351.soundgood.jdbc.model;
+
+/**
+ * Writes values as JSON text, for the rental server's responses and the rental event log.
+ */
+public class JsonText {
+    private JsonText() {
+    }
+
+    /**
+     * @param value the string to write, may be <code>null</code>.
+     * @return the string as a JSON string literal, with quotes, backslashes and control characters escaped, or
+     *         <code>null</code> if <code>value</code> is <code>null</code>.
+     */
+    public static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,52 @@
+package se.kth.iv1351.soundgood.jdbc.model;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+
+/**
+ * The rental revenue of one calendar month, as of the last time the report was refreshed. A rental is billed its
+ * monthly price for each month its lease overlaps.
+ */
+public class MonthlyRevenue {
+    private final YearMonth month;
+    private final int billedRentals;
+    private final double revenue;
+    private final LocalDateTime refreshedAt;
+
+    public MonthlyRevenue(YearMonth month, int billedRentals, double revenue, LocalDateTime refreshedAt) {
+        this.month = month;
+        this.billedRentals = billedRentals;
+        this.revenue = revenue;
+        this.refreshedAt = refreshedAt;
+    }
+
+    public YearMonth getMonth() {
+        return month;
+    }
+
+    public int getBilledRentals() {
+        return billedRentals;
+    }
+
+    public double getRevenue() {
+        return revenue;
+    }
+
+    public LocalDateTime getRefreshedAt() {
+        return refreshedAt;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringRepresentation = new StringBuilder();
+        stringRepresentation.append("Revenue: [");
+        stringRepresentation.append("Month: ");
+        stringRepresentation.append(month);
+        stringRepresentation.append(", Rentals: ");
+        stringRepresentation.append(billedRentals);
+        stringRepresentation.append(", Revenue: ");
+        stringRepresentation.append(revenue);
+        stringRepresentation.append("]");
+        return stringRepresentation.toString();
+    }
+}
@@ -23,29 +23,30 @@
 
 package se.kth.iv1351.soundgood.jdbc.model;
 
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
 /**
- * A rental representing a lease for an instrument by a student
+ * A rental representing a lease for an instrument by a student. Instances are immutable. The start and expiry are
+ * kept as milliseconds since the epoch, <code>NO_TIME</code> if they are not known.
  */
-public class Rental implements RentalDTO {
-    private String rentalID;
-    private String startDate;
-    private String expiryDate;
-    private String studentID;
-    private String instrumentID;
-    private String priceID;
+public record Rental(String rentalID, long startMillis, long expiryMillis, String priceID, String instrumentID,
+        int studentID) implements RentalDTO {
+    /**
+     * The start or expiry of a rental that was created from its ID only.
+     */
+    public static final long NO_TIME = Long.MIN_VALUE;
+    /**
+     * The student of a rental that was created from its ID only.
+     */
+    public static final int NO_STUDENT = 0;
 
-    public Rental(String rentalID, String startDate, String expiryDate, String priceID, String instrumentID,
-            String studentID) {
-        this.rentalID = rentalID;
-        this.startDate = startDate;
-        this.expiryDate = expiryDate;
-        this.studentID = studentID;
-        this.instrumentID = instrumentID;
-        this.priceID = priceID;
-    }
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     public Rental(String rentalID) {
-        this(rentalID, null, null, null, null, null);
+        this(rentalID, NO_TIME, NO_TIME, null, null, NO_STUDENT);
     }
 
     @Override
@@ -54,17 +55,17 @@ public class Rental implements RentalDTO {
     }
 
     @Override
-    public String getStartDate() {
-        return startDate;
+    public Instant getStartTime() {
+        return startMillis == NO_TIME ? null : Instant.ofEpochMilli(startMillis);
     }
 
     @Override
-    public String getExpiryDate() {
-        return expiryDate;
+    public Instant getExpiryTime() {
+        return expiryMillis == NO_TIME ? null : Instant.ofEpochMilli(expiryMillis);
     }
 
     @Override
-    public String getStudentID() {
+    public int getStudentID() {
         return studentID;
     }
 
@@ -80,17 +81,13 @@ public class Rental implements RentalDTO {
 
     @Override
     public String toString() {
-        StringBuilder stringRepresentation = new StringBuilder();
-        stringRepresentation.append("Rental: [");
-        stringRepresentation.append("Rental ID: ");
-        stringRepresentation.append(rentalID);
-        stringRepresentation.append(", Student ID: ");
-        stringRepresentation.append(studentID);
-        stringRepresentation.append(", Instrument ID: ");
-        stringRepresentation.append(instrumentID);
-        stringRepresentation.append(", Price ID: ");
-        stringRepresentation.append(priceID);
-        stringRepresentation.append("]");
-        return stringRepresentation.toString();
+        String times = startMillis == NO_TIME ? ""
+                : ", Start: " + format(startMillis) + ", Expiry: " + format(expiryMillis);
+        return "Rental: [Rental ID: " + rentalID + ", Student ID: " + studentID + ", Instrument ID: " + instrumentID
+                + ", Price ID: " + priceID + times + "]";
+    }
+
+    private static String format(long epochMillis) {
+        return TIME_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault()));
     }
 }
@@ -23,6 +23,8 @@
 
 package se.kth.iv1351.soundgood.jdbc.model;
 
+import java.time.Instant;
+
 public interface RentalDTO {
     /**
      * @return The rental ID.
@@ -30,14 +32,14 @@ public interface RentalDTO {
     public String getRentalID();
 
     /**
-     * @return rental start date.
+     * @return rental start time, or <code>null</code> if not known.
      */
-    public String getStartDate();
+    public Instant getStartTime();
 
     /**
-     * @return rental expiry date.
+     * @return rental expiry time, or <code>null</code> if not known.
      */
-    public String getExpiryDate();
+    public Instant getExpiryTime();
 
     /**
      * @return The cost of the rental.
@@ -52,5 +54,5 @@ public interface RentalDTO {
     /**
      * @return student ID.
      */
-    public String getStudentID();
+    public int getStudentID();
 }
@@ -0,0 +1,121 @@
+package se.kth.iv1351.soundgood.jdbc.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * A change of a rental or of the stock of an instrument, as recorded in the transaction that made it. Events are
+ * delivered at least once, a consumer recognizes an event it has already seen by its ID.
+ */
+public class RentalEvent {
+    /**
+     * What changed.
+     */
+    public enum Type {
+        /**
+         * An instrument was rented.
+         */
+        RENTED,
+        /**
+         * A rental was terminated, or its lease was shortened so that it has ended.
+         */
+        TERMINATED,
+        /**
+         * The lease of an active rental was changed.
+         */
+        LEASE_CHANGED,
+        /**
+         * A rental was removed from the database.
+         */
+        DELETED,
+        /**
+         * The number of instruments in stock changed.
+         */
+        STOCK_CHANGED
+    }
+
+    private final long eventID;
+    private final Type type;
+    private final String instrumentID;
+    private final String rentalID;
+    private final Integer studentID;
+    private final String leaseExpiryTime;
+    private final Integer availableStock;
+    private final LocalDateTime createdAt;
+
+    /**
+     * @param rentalID        The rental, <code>null</code> for <code>STOCK_CHANGED</code>.
+     * @param studentID       The student of the rental, <code>null</code> for <code>STOCK_CHANGED</code>.
+     * @param leaseExpiryTime The lease expiry of the rental, <code>null</code> for <code>STOCK_CHANGED</code>.
+     * @param availableStock  The stock after the change, only set for <code>STOCK_CHANGED</code>.
+     */
+    public RentalEvent(long eventID, Type type, String instrumentID, String rentalID, Integer studentID,
+            String leaseExpiryTime, Integer availableStock, LocalDateTime createdAt) {
+        this.eventID = eventID;
+        this.type = type;
+        this.instrumentID = instrumentID;
+        this.rentalID = rentalID;
+        this.studentID = studentID;
+        this.leaseExpiryTime = leaseExpiryTime;
+        this.availableStock = availableStock;
+        this.createdAt = createdAt;
+    }
+
+    public long getEventID() {
+        return eventID;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getInstrumentID() {
+        return instrumentID;
+    }
+
+    public String getRentalID() {
+        return rentalID;
+    }
+
+    public Integer getStudentID() {
+        return studentID;
+    }
+
+    public String getLeaseExpiryTime() {
+        return leaseExpiryTime;
+    }
+
+    public Integer getAvailableStock() {
+        return availableStock;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringRepresentation = new StringBuilder();
+        stringRepresentation.append("Event: [");
+        stringRepresentation.append("ID: ");
+        stringRepresentation.append(eventID);
+        stringRepresentation.append(", Type: ");
+        stringRepresentation.append(type);
+        stringRepresentation.append(", Instrument ID: ");
+        stringRepresentation.append(instrumentID);
+        if (type == Type.STOCK_CHANGED) {
+            stringRepresentation.append(", Available Stock: ");
+            stringRepresentation.append(availableStock);
+        } else {
+            stringRepresentation.append(", Rental ID: ");
+            stringRepresentation.append(rentalID);
+            stringRepresentation.append(", Student ID: ");
+            stringRepresentation.append(studentID);
+            stringRepresentation.append(", Expiry: ");
+            stringRepresentation.append(leaseExpiryTime);
+        }
+        stringRepresentation.append(", Created: ");
+        stringRepresentation.append(createdAt);
+        stringRepresentation.append("]");
+        return stringRepresentation.toString();
+    }
+}
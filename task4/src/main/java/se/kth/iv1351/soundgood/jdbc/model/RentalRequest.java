@@ -0,0 +1,51 @@
+package se.kth.iv1351.soundgood.jdbc.model;
+
+/**
+ * A request from a student to rent an instrument, used when many rentals are created at once.
+ */
+public class RentalRequest {
+    private final String instrumentID;
+    private final int studentID;
+    private final String priceID;
+
+    public RentalRequest(String instrumentID, int studentID, String priceID) {
+        this.instrumentID = instrumentID;
+        this.studentID = studentID;
+        this.priceID = priceID;
+    }
+
+    /**
+     * @return the ID of the instrument to rent.
+     */
+    public String getInstrumentID() {
+        return instrumentID;
+    }
+
+    /**
+     * @return the ID of the renting student.
+     */
+    public int getStudentID() {
+        return studentID;
+    }
+
+    /**
+     * @return the ID of the rental price.
+     */
+    public String getPriceID() {
+        return priceID;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringRepresentation = new StringBuilder();
+        stringRepresentation.append("Rental request: [");
+        stringRepresentation.append("Instrument ID: ");
+        stringRepresentation.append(instrumentID);
+        stringRepresentation.append(", Student ID: ");
+        stringRepresentation.append(studentID);
+        stringRepresentation.append(", Price ID: ");
+        stringRepresentation.append(priceID);
+        stringRepresentation.append("]");
+        return stringRepresentation.toString();
+    }
+}
@@ -0,0 +1,53 @@
+package se.kth.iv1351.soundgood.jdbc.model;
+
+/**
+ * The outcome of an attempt to rent an instrument, and the ID of the rental if it was created.
+ */
+public class RentalResult {
+    private final RentalStatus status;
+    private final String rentalID;
+
+    /**
+     * @param status   the outcome of the attempt.
+     * @param rentalID the ID of the created rental, <code>null</code> unless <code>status</code> is OK.
+     */
+    public RentalResult(RentalStatus status, String rentalID) {
+        this.status = status;
+        this.rentalID = rentalID;
+    }
+
+    /**
+     * @return the outcome of the attempt.
+     */
+    public RentalStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return <code>true</code> if the rental was created.
+     */
+    public boolean isRented() {
+        return status == RentalStatus.OK;
+    }
+
+    /**
+     * @return the ID of the created rental, <code>null</code> if no rental was created.
+     */
+    public String getRentalID() {
+        return rentalID;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringRepresentation = new StringBuilder();
+        stringRepresentation.append("Rental result: [");
+        stringRepresentation.append("Status: ");
+        stringRepresentation.append(status);
+        if (rentalID != null) {
+            stringRepresentation.append(", Rental ID: ");
+            stringRepresentation.append(rentalID);
+        }
+        stringRepresentation.append("]");
+        return stringRepresentation.toString();
+    }
+}
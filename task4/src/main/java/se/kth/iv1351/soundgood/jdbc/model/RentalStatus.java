@@ -0,0 +1,59 @@
+package se.kth.iv1351.soundgood.jdbc.model;
+
+/**
+ * The outcome of an attempt to rent an instrument.
+ */
+public enum RentalStatus {
+    /**
+     * The instrument was rented.
+     */
+    OK("the instrument was rented"),
+
+    /**
+     * All instruments of this kind are rented out.
+     */
+    OUT_OF_STOCK("the instrument is out of stock"),
+
+    /**
+     * The student already has the maximum number of active rentals.
+     */
+    LIMIT_REACHED("the student has reached the maximum number of active rentals"),
+
+    /**
+     * The lease would be longer than the maximum rental duration.
+     */
+    DURATION_EXCEEDED("the lease is longer than the maximum rental duration"),
+
+    /**
+     * There is no instrument with the specified ID.
+     */
+    NO_SUCH_INSTRUMENT("there is no such instrument"),
+
+    /**
+     * There is no student with the specified ID.
+     */
+    NO_SUCH_STUDENT("there is no such student"),
+
+    /**
+     * No price was specified and the instrument has no current price.
+     */
+    NO_CURRENT_PRICE("the instrument has no current price"),
+
+    /**
+     * The instrument could have been rented, but another instrument of the same basket could not.
+     */
+    BASKET_REJECTED("another instrument of the basket could not be rented");
+
+    private final String description;
+
+    private RentalStatus(String description) {
+        this.description = description;
+    }
+
+    /**
+     * @return a human readable description of the outcome.
+     */
+    public String getDescription() {
+        return description;
+    }
+}
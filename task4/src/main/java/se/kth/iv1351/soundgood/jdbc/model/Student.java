@@ -24,19 +24,9 @@
 package se.kth.iv1351.soundgood.jdbc.model;
 
 /**
- * A object representing a student.
+ * Object representing a student. Instances are immutable.
  */
-public class Student implements StudentDTO {
-
-    private int studentID;
-    private String personID;
-    private String skillLevel;
-
-    public Student(int studentID, String personID, String skillLevel) {
-        this.studentID = studentID;
-        this.personID = personID;
-        this.skillLevel = skillLevel;
-    }
+public record Student(int studentID, String personID, String skillLevel) implements StudentDTO {
 
     public Student(int studentID) {
         this(studentID, null, null);
@@ -59,15 +49,7 @@ public class Student implements StudentDTO {
 
     @Override
     public String toString() {
-        StringBuilder stringRepresentation = new StringBuilder();
-        stringRepresentation.append("Student: [");
-        stringRepresentation.append("Student ID: ");
-        stringRepresentation.append(studentID);
-        stringRepresentation.append(", Person ID: ");
-        stringRepresentation.append(personID);
-        stringRepresentation.append(", Skill Level: ");
-        stringRepresentation.append(skillLevel);
-        stringRepresentation.append("]");
-        return stringRepresentation.toString();
+        return "Student: [Student ID: " + studentID + ", Person ID: " + personID + ", Skill Level: " + skillLevel
+                + "]";
     }
 }
@@ -0,0 +1,81 @@
+package se.kth.iv1351.soundgood.jdbc.model;
+
+import java.time.LocalDateTime;
+
+/**
+ * How much the instruments of one type are rented, as of the last time the report was refreshed.
+ */
+public class TypeUtilization {
+    private final String instrumentType;
+    private final int instruments;
+    private final int inStock;
+    private final int activeRentals;
+    private final int totalRentals;
+    private final LocalDateTime refreshedAt;
+
+    public TypeUtilization(String instrumentType, int instruments, int inStock, int activeRentals, int totalRentals,
+            LocalDateTime refreshedAt) {
+        this.instrumentType = instrumentType;
+        this.instruments = instruments;
+        this.inStock = inStock;
+        this.activeRentals = activeRentals;
+        this.totalRentals = totalRentals;
+        this.refreshedAt = refreshedAt;
+    }
+
+    public String getInstrumentType() {
+        return instrumentType;
+    }
+
+    /**
+     * @return The number of instruments of this type in the catalogue.
+     */
+    public int getInstruments() {
+        return instruments;
+    }
+
+    public int getInStock() {
+        return inStock;
+    }
+
+    public int getActiveRentals() {
+        return activeRentals;
+    }
+
+    /**
+     * @return The number of rentals ever made of instruments of this type.
+     */
+    public int getTotalRentals() {
+        return totalRentals;
+    }
+
+    /**
+     * @return The share of the instruments of this type that are rented out, from 0 to 1.
+     */
+    public double getUtilization() {
+        int owned = activeRentals + inStock;
+        return owned == 0 ? 0 : (double) activeRentals / owned;
+    }
+
+    public LocalDateTime getRefreshedAt() {
+        return refreshedAt;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringRepresentation = new StringBuilder();
+        stringRepresentation.append("Utilization: [");
+        stringRepresentation.append("Type: ");
+        stringRepresentation.append(instrumentType);
+        stringRepresentation.append(", Rented: ");
+        stringRepresentation.append(activeRentals);
+        stringRepresentation.append(", In Stock: ");
+        stringRepresentation.append(inStock);
+        stringRepresentation.append(", Utilization: ");
+        stringRepresentation.append(String.format("%.1f%%", getUtilization() * 100));
+        stringRepresentation.append(", Rentals Ever: ");
+        stringRepresentation.append(totalRentals);
+        stringRepresentation.append("]");
+        return stringRepresentation.toString();
+    }
+}
@@ -24,23 +24,121 @@
 
 package se.kth.iv1351.soundgood.jdbc.startup;
 
+import java.io.BufferedOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
 import se.kth.iv1351.soundgood.jdbc.controller.Controller;
+import se.kth.iv1351.soundgood.jdbc.integration.BackgroundJobs;
+import se.kth.iv1351.soundgood.jdbc.integration.DataSourceConfig;
+import se.kth.iv1351.soundgood.jdbc.integration.SoundgoodDAO;
 import se.kth.iv1351.soundgood.jdbc.integration.SoundgoodDBException;
+import se.kth.iv1351.soundgood.jdbc.view.BatchInterpreter;
 import se.kth.iv1351.soundgood.jdbc.view.BlockingInterpreter;
+import se.kth.iv1351.soundgood.jdbc.view.RentalServer;
 
 /**
- * Starts the school client.
+ * Starts the school client, the rental server, or runs a file of commands.
  */
 public class Main {
+    private static final int DEFAULT_SERVER_PORT = 8080;
+    private static final String USAGE = "Usage: [server [port] | batch [file]]";
+
     /**
-     * @param args There are no command line arguments.
+     * @param args No arguments starts the command line client, <code>server [port]</code> starts the rental
+     *             server instead. <code>batch [file]</code> runs the commands in the file, or in standard input if
+     *             no file is given, and exits with status 1 if any of them failed. The database is connected to in
+     *             the background, it is told separately when it is ready, on standard error for a batch. Only the
+     *             rental server runs the maintenance jobs, see <code>BackgroundJobs</code>.
      */
     public static void main(String[] args) {
+        long startNanos = System.nanoTime();
+        int port = DEFAULT_SERVER_PORT;
+        if (args.length > 1 && args[0].equals("server")) {
+            try {
+                port = Integer.parseInt(args[1]);
+            } catch (NumberFormatException nfe) {
+                System.out.println("Invalid port " + args[1] + ". " + USAGE);
+                return;
+            }
+        }
         try {
-            new BlockingInterpreter(new Controller()).handleCmds();
+            DataSourceConfig config = DataSourceConfig.load();
+            SoundgoodDAO dao = new SoundgoodDAO(config);
+            BackgroundJobs jobs = new BackgroundJobs(dao, config);
+            if (args.length > 0 && args[0].equals("server")) {
+                jobs.startMaintenance();
+                if (config.isOutboxRelay()) {
+                    jobs.startOutboxRelay();
+                }
+                startServer(startController(dao, jobs, System.out, startNanos), jobs, port);
+            } else if (args.length > 0 && args[0].equals("batch")) {
+                int failures = runBatch(startController(dao, jobs, System.err, startNanos),
+                        args.length > 1 ? args[1] : null);
+                System.exit(failures == 0 ? 0 : 1);
+            } else {
+                new BlockingInterpreter(startController(dao, jobs, System.out, startNanos)).handleCmds();
+            }
+        } catch (IllegalArgumentException iae) {
+            System.out.println("Invalid configuration: " + iae.getMessage());
         } catch (SoundgoodDBException sgdbe) {
             System.out.println("Could not connect to soudgood db.");
-            sgdbe.printStackTrace();
+            printCauses(sgdbe);
+        } catch (IOException ioe) {
+            System.out.println("Could not start the rental server, or read the commands.");
+            printCauses(ioe);
+        }
+    }
+
+    /**
+     * Prints the message of <code>failure</code> and of each of its causes, in the same way as a failed command.
+     */
+    private static void printCauses(Exception failure) {
+        System.out.println("  " + failure.getMessage());
+        for (Throwable cause = failure.getCause(); cause != null; cause = cause.getCause()) {
+            System.out.println("  Caused by: " + cause.getMessage());
         }
     }
+
+    private static Controller startController(SoundgoodDAO dao, BackgroundJobs jobs, PrintStream readinessOut,
+            long startNanos) {
+        Controller ctrl = new Controller(dao);
+        jobs.startConnections();
+        ctrl.whenDatabaseReady().whenComplete((version, failure) -> {
+            long millis = (System.nanoTime() - startNanos) / 1_000_000;
+            if (failure == null) {
+                readinessOut.println("Database ready after " + millis + " ms, schema version " + version + ".");
+            } else {
+                readinessOut.println("Database not usable: " + ctrl.getDatabaseProblem());
+            }
+        });
+        return ctrl;
+    }
+
+    private static int runBatch(Controller ctrl, String fileName) throws IOException {
+        BatchInterpreter batch = new BatchInterpreter(ctrl);
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out), false,
+                StandardCharsets.UTF_8);
+        try (Reader commands = fileName == null
+                ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                : new FileReader(fileName, StandardCharsets.UTF_8)) {
+            return batch.run(commands, out);
+        } finally {
+            batch.close();
+        }
+    }
+
+    private static void startServer(Controller ctrl, BackgroundJobs jobs, int port) throws IOException {
+        RentalServer server = new RentalServer(ctrl, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            jobs.close();
+            server.stop();
+        }, "soundgood-shutdown"));
+        server.start();
+        System.out.println("Rental server listening on port " + port);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,226 @@
+package se.kth.iv1351.soundgood.jdbc.view;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import se.kth.iv1351.soundgood.jdbc.controller.Controller;
+
+/**
+ * Runs the commands of a file or a pipe, one command with all its arguments per line, such as
+ * <code>rent INSTR001 5 RP001</code>. Blank lines and lines starting with # are skipped, and <code>quit</code> stops
+ * reading.
+ * <p>
+ * The commands run concurrently, as many at a time as there are database connections, but a command never starts
+ * before an earlier command that uses the same student or instrument has finished. A command whose effects cannot be
+ * told from its line, such as <code>terminate</code>, whose rental is not known to belong to any student or instrument
+ * before it is read, or <code>list</code>, which reads many instruments, waits for all earlier commands, and all later
+ * commands wait for it. So every command sees the effects of the earlier commands it could depend on. The output of
+ * each command is collected and written in the order of the commands, so the output reads as if the commands ran one
+ * after another.
+ */
+public class BatchInterpreter {
+    private static final String COMMENT = "#";
+    private static final String PROMPT_ECHO = "> ";
+    private static final int COMMANDS_AHEAD_PER_THREAD = 4;
+    private static final String STUDENT_KEY = "student:";
+    private static final String INSTRUMENT_KEY = "instrument:";
+
+    private final Controller ctrl;
+    private final CommandRunner runner;
+    private final int concurrency;
+
+    /**
+     * Creates a new instance that will use the specified controller for all operations.
+     *
+     * @param ctrl The controller used by this instance.
+     */
+    public BatchInterpreter(Controller ctrl) {
+        this.ctrl = ctrl;
+        this.runner = new CommandRunner(ctrl, null);
+        this.concurrency = ctrl.getMaxConcurrency();
+    }
+
+    /**
+     * Runs all commands in <code>commands</code> and writes their output to <code>out</code>. Only a bounded number of
+     * commands is read ahead of the one whose output is written next, so a file of any size can be run.
+     *
+     * @param commands The commands to run.
+     * @param out      Where the output is written. It is flushed when all commands have finished.
+     * @return The number of commands that failed.
+     * @throws IOException If the commands could not be read.
+     */
+    public int run(Reader commands, PrintStream out) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, task -> {
+            Thread thread = new Thread(task, "soundgood-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<PendingCommand> pending = new ArrayDeque<>();
+        int failures = 0;
+        try (BufferedReader lines = new BufferedReader(commands)) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith(COMMENT)) {
+                    continue;
+                }
+                CmdLine cmdLine = new CmdLine(trimmed);
+                if (cmdLine.getCmd() == Command.QUIT) {
+                    break;
+                }
+                Set<String> keys = orderingKeys(cmdLine);
+                List<CompletableFuture<CommandOutput>> earlier = new ArrayList<>();
+                for (PendingCommand command : pending) {
+                    if (keys == null || command.keys == null || !Collections.disjoint(keys, command.keys)) {
+                        earlier.add(command.output);
+                    }
+                }
+                pending.add(new PendingCommand(keys, CompletableFuture
+                        .allOf(earlier.toArray(new CompletableFuture<?>[0]))
+                        .thenApplyAsync(done -> runCommand(cmdLine), executor)));
+                if (pending.size() >= concurrency * COMMANDS_AHEAD_PER_THREAD) {
+                    failures += write(pending.poll(), out);
+                }
+            }
+            while (!pending.isEmpty()) {
+                failures += write(pending.poll(), out);
+            }
+        } finally {
+            for (PendingCommand abandoned : pending) {
+                abandoned.output.cancel(true);
+            }
+            executor.shutdownNow();
+            out.flush();
+        }
+        return failures;
+    }
+
+    /**
+     * Closes the controller the commands were run with.
+     */
+    public void close() {
+        ctrl.close();
+    }
+
+    /**
+     * Returns what a command uses, so that commands that use the same thing run in the order they are written. Every
+     * earlier command that has a key in common with a command must finish before it starts.
+     *
+     * @param cmdLine The command.
+     * @return The students and instruments the command reads or changes, or <code>null</code> if that cannot be told
+     *         from the line, in which case the command must be ordered after, and before, all other commands.
+     */
+    static Set<String> orderingKeys(CmdLine cmdLine) {
+        Set<String> keys = new HashSet<>();
+        switch (cmdLine.getCmd()) {
+            case HELP:
+            case STATUS:
+            case ILLEGAL_COMMAND:
+                return keys;
+            case RENT:
+                if (cmdLine.getParameterCount() < 2) {
+                    return null;
+                }
+                keys.add(INSTRUMENT_KEY + cmdLine.getParameter(0).toUpperCase());
+                keys.add(studentKey(cmdLine.getParameter(1)));
+                return keys;
+            case BASKET:
+                if (cmdLine.getParameterCount() < 2) {
+                    return null;
+                }
+                keys.add(studentKey(cmdLine.getParameter(0)));
+                for (int i = 1; i < cmdLine.getParameterCount(); i++) {
+                    String item = cmdLine.getParameter(i);
+                    int priceSeparator = item.indexOf(':');
+                    keys.add(INSTRUMENT_KEY + (priceSeparator < 0 ? item : item.substring(0, priceSeparator))
+                            .toUpperCase());
+                }
+                return keys;
+            case HISTORY:
+                if (cmdLine.getParameterCount() < 1) {
+                    return null;
+                }
+                keys.add(studentKey(cmdLine.getParameter(0)));
+                return keys;
+            default:
+                return null;
+        }
+    }
+
+    private static String studentKey(String studentID) {
+        try {
+            return STUDENT_KEY + Integer.parseInt(studentID);
+        } catch (NumberFormatException nfe) {
+            return STUDENT_KEY + studentID;
+        }
+    }
+
+    /**
+     * A command that was read, and the output it will have.
+     */
+    private static class PendingCommand {
+        private final Set<String> keys;
+        private final CompletableFuture<CommandOutput> output;
+
+        private PendingCommand(Set<String> keys, CompletableFuture<CommandOutput> output) {
+            this.keys = keys;
+            this.output = output;
+        }
+    }
+
+    /**
+     * The text a command wrote, and whether it failed.
+     */
+    private static class CommandOutput {
+        private final byte[] text;
+        private final boolean failed;
+
+        private CommandOutput(byte[] text, boolean failed) {
+            this.text = text;
+            this.failed = failed;
+        }
+    }
+
+    private CommandOutput runCommand(CmdLine cmdLine) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+        out.println(PROMPT_ECHO + cmdLine.getUserInput());
+        boolean failed = false;
+        try {
+            runner.run(cmdLine, out);
+        } catch (Exception e) {
+            CommandRunner.printFailure(e, out);
+            failed = true;
+        }
+        out.flush();
+        return new CommandOutput(buffer.toByteArray(), failed);
+    }
+
+    private int write(PendingCommand command, PrintStream out) throws IOException {
+        try {
+            CommandOutput output = command.output.get();
+            out.write(output.text);
+            return output.failed ? 1 : 0;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running commands.", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Could not run a command.", ee.getCause());
+        }
+    }
+}
@@ -24,16 +24,16 @@
 
 package se.kth.iv1351.soundgood.jdbc.view;
 
-import java.util.List;
 import java.util.Scanner;
 
 import se.kth.iv1351.soundgood.jdbc.controller.Controller;
-import se.kth.iv1351.soundgood.jdbc.model.Instrument;
 
 /**
  * Reads and interprets user commands. This command interpreter is blocking, the
  * user
  * interface does not react to user input while a command is being executed.
+ * Arguments can be written on the same line as the command, such as
+ * <code>rent INSTR001 5</code>, a command without arguments asks for them.
  */
 public class BlockingInterpreter {
     private static final String PROMPT = "> ";
@@ -61,81 +61,37 @@ public class BlockingInterpreter {
     /**
      * Interprets and performs user commands. This method will not return until the
      * UI has been stopped. The UI is stopped either when the user gives the
-     * "quit" command, or when the method <code>stop()</code> is called.
+     * "quit" command, when the input ends, or when the method <code>stop()</code>
+     * is called.
      */
     public void handleCmds() {
+        CommandRunner runner = new CommandRunner(ctrl, question -> {
+            System.out.println(question);
+            return readNextLine();
+        });
         keepReceivingCmds = true;
         while (keepReceivingCmds) {
+            String line = readNextLine();
+            if (line == null) {
+                break;
+            }
             try {
-                CmdLine cmdLine = new CmdLine(readNextLine());
-                switch (cmdLine.getCmd()) {
-                    case HELP:
-                        for (Command command : Command.values()) {
-                            if (command == Command.ILLEGAL_COMMAND) {
-                                continue;
-                            }
-                            System.out.println(command.toString().toLowerCase());
-                        }
-                        break;
-                    case QUIT:
-                        keepReceivingCmds = false;
-                        break;
-                    case LIST:
-                        System.out.println("Write desired instrument type:");
-                        String instrType = readNextLine();
-
-                        List<Instrument> instruments = ctrl.listInstrumentsByType(convertOneUpperCase(instrType));
-                        for (Instrument instrument : instruments) {
-                            System.out.println(instrument);
-                        }
-                        break;
-
-                    case RENT:
-                        System.out.println("Write Instrument ID:");
-                        String instrID = readNextLine();
-
-                        System.out.println("Write Student ID:");
-                        int studentID = Integer.parseInt(readNextLine());
-
-                        System.out.println("Provide Price History ID:");
-                        String priceID = readNextLine();
-
-                        ctrl.createRental(convertAllUpperCase(instrID), studentID, convertAllUpperCase(priceID));
-                        break;
-                    case TERMINATE:
-                        System.out.println("Write Rental ID to terminate:");
-                        String rentalID = readNextLine();
-                        ctrl.terminateRental(convertAllUpperCase(rentalID));
-                        break;
-                    default:
-                        System.out.println("Illegal command");
-                }
+                keepReceivingCmds = runner.run(new CmdLine(line), System.out);
             } catch (Exception e) {
-                System.out.println("Operation failed");
-                System.out.println(e.getMessage());
-                e.printStackTrace();
+                CommandRunner.printFailure(e, System.out);
             }
         }
     }
 
-    private String convertOneUpperCase(String input) {
-        if (input == null || input.isEmpty()) {
-            return input;
-        }
-        input = input.toLowerCase();
-        return input.substring(0, 1).toUpperCase() + input.substring(1);
-    }
-
-    private String convertAllUpperCase(String input) {
-        if (input == null || input.isEmpty()) {
-            return input;
-        }
-        input = input.toUpperCase();
-        return input;
-    }
-
+    /**
+     * @return The next line, or <code>null</code> if the input has ended.
+     */
     private String readNextLine() {
         System.out.print(PROMPT);
+        if (!console.hasNextLine()) {
+            keepReceivingCmds = false;
+            return null;
+        }
         return console.nextLine();
     }
 }
\ No newline at end of file
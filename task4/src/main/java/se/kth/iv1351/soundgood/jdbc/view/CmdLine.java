@@ -24,6 +24,8 @@
 
 package se.kth.iv1351.soundgood.jdbc.view;
 
+import java.util.Arrays;
+
 /**
  * One line of user input, which should be a command and parameters associated
  * with that command (if any).
@@ -77,6 +79,26 @@ class CmdLine {
         return params[index];
     }
 
+    /**
+     * @return The number of parameters after the command.
+     */
+    int getParameterCount() {
+        return params == null ? 0 : params.length;
+    }
+
+    /**
+     * Returns the parameters from the specified index to the end of the line, separated by a blank character.
+     *
+     * @param index The index of the first parameter.
+     * @return The parameters, or <code>null</code> if there is no parameter with that index.
+     */
+    String getParametersFrom(int index) {
+        if (index >= getParameterCount()) {
+            return null;
+        }
+        return String.join(PARAM_DELIMETER, Arrays.copyOfRange(params, index, params.length));
+    }
+
     private String removeExtraSpaces(String source) {
         if (source == null) {
             return source;
@@ -106,7 +128,7 @@ class CmdLine {
             return;
         }
         String paramPartOfCmd = removeExtraSpaces(removeCmd(enteredLine));
-        if (paramPartOfCmd == null) {
+        if (paramPartOfCmd == null || paramPartOfCmd.isEmpty()) {
             params = null;
             return;
         }
@@ -33,16 +33,51 @@ public enum Command {
      */
     LIST,
 
+    /**
+     * Searches instruments by type and brand.
+     */
+    SEARCH,
+
     /**
      * Rents an instrument.
      */
     RENT,
 
+    /**
+     * Rents several instruments to one student, all or none of them.
+     */
+    BASKET,
+
     /**
      * Terminates the a rental.
      */
     TERMINATE,
 
+    /**
+     * Lists all rentals of a student.
+     */
+    HISTORY,
+
+    /**
+     * Shows how much the instruments of each type are rented.
+     */
+    UTILIZATION,
+
+    /**
+     * Shows the rental revenue of each month.
+     */
+    REVENUE,
+
+    /**
+     * Shows the latency of the database operations.
+     */
+    STATS,
+
+    /**
+     * Shows whether the database is ready.
+     */
+    STATUS,
+
     /**
      * Lists all commands.
      */
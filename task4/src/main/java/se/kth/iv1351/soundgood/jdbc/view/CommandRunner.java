@@ -0,0 +1,248 @@
+package se.kth.iv1351.soundgood.jdbc.view;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import se.kth.iv1351.soundgood.jdbc.controller.Controller;
+import se.kth.iv1351.soundgood.jdbc.integration.LatencySnapshot;
+import se.kth.iv1351.soundgood.jdbc.model.InstrumentMatch;
+import se.kth.iv1351.soundgood.jdbc.model.RentalDTO;
+import se.kth.iv1351.soundgood.jdbc.model.RentalRequest;
+import se.kth.iv1351.soundgood.jdbc.model.RentalResult;
+
+/**
+ * Performs one command line. The arguments of a command are taken from the same line, for example
+ * <code>rent INSTR001 5 RP001</code>. A command written without arguments asks for them one at a time instead, if
+ * there is someone to ask.
+ */
+class CommandRunner {
+    private final Controller ctrl;
+    private final Prompter prompter;
+
+    /**
+     * Asks the user for a missing argument.
+     */
+    interface Prompter {
+        /**
+         * @param question What to ask for.
+         * @return The line the user answered with.
+         */
+        String ask(String question);
+    }
+
+    /**
+     * @param ctrl     The controller used for all operations.
+     * @param prompter Asks for the arguments of commands written without any, or <code>null</code> if missing
+     *                 arguments are an error.
+     */
+    CommandRunner(Controller ctrl, Prompter prompter) {
+        this.ctrl = ctrl;
+        this.prompter = prompter;
+    }
+
+    /**
+     * Performs the specified command, writing its output to <code>out</code>.
+     *
+     * @param cmdLine The command and its arguments.
+     * @param out     Where the output of the command is written.
+     * @return <code>false</code> if the command was <code>quit</code>, <code>true</code> otherwise.
+     * @throws Exception If the command failed.
+     */
+    boolean run(CmdLine cmdLine, PrintStream out) throws Exception {
+        switch (cmdLine.getCmd()) {
+            case HELP:
+                for (Command command : Command.values()) {
+                    if (command == Command.ILLEGAL_COMMAND) {
+                        continue;
+                    }
+                    out.println(command.toString().toLowerCase());
+                }
+                break;
+            case QUIT:
+                return false;
+            case LIST:
+                String instrType = required(cmdLine, 0, "Write desired instrument type:", "instrument type");
+                ctrl.streamInstrumentsByType(convertOneUpperCase(instrType)).forEach(out::println);
+                break;
+            case SEARCH:
+                String query = cmdLine.getParameterCount() > 0 ? cmdLine.getParametersFrom(0)
+                        : required(cmdLine, 0, "Write search terms, such as a type or a brand:", "search terms");
+                search(query, out);
+                break;
+            case RENT:
+                String instrID = required(cmdLine, 0, "Write Instrument ID:", "instrument ID");
+                int studentID = Integer.parseInt(required(cmdLine, 1, "Write Student ID:", "student ID"));
+                String priceID = argument(cmdLine, 2,
+                        "Provide Price History ID (leave empty for the current price):");
+                RentalResult rental = ctrl.createRental(convertAllUpperCase(instrID), studentID,
+                        convertAllUpperCase(priceID));
+                if (rental.isRented()) {
+                    out.println("Created rental " + rental.getRentalID());
+                } else {
+                    out.println("Not rented, " + rental.getStatus().getDescription() + ".");
+                }
+                break;
+            case BASKET:
+                int basketStudentID = Integer.parseInt(required(cmdLine, 0, "Write Student ID:", "student ID"));
+                String items = cmdLine.getParameterCount() > 1 ? cmdLine.getParametersFrom(1)
+                        : required(cmdLine, 1, "Write Instrument IDs, each followed by :Price History ID if not "
+                                + "the current price:", "instrument IDs");
+                rentBasket(basketStudentID, items, out);
+                break;
+            case TERMINATE:
+                String terminatedID = required(cmdLine, 0, "Write Rental ID to terminate:", "rental ID");
+                ctrl.terminateRental(convertAllUpperCase(terminatedID));
+                out.println("Terminated rental " + convertAllUpperCase(terminatedID));
+                break;
+            case HISTORY:
+                int historyStudentID = Integer.parseInt(required(cmdLine, 0, "Write Student ID:", "student ID"));
+                List<RentalDTO> history = ctrl.getRentalHistory(historyStudentID);
+                if (history.isEmpty()) {
+                    out.println("No rentals found.");
+                }
+                history.forEach(out::println);
+                break;
+            case UTILIZATION:
+                ctrl.getTypeUtilization().forEach(out::println);
+                break;
+            case REVENUE:
+                int months = Integer.parseInt(required(cmdLine, 0, "Write number of months:", "number of months"));
+                ctrl.getMonthlyRevenue(months).forEach(out::println);
+                break;
+            case STATS:
+                for (LatencySnapshot statistics : ctrl.getStatistics()) {
+                    out.println(statistics);
+                }
+                break;
+            case STATUS:
+                CompletableFuture<Integer> ready = ctrl.whenDatabaseReady().toCompletableFuture();
+                String problem = ctrl.getDatabaseProblem();
+                if (problem != null) {
+                    out.println("Database not ready, " + problem);
+                } else if (ready.isDone()) {
+                    out.println("Database ready, schema version " + ready.join() + ".");
+                } else {
+                    out.println("Connecting to the database.");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Illegal command: " + cmdLine.getUserInput());
+        }
+        return true;
+    }
+
+    /**
+     * Writes why a command failed, with the causes of the failure but without stack traces.
+     *
+     * @param failure The exception thrown by <code>run</code>.
+     * @param out     Where the description is written.
+     */
+    static void printFailure(Exception failure, PrintStream out) {
+        out.println("Operation failed: " + failure.getMessage());
+        for (Throwable cause = failure.getCause(); cause != null; cause = cause.getCause()) {
+            out.println("  Caused by: " + cause.getMessage());
+        }
+    }
+
+    /**
+     * Prints the first page of matches. If there is someone to ask, the next page is printed each time they press
+     * enter.
+     */
+    private void search(String query, PrintStream out) throws Exception {
+        for (int page = 0;; page++) {
+            List<InstrumentMatch> matches = ctrl.searchInstruments(query, page);
+            if (page == 0 && matches.isEmpty()) {
+                out.println("No instruments found.");
+            }
+            matches.forEach(out::println);
+            if (matches.size() < ctrl.getSearchPageSize() || prompter == null) {
+                return;
+            }
+            String answer = prompter.ask("Press enter for more matches, or write anything to stop:");
+            if (answer == null || !answer.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Rents the instruments of a basket, written as <code>instrumentID[:priceID]</code> separated by blanks.
+     */
+    private void rentBasket(int studentID, String items, PrintStream out) throws Exception {
+        List<RentalRequest> rentals = new ArrayList<>();
+        for (String item : items.trim().split(" +")) {
+            int priceSeparator = item.indexOf(':');
+            String instrID = priceSeparator < 0 ? item : item.substring(0, priceSeparator);
+            String priceID = priceSeparator < 0 ? null : item.substring(priceSeparator + 1);
+            rentals.add(new RentalRequest(convertAllUpperCase(instrID), studentID, convertAllUpperCase(priceID)));
+        }
+        List<RentalResult> results = ctrl.createRentalBasket(studentID, rentals);
+        if (results.stream().allMatch(RentalResult::isRented)) {
+            for (int i = 0; i < results.size(); i++) {
+                out.println("Created rental " + results.get(i).getRentalID() + " of "
+                        + rentals.get(i).getInstrumentID());
+            }
+            return;
+        }
+        out.println("Nothing rented:");
+        for (int i = 0; i < results.size(); i++) {
+            out.println("  " + rentals.get(i).getInstrumentID() + ", "
+                    + results.get(i).getStatus().getDescription() + ".");
+        }
+    }
+
+    private String argument(CmdLine cmdLine, int index, String question) {
+        if (cmdLine.getParameterCount() > 0 || prompter == null) {
+            return cmdLine.getParameter(index);
+        }
+        return prompter.ask(question);
+    }
+
+    private String required(CmdLine cmdLine, int index, String question, String name) {
+        String value = argument(cmdLine, index, question);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing " + name + ", usage: "
+                    + cmdLine.getCmd().toString().toLowerCase() + " " + usage(cmdLine.getCmd()));
+        }
+        return value;
+    }
+
+    private static String usage(Command command) {
+        switch (command) {
+            case LIST:
+                return "<type>";
+            case SEARCH:
+                return "<terms>";
+            case RENT:
+                return "<instrumentID> <studentID> [priceID]";
+            case BASKET:
+                return "<studentID> <instrumentID>[:priceID] ...";
+            case TERMINATE:
+                return "<rentalID>";
+            case HISTORY:
+                return "<studentID>";
+            case REVENUE:
+                return "<months>";
+            default:
+                return "";
+        }
+    }
+
+    private String convertOneUpperCase(String input) {
+        if (input == null || input.isEmpty()) {
+            return input;
+        }
+        input = input.toLowerCase();
+        return input.substring(0, 1).toUpperCase() + input.substring(1);
+    }
+
+    private String convertAllUpperCase(String input) {
+        if (input == null || input.isEmpty()) {
+            return input;
+        }
+        input = input.toUpperCase();
+        return input;
+    }
+}
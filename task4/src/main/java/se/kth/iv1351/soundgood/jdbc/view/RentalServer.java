@@ -0,0 +1,318 @@
+package se.kth.iv1351.soundgood.jdbc.view;
+
+import static se.kth.iv1351.soundgood.jdbc.model.JsonText.quote;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import se.kth.iv1351.soundgood.jdbc.controller.Controller;
+import se.kth.iv1351.soundgood.jdbc.model.Instrument;
+import se.kth.iv1351.soundgood.jdbc.model.InstrumentMatch;
+import se.kth.iv1351.soundgood.jdbc.model.RentalException;
+import se.kth.iv1351.soundgood.jdbc.model.RentalResult;
+
+/**
+ * Serves the controller operations over HTTP, so that several terminals and the web shop can share one process. Each
+ * request runs on a virtual thread if the JVM supports them, otherwise on a bounded thread pool. At most as many
+ * requests as there are database connections are served at the same time, the others wait for their turn.
+ * <ul>
+ * <li><code>GET /instruments?type=Guitar</code> lists available instruments of a type. With
+ * <code>&amp;after=0/3000060</code> the listing includes the writes up to that position.</li>
+ * <li><code>GET /instruments?q=yamaha+gitar&amp;page=0</code> searches instruments by type and brand, best matches
+ * first, the page is optional.</li>
+ * <li><code>POST /rentals?instrument=INSTR001&amp;student=3&amp;price=RP001</code> rents an instrument, the price is
+ * optional.</li>
+ * <li><code>DELETE /rentals/R001</code> terminates a rental.</li>
+ * <li>When there are read replicas, a rental or termination is answered with the <code>position</code> of the write.
+ * A client that passes it as <code>after</code> to a listing sees its write, also if the listing is served by
+ * another server.</li>
+ * <li><code>GET /status</code> tells whether the database is ready, with status 503 if it is not.</li>
+ * </ul>
+ * Responses are JSON. Failed operations are answered with status 400 for malformed requests, 409 with a status code
+ * such as <code>OUT_OF_STOCK</code> for rentals the database rejected, 503 if no database connection became free in
+ * time and 500 for other failures.
+ */
+public class RentalServer {
+    private static final String INSTRUMENTS_PATH = "/instruments";
+    private static final String RENTALS_PATH = "/rentals";
+    private static final String STATUS_PATH = "/status";
+    private static final long PERMIT_TIMEOUT_MILLIS = 10_000;
+    private static final int SHUTDOWN_GRACE_SECONDS = 10;
+
+    private final Controller ctrl;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+
+    /**
+     * Creates a new server that uses the specified controller for all operations. The server does not accept
+     * requests until it is started.
+     *
+     * @param ctrl The controller used by this instance.
+     * @param port The TCP port to listen to.
+     * @throws IOException If the port could not be bound.
+     */
+    public RentalServer(Controller ctrl, int port) throws IOException {
+        this.ctrl = ctrl;
+        this.permits = new Semaphore(ctrl.getMaxConcurrency(), true);
+        this.executor = createExecutor(ctrl.getMaxConcurrency());
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext(INSTRUMENTS_PATH, this::handleInstruments);
+        server.createContext(RENTALS_PATH, this::handleRentals);
+        server.createContext(STATUS_PATH, this::handleStatus);
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting new requests, lets the requests in progress finish and then closes the controller.
+     */
+    public void stop() {
+        server.stop(SHUTDOWN_GRACE_SECONDS);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        ctrl.close();
+    }
+
+    private void handleInstruments(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, error("Use GET " + INSTRUMENTS_PATH));
+            return;
+        }
+        Map<String, String> params = queryParams(exchange);
+        if (params == null) {
+            return;
+        }
+        if (params.containsKey("q")) {
+            handleSearch(exchange, params);
+            return;
+        }
+        String type = params.get("type");
+        if (type == null || type.isEmpty()) {
+            respond(exchange, 400, error("Missing parameter: type or q"));
+            return;
+        }
+        withPermit(exchange, () -> {
+            List<Instrument> instruments = ctrl.listInstrumentsByType(type, params.get("after"));
+            StringBuilder json = new StringBuilder("[");
+            for (Instrument instrument : instruments) {
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                json.append("{\"id\":").append(quote(instrument.getInstrumentID()))
+                        .append(",\"type\":").append(quote(instrument.getInstrumentType()))
+                        .append(",\"brand\":").append(quote(instrument.getInstrumentBrand()))
+                        .append(",\"stock\":").append(instrument.getInstrumentsInStock())
+                        .append(",\"price\":").append(instrument.getPrice()).append('}');
+            }
+            respond(exchange, 200, json.append(']').toString());
+        });
+    }
+
+    private void handleSearch(HttpExchange exchange, Map<String, String> params) throws IOException {
+        int page;
+        try {
+            page = Integer.parseInt(params.getOrDefault("page", "0"));
+        } catch (NumberFormatException nfe) {
+            respond(exchange, 400, error("Page must be a number: " + params.get("page")));
+            return;
+        }
+        if (page < 0) {
+            respond(exchange, 400, error("Page must not be negative: " + page));
+            return;
+        }
+        withPermit(exchange, () -> {
+            List<InstrumentMatch> matches = ctrl.searchInstruments(params.get("q"), page);
+            StringBuilder json = new StringBuilder("[");
+            for (InstrumentMatch match : matches) {
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                json.append("{\"id\":").append(quote(match.getInstrumentID()))
+                        .append(",\"type\":").append(quote(match.getInstrumentType()))
+                        .append(",\"brand\":").append(quote(match.getInstrumentBrand()))
+                        .append(",\"score\":").append(match.getScore()).append('}');
+            }
+            respond(exchange, 200, json.append(']').toString());
+        });
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, error("Use GET " + STATUS_PATH));
+            return;
+        }
+        CompletableFuture<Integer> ready = ctrl.whenDatabaseReady().toCompletableFuture();
+        String problem = ctrl.getDatabaseProblem();
+        if (problem == null && ready.isDone()) {
+            respond(exchange, 200, "{\"ready\":true,\"schemaVersion\":" + ready.join() + "}");
+        } else {
+            respond(exchange, 503, "{\"ready\":false,\"error\":" + quote(problem) + "}");
+        }
+    }
+
+    private void handleRentals(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        if ("POST".equals(method) && path.equals(RENTALS_PATH)) {
+            Map<String, String> params = queryParams(exchange);
+            if (params == null) {
+                return;
+            }
+            String instrumentID = params.get("instrument");
+            String studentID = params.get("student");
+            if (instrumentID == null || studentID == null) {
+                respond(exchange, 400, error("Missing parameter: instrument and student are required"));
+                return;
+            }
+            int student;
+            try {
+                student = Integer.parseInt(studentID);
+            } catch (NumberFormatException nfe) {
+                respond(exchange, 400, error("Student must be a number: " + studentID));
+                return;
+            }
+            withPermit(exchange, () -> {
+                RentalResult rental = ctrl.createRental(instrumentID.toUpperCase(), student,
+                        params.getOrDefault("price", "").toUpperCase());
+                if (rental.isRented()) {
+                    respond(exchange, 201, "{\"rentalId\":" + quote(rental.getRentalID()) + position() + "}");
+                } else {
+                    respond(exchange, 409, "{\"status\":" + quote(rental.getStatus().name())
+                            + ",\"error\":" + quote(rental.getStatus().getDescription()) + "}");
+                }
+            });
+        } else if ("DELETE".equals(method) && path.startsWith(RENTALS_PATH + "/")) {
+            String rentalID = path.substring(RENTALS_PATH.length() + 1).toUpperCase();
+            withPermit(exchange, () -> {
+                ctrl.terminateRental(rentalID);
+                respond(exchange, 200, "{\"terminated\":" + quote(rentalID) + position() + "}");
+            });
+        } else {
+            respond(exchange, 405, error("Use POST " + RENTALS_PATH + " or DELETE " + RENTALS_PATH + "/{id}"));
+        }
+    }
+
+    private interface Operation {
+        void perform() throws Exception;
+    }
+
+    /**
+     * Performs the operation when a database connection is free, and translates failures to HTTP status codes.
+     */
+    private void withPermit(HttpExchange exchange, Operation operation) throws IOException {
+        try {
+            if (!permits.tryAcquire(PERMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                respond(exchange, 503, error("The server is busy, try again later."));
+                return;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, error("The server is shutting down."));
+            return;
+        }
+        try {
+            operation.perform();
+        } catch (RentalException rentalFailure) {
+            respond(exchange, 409, error(describe(rentalFailure)));
+        } catch (IllegalArgumentException badRequest) {
+            respond(exchange, 400, error(badRequest.getMessage()));
+        } catch (Exception failure) {
+            respond(exchange, 500, error(describe(failure)));
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return The position of the last write as a JSON member, starting with a comma, or nothing if there is none.
+     */
+    private String position() {
+        String position = ctrl.getWritePosition();
+        return position == null ? "" : ",\"position\":" + quote(position);
+    }
+
+    private static String describe(Throwable failure) {
+        StringBuilder description = new StringBuilder(String.valueOf(failure.getMessage()));
+        for (Throwable cause = failure.getCause(); cause != null; cause = cause.getCause()) {
+            description.append(": ").append(cause.getMessage());
+        }
+        return description.toString();
+    }
+
+    /**
+     * Decodes the query parameters of the request. If the query is malformed, such as a <code>%</code> that does not
+     * start an escape, the request is answered with status 400.
+     *
+     * @return The parameters, or <code>null</code> if the request was answered.
+     */
+    private static Map<String, String> queryParams(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return params;
+        }
+        try {
+            for (String pair : query.split("&")) {
+                int separator = pair.indexOf('=');
+                if (separator > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IllegalArgumentException malformed) {
+            respond(exchange, 400, error("Malformed query: " + malformed.getMessage()));
+            return null;
+        }
+        return params;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    /**
+     * Uses a virtual thread per request when running on a JVM that has them (Java 21 and later). Otherwise a fixed
+     * pool is used, there is no point in more threads than database connections plus a few for rejected requests.
+     */
+    private static ExecutorService createExecutor(int maxConcurrency) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException noVirtualThreads) {
+            return Executors.newFixedThreadPool(maxConcurrency + Runtime.getRuntime().availableProcessors());
+        }
+    }
+}
@@ -2,12 +2,36 @@ DROP FUNCTION IF EXISTS check_student_rental_limit CASCADE;
 DROP FUNCTION IF EXISTS decrease_instrument_stock CASCADE;
 DROP FUNCTION IF EXISTS trg_increase_instrument_stock_on_termination CASCADE;
 DROP FUNCTION IF EXISTS check_max_rental_duration CASCADE;
+DROP FUNCTION IF EXISTS check_stock_reservation CASCADE;
+DROP FUNCTION IF EXISTS notify_rental_price_changed CASCADE;
+DROP FUNCTION IF EXISTS rent_instrument CASCADE;
+DROP FUNCTION IF EXISTS rent_basket CASCADE;
+DROP FUNCTION IF EXISTS notify_system_config_changed CASCADE;
+DROP FUNCTION IF EXISTS notify_student_rentals_released CASCADE;
+DROP FUNCTION IF EXISTS notify_instrument_changed CASCADE;
+DROP FUNCTION IF EXISTS notify_instruments_truncated CASCADE;
+DROP FUNCTION IF EXISTS record_rental_event CASCADE;
+DROP FUNCTION IF EXISTS record_stock_event CASCADE;
+DROP FUNCTION IF EXISTS claim_stock CASCADE;
+DROP FUNCTION IF EXISTS settle_stock_reservations CASCADE;
+DROP FUNCTION IF EXISTS record_student_instrument CASCADE;
+DROP FUNCTION IF EXISTS create_rental_partitions CASCADE;
+DROP FUNCTION IF EXISTS archive_rental_partitions CASCADE;
+DROP FUNCTION IF EXISTS keep_longest_rental_duration CASCADE;
+DROP MATERIALIZED VIEW IF EXISTS instrument_type_utilization;
+DROP MATERIALIZED VIEW IF EXISTS monthly_rental_revenue;
 DROP TABLE IF EXISTS person CASCADE;
 DROP TABLE IF EXISTS instrument_rental CASCADE;
 DROP TABLE IF EXISTS rental_price_history CASCADE;
 DROP TABLE IF EXISTS instrument CASCADE;
 DROP TABLE IF EXISTS student CASCADE;
 DROP TABLE IF EXISTS system_config CASCADE;
+DROP TABLE IF EXISTS rental_event CASCADE;
+DROP TABLE IF EXISTS stock_reservation CASCADE;
+DROP TABLE IF EXISTS student_instrument CASCADE;
+DROP TABLE IF EXISTS schema_version CASCADE;
+DROP SEQUENCE IF EXISTS rental_id_seq;
+DROP SCHEMA IF EXISTS rental_archive CASCADE;
 
 -- Create the person table
 CREATE TABLE person (
@@ -32,12 +56,41 @@ CREATE TABLE system_config (
     config_value INT NOT NULL
 );
 
--- Insert default system constraints
+-- Insert default system constraints. longest_rental_duration_months is the longest max_rental_duration_months there
+-- has been, see keep_longest_rental_duration.
 INSERT INTO system_config (config_type, config_value)
 VALUES
     ('max_rental_duration_months', 12),
+    ('longest_rental_duration_months', 12),
     ('max_active_rentals_per_student', 2);
 
+-- Keeps longest_rental_duration_months at the longest max_rental_duration_months there has been. Active rentals are
+-- only counted among the rentals started within longest_rental_duration_months, so that the partitions of older
+-- rentals are not read. max_rental_duration_months may be lowered while longer leases are still running, so it can
+-- not be used for that, and longest_rental_duration_months can neither be lowered nor removed.
+CREATE OR REPLACE FUNCTION keep_longest_rental_duration()
+RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP <> 'INSERT' AND OLD.config_type = 'longest_rental_duration_months'
+        AND (TG_OP = 'DELETE' OR NEW.config_type <> OLD.config_type OR NEW.config_value < OLD.config_value) THEN
+        RAISE EXCEPTION 'longest_rental_duration_months can not be lowered or removed.';
+    END IF;
+    IF TG_OP = 'DELETE' THEN
+        RETURN OLD;
+    END IF;
+    IF NEW.config_type = 'max_rental_duration_months' THEN
+        UPDATE system_config SET config_value = NEW.config_value
+        WHERE config_type = 'longest_rental_duration_months' AND config_value < NEW.config_value;
+    END IF;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_keep_longest_rental_duration
+BEFORE INSERT OR UPDATE OR DELETE ON system_config
+FOR EACH ROW
+EXECUTE FUNCTION keep_longest_rental_duration();
+
 
 -- Create the instrument table
 CREATE TABLE instrument (
@@ -58,31 +111,167 @@ CREATE TABLE rental_price_history (
     FOREIGN KEY (instrument_id) REFERENCES instrument(instrument_id) ON DELETE CASCADE
 );
 
--- Create the instrument_rental table
+-- Create the instrument_rental table, partitioned by month of rental_start_time, see create_rental_partitions. The
+-- unique constraints of a partitioned table must include rental_start_time, student_instrument enforces the others.
 CREATE TABLE instrument_rental (
-    rental_id VARCHAR(100) NOT NULL PRIMARY KEY,
+    rental_id VARCHAR(100) NOT NULL,
     rental_start_time TIMESTAMP NOT NULL,
     lease_expiry_time TIMESTAMP NOT NULL,
     rental_price_id VARCHAR(50) NOT NULL,
     instrument_id VARCHAR(50) NOT NULL,
     student_id INT NOT NULL,
+    -- Set when the instrument has been given back to stock, after termination or when the lease ran out
+    stock_released BOOLEAN NOT NULL DEFAULT false,
+    -- The stock reservation the instrument was taken from, NULL if it was taken from available_stock directly
+    reservation_id BIGINT,
+    PRIMARY KEY (rental_id, rental_start_time),
     FOREIGN KEY (rental_price_id) REFERENCES rental_price_history(rental_price_id) ON DELETE CASCADE,
     FOREIGN KEY (instrument_id) REFERENCES instrument(instrument_id) ON DELETE CASCADE,
+    FOREIGN KEY (student_id) REFERENCES student(student_id) ON DELETE CASCADE
+) PARTITION BY RANGE (rental_start_time);
+
+-- Holds the rentals of the months that have no partition yet, so that a rental is not rejected because the
+-- application has not created the partition of its month. create_rental_partitions moves them out.
+CREATE TABLE instrument_rental_default PARTITION OF instrument_rental DEFAULT;
+
+-- One row per rental, also for the rentals in archived partitions. Keeps a student from renting the same instrument
+-- twice and rental IDs unique across partitions, and finds the partition of a rental from its ID.
+CREATE TABLE student_instrument (
+    student_id INT NOT NULL,
+    instrument_id VARCHAR(50) NOT NULL,
+    rental_id VARCHAR(100) NOT NULL,
+    rental_start_time TIMESTAMP NOT NULL,
+    FOREIGN KEY (instrument_id) REFERENCES instrument(instrument_id) ON DELETE CASCADE,
     FOREIGN KEY (student_id) REFERENCES student(student_id) ON DELETE CASCADE,
-    CONSTRAINT unique_student_instrument_rental UNIQUE (student_id, instrument_id)
+    CONSTRAINT unique_student_instrument_rental PRIMARY KEY (student_id, instrument_id),
+    CONSTRAINT student_instrument_rental_id_key UNIQUE (rental_id)
+);
+
+-- Detached partitions of instrument_rental, see archive_rental_partitions
+CREATE SCHEMA rental_archive;
+
+-- Instruments taken from available_stock by an application process in one update, and handed out to its
+-- rentals without updating the instrument again. The units of a reservation that were not rented are given back
+-- when it is settled, by the process when it is done with it, or by any process once it has expired.
+CREATE TABLE stock_reservation (
+    reservation_id BIGINT GENERATED ALWAYS AS IDENTITY PRIMARY KEY,
+    instrument_id VARCHAR(50) NOT NULL,
+    units INT NOT NULL,
+    expires_at TIMESTAMP NOT NULL,
+    FOREIGN KEY (instrument_id) REFERENCES instrument(instrument_id) ON DELETE CASCADE
 );
 
+CREATE INDEX stock_reservation_expiry_idx ON stock_reservation (expires_at);
+
+-- Rental IDs are reserved by the application in blocks of 50, one nextval per block
+CREATE SEQUENCE rental_id_seq INCREMENT BY 50;
+
+-- Indexes for the instrument listing
+CREATE INDEX instrument_type_idx ON instrument (instrument_type, instrument_id)
+    INCLUDE (instrument_brand, available_stock);
+CREATE INDEX rental_price_history_current_idx ON rental_price_history (instrument_id)
+    INCLUDE (price) WHERE is_current;
+
+-- Index for counting the active rentals of a student, covers the query in check_student_rental_limit
+CREATE INDEX instrument_rental_student_expiry_idx ON instrument_rental (student_id, lease_expiry_time);
+
+-- Index for the lease expiry sweeper, only holds the rentals whose instrument is not back in stock
+CREATE INDEX instrument_rental_unreleased_expiry_idx ON instrument_rental (lease_expiry_time)
+    WHERE NOT stock_released;
+
+-- Index for counting the rentals of a stock reservation when it is settled
+CREATE INDEX instrument_rental_reservation_idx ON instrument_rental (reservation_id)
+    WHERE reservation_id IS NOT NULL;
+
+-- Creates the monthly partitions of instrument_rental from the month of p_from up to and including the month of p_to
+-- that do not exist yet, named instrument_rental_YYYY_MM. The application creates them months ahead, rentals of a
+-- month without a partition go to instrument_rental_default. A partition can not be created while the default
+-- partition holds rentals of its month, so those are moved to the new partition with the default partition
+-- detached, which fires no triggers, the rentals were checked and counted when they were inserted. Returns the
+-- number of partitions created.
+CREATE OR REPLACE FUNCTION create_rental_partitions(p_from TIMESTAMP, p_to TIMESTAMP)
+RETURNS INT AS $$
+DECLARE
+    month_start TIMESTAMP := date_trunc('month', p_from);
+    partition_name TEXT;
+    in_default BOOLEAN;
+    created INT := 0;
+BEGIN
+    WHILE month_start <= p_to LOOP
+        partition_name := 'instrument_rental_' || to_char(month_start, 'YYYY_MM');
+        IF to_regclass(partition_name) IS NULL THEN
+            SELECT EXISTS (SELECT 1 FROM instrument_rental_default WHERE rental_start_time >= month_start
+                AND rental_start_time < month_start + INTERVAL '1 month') INTO in_default;
+            IF in_default THEN
+                ALTER TABLE instrument_rental DETACH PARTITION instrument_rental_default;
+                EXECUTE format('CREATE TABLE %I (LIKE instrument_rental INCLUDING DEFAULTS)', partition_name);
+                EXECUTE format('WITH moved AS (DELETE FROM instrument_rental_default WHERE rental_start_time >= %L '
+                    || 'AND rental_start_time < %L RETURNING *) INSERT INTO %I SELECT * FROM moved',
+                    month_start, month_start + INTERVAL '1 month', partition_name);
+                EXECUTE format('ALTER TABLE instrument_rental ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                    partition_name, month_start, month_start + INTERVAL '1 month');
+                ALTER TABLE instrument_rental ATTACH PARTITION instrument_rental_default DEFAULT;
+            ELSE
+                EXECUTE format('CREATE TABLE %I PARTITION OF instrument_rental FOR VALUES FROM (%L) TO (%L)',
+                    partition_name, month_start, month_start + INTERVAL '1 month');
+            END IF;
+            created := created + 1;
+        END IF;
+        month_start := month_start + INTERVAL '1 month';
+    END LOOP;
+    RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Detaches the partitions of instrument_rental whose month ended before p_before and moves them to the
+-- rental_archive schema, unless a rental in them is still active or has not given its instrument back. Archived
+-- rentals are no longer terminated, counted or reported, but student_instrument still holds them. Detaching locks
+-- instrument_rental, so the function gives up rather than wait more than a second for rentals in progress.
+-- Returns the number of partitions archived.
+CREATE OR REPLACE FUNCTION archive_rental_partitions(p_before TIMESTAMP)
+RETURNS INT AS $$
+DECLARE
+    partition_name TEXT;
+    in_use BOOLEAN;
+    archived INT := 0;
+BEGIN
+    PERFORM set_config('lock_timeout', '1s', true);
+    FOR partition_name IN
+        SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+        WHERE i.inhparent = 'instrument_rental'::regclass
+          AND to_timestamp(substring(c.relname FROM '\d{4}_\d{2}$'), 'YYYY_MM')::TIMESTAMP + INTERVAL '1 month'
+              <= p_before
+        ORDER BY c.relname
+    LOOP
+        EXECUTE format('SELECT EXISTS (SELECT 1 FROM %I WHERE NOT stock_released OR lease_expiry_time > NOW())',
+            partition_name) INTO in_use;
+        IF NOT in_use THEN
+            EXECUTE format('ALTER TABLE instrument_rental DETACH PARTITION %I', partition_name);
+            EXECUTE format('ALTER TABLE %I SET SCHEMA rental_archive', partition_name);
+            archived := archived + 1;
+        END IF;
+    END LOOP;
+    RETURN archived;
+END;
+$$ LANGUAGE plpgsql;
+
 --the trigger and function
 CREATE OR REPLACE FUNCTION check_student_rental_limit()
 RETURNS TRIGGER AS $$
 DECLARE
     active_rentals INT;
 BEGIN
-    -- Count active rentals for the student
+    -- Lock the student, so that concurrent rentals of the same student are counted one at a time
+    PERFORM 1 FROM student WHERE student_id = NEW.student_id FOR NO KEY UPDATE;
+
+    -- Count active rentals for the student. No lease has been longer than longest_rental_duration_months, so only
+    -- the partitions of the rentals started since then are read.
     SELECT COUNT(*) INTO active_rentals
     FROM instrument_rental
     WHERE student_id = NEW.student_id
-      AND lease_expiry_time > NOW();
+      AND lease_expiry_time > LOCALTIMESTAMP
+      AND rental_start_time > LOCALTIMESTAMP - make_interval(months => (
+          SELECT config_value FROM system_config WHERE config_type = 'longest_rental_duration_months'));
 
     -- Get the maximum rentals allowed from system configuration
     IF active_rentals >= (
@@ -104,12 +293,14 @@ EXECUTE FUNCTION check_student_rental_limit();
 
 
 
--- check the rental period, which cannot exceed 12 months
+-- check the rental period, which cannot exceed max_rental_duration_months
 CREATE OR REPLACE FUNCTION check_max_rental_duration()
 RETURNS TRIGGER AS $$
+DECLARE
+    max_months INT := (SELECT config_value FROM system_config WHERE config_type = 'max_rental_duration_months');
 BEGIN
-    IF (NEW.lease_expiry_time - NEW.rental_start_time) > INTERVAL '12 months' THEN
-        RAISE EXCEPTION 'Rental duration cannot exceed 12 months. Provided duration: %', 
+    IF (NEW.lease_expiry_time - NEW.rental_start_time) > make_interval(months => max_months) THEN
+        RAISE EXCEPTION 'Rental duration cannot exceed % months. Provided duration: %', max_months,
             (NEW.lease_expiry_time - NEW.rental_start_time);
     END IF;
     RETURN NEW;
@@ -134,20 +325,47 @@ BEGIN
 END;
 $$ LANGUAGE plpgsql;
 
+-- A rental made from a stock reservation does not take from available_stock, the reservation already did
 CREATE TRIGGER trg_decrease_instrument_stock
 AFTER INSERT ON instrument_rental
 FOR EACH ROW
+WHEN (NEW.reservation_id IS NULL)
 EXECUTE FUNCTION decrease_instrument_stock();
 
+-- A rental can only be made from a stock reservation of the same instrument that has not expired. The lock keeps the
+-- reservation from being settled before the rental is committed, so that the settlement counts the rental. It does
+-- not block other rentals from the same reservation.
+CREATE OR REPLACE FUNCTION check_stock_reservation()
+RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM 1 FROM stock_reservation
+    WHERE reservation_id = NEW.reservation_id AND instrument_id = NEW.instrument_id
+      AND expires_at > LOCALTIMESTAMP
+    FOR KEY SHARE;
+    IF NOT FOUND THEN
+        RAISE EXCEPTION 'Stock reservation % of instrument % has expired.', NEW.reservation_id, NEW.instrument_id;
+    END IF;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_check_stock_reservation
+BEFORE INSERT ON instrument_rental
+FOR EACH ROW
+WHEN (NEW.reservation_id IS NOT NULL)
+EXECUTE FUNCTION check_stock_reservation();
+
 
 CREATE OR REPLACE FUNCTION increase_instrument_stock_on_termination()
 RETURNS TRIGGER AS $$
 BEGIN
 -- If lease_expiry_time is updated to the current time or earlier, it indicates that the rental has ended.
-    IF NEW.lease_expiry_time <= NOW() THEN
+-- The instrument is given back only once, also if the lease already ran out and the sweeper gave it back.
+    IF NEW.lease_expiry_time <= NOW() AND (TG_OP = 'INSERT' OR NOT OLD.stock_released) THEN
         UPDATE instrument
         SET available_stock = available_stock + 1
         WHERE instrument_id = NEW.instrument_id;
+        NEW.stock_released := true;
     END IF;
 
     RETURN NEW;
@@ -155,7 +373,7 @@ END;
 $$ LANGUAGE plpgsql;
 
 CREATE TRIGGER trg_increase_instrument_stock_on_termination
-AFTER INSERT OR UPDATE OF lease_expiry_time
+BEFORE INSERT OR UPDATE OF lease_expiry_time
 ON instrument_rental
 FOR EACH ROW
 WHEN (NEW.lease_expiry_time <= NOW())
@@ -163,6 +381,322 @@ EXECUTE FUNCTION increase_instrument_stock_on_termination();
 
 
 
+-- Rents an instrument in one round trip. The rules are checked before the insert, so that a rental that breaks one
+-- is rejected with a status instead of an exception. The insert triggers above still check them, and take the
+-- instrument from stock, so a rental made with a plain INSERT follows the same rules. The checks run again there
+-- without waiting, since the student and the instrument are locked by then.
+-- The student is locked first, so that two concurrent rentals of the same student can not both pass the limit.
+-- A NULL price ID means the current price of the instrument. Returns OK, NO_SUCH_STUDENT, DURATION_EXCEEDED,
+-- LIMIT_REACHED, NO_SUCH_INSTRUMENT, OUT_OF_STOCK or NO_CURRENT_PRICE, nothing is changed unless OK is returned.
+-- With a reservation ID the instrument is taken from that stock reservation instead of from available_stock, and
+-- RESERVATION_EXPIRED is returned if the reservation is no longer valid.
+CREATE OR REPLACE FUNCTION rent_instrument(p_rental_id VARCHAR, p_start TIMESTAMP, p_expiry TIMESTAMP,
+    p_price_id VARCHAR, p_instrument_id VARCHAR, p_student_id INT, p_reservation_id BIGINT DEFAULT NULL)
+RETURNS TEXT AS $$
+DECLARE
+    active_rentals INT;
+    stock INT;
+    price_id VARCHAR := p_price_id;
+BEGIN
+    PERFORM 1 FROM student WHERE student_id = p_student_id FOR NO KEY UPDATE;
+    IF NOT FOUND THEN
+        RETURN 'NO_SUCH_STUDENT';
+    END IF;
+
+    IF p_expiry - p_start > make_interval(months => (
+        SELECT config_value FROM system_config WHERE config_type = 'max_rental_duration_months'
+    )) THEN
+        RETURN 'DURATION_EXCEEDED';
+    END IF;
+
+    SELECT COUNT(*) INTO active_rentals
+    FROM instrument_rental
+    WHERE student_id = p_student_id
+      AND lease_expiry_time > LOCALTIMESTAMP
+      AND rental_start_time > LOCALTIMESTAMP - make_interval(months => (
+          SELECT config_value FROM system_config WHERE config_type = 'longest_rental_duration_months'));
+    IF active_rentals >= (
+        SELECT config_value FROM system_config WHERE config_type = 'max_active_rentals_per_student'
+    ) THEN
+        RETURN 'LIMIT_REACHED';
+    END IF;
+
+    IF price_id IS NULL THEN
+        SELECT rental_price_id INTO price_id
+        FROM rental_price_history
+        WHERE instrument_id = p_instrument_id AND is_current;
+    END IF;
+
+    IF p_reservation_id IS NOT NULL THEN
+        -- Locked like trg_check_stock_reservation locks it
+        PERFORM 1 FROM stock_reservation
+        WHERE reservation_id = p_reservation_id AND instrument_id = p_instrument_id
+          AND expires_at > LOCALTIMESTAMP
+        FOR KEY SHARE;
+        IF NOT FOUND THEN
+            RETURN 'RESERVATION_EXPIRED';
+        END IF;
+    ELSE
+        -- Locked until the insert trigger has taken the instrument from stock
+        SELECT available_stock INTO stock FROM instrument WHERE instrument_id = p_instrument_id FOR NO KEY UPDATE;
+        IF NOT FOUND THEN
+            RETURN 'NO_SUCH_INSTRUMENT';
+        ELSIF stock <= 0 THEN
+            RETURN 'OUT_OF_STOCK';
+        END IF;
+    END IF;
+    IF price_id IS NULL THEN
+        RETURN 'NO_CURRENT_PRICE';
+    END IF;
+
+    INSERT INTO instrument_rental (rental_id, rental_start_time, lease_expiry_time, rental_price_id,
+        instrument_id, student_id, reservation_id)
+    VALUES (p_rental_id, p_start, p_expiry, price_id, p_instrument_id, p_student_id, p_reservation_id);
+
+    RETURN 'OK';
+END;
+$$ LANGUAGE plpgsql;
+
+-- Rents several instruments to one student with the checks of rent_instrument, but checks the student, the duration
+-- and the rental limit once for the whole basket, and inserts the rentals with one statement. Like for
+-- rent_instrument, the insert triggers check each rental again and take its instrument from stock.
+-- Returns the status of each instrument in the order of the arrays. Nothing is changed unless all of them are OK, the
+-- caller is expected to roll back if any is not.
+CREATE OR REPLACE FUNCTION rent_basket(p_student_id INT, p_start TIMESTAMP, p_expiry TIMESTAMP,
+    p_rental_ids VARCHAR[], p_price_ids VARCHAR[], p_instrument_ids VARCHAR[])
+RETURNS TABLE (n BIGINT, status TEXT) AS $$
+DECLARE
+    basket_status TEXT;
+    active_rentals INT;
+    statuses TEXT[];
+    price_ids VARCHAR[];
+BEGIN
+    PERFORM 1 FROM student WHERE student_id = p_student_id FOR NO KEY UPDATE;
+    IF NOT FOUND THEN
+        basket_status := 'NO_SUCH_STUDENT';
+    ELSIF p_expiry - p_start > make_interval(months => (
+        SELECT config_value FROM system_config WHERE config_type = 'max_rental_duration_months'
+    )) THEN
+        basket_status := 'DURATION_EXCEEDED';
+    ELSE
+        SELECT COUNT(*) INTO active_rentals
+        FROM instrument_rental
+        WHERE student_id = p_student_id
+          AND lease_expiry_time > LOCALTIMESTAMP
+          AND rental_start_time > LOCALTIMESTAMP - make_interval(months => (
+              SELECT config_value FROM system_config WHERE config_type = 'longest_rental_duration_months'));
+        IF active_rentals + cardinality(p_instrument_ids) > (
+            SELECT config_value FROM system_config WHERE config_type = 'max_active_rentals_per_student'
+        ) THEN
+            basket_status := 'LIMIT_REACHED';
+        END IF;
+    END IF;
+    IF basket_status IS NOT NULL THEN
+        RETURN QUERY SELECT b.n, basket_status FROM unnest(p_instrument_ids) WITH ORDINALITY AS b(instrument_id, n);
+        RETURN;
+    END IF;
+
+    -- Locked in the order of their IDs, like rent_instrument calls of a rental group lock them
+    PERFORM 1 FROM instrument WHERE instrument_id = ANY(p_instrument_ids) ORDER BY instrument_id FOR NO KEY UPDATE;
+
+    SELECT array_agg(CASE
+            WHEN i.instrument_id IS NULL THEN 'NO_SUCH_INSTRUMENT'
+            WHEN i.available_stock < b.units THEN 'OUT_OF_STOCK'
+            WHEN COALESCE(b.price_id, p.rental_price_id) IS NULL THEN 'NO_CURRENT_PRICE'
+            ELSE 'OK'
+        END ORDER BY b.n),
+        array_agg(COALESCE(b.price_id, p.rental_price_id) ORDER BY b.n)
+    INTO statuses, price_ids
+    FROM (
+        SELECT u.*, COUNT(*) OVER (PARTITION BY u.instrument_id) AS units
+        FROM unnest(p_price_ids, p_instrument_ids) WITH ORDINALITY AS u(price_id, instrument_id, n)
+    ) b
+    LEFT JOIN instrument i ON i.instrument_id = b.instrument_id
+    LEFT JOIN rental_price_history p ON p.instrument_id = b.instrument_id AND p.is_current;
+
+    IF 'OK' = ALL(statuses) THEN
+        INSERT INTO instrument_rental (rental_id, rental_start_time, lease_expiry_time, rental_price_id,
+            instrument_id, student_id)
+        SELECT r.rental_id, p_start, p_expiry, r.price_id, r.instrument_id, p_student_id
+        FROM unnest(p_rental_ids, price_ids, p_instrument_ids) AS r(rental_id, price_id, instrument_id);
+    END IF;
+
+    RETURN QUERY SELECT s.n, s.status FROM unnest(statuses) WITH ORDINALITY AS s(status, n);
+END;
+$$ LANGUAGE plpgsql;
+
+-- Takes up to p_max_units instruments from stock into a new reservation that expires after p_ttl_millis, but never
+-- more than half of the stock, so that other processes also get some. Returns no reservation if the instrument is out
+-- of stock or does not exist.
+CREATE OR REPLACE FUNCTION claim_stock(p_instrument_id VARCHAR, p_max_units INT, p_ttl_millis BIGINT,
+    OUT reservation_id BIGINT, OUT units INT)
+AS $$
+DECLARE
+    stock INT;
+BEGIN
+    SELECT available_stock INTO stock FROM instrument WHERE instrument_id = p_instrument_id FOR NO KEY UPDATE;
+    IF stock IS NULL OR stock <= 0 THEN
+        RETURN;
+    END IF;
+    units := LEAST(p_max_units, GREATEST(1, stock / 2));
+    UPDATE instrument SET available_stock = available_stock - units WHERE instrument_id = p_instrument_id;
+    INSERT INTO stock_reservation (instrument_id, units, expires_at)
+    VALUES (p_instrument_id, units, LOCALTIMESTAMP + p_ttl_millis * INTERVAL '1 millisecond')
+    RETURNING stock_reservation.reservation_id INTO reservation_id;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Gives back the units of the specified reservations, and of all expired ones, that no rental was made from. The
+-- reservations are locked first, in a statement of their own, which waits for the rentals in progress that use them.
+-- The rentals are counted by the next statement, which sees those rentals once they are committed.
+CREATE OR REPLACE FUNCTION settle_stock_reservations(p_reservation_ids BIGINT[])
+RETURNS INT AS $$
+DECLARE
+    settled BIGINT[];
+BEGIN
+    SELECT array_agg(r.reservation_id) INTO settled
+    FROM (
+        SELECT reservation_id FROM stock_reservation
+        WHERE reservation_id = ANY(p_reservation_ids) OR expires_at <= LOCALTIMESTAMP
+        ORDER BY reservation_id
+        FOR UPDATE
+    ) r;
+    IF settled IS NULL THEN
+        RETURN 0;
+    END IF;
+
+    UPDATE instrument i
+    SET available_stock = i.available_stock + u.unused
+    FROM (
+        SELECT s.instrument_id,
+            SUM(s.units - (SELECT COUNT(*) FROM instrument_rental r WHERE r.reservation_id = s.reservation_id))
+                AS unused
+        FROM stock_reservation s
+        WHERE s.reservation_id = ANY(settled)
+        GROUP BY s.instrument_id
+    ) u
+    WHERE i.instrument_id = u.instrument_id AND u.unused <> 0;
+
+    DELETE FROM stock_reservation WHERE reservation_id = ANY(settled);
+    RETURN cardinality(settled);
+END;
+$$ LANGUAGE plpgsql;
+
+-- Tells the price cache of the application which instruments got a new current price
+CREATE OR REPLACE FUNCTION notify_rental_price_changed()
+RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        PERFORM pg_notify('rental_price_changed', OLD.instrument_id);
+    END IF;
+    IF TG_OP <> 'DELETE' AND (TG_OP = 'INSERT' OR NEW.instrument_id <> OLD.instrument_id) THEN
+        PERFORM pg_notify('rental_price_changed', NEW.instrument_id);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_notify_rental_price_changed
+AFTER INSERT OR UPDATE OR DELETE ON rental_price_history
+FOR EACH ROW
+EXECUTE FUNCTION notify_rental_price_changed();
+
+-- Tells the application to reload the rental rules it has cached
+CREATE OR REPLACE FUNCTION notify_system_config_changed()
+RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM pg_notify('system_config_changed', '');
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_notify_system_config_changed
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON system_config
+FOR EACH STATEMENT
+EXECUTE FUNCTION notify_system_config_changed();
+
+-- Tells the application which students may have fewer active rentals than it has cached. New rentals only raise
+-- the count and are not notified, leases that run out are known to the application from their expiry time.
+CREATE OR REPLACE FUNCTION notify_student_rentals_released()
+RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM pg_notify('student_rentals_released', OLD.student_id::TEXT);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_notify_student_rentals_shortened
+AFTER UPDATE OF lease_expiry_time, student_id ON instrument_rental
+FOR EACH ROW
+WHEN (NEW.lease_expiry_time < OLD.lease_expiry_time OR NEW.student_id <> OLD.student_id)
+EXECUTE FUNCTION notify_student_rentals_released();
+
+CREATE TRIGGER trg_notify_student_rentals_deleted
+AFTER DELETE ON instrument_rental
+FOR EACH ROW
+EXECUTE FUNCTION notify_student_rentals_released();
+
+-- Keeps student_instrument in step with instrument_rental. Archiving a partition does not fire it.
+CREATE OR REPLACE FUNCTION record_student_instrument()
+RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO student_instrument (student_id, instrument_id, rental_id, rental_start_time)
+        VALUES (NEW.student_id, NEW.instrument_id, NEW.rental_id, NEW.rental_start_time);
+    ELSIF TG_OP = 'UPDATE' THEN
+        UPDATE student_instrument
+        SET student_id = NEW.student_id, instrument_id = NEW.instrument_id, rental_id = NEW.rental_id,
+            rental_start_time = NEW.rental_start_time
+        WHERE rental_id = OLD.rental_id;
+    ELSE
+        DELETE FROM student_instrument WHERE rental_id = OLD.rental_id;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_record_student_instrument
+AFTER INSERT OR DELETE OR UPDATE OF student_id, instrument_id, rental_id, rental_start_time ON instrument_rental
+FOR EACH ROW
+EXECUTE FUNCTION record_student_instrument();
+
+-- Tells the search index of the application which instruments were added, changed or removed. The payload is the ID
+-- of a removed instrument, or the ID, type and brand of an added or changed one, separated by tabs. Stock changes are
+-- not notified, since stock is not indexed.
+CREATE OR REPLACE FUNCTION notify_instrument_changed()
+RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'DELETE' OR (TG_OP = 'UPDATE' AND NEW.instrument_id <> OLD.instrument_id) THEN
+        PERFORM pg_notify('instrument_changed', OLD.instrument_id);
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        PERFORM pg_notify('instrument_changed',
+            NEW.instrument_id || E'\t' || NEW.instrument_type || E'\t' || NEW.instrument_brand);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_notify_instrument_changed
+AFTER INSERT OR DELETE OR UPDATE OF instrument_id, instrument_type, instrument_brand ON instrument
+FOR EACH ROW
+EXECUTE FUNCTION notify_instrument_changed();
+
+-- An empty payload makes the search index load all instruments again
+CREATE OR REPLACE FUNCTION notify_instruments_truncated()
+RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM pg_notify('instrument_changed', '');
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_notify_instruments_truncated
+AFTER TRUNCATE ON instrument
+FOR EACH STATEMENT
+EXECUTE FUNCTION notify_instruments_truncated();
+
+
 -- Insert data into person table (studenter)
 INSERT INTO person (person_id, person_number, first_name, last_name)
 VALUES 
@@ -235,8 +769,120 @@ VALUES
 ('RP004', 'INSTR004', '2023-03-01', '2026-12-31', TRUE, 180.00),
 ('RP005', 'INSTR005', '2023-04-01', '2026-12-31', TRUE, 200.00);
 
--- Insert data into instrument_rental table
+-- Insert data into instrument_rental table, into partitions from the month of the first rental up to three months
+-- ahead
+SELECT create_rental_partitions(TIMESTAMP '2023-11-01', LOCALTIMESTAMP + INTERVAL '3 months');
 INSERT INTO instrument_rental (rental_id, rental_start_time, lease_expiry_time, rental_price_id, instrument_id, student_id)
 VALUES
 ('R001', '2023-11-20 10:00:00', '2023-12-20 10:00:00', 'RP001', 'INSTR001', 1),
-('R002', '2024-11-21 10:00:00', '2025-06-21 10:00:00', 'RP002', 'INSTR002', 2);
\ No newline at end of file
+('R002', '2024-11-21 10:00:00', '2025-06-21 10:00:00', 'RP002', 'INSTR002', 2);
+
+-- Let the rental ID sequence continue after the inserted rentals
+SELECT setval('rental_id_seq', COALESCE(MAX(SUBSTRING(rental_id FROM 2)::INT), 0) + 1, false)
+FROM instrument_rental;
+
+-- Reports, so that they do not scan instrument_rental each time they are read. The application refreshes them
+-- concurrently, readers are not blocked while that happens. A unique index is required for that.
+CREATE MATERIALIZED VIEW instrument_type_utilization AS
+SELECT i.instrument_type,
+    COUNT(*) AS instruments,
+    SUM(i.available_stock) AS in_stock,
+    COALESCE(SUM(r.active_rentals), 0) AS active_rentals,
+    COALESCE(SUM(r.total_rentals), 0) AS total_rentals,
+    LOCALTIMESTAMP AS refreshed_at
+FROM instrument i
+LEFT JOIN (
+    SELECT instrument_id, COUNT(*) AS total_rentals,
+        COUNT(*) FILTER (WHERE lease_expiry_time > LOCALTIMESTAMP) AS active_rentals
+    FROM instrument_rental
+    GROUP BY instrument_id
+) r ON r.instrument_id = i.instrument_id
+GROUP BY i.instrument_type;
+
+CREATE UNIQUE INDEX instrument_type_utilization_type_idx ON instrument_type_utilization (instrument_type);
+
+-- A rental is billed its monthly price for each calendar month its lease overlaps
+CREATE MATERIALIZED VIEW monthly_rental_revenue AS
+SELECT CAST(m.month AS DATE) AS month,
+    COUNT(*) AS billed_rentals,
+    SUM(p.price) AS revenue,
+    LOCALTIMESTAMP AS refreshed_at
+FROM instrument_rental r
+JOIN rental_price_history p ON p.rental_price_id = r.rental_price_id
+CROSS JOIN LATERAL generate_series(date_trunc('month', r.rental_start_time),
+    r.lease_expiry_time - INTERVAL '1 second', INTERVAL '1 month') AS m(month)
+GROUP BY m.month;
+
+CREATE UNIQUE INDEX monthly_rental_revenue_month_idx ON monthly_rental_revenue (month);
+
+-- Outbox of rental and stock changes, written by the triggers below in the transaction that made the change. The
+-- application publishes the events to its subscribers and deletes them. Created after the data above, so that the
+-- inserted data is not published.
+CREATE TABLE rental_event (
+    event_id BIGINT GENERATED ALWAYS AS IDENTITY PRIMARY KEY,
+    -- RENTED, TERMINATED, LEASE_CHANGED, DELETED or STOCK_CHANGED
+    event_type VARCHAR(20) NOT NULL,
+    instrument_id VARCHAR(50) NOT NULL,
+    rental_id VARCHAR(100),
+    student_id INT,
+    lease_expiry_time TIMESTAMP,
+    available_stock INT,
+    created_at TIMESTAMP NOT NULL DEFAULT LOCALTIMESTAMP
+);
+
+-- Identical notifications in one transaction are delivered once, so the relay is woken once per transaction
+CREATE OR REPLACE FUNCTION record_rental_event()
+RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        INSERT INTO rental_event (event_type, instrument_id, rental_id, student_id, lease_expiry_time)
+        VALUES ('DELETED', OLD.instrument_id, OLD.rental_id, OLD.student_id, OLD.lease_expiry_time);
+    ELSE
+        INSERT INTO rental_event (event_type, instrument_id, rental_id, student_id, lease_expiry_time)
+        VALUES (CASE
+                WHEN TG_OP = 'INSERT' THEN 'RENTED'
+                WHEN NEW.lease_expiry_time <= NOW() THEN 'TERMINATED'
+                ELSE 'LEASE_CHANGED'
+            END,
+            NEW.instrument_id, NEW.rental_id, NEW.student_id, NEW.lease_expiry_time);
+    END IF;
+    PERFORM pg_notify('rental_event', '');
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_record_rental_event
+AFTER INSERT OR DELETE ON instrument_rental
+FOR EACH ROW
+EXECUTE FUNCTION record_rental_event();
+
+CREATE TRIGGER trg_record_lease_changed_event
+AFTER UPDATE OF lease_expiry_time ON instrument_rental
+FOR EACH ROW
+WHEN (NEW.lease_expiry_time IS DISTINCT FROM OLD.lease_expiry_time)
+EXECUTE FUNCTION record_rental_event();
+
+CREATE OR REPLACE FUNCTION record_stock_event()
+RETURNS TRIGGER AS $$
+BEGIN
+    INSERT INTO rental_event (event_type, instrument_id, available_stock)
+    VALUES ('STOCK_CHANGED', NEW.instrument_id, NEW.available_stock);
+    PERFORM pg_notify('rental_event', '');
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_record_stock_event
+AFTER UPDATE OF available_stock ON instrument
+FOR EACH ROW
+WHEN (NEW.available_stock IS DISTINCT FROM OLD.available_stock)
+EXECUTE FUNCTION record_stock_event();
+
+-- The version of this schema, checked by the application when it starts. Created last, so that a script that failed
+-- half way leaves no version behind. Increase it with every change the application depends on.
+CREATE TABLE schema_version (
+    version INT NOT NULL PRIMARY KEY,
+    installed_at TIMESTAMP NOT NULL DEFAULT LOCALTIMESTAMP
+);
+
+INSERT INTO schema_version (version) VALUES (1);
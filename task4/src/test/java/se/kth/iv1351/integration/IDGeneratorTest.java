@@ -0,0 +1,31 @@
+package se.kth.iv1351.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.soundgood.jdbc.model.IDGenerator;
+
+public class IDGeneratorTest {
+
+    @Test
+    public void testFormatIdPadsToThreeDigits() {
+        assertEquals("R007", IDGenerator.formatId(7));
+        assertEquals("R042", IDGenerator.formatId(42));
+        assertEquals("R512", IDGenerator.formatId(512));
+        assertEquals("R123456", IDGenerator.formatId(123456));
+    }
+
+    @Test
+    public void testFormatIdRejectsNegativeNumbers() {
+        assertThrows(IllegalArgumentException.class, () -> IDGenerator.formatId(-1));
+    }
+
+    @Test
+    public void testParseIdReversesFormatId() {
+        assertEquals(7, IDGenerator.parseId(IDGenerator.formatId(7)));
+        assertEquals(1234, IDGenerator.parseId(IDGenerator.formatId(1234)));
+        assertEquals(0, IDGenerator.parseId(IDGenerator.formatId(0)));
+    }
+}
@@ -0,0 +1,160 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.soundgood.jdbc.controller.AsyncController;
+import se.kth.iv1351.soundgood.jdbc.controller.Controller;
+import se.kth.iv1351.soundgood.jdbc.model.InstrumentException;
+import se.kth.iv1351.soundgood.jdbc.model.RentalException;
+import se.kth.iv1351.soundgood.jdbc.model.RentalResult;
+
+/**
+ * Checks that <code>AsyncController</code> makes the rentals that wait for a thread as one group, and makes them one
+ * by one if the group fails. The controller has a single thread, which is kept busy by a rental that waits for the
+ * test to unlock its student, so that the rentals requested meanwhile are grouped. The tests are skipped if there is
+ * no local soundgood_school database, see <code>TestDatabase</code>.
+ */
+public class AsyncControllerTest {
+    private static final int FIRST_STUDENT = TestDatabase.FIRST_STUDENT_ID;
+    private static final int GROUPED_STUDENTS = 4;
+    private static final long LOCK_WAIT_MILLIS = 10_000;
+
+    private Connection conn;
+    private SoundgoodDAO dao;
+    private AsyncController asyncCtrl;
+
+    @BeforeEach
+    public void startController() throws SQLException {
+        conn = TestDatabase.connect();
+        assumeTrue(conn != null, "No local soundgood_school database.");
+        TestDatabase.removeTestData(conn);
+        for (int i = 0; i <= GROUPED_STUDENTS; i++) {
+            TestDatabase.addStudent(conn, FIRST_STUDENT + i);
+        }
+        ConnectionPool pool = new ConnectionPool(TestDatabase.url(), TestDatabase.user(), TestDatabase.password(), 0,
+                1, 5000, true);
+        dao = new SoundgoodDAO(pool, new DataSourceConfig(new Properties()));
+        asyncCtrl = new AsyncController(new Controller(dao));
+    }
+
+    @AfterEach
+    public void stopController() throws SQLException {
+        if (asyncCtrl != null) {
+            asyncCtrl.close();
+        }
+        if (dao != null) {
+            dao.close();
+        }
+        if (conn != null) {
+            conn.setAutoCommit(true);
+            TestDatabase.removeTestData(conn);
+            conn.close();
+        }
+    }
+
+    /**
+     * The rentals that waited are made in one transaction, so they all start at the same time.
+     */
+    @Test
+    public void testWaitingRentalsAreGrouped() throws Exception {
+        String instrument = TestDatabase.addInstrument(conn, "A", GROUPED_STUDENTS + 1);
+
+        List<CompletableFuture<RentalResult>> rentals = rentWhileThreadIsBusy(instrument, instrument);
+        for (CompletableFuture<RentalResult> rental : rentals) {
+            assertTrue(rental.get().isRented(), rental.get().toString());
+        }
+        assertEquals(0, TestDatabase.stockOf(conn, instrument));
+        assertEquals(1, TestDatabase.queryInt(conn, "SELECT COUNT(DISTINCT rental_start_time) FROM instrument_rental "
+                + "WHERE instrument_id = ? AND student_id > ?", instrument, FIRST_STUDENT));
+    }
+
+    /**
+     * One of the waiting rentals is of an instrument its student has rented before, which fails the whole group. The
+     * rentals are then made one by one, and only that rental fails.
+     */
+    @Test
+    public void testFailedGroupFallsBackToSingleRentals() throws Exception {
+        String instrument = TestDatabase.addInstrument(conn, "A", GROUPED_STUDENTS + 1);
+        String rentedBefore = TestDatabase.addInstrument(conn, "B", 1);
+        int failingStudent = FIRST_STUDENT + GROUPED_STUDENTS;
+        TestDatabase.execute(conn, "INSERT INTO instrument_rental (rental_id, rental_start_time, lease_expiry_time, "
+                + "rental_price_id, instrument_id, student_id) VALUES ('TESTR1', LOCALTIMESTAMP - INTERVAL '2 days', "
+                + "LOCALTIMESTAMP - INTERVAL '1 day', ?, ?, ?)", rentedBefore + "-P", rentedBefore, failingStudent);
+
+        List<CompletableFuture<RentalResult>> rentals = rentWhileThreadIsBusy(instrument, rentedBefore);
+        for (CompletableFuture<RentalResult> rental : rentals.subList(0, GROUPED_STUDENTS)) {
+            assertTrue(rental.get().isRented(), rental.get().toString());
+        }
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> rentals.get(GROUPED_STUDENTS).get());
+        assertTrue(failure.getCause() instanceof RentalException, failure.getCause().toString());
+        assertEquals(1, TestDatabase.stockOf(conn, instrument));
+        assertEquals(1, TestDatabase.rentalsOf(conn, failingStudent));
+    }
+
+    @Test
+    public void testCurrentPriceIsFound() throws Exception {
+        String instrument = TestDatabase.addInstrument(conn, "A", 1);
+
+        assertEquals(100, asyncCtrl.findCurrentPrice(instrument).get());
+    }
+
+    @Test
+    public void testMissingPriceFails() {
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> asyncCtrl.findCurrentPrice("TESTMissing").get());
+        assertTrue(failure.getCause() instanceof InstrumentException, failure.getCause().toString());
+    }
+
+    /**
+     * Keeps the only thread busy with a rental of the first student, requests a rental of <code>instrument</code> for
+     * each of the other students but the last, and one of <code>lastInstrument</code> for the last, then lets the
+     * first rental finish.
+     *
+     * @return The rentals of the other students, in the order of the students.
+     */
+    private List<CompletableFuture<RentalResult>> rentWhileThreadIsBusy(String instrument, String lastInstrument)
+            throws Exception {
+        conn.setAutoCommit(false);
+        TestDatabase.execute(conn, "UPDATE student SET skill_level = skill_level WHERE student_id = ?", FIRST_STUDENT);
+        CompletableFuture<RentalResult> busy = asyncCtrl.createRental(instrument, FIRST_STUDENT, null);
+        awaitRentalWaitingForLock();
+
+        List<CompletableFuture<RentalResult>> rentals = new ArrayList<>();
+        for (int i = 1; i < GROUPED_STUDENTS; i++) {
+            rentals.add(asyncCtrl.createRental(instrument, FIRST_STUDENT + i, null));
+        }
+        rentals.add(asyncCtrl.createRental(lastInstrument, FIRST_STUDENT + GROUPED_STUDENTS, null));
+        conn.commit();
+        conn.setAutoCommit(true);
+
+        assertTrue(busy.get().isRented(), busy.get().toString());
+        rentals.add(0, busy);
+        return rentals;
+    }
+
+    private void awaitRentalWaitingForLock() throws Exception {
+        long deadline = System.currentTimeMillis() + LOCK_WAIT_MILLIS;
+        try (Connection observer = TestDatabase.connect()) {
+            while (TestDatabase.queryInt(observer, "SELECT COUNT(*) FROM pg_stat_activity WHERE wait_event_type = "
+                    + "'Lock' AND query LIKE '%rent_instrument%'") == 0) {
+                assertTrue(System.currentTimeMillis() < deadline, "The rental did not wait for the student.");
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.soundgood.jdbc.model.BulkResult;
+import se.kth.iv1351.soundgood.jdbc.model.RentalRequest;
+
+/**
+ * Checks the batched rentals of <code>SoundgoodDAO.createRentals</code>. The tests are skipped if there is no local
+ * soundgood_school database, see <code>TestDatabase</code>.
+ */
+public class BulkRentalTest {
+    private static final int FIRST_STUDENT = TestDatabase.FIRST_STUDENT_ID;
+    private static final int STUDENTS = 4;
+    private static final int IMPORTS = 4;
+
+    private Connection conn;
+    private SoundgoodDAO dao;
+    private int maxActiveRentals;
+
+    @BeforeEach
+    public void addStudents() throws SQLException {
+        conn = TestDatabase.connect();
+        assumeTrue(conn != null, "No local soundgood_school database.");
+        TestDatabase.removeTestData(conn);
+        for (int i = 0; i < STUDENTS; i++) {
+            TestDatabase.addStudent(conn, FIRST_STUDENT + i);
+        }
+        maxActiveRentals = TestDatabase.queryInt(conn,
+                "SELECT config_value FROM system_config WHERE config_type = 'max_active_rentals_per_student'");
+        ConnectionPool pool = new ConnectionPool(TestDatabase.url(), TestDatabase.user(), TestDatabase.password(), 0,
+                IMPORTS, 5000, true);
+        dao = new SoundgoodDAO(pool, new DataSourceConfig(new Properties()));
+    }
+
+    @AfterEach
+    public void removeStudents() throws SQLException {
+        if (dao != null) {
+            dao.close();
+        }
+        if (conn != null) {
+            TestDatabase.removeTestData(conn);
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testFailingRowsDoNotStopTheChunk() throws Exception {
+        String instrument = TestDatabase.addInstrument(conn, "A", 2);
+        List<RentalRequest> rentals = List.of(new RentalRequest(instrument, FIRST_STUDENT, instrument + "-P"),
+                new RentalRequest(instrument, FIRST_STUDENT - 1, instrument + "-P"),
+                new RentalRequest(instrument, FIRST_STUDENT + 1, instrument + "-P"),
+                new RentalRequest(instrument, FIRST_STUDENT + 2, instrument + "-P"));
+
+        List<BulkResult> results = dao.createRentals(rentals, rentals.size());
+        assertNull(results.get(0).getFailureMessage());
+        assertNotNull(results.get(1).getFailureMessage());
+        assertNull(results.get(2).getFailureMessage());
+        assertEquals(SoundgoodDAO.OUT_OF_STOCK_MSG, results.get(3).getFailureMessage());
+        assertEquals(0, TestDatabase.stockOf(conn, instrument));
+    }
+
+    /**
+     * Imports that rent for the same students, in different orders, neither deadlock nor pass the rental limit.
+     */
+    @Test
+    public void testConcurrentImportsStayWithinLimit() throws Exception {
+        List<RentalRequest> rentals = new ArrayList<>();
+        for (int i = 0; i <= maxActiveRentals; i++) {
+            String instrument = TestDatabase.addInstrument(conn, "A" + i, IMPORTS * STUDENTS);
+            for (int student = 0; student < STUDENTS; student++) {
+                rentals.add(new RentalRequest(instrument, FIRST_STUDENT + student, instrument + "-P"));
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(IMPORTS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<BulkResult>>> imports = new ArrayList<>();
+        try {
+            for (int i = 0; i < IMPORTS; i++) {
+                List<RentalRequest> shuffled = new ArrayList<>(rentals);
+                Collections.shuffle(shuffled);
+                imports.add(executor.submit(() -> {
+                    start.await();
+                    return dao.createRentals(shuffled, STUDENTS);
+                }));
+            }
+            start.countDown();
+            int rented = 0;
+            for (Future<List<BulkResult>> results : imports) {
+                for (BulkResult result : results.get()) {
+                    rented += result.getRentalID() != null ? 1 : 0;
+                }
+            }
+            assertEquals(maxActiveRentals * STUDENTS, rented);
+            for (int student = 0; student < STUDENTS; student++) {
+                assertEquals(maxActiveRentals, TestDatabase.rentalsOf(conn, FIRST_STUDENT + student));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.soundgood.jdbc.model.Instrument;
+
+public class InstrumentIdentityMapTest {
+    @Test
+    public void testUnchangedInstrumentIsShared() {
+        InstrumentIdentityMap map = new InstrumentIdentityMap(10);
+        Instrument first = map.get(new String("INSTR001"), "Guitar", "Yamaha", 5, 100.0);
+        assertSame(first, map.get(new String("INSTR001"), new String("Guitar"), "Yamaha", 5, 100.0));
+    }
+
+    @Test
+    public void testChangedInstrumentIsReplaced() {
+        InstrumentIdentityMap map = new InstrumentIdentityMap(10);
+        Instrument first = map.get("INSTR001", "Guitar", "Yamaha", 5, 100.0);
+        Instrument rented = map.get(new String("INSTR001"), new String("Guitar"), "Yamaha", 4, 100.0);
+        assertNotSame(first, rented);
+        assertEquals(4, rented.getInstrumentsInStock());
+        assertSame(first.getInstrumentID(), rented.getInstrumentID());
+        assertSame(first.getInstrumentType(), rented.getInstrumentType());
+        assertSame(rented, map.get("INSTR001", "Guitar", "Yamaha", 4, 100.0));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        InstrumentIdentityMap map = new InstrumentIdentityMap(2);
+        Instrument guitar = map.get("INSTR001", "Guitar", "Yamaha", 5, 100.0);
+        map.get("INSTR002", "Piano", "Roland", 3, 120.0);
+        map.get("INSTR001", "Guitar", "Yamaha", 5, 100.0);
+        map.get("INSTR003", "Violin", "Stradivarius", 2, 150.0);
+        assertEquals(2, map.size());
+        assertSame(guitar, map.get("INSTR001", "Guitar", "Yamaha", 5, 100.0));
+    }
+}
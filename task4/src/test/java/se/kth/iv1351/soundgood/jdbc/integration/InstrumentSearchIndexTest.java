@@ -0,0 +1,85 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.soundgood.jdbc.model.InstrumentMatch;
+
+public class InstrumentSearchIndexTest {
+    private InstrumentSearchIndex index;
+
+    @BeforeEach
+    public void loadIndex() {
+        index = new InstrumentSearchIndex(new DBNotificationListener(null));
+        long generation = index.beginLoad();
+        index.finishLoad(Arrays.asList(
+                new String[] { "INSTR001", "Guitar", "Yamaha" },
+                new String[] { "INSTR002", "Bass Guitar", "Fender" },
+                new String[] { "INSTR003", "Guitarron", "Gibson" },
+                new String[] { "INSTR004", "Flute", "Yamaha" }), generation);
+    }
+
+    @Test
+    public void testExactBeforePrefix() {
+        assertEquals(Arrays.asList("INSTR001", "INSTR002", "INSTR003"), ids(index.search("guitar", 0, 10)));
+    }
+
+    @Test
+    public void testTypoOnlyWhenNothingElseMatches() {
+        assertEquals(Arrays.asList("INSTR001", "INSTR002"), ids(index.search("gitar", 0, 10)));
+        assertEquals(Arrays.asList("INSTR004"), ids(index.search("yamaha fluet", 0, 10)));
+        assertTrue(index.search("gtr", 0, 10).isEmpty());
+    }
+
+    @Test
+    public void testAllWordsMustMatch() {
+        assertEquals(Arrays.asList("INSTR001"), ids(index.search("Yamaha, GUI", 0, 10)));
+        assertTrue(index.search("fender flute", 0, 10).isEmpty());
+    }
+
+    @Test
+    public void testPages() {
+        assertEquals(Arrays.asList("INSTR002"), ids(index.search("guitar", 1, 1)));
+        assertTrue(index.search("guitar", 3, 10).isEmpty());
+    }
+
+    @Test
+    public void testChangesAreApplied() {
+        index.notified("INSTR005\tDrums\tPearl");
+        index.notified("INSTR001\tUkulele\tYamaha");
+        index.notified("INSTR002");
+        assertEquals(Arrays.asList("INSTR005"), ids(index.search("drum", 0, 10)));
+        assertEquals(Arrays.asList("INSTR003"), ids(index.search("guitar", 0, 10)));
+        assertEquals(Arrays.asList("INSTR001"), ids(index.search("ukulele", 0, 10)));
+    }
+
+    @Test
+    public void testChangesDuringLoadAreKept() {
+        long generation = index.beginLoad();
+        index.notified("INSTR009\tHarp\tSalvi");
+        index.finishLoad(new ArrayList<>(), generation);
+        assertTrue(index.isLoaded());
+        assertEquals(Arrays.asList("INSTR009"), ids(index.search("harp", 0, 10)));
+
+        generation = index.beginLoad();
+        index.resynchronize();
+        index.finishLoad(new ArrayList<>(), generation);
+        assertFalse(index.isLoaded());
+    }
+
+    private static List<String> ids(List<InstrumentMatch> matches) {
+        List<String> ids = new ArrayList<>();
+        for (InstrumentMatch match : matches) {
+            ids.add(match.getInstrumentID());
+        }
+        return ids;
+    }
+}
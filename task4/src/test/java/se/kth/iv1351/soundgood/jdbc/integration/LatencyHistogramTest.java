@@ -0,0 +1,49 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram("empty");
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getP99Micros());
+        assertEquals(0, histogram.getMeanMicros());
+    }
+
+    @Test
+    public void testBucketsCoverValues() {
+        for (long value : new long[] { 0, 1, 31, 32, 33, 63, 64, 1000, 123_456_789, Long.MAX_VALUE }) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(LatencyHistogram.lowestValueOf(bucket) <= value, "Bucket starts after " + value);
+            assertTrue(bucket == LatencyHistogram.bucketOf(Long.MAX_VALUE)
+                    || LatencyHistogram.lowestValueOf(bucket + 1) > value, "Bucket ends before " + value);
+        }
+    }
+
+    @Test
+    public void testPercentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram("uniform");
+        for (long micros = 1; micros <= 10_000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(5_000, histogram.getP50Micros(), 5_000 * 0.04);
+        assertEquals(9_900, histogram.getP99Micros(), 9_900 * 0.04);
+        assertEquals(9_990, histogram.getP999Micros(), 9_990 * 0.04);
+        assertEquals(10_000, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void testErrorsAreCounted() {
+        LatencyHistogram histogram = new LatencyHistogram("errors");
+        histogram.record(1000);
+        histogram.recordError(2000);
+        assertEquals(2, histogram.getCount());
+        assertEquals(1, histogram.getErrorCount());
+    }
+}
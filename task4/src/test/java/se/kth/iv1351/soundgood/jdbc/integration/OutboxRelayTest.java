@@ -0,0 +1,150 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import se.kth.iv1351.soundgood.jdbc.model.RentalEvent;
+
+/**
+ * Checks that the outbox relay delivers every event at least once, also when a subscriber fails. The relay is run
+ * by the test instead of its background thread. Events that are not of test instruments are published too, but
+ * ignored by the checks. The tests are skipped if there is no local soundgood_school database, see
+ * <code>TestDatabase</code>.
+ */
+public class OutboxRelayTest {
+    private static final int STUDENT = TestDatabase.FIRST_STUDENT_ID;
+    private static final int BATCH_SIZE = 1000;
+
+    @TempDir
+    Path logDirectory;
+
+    private Connection conn;
+    private SoundgoodDAO dao;
+    private OutboxRelay relay;
+    private Path logFile;
+
+    @BeforeEach
+    public void createRelay() throws SQLException {
+        conn = TestDatabase.connect();
+        assumeTrue(conn != null, "No local soundgood_school database.");
+        TestDatabase.removeTestData(conn);
+        TestDatabase.addStudent(conn, STUDENT);
+        ConnectionPool pool = new ConnectionPool(TestDatabase.url(), TestDatabase.user(), TestDatabase.password(), 0,
+                2, 5000, true);
+        dao = new SoundgoodDAO(pool, new DataSourceConfig(new Properties()));
+        logFile = logDirectory.resolve("rental-events.log");
+        relay = new OutboxRelay(dao, pool, dao.getNotificationListener(), 60_000, BATCH_SIZE, logFile);
+    }
+
+    @AfterEach
+    public void closeRelay() throws SQLException {
+        if (relay != null) {
+            relay.close();
+        }
+        if (dao != null) {
+            dao.close();
+        }
+        if (conn != null) {
+            TestDatabase.removeTestData(conn);
+            conn.close();
+        }
+    }
+
+    /**
+     * A subscriber fails the first batch, so the batch stays in the outbox and is published again, also to the
+     * subscriber that did not fail.
+     */
+    @Test
+    public void testFailedSubscriberGetsBatchAgain() throws Exception {
+        String instrument = TestDatabase.addInstrument(conn, "A", 2);
+        TestDatabase.execute(conn, "SELECT rent_instrument('TESTR1', LOCALTIMESTAMP, LOCALTIMESTAMP + "
+                + "INTERVAL '1 month', NULL, ?, ?)", instrument, STUDENT);
+        List<Long> eventIDs = outboxEventsOf(instrument);
+        assertFalse(eventIDs.isEmpty());
+
+        List<Long> failingReceived = new ArrayList<>();
+        List<Long> otherReceived = new ArrayList<>();
+        boolean[] failed = { false };
+        relay.subscribe(events -> {
+            if (!failed[0]) {
+                failed[0] = true;
+                throw new IOException("Subscriber down.");
+            }
+            failingReceived.addAll(testEventIDs(events));
+        });
+        relay.subscribe(events -> otherReceived.addAll(testEventIDs(events)));
+
+        relay.relay();
+        assertTrue(failed[0]);
+        assertEquals(eventIDs, outboxEventsOf(instrument));
+
+        relay.relay();
+        assertEquals(eventIDs, failingReceived);
+        assertTrue(otherReceived.containsAll(eventIDs), otherReceived.toString());
+        assertTrue(outboxEventsOf(instrument).isEmpty());
+        String log = Files.readString(logFile);
+        for (Long eventID : eventIDs) {
+            assertTrue(log.contains("{\"id\":" + eventID + ","), "Event " + eventID + " is not in the log.");
+        }
+    }
+
+    /**
+     * A batch that was handed to every subscriber is removed from the outbox, and not published again.
+     */
+    @Test
+    public void testPublishedBatchIsRemoved() throws Exception {
+        String instrument = TestDatabase.addInstrument(conn, "A", 2);
+        TestDatabase.execute(conn, "SELECT rent_instrument('TESTR1', LOCALTIMESTAMP, LOCALTIMESTAMP + "
+                + "INTERVAL '1 month', NULL, ?, ?)", instrument, STUDENT);
+        List<Long> eventIDs = outboxEventsOf(instrument);
+        List<Long> received = new ArrayList<>();
+        relay.subscribe(events -> received.addAll(testEventIDs(events)));
+
+        relay.relay();
+        relay.relay();
+        assertEquals(eventIDs, received);
+        assertTrue(outboxEventsOf(instrument).isEmpty());
+    }
+
+    private List<Long> outboxEventsOf(String instrumentID) throws SQLException {
+        List<Long> eventIDs = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT event_id FROM rental_event WHERE instrument_id = ? ORDER BY event_id")) {
+            stmt.setString(1, instrumentID);
+            try (ResultSet result = stmt.executeQuery()) {
+                while (result.next()) {
+                    eventIDs.add(result.getLong(1));
+                }
+            }
+        }
+        return eventIDs;
+    }
+
+    private static List<Long> testEventIDs(List<RentalEvent> events) {
+        List<Long> eventIDs = new ArrayList<>();
+        for (RentalEvent event : events) {
+            if (event.getInstrumentID().startsWith("TEST")) {
+                eventIDs.add(event.getEventID());
+            }
+        }
+        return eventIDs;
+    }
+}
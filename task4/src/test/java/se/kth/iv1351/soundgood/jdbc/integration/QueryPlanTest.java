@@ -0,0 +1,238 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the hot queries use the indexes in postgres-soundgoodb.sql, and only read the rental partitions they
+ * need. The tables are seeded with a large dataset inside a transaction that is rolled back when the tests are done.
+ * The tests are skipped if there is no local soundgood_school database, the connection can be changed with the system
+ * properties <code>soundgood.test.url</code>, <code>soundgood.test.user</code> and
+ * <code>soundgood.test.password</code>.
+ */
+public class QueryPlanTest {
+    private static final int INSTRUMENTS = 100_000;
+    private static final int INSTRUMENT_TYPES = 500;
+    private static final int STUDENTS = 50_000;
+    private static final int RENTALS = 200_000;
+    private static final Pattern SEQ_SCAN_ON_HOT_TABLE = Pattern.compile(
+            "Seq Scan on (instrument|rental_price_history|instrument_rental(_\\d{4}_\\d{2})?)\\b.*\\((never executed|"
+                    + "actual rows=(\\d+) loops=\\d+)\\)");
+    private static final Pattern ROWS_REMOVED = Pattern.compile("Rows Removed by Filter: (\\d+)");
+    private static final Pattern SCANNED_PARTITION = Pattern
+            .compile("(?m)^.*Scan (using \\S+ )?on instrument_rental_(\\d{4})_(\\d{2}) .*$");
+    private static final String[] RENTAL_LIMIT_FUNCTIONS = { "check_student_rental_limit", "rent_instrument",
+            "rent_basket" };
+
+    private static Connection connection;
+
+    @BeforeAll
+    public static void seedLargeDataset() throws SQLException {
+        try {
+            connection = DriverManager.getConnection(
+                    System.getProperty("soundgood.test.url", SoundgoodDAO.DB_URL),
+                    System.getProperty("soundgood.test.user", SoundgoodDAO.DB_USER),
+                    System.getProperty("soundgood.test.password", SoundgoodDAO.DB_PASSWORD));
+        } catch (SQLException noDatabase) {
+            return;
+        }
+        connection.setAutoCommit(false);
+        try (Statement stmt = connection.createStatement()) {
+            // Skips triggers and foreign key checks, the plans do not depend on them.
+            stmt.execute("SET LOCAL session_replication_role = replica");
+            stmt.execute("INSERT INTO instrument (instrument_id, instrument_type, instrument_brand, available_stock) "
+                    + "SELECT 'SEED' || g, 'Type' || (g % " + INSTRUMENT_TYPES + "), 'Brand' || (g % 97), g % 4 "
+                    + "FROM generate_series(1, " + INSTRUMENTS + ") g");
+            stmt.execute("INSERT INTO rental_price_history "
+                    + "(rental_price_id, instrument_id, start_date, end_date, is_current, price) "
+                    + "SELECT 'SEEDP' || g || '-' || v, 'SEED' || g, DATE '2020-01-01', DATE '2030-01-01', "
+                    + "v = 2, 100 + v FROM generate_series(1, " + INSTRUMENTS + ") g, generate_series(1, 2) v");
+            stmt.execute("INSERT INTO instrument_rental (rental_id, rental_start_time, lease_expiry_time, "
+                    + "rental_price_id, instrument_id, student_id) "
+                    + "SELECT 'SEEDR' || g, NOW() - INTERVAL '60 days', NOW() + (g % 3 - 1) * INTERVAL '30 days', "
+                    + "'SEEDP1-2', 'SEED' || (1 + g / " + STUDENTS + "), 100000 + g % " + STUDENTS + " "
+                    + "FROM generate_series(1, " + RENTALS + ") g");
+            stmt.execute("INSERT INTO student_instrument (student_id, instrument_id, rental_id, rental_start_time) "
+                    + "SELECT student_id, instrument_id, rental_id, rental_start_time FROM instrument_rental "
+                    + "WHERE rental_id LIKE 'SEEDR%'");
+            stmt.execute("ANALYZE instrument");
+            stmt.execute("ANALYZE rental_price_history");
+            stmt.execute("ANALYZE instrument_rental");
+            stmt.execute("ANALYZE student_instrument");
+        }
+    }
+
+    @AfterAll
+    public static void removeDataset() throws SQLException {
+        if (connection != null) {
+            connection.rollback();
+            connection.close();
+        }
+    }
+
+    @BeforeEach
+    public void requireDatabase() {
+        assumeTrue(connection != null, "No local soundgood_school database.");
+    }
+
+    @Test
+    public void testInstrumentListingUsesIndexes() throws SQLException {
+        assertNoSeqScan(SoundgoodDAO.FIND_INSTRUMENTS_BY_TYPE_SQL, "Type7");
+    }
+
+    @Test
+    public void testInstrumentPageUsesIndexes() throws SQLException {
+        assertNoSeqScan(SoundgoodDAO.FIND_INSTRUMENTS_BY_TYPE_PAGE_SQL, "Type7", "SEED50000", 200);
+    }
+
+    @Test
+    public void testInstrumentListingWithCachedPricesUsesIndex() throws SQLException {
+        assertNoSeqScan(SoundgoodDAO.FIND_INSTRUMENTS_BY_TYPE_WITHOUT_PRICE_SQL, "Type7");
+    }
+
+    @Test
+    public void testCurrentPriceLookupUsesIndex() throws SQLException {
+        assertNoSeqScan(SoundgoodDAO.FIND_CURRENT_PRICES_SQL, connection.createArrayOf("varchar",
+                new String[] { "SEED7", "SEED42" }));
+    }
+
+    @Test
+    public void testRentalTerminationUsesIndex() throws SQLException {
+        assertNoSeqScan(SoundgoodDAO.UPDATE_RENTAL_TO_EXPIRY_SQL, "SEEDR42");
+    }
+
+    @Test
+    public void testExpiredRentalSweepUsesIndex() throws SQLException {
+        assertNoSeqScan(SoundgoodDAO.RELEASE_EXPIRED_STOCK_SQL, 100);
+    }
+
+    @Test
+    public void testActiveRentalCountUsesIndex() throws SQLException {
+        assertNoSeqScan(SoundgoodDAO.COUNT_ACTIVE_RENTALS_SQL, 100042);
+    }
+
+    /**
+     * The functions that check the rental limit count the active rentals like the DAO does, so the plan checked by
+     * <code>testActiveRentalCountUsesIndex</code> is theirs too.
+     */
+    @Test
+    public void testRentalLimitFunctionsCountLikeTheDAO() throws SQLException {
+        String studentCondition = "student_id = ? AND ";
+        String daoSql = normalize(SoundgoodDAO.COUNT_ACTIVE_RENTALS_SQL);
+        String activeCondition = daoSql.substring(daoSql.indexOf(studentCondition) + studentCondition.length());
+        for (String function : RENTAL_LIMIT_FUNCTIONS) {
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT pg_get_functiondef(CAST(? AS regproc))")) {
+                stmt.setString(1, function);
+                try (ResultSet result = stmt.executeQuery()) {
+                    result.next();
+                    String definition = normalize(result.getString(1));
+                    assertTrue(definition.contains(activeCondition),
+                            function + " does not count active rentals with: " + activeCondition);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRentalTerminationReadsOnePartition() throws SQLException {
+        assertEquals(1, scannedPartitions(SoundgoodDAO.UPDATE_RENTAL_TO_EXPIRY_SQL, "SEEDR42").size());
+    }
+
+    @Test
+    public void testActiveRentalCountSkipsOldPartitions() throws SQLException {
+        int longestDurationMonths;
+        try (Statement stmt = connection.createStatement(); ResultSet result = stmt.executeQuery(
+                "SELECT config_value FROM system_config WHERE config_type = 'longest_rental_duration_months'")) {
+            result.next();
+            longestDurationMonths = result.getInt(1);
+        }
+        YearMonth oldestActive = YearMonth.now().minusMonths(longestDurationMonths);
+        for (YearMonth scanned : scannedPartitions(SoundgoodDAO.COUNT_ACTIVE_RENTALS_SQL, 100042)) {
+            assertFalse(scanned.isBefore(oldestActive), "Scanned the partition of " + scanned);
+        }
+    }
+
+    /**
+     * Runs a statement and lists the months of the rental partitions it read, those left out by run-time pruning are
+     * not listed. The changes of the statement are rolled back with the dataset.
+     */
+    private List<YearMonth> scannedPartitions(String sql, Object... params) throws SQLException {
+        String plan = explain("(ANALYZE, COSTS OFF, TIMING OFF, SUMMARY OFF) " + sql, params);
+        List<YearMonth> scanned = new ArrayList<>();
+        for (Matcher scan = SCANNED_PARTITION.matcher(plan); scan.find();) {
+            if (!scan.group().contains("never executed")) {
+                scanned.add(YearMonth.of(Integer.parseInt(scan.group(2)), Integer.parseInt(scan.group(3))));
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * Runs a statement and fails if it read any rows of a hot table with a sequential scan. Scans of empty
+     * partitions, and scans that were never executed, are cheap and allowed.
+     */
+    private void assertNoSeqScan(String sql, Object... params) throws SQLException {
+        String plan = explain("(ANALYZE, COSTS OFF, TIMING OFF, SUMMARY OFF) " + sql, params);
+        String[] lines = plan.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            Matcher seqScan = SEQ_SCAN_ON_HOT_TABLE.matcher(lines[i]);
+            if (!seqScan.find() || seqScan.group(4) == null) {
+                continue;
+            }
+            long rowsRead = Long.parseLong(seqScan.group(4));
+            for (int j = i + 1; j < lines.length && !lines[j].contains("->"); j++) {
+                Matcher removed = ROWS_REMOVED.matcher(lines[j]);
+                if (removed.find()) {
+                    rowsRead += Long.parseLong(removed.group(1));
+                }
+            }
+            assertEquals(0, rowsRead, "Sequential scan in plan:\n" + plan);
+        }
+    }
+
+    /**
+     * Explains a statement. With ANALYZE the statement is run, its changes are rolled back right after.
+     */
+    private String explain(String sql, Object... params) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        Savepoint beforeStatement = connection.setSavepoint();
+        try (PreparedStatement stmt = connection.prepareStatement("EXPLAIN " + sql)) {
+            for (int i = 0; i < params.length; i++) {
+                stmt.setObject(i + 1, params[i]);
+            }
+            try (ResultSet result = stmt.executeQuery()) {
+                while (result.next()) {
+                    plan.append(result.getString(1)).append('\n');
+                }
+            }
+        } finally {
+            connection.rollback(beforeStatement);
+        }
+        return plan.toString();
+    }
+
+    private static String normalize(String sql) {
+        return sql.replaceAll("\\s+", " ").replaceAll("\\( ", "(").replaceAll(" \\)", ")");
+    }
+}
@@ -0,0 +1,211 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the rules <code>rent_instrument</code> and the insert triggers of <code>instrument_rental</code> enforce. The
+ * tests are skipped if there is no local soundgood_school database, see <code>TestDatabase</code>.
+ */
+public class RentInstrumentTest {
+    private static final int STUDENT = TestDatabase.FIRST_STUDENT_ID;
+    private static final String RENT_SQL = "SELECT rent_instrument(?, LOCALTIMESTAMP, "
+            + "LOCALTIMESTAMP + make_interval(months => ?), ?, ?, ?)";
+    private static final String INSERT_RENTAL_SQL = "INSERT INTO instrument_rental (rental_id, rental_start_time, "
+            + "lease_expiry_time, rental_price_id, instrument_id, student_id) VALUES (?, LOCALTIMESTAMP, "
+            + "LOCALTIMESTAMP + make_interval(months => ?), ?, ?, ?)";
+    private static final int CONCURRENT_RENTALS = 8;
+
+    private Connection conn;
+    private int maxActiveRentals;
+
+    @BeforeEach
+    public void addStudent() throws SQLException {
+        conn = TestDatabase.connect();
+        assumeTrue(conn != null, "No local soundgood_school database.");
+        TestDatabase.removeTestData(conn);
+        TestDatabase.addStudent(conn, STUDENT);
+        maxActiveRentals = TestDatabase.queryInt(conn,
+                "SELECT config_value FROM system_config WHERE config_type = 'max_active_rentals_per_student'");
+    }
+
+    @AfterEach
+    public void removeStudent() throws SQLException {
+        if (conn != null) {
+            TestDatabase.removeTestData(conn);
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testRentalTakesInstrumentFromStock() throws SQLException {
+        String instrument = TestDatabase.addInstrument(conn, "A", 2);
+        assertEquals("OK", rent(conn, "TESTR1", 1, null, instrument, STUDENT));
+        assertEquals(1, TestDatabase.stockOf(conn, instrument));
+        assertEquals(1, TestDatabase.rentalsOf(conn, STUDENT));
+    }
+
+    @Test
+    public void testRejectedRentalsChangeNothing() throws SQLException {
+        String instrument = TestDatabase.addInstrument(conn, "A", 1);
+        String outOfStock = TestDatabase.addInstrument(conn, "B", 0);
+        TestDatabase.execute(conn, "UPDATE rental_price_history SET is_current = false WHERE instrument_id = ?",
+                instrument);
+
+        assertEquals("NO_SUCH_STUDENT", rent(conn, "TESTR1", 1, null, instrument, STUDENT - 1));
+        assertEquals("DURATION_EXCEEDED", rent(conn, "TESTR1", 1000, null, instrument, STUDENT));
+        assertEquals("NO_SUCH_INSTRUMENT", rent(conn, "TESTR1", 1, null, "TESTMISSING", STUDENT));
+        assertEquals("OUT_OF_STOCK", rent(conn, "TESTR1", 1, null, outOfStock, STUDENT));
+        assertEquals("NO_CURRENT_PRICE", rent(conn, "TESTR1", 1, null, instrument, STUDENT));
+        assertEquals(1, TestDatabase.stockOf(conn, instrument));
+        assertEquals(0, TestDatabase.stockOf(conn, outOfStock));
+        assertEquals(0, TestDatabase.rentalsOf(conn, STUDENT));
+    }
+
+    @Test
+    public void testRentalLimit() throws SQLException {
+        for (int i = 0; i < maxActiveRentals; i++) {
+            String instrument = TestDatabase.addInstrument(conn, "A" + i, 1);
+            assertEquals("OK", rent(conn, "TESTR" + i, 1, null, instrument, STUDENT));
+        }
+        String oneTooMany = TestDatabase.addInstrument(conn, "B", 1);
+        assertEquals("LIMIT_REACHED", rent(conn, "TESTR", 1, null, oneTooMany, STUDENT));
+        assertEquals(1, TestDatabase.stockOf(conn, oneTooMany));
+    }
+
+    /**
+     * Rentals of one student that run at the same time are counted one at a time, so no more than the limit pass.
+     */
+    @Test
+    public void testConcurrentRentalsStayWithinLimit() throws Exception {
+        List<String> instruments = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_RENTALS; i++) {
+            instruments.add(TestDatabase.addInstrument(conn, "A" + i, 1));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_RENTALS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> statuses = new ArrayList<>();
+        try {
+            for (int i = 0; i < CONCURRENT_RENTALS; i++) {
+                String rentalID = "TESTR" + i;
+                String instrument = instruments.get(i);
+                statuses.add(executor.submit(() -> {
+                    try (Connection concurrent = TestDatabase.connect()) {
+                        start.await();
+                        return rent(concurrent, rentalID, 1, null, instrument, STUDENT);
+                    }
+                }));
+            }
+            start.countDown();
+            int rented = 0;
+            for (Future<String> status : statuses) {
+                rented += "OK".equals(status.get()) ? 1 : 0;
+            }
+            assertEquals(maxActiveRentals, rented);
+            assertEquals(maxActiveRentals, TestDatabase.rentalsOf(conn, STUDENT));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A client can set any custom setting, so no setting may turn off the checks of a plain INSERT.
+     */
+    @Test
+    public void testSessionSettingDoesNotSkipInsertTriggers() throws SQLException {
+        String instrument = TestDatabase.addInstrument(conn, "A", 5);
+        TestDatabase.execute(conn, "SET soundgood.rent_checked = 'on'");
+
+        insert(conn, "TESTR1", 1, instrument);
+        assertEquals(4, TestDatabase.stockOf(conn, instrument));
+        assertThrows(SQLException.class, () -> insert(conn, "TESTR2", 1000, instrument));
+        for (int i = 2; i <= maxActiveRentals; i++) {
+            insert(conn, "TESTR" + i, 1, TestDatabase.addInstrument(conn, "B" + i, 1));
+        }
+        String oneTooMany = TestDatabase.addInstrument(conn, "C", 1);
+        assertThrows(SQLException.class, () -> insert(conn, "TESTR", 1, oneTooMany));
+        assertEquals(maxActiveRentals, TestDatabase.rentalsOf(conn, STUDENT));
+    }
+
+    /**
+     * Lowering the maximum rental duration does not hide the longer leases that are still running from the count.
+     */
+    @Test
+    public void testLoweredDurationStillCountsLongerLeases() throws SQLException {
+        for (int i = 0; i < maxActiveRentals; i++) {
+            String instrument = TestDatabase.addInstrument(conn, "A" + i, 1);
+            TestDatabase.execute(conn, "INSERT INTO instrument_rental (rental_id, rental_start_time, "
+                    + "lease_expiry_time, rental_price_id, instrument_id, student_id) VALUES (?, LOCALTIMESTAMP - "
+                    + "INTERVAL '10 months', LOCALTIMESTAMP + INTERVAL '1 month', ?, ?, ?)", "TESTR" + i,
+                    instrument + "-P", instrument, STUDENT);
+        }
+        int maxDurationMonths = TestDatabase.queryInt(conn,
+                "SELECT config_value FROM system_config WHERE config_type = 'max_rental_duration_months'");
+        String oneTooMany = TestDatabase.addInstrument(conn, "B", 1);
+        try {
+            TestDatabase.execute(conn, "UPDATE system_config SET config_value = 6 "
+                    + "WHERE config_type = 'max_rental_duration_months'");
+            assertEquals("LIMIT_REACHED", rent(conn, "TESTR", 1, null, oneTooMany, STUDENT));
+            assertThrows(SQLException.class, () -> TestDatabase.execute(conn, "UPDATE system_config "
+                    + "SET config_value = 6 WHERE config_type = 'longest_rental_duration_months'"));
+        } finally {
+            TestDatabase.execute(conn, "UPDATE system_config SET config_value = ? "
+                    + "WHERE config_type = 'max_rental_duration_months'", maxDurationMonths);
+        }
+    }
+
+    /**
+     * A rental of a month without a partition goes to the default partition, and is moved when the partition of its
+     * month is created.
+     */
+    @Test
+    public void testRentalWithoutPartitionIsMovedToNewPartition() throws SQLException {
+        String instrument = TestDatabase.addInstrument(conn, "A", 1);
+        String start = "2090-01-15 10:00:00";
+        TestDatabase.execute(conn, "INSERT INTO instrument_rental (rental_id, rental_start_time, lease_expiry_time, "
+                + "rental_price_id, instrument_id, student_id) VALUES ('TESTR1', CAST(? AS TIMESTAMP), "
+                + "CAST(? AS TIMESTAMP) + INTERVAL '1 month', ?, ?, ?)", start, start, instrument + "-P", instrument,
+                STUDENT);
+        try {
+            assertEquals("instrument_rental_default", partitionOf("TESTR1"));
+            assertEquals(1, TestDatabase.queryInt(conn, "SELECT create_rental_partitions(CAST(? AS TIMESTAMP), "
+                    + "CAST(? AS TIMESTAMP))", start, start));
+            assertEquals("instrument_rental_2090_01", partitionOf("TESTR1"));
+            assertEquals(0, TestDatabase.stockOf(conn, instrument));
+            assertEquals(1, TestDatabase.rentalsOf(conn, STUDENT));
+            assertEquals(1, TestDatabase.queryInt(conn,
+                    "SELECT COUNT(*) FROM student_instrument WHERE rental_id = 'TESTR1'"));
+        } finally {
+            TestDatabase.execute(conn, "DROP TABLE IF EXISTS instrument_rental_2090_01");
+        }
+    }
+
+    private String partitionOf(String rentalID) throws SQLException {
+        return TestDatabase.queryString(conn, "SELECT tableoid::regclass::text FROM instrument_rental "
+                + "WHERE rental_id = ?", rentalID);
+    }
+
+    private static String rent(Connection conn, String rentalID, int months, String priceID, String instrumentID,
+            int studentID) throws SQLException {
+        return TestDatabase.queryString(conn, RENT_SQL, rentalID, months, priceID, instrumentID, studentID);
+    }
+
+    private static void insert(Connection conn, String rentalID, int months, String instrumentID)
+            throws SQLException {
+        TestDatabase.execute(conn, INSERT_RENTAL_SQL, rentalID, months, instrumentID + "-P", instrumentID, STUDENT);
+    }
+}
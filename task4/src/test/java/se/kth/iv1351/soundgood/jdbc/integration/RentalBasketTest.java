@@ -0,0 +1,126 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.soundgood.jdbc.model.Instrument;
+import se.kth.iv1351.soundgood.jdbc.model.RentalRequest;
+import se.kth.iv1351.soundgood.jdbc.model.RentalResult;
+import se.kth.iv1351.soundgood.jdbc.model.RentalStatus;
+import se.kth.iv1351.soundgood.jdbc.model.Student;
+
+/**
+ * Checks that <code>SoundgoodDAO.createRentalBasket</code> rents all instruments of a basket or none of them. The tests
+ * are skipped if there is no local soundgood_school database, see <code>TestDatabase</code>.
+ */
+public class RentalBasketTest {
+    private static final int STUDENT = TestDatabase.FIRST_STUDENT_ID;
+
+    private Connection conn;
+    private SoundgoodDAO dao;
+    private int maxActiveRentals;
+
+    @BeforeEach
+    public void addStudent() throws SQLException {
+        conn = TestDatabase.connect();
+        assumeTrue(conn != null, "No local soundgood_school database.");
+        TestDatabase.removeTestData(conn);
+        TestDatabase.addStudent(conn, STUDENT);
+        maxActiveRentals = TestDatabase.queryInt(conn,
+                "SELECT config_value FROM system_config WHERE config_type = 'max_active_rentals_per_student'");
+        ConnectionPool pool = new ConnectionPool(TestDatabase.url(), TestDatabase.user(), TestDatabase.password(), 0,
+                2, 5000, true);
+        dao = new SoundgoodDAO(pool, new DataSourceConfig(new Properties()));
+    }
+
+    @AfterEach
+    public void removeStudent() throws SQLException {
+        if (dao != null) {
+            dao.close();
+        }
+        if (conn != null) {
+            TestDatabase.removeTestData(conn);
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testWholeBasketIsRented() throws Exception {
+        String first = TestDatabase.addInstrument(conn, "A", 1);
+        String second = TestDatabase.addInstrument(conn, "B", 2);
+
+        List<RentalResult> results = dao.createRentalBasket(STUDENT, basket(first, second));
+        for (RentalResult result : results) {
+            assertTrue(result.isRented(), result.toString());
+        }
+        assertEquals(0, TestDatabase.stockOf(conn, first));
+        assertEquals(1, TestDatabase.stockOf(conn, second));
+        assertEquals(2, TestDatabase.rentalsOf(conn, STUDENT));
+    }
+
+    @Test
+    public void testInstrumentOutOfStockRejectsBasket() throws Exception {
+        String inStock = TestDatabase.addInstrument(conn, "A", 1);
+        String outOfStock = TestDatabase.addInstrument(conn, "B", 0);
+
+        List<RentalResult> results = dao.createRentalBasket(STUDENT, basket(inStock, outOfStock));
+        assertEquals(RentalStatus.BASKET_REJECTED, results.get(0).getStatus());
+        assertEquals(RentalStatus.OUT_OF_STOCK, results.get(1).getStatus());
+        assertEquals(1, TestDatabase.stockOf(conn, inStock));
+        assertEquals(0, TestDatabase.rentalsOf(conn, STUDENT));
+    }
+
+    @Test
+    public void testBasketOverLimitIsRejected() throws Exception {
+        String[] instruments = new String[maxActiveRentals + 1];
+        for (int i = 0; i < instruments.length; i++) {
+            instruments[i] = TestDatabase.addInstrument(conn, "A" + i, 1);
+        }
+
+        for (RentalResult result : dao.createRentalBasket(STUDENT, basket(instruments))) {
+            assertEquals(RentalStatus.LIMIT_REACHED, result.getStatus());
+        }
+        for (String instrument : instruments) {
+            assertEquals(1, TestDatabase.stockOf(conn, instrument));
+        }
+        assertEquals(0, TestDatabase.rentalsOf(conn, STUDENT));
+    }
+
+    /**
+     * A rental of the basket that breaks a constraint, here renting an instrument the student rented before, fails
+     * the whole basket after the other rentals were inserted, and they are rolled back with it.
+     */
+    @Test
+    public void testFailedInsertRollsBackBasket() throws Exception {
+        String rentedBefore = TestDatabase.addInstrument(conn, "A", 2);
+        String other = TestDatabase.addInstrument(conn, "B", 1);
+        assertTrue(dao.createRental(new Instrument(rentedBefore), new Student(STUDENT), null).isRented());
+        TestDatabase.execute(conn, "UPDATE instrument_rental SET lease_expiry_time = LOCALTIMESTAMP "
+                + "WHERE instrument_id = ?", rentedBefore);
+
+        assertThrows(SoundgoodDBException.class, () -> dao.createRentalBasket(STUDENT, basket(other, rentedBefore)));
+        assertEquals(1, TestDatabase.stockOf(conn, other));
+        assertEquals(2, TestDatabase.stockOf(conn, rentedBefore));
+        assertEquals(1, TestDatabase.rentalsOf(conn, STUDENT));
+    }
+
+    private static List<RentalRequest> basket(String... instrumentIDs) {
+        List<RentalRequest> rentals = new ArrayList<>();
+        for (String instrumentID : instrumentIDs) {
+            rentals.add(new RentalRequest(instrumentID, STUDENT, null));
+        }
+        return rentals;
+    }
+}
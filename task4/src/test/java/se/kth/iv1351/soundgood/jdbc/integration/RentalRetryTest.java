@@ -0,0 +1,147 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.soundgood.jdbc.model.IDGenerator;
+import se.kth.iv1351.soundgood.jdbc.model.Instrument;
+import se.kth.iv1351.soundgood.jdbc.model.RentalResult;
+import se.kth.iv1351.soundgood.jdbc.model.Student;
+
+/**
+ * Checks that <code>SoundgoodDAO.createRental</code> runs a rental again when it loses a race to another transaction,
+ * or collides with a rental ID it did not hand out. The tests are skipped if there is no local soundgood_school
+ * database, see <code>TestDatabase</code>.
+ */
+public class RentalRetryTest {
+    private static final int STUDENT = TestDatabase.FIRST_STUDENT_ID;
+    private static final long LOCK_WAIT_MILLIS = 10_000;
+
+    private Connection conn;
+    private SoundgoodDAO dao;
+
+    @BeforeEach
+    public void addStudent() throws SQLException {
+        conn = TestDatabase.connect();
+        assumeTrue(conn != null, "No local soundgood_school database.");
+        TestDatabase.removeTestData(conn);
+        TestDatabase.addStudent(conn, STUDENT);
+    }
+
+    @AfterEach
+    public void removeStudent() throws SQLException {
+        if (dao != null) {
+            dao.close();
+        }
+        if (conn != null) {
+            conn.setAutoCommit(true);
+            TestDatabase.removeTestData(conn);
+            conn.close();
+        }
+    }
+
+    /**
+     * The next rental ID of the DAO is already taken by a rental inserted without the sequence, the rental is made
+     * again with the following ID.
+     */
+    @Test
+    public void testDuplicateRentalIdIsRetried() throws Exception {
+        dao = createDAO(false, 5);
+        String taken = TestDatabase.addInstrument(conn, "A", 1);
+        String instrument = TestDatabase.addInstrument(conn, "B", 1);
+        long nextNumber = TestDatabase.queryInt(conn, "SELECT nextval('rental_id_seq')");
+        TestDatabase.execute(conn, "SELECT setval('rental_id_seq', ?, false)", nextNumber);
+        String takenID = IDGenerator.formatId(nextNumber);
+        TestDatabase.execute(conn, "INSERT INTO instrument_rental (rental_id, rental_start_time, lease_expiry_time, "
+                + "rental_price_id, instrument_id, student_id) VALUES (?, LOCALTIMESTAMP, LOCALTIMESTAMP + "
+                + "INTERVAL '1 month', ?, ?, ?)", takenID, taken + "-P", taken, STUDENT);
+
+        RentalResult result = dao.createRental(new Instrument(instrument), new Student(STUDENT), null);
+        assertTrue(result.isRented(), result.toString());
+        assertNotEquals(takenID, result.getRentalID());
+        assertEquals(0, TestDatabase.stockOf(conn, instrument));
+        assertEquals(2, TestDatabase.rentalsOf(conn, STUDENT));
+    }
+
+    /**
+     * A serializable rental that has to lock a student updated by a transaction committed after its snapshot fails
+     * with a serialization failure, and succeeds when it is run again.
+     */
+    @Test
+    public void testSerializationFailureIsRetried() throws Exception {
+        dao = createDAO(true, 5);
+        String instrument = TestDatabase.addInstrument(conn, "A", 1);
+
+        RentalResult result = rentWhileStudentIsUpdated(instrument).get();
+        assertTrue(result.isRented(), result.toString());
+        assertEquals(0, TestDatabase.stockOf(conn, instrument));
+        assertEquals(1, TestDatabase.rentalsOf(conn, STUDENT));
+    }
+
+    @Test
+    public void testSerializationFailureWithoutRetriesFails() throws Exception {
+        dao = createDAO(true, 0);
+        String instrument = TestDatabase.addInstrument(conn, "A", 1);
+
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> rentWhileStudentIsUpdated(instrument).get());
+        assertTrue(failure.getCause() instanceof SoundgoodDBException, failure.getCause().toString());
+        assertEquals(1, TestDatabase.stockOf(conn, instrument));
+        assertEquals(0, TestDatabase.rentalsOf(conn, STUDENT));
+    }
+
+    /**
+     * Starts a rental while the student row is locked by an update of the test connection, and commits the update
+     * once the rental waits for the lock.
+     */
+    private Future<RentalResult> rentWhileStudentIsUpdated(String instrument) throws Exception {
+        conn.setAutoCommit(false);
+        TestDatabase.execute(conn, "UPDATE student SET skill_level = skill_level WHERE student_id = ?", STUDENT);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<RentalResult> rental = executor.submit(
+                    () -> dao.createRental(new Instrument(instrument), new Student(STUDENT), null));
+            awaitRentalWaitingForLock();
+            conn.commit();
+            conn.setAutoCommit(true);
+            return rental;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void awaitRentalWaitingForLock() throws Exception {
+        long deadline = System.currentTimeMillis() + LOCK_WAIT_MILLIS;
+        try (Connection observer = TestDatabase.connect()) {
+            while (TestDatabase.queryInt(observer, "SELECT COUNT(*) FROM pg_stat_activity WHERE wait_event_type = "
+                    + "'Lock' AND query LIKE '%rent_instrument%'") == 0) {
+                assertTrue(System.currentTimeMillis() < deadline, "The rental did not wait for the student.");
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static SoundgoodDAO createDAO(boolean serializable, int maxRetries) throws SQLException {
+        ConnectionPool pool = new ConnectionPool(TestDatabase.url(), TestDatabase.user(), TestDatabase.password(), 0,
+                2, 5000, true);
+        Properties settings = new Properties();
+        settings.setProperty("soundgood.rent.serializable", String.valueOf(serializable));
+        settings.setProperty("soundgood.rent.maxRetries", String.valueOf(maxRetries));
+        return new SoundgoodDAO(pool, new DataSourceConfig(settings));
+    }
+}
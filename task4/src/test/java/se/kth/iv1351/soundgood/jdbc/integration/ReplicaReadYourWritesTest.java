@@ -0,0 +1,154 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.soundgood.jdbc.model.Instrument;
+import se.kth.iv1351.soundgood.jdbc.model.Student;
+
+/**
+ * Checks that a client reads its own rentals from the read replicas, also when the write and the read run on
+ * different threads, or in different instances of the DAO. Two DAOs, standing in for two rental servers, share the
+ * local soundgood_school database as primary and a streaming replica of it. Replay is paused on the replica, so that
+ * it lags behind every write the tests make.
+ * <p>
+ * The tests are skipped unless the system property <code>soundgood.test.replicaUrl</code> names the replica, for
+ * example <code>-Dsoundgood.test.replicaUrl=jdbc:postgresql://localhost:5433/soundgood_school</code>. To create a
+ * replica of a local primary on port 5432 that allows replication connections:
+ * <pre>
+ * pg_basebackup -h localhost -p 5432 -U postgres -D replica-data -R
+ * pg_ctl -D replica-data -o "-p 5433" -l replica.log start
+ * </pre>
+ * The replica is logged in to with the user and password of the primary, see <code>TestDatabase</code>.
+ */
+public class ReplicaReadYourWritesTest {
+    private static final int STUDENT = TestDatabase.FIRST_STUDENT_ID;
+    private static final long MAX_LAG_MILLIS = 600_000;
+    private static final long REPLICA_WAIT_MILLIS = 10_000;
+
+    private Connection primary;
+    private Connection replica;
+    private SoundgoodDAO firstServer;
+    private SoundgoodDAO secondServer;
+    private String instrument;
+
+    @BeforeEach
+    public void startServers() throws Exception {
+        String replicaUrl = System.getProperty("soundgood.test.replicaUrl");
+        assumeTrue(replicaUrl != null, "No replica, see soundgood.test.replicaUrl.");
+        primary = TestDatabase.connect();
+        assumeTrue(primary != null, "No local soundgood_school database.");
+        replica = DriverManager.getConnection(replicaUrl, TestDatabase.user(), TestDatabase.password());
+
+        TestDatabase.removeTestData(primary);
+        TestDatabase.addStudent(primary, STUDENT);
+        instrument = TestDatabase.addInstrument(primary, "A", 5);
+        firstServer = startServer(replicaUrl);
+        secondServer = startServer(replicaUrl);
+        awaitReplica(firstServer);
+        awaitReplica(secondServer);
+        TestDatabase.execute(replica, "SELECT pg_wal_replay_pause()");
+    }
+
+    @AfterEach
+    public void stopServers() throws SQLException {
+        if (replica != null) {
+            TestDatabase.execute(replica, "SELECT pg_wal_replay_resume()");
+            replica.close();
+        }
+        if (firstServer != null) {
+            firstServer.close();
+        }
+        if (secondServer != null) {
+            secondServer.close();
+        }
+        if (primary != null) {
+            TestDatabase.removeTestData(primary);
+            primary.close();
+        }
+    }
+
+    @Test
+    public void testStaleReplicaIsReadWithoutWrite() throws Exception {
+        rentOnOtherThread(firstServer);
+        assertEquals(5, stockListedBy(secondServer, null));
+    }
+
+    @Test
+    public void testWriteIsSeenOnOtherThread() throws Exception {
+        rentOnOtherThread(firstServer);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals(4, reader.submit(() -> stockListedBy(firstServer, null)).get());
+        } finally {
+            reader.shutdown();
+        }
+    }
+
+    @Test
+    public void testWriteIsSeenByOtherServerWithPosition() throws Exception {
+        rentOnOtherThread(firstServer);
+        String position = firstServer.getWritePosition();
+        assertNotNull(position);
+        assertEquals(4, stockListedBy(secondServer, position));
+    }
+
+    private void rentOnOtherThread(SoundgoodDAO server) throws Exception {
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return server.createRental(new Instrument(instrument), new Student(STUDENT), null);
+            } catch (SoundgoodDBException sgdbe) {
+                throw new IllegalStateException(sgdbe);
+            }
+        }).thenAccept(rental -> assertTrue(rental.isRented(), rental.toString())).get();
+    }
+
+    private int stockListedBy(SoundgoodDAO server, String afterPosition) throws SoundgoodDBException {
+        List<Instrument> instruments = server.findInstrumentsByType("Test", afterPosition);
+        assertEquals(1, instruments.size());
+        return instruments.get(0).getInstrumentsInStock();
+    }
+
+    private SoundgoodDAO startServer(String replicaUrl) throws SQLException {
+        ConnectionPool primaryPool = new ConnectionPool(TestDatabase.url(), TestDatabase.user(),
+                TestDatabase.password(), 0, 4, 5000, true);
+        ConnectionPool replicaPool = new ConnectionPool(replicaUrl, TestDatabase.user(),
+                TestDatabase.password(), 0, 4, 5000, true);
+        Properties settings = new Properties();
+        settings.setProperty("soundgood.db.maxReplicaLagMillis", String.valueOf(MAX_LAG_MILLIS));
+        DataSourceConfig config = new DataSourceConfig(settings);
+        SoundgoodDAO dao = new SoundgoodDAO(primaryPool, List.of(replicaPool), config);
+        new BackgroundJobs(dao, config).startConnections();
+        return dao;
+    }
+
+    /**
+     * Waits until the server reads from the replica, and the replica has the test data.
+     */
+    private static void awaitReplica(SoundgoodDAO server) throws Exception {
+        long deadline = System.currentTimeMillis() + REPLICA_WAIT_MILLIS;
+        while (server.getReplicaRouter().choose(-1) == null) {
+            assertTrue(System.currentTimeMillis() < deadline, "The replica was not usable in time.");
+            Thread.sleep(50);
+        }
+        while (server.findInstrumentsByType("Test").isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline, "The replica did not replay the test data in time.");
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class ReplicaRouterTest {
+    private static final long MAX_LAG_MILLIS = 1000;
+
+    private ReplicaRouter router;
+
+    @AfterEach
+    public void closeRouter() {
+        if (router != null) {
+            router.close();
+        }
+    }
+
+    @Test
+    public void testParseLsn() {
+        assertEquals(0x16_B374_D848L, ReplicaRouter.parseLsn("16/B374D848"));
+        assertEquals(0, ReplicaRouter.parseLsn("0/0"));
+        assertEquals(-1, ReplicaRouter.parseLsn(null));
+        assertTrue(ReplicaRouter.parseLsn("0/FFFFFFFF") < ReplicaRouter.parseLsn("1/0"));
+        assertTrue(ReplicaRouter.parseLsn("0/9") < ReplicaRouter.parseLsn("0/10"));
+    }
+
+    @Test
+    public void testParseLsnRejectsOtherText() {
+        for (String notLsn : new String[] { "", "16B374D848", "16/", "/B374D848", "G/0", "-1/0", "1/100000000" }) {
+            assertThrows(IllegalArgumentException.class, () -> ReplicaRouter.parseLsn(notLsn), notLsn);
+        }
+    }
+
+    @Test
+    public void testFormatLsn() {
+        assertEquals("16/B374D848", ReplicaRouter.formatLsn(ReplicaRouter.parseLsn("16/B374D848")));
+        assertEquals("0/0", ReplicaRouter.formatLsn(0));
+        assertNull(ReplicaRouter.formatLsn(-1));
+    }
+
+    @Test
+    public void testNoReplicas() throws SQLException {
+        router = new ReplicaRouter(Collections.emptyList(), MAX_LAG_MILLIS);
+        assertNull(router.choose(-1));
+    }
+
+    @Test
+    public void testUncheckedReplicaIsNotChosen() throws SQLException {
+        router = createRouter(1);
+        assertNull(router.choose(-1));
+    }
+
+    @Test
+    public void testReplicasAreTakenInTurn() throws SQLException {
+        router = createRouter(2);
+        upToDate(0, 100);
+        upToDate(1, 100);
+        ReplicaRouter.Replica first = router.choose(-1);
+        ReplicaRouter.Replica second = router.choose(-1);
+        assertNotSame(first, second);
+        assertSame(first, router.choose(-1));
+    }
+
+    @Test
+    public void testLaggingReplicaIsNotChosen() throws SQLException {
+        router = createRouter(2);
+        replica(0).setStatus(true, 100, MAX_LAG_MILLIS + 1, System.currentTimeMillis());
+        replica(1).setStatus(true, 100, 0, System.currentTimeMillis() - MAX_LAG_MILLIS - 1);
+        assertNull(router.choose(-1));
+    }
+
+    @Test
+    public void testReplicaThatIsNotStreamingIsNotChosen() throws SQLException {
+        router = createRouter(1);
+        replica(0).setStatus(false, 100, 0, System.currentTimeMillis());
+        assertNull(router.choose(-1));
+    }
+
+    @Test
+    public void testFailedReplicaIsNotChosen() throws SQLException {
+        router = createRouter(1);
+        upToDate(0, 100);
+        router.markFailed(replica(0));
+        assertNull(router.choose(-1));
+    }
+
+    @Test
+    public void testOnlyReplicasThatReplayedTheWriteAreChosen() throws SQLException {
+        router = createRouter(2);
+        upToDate(0, 100);
+        upToDate(1, 200);
+        router.recordWrite(150);
+        assertSame(replica(1), router.choose(-1));
+        assertSame(replica(1), router.choose(-1));
+        router.recordWrite(120);
+        assertSame(replica(1), router.choose(-1));
+        router.recordWrite(250);
+        assertNull(router.choose(-1));
+    }
+
+    @Test
+    public void testPositionOfTheClientIsRespected() throws SQLException {
+        router = createRouter(2);
+        upToDate(0, 100);
+        upToDate(1, 200);
+        assertSame(replica(1), router.choose(150));
+        assertNull(router.choose(250));
+        assertEquals(-1, router.getWrittenLsn());
+    }
+
+    /**
+     * The write and the read of a client may run on different threads, as they do on virtual threads of the rental
+     * server or on the pool of the asynchronous controller.
+     */
+    @Test
+    public void testWriteOnOtherThreadIsSeen() throws Exception {
+        router = createRouter(1);
+        upToDate(0, 100);
+        Thread writer = new Thread(() -> router.recordWrite(150));
+        writer.start();
+        writer.join();
+        assertNull(router.choose(-1));
+        assertEquals(150, router.getWrittenLsn());
+    }
+
+    private ReplicaRouter createRouter(int replicaCount) throws SQLException {
+        List<ConnectionPool> pools = new ArrayList<>();
+        for (int i = 0; i < replicaCount; i++) {
+            pools.add(new ConnectionPool("jdbc:postgresql://localhost:1/replica" + i, "nobody", "", 0, 1, 0, true));
+        }
+        return new ReplicaRouter(pools, MAX_LAG_MILLIS);
+    }
+
+    private ReplicaRouter.Replica replica(int index) {
+        return router.getReplicas().get(index);
+    }
+
+    private void upToDate(int index, long replayedLsn) {
+        replica(index).setStatus(true, replayedLsn, 0, System.currentTimeMillis());
+    }
+}
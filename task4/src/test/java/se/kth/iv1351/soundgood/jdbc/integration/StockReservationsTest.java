@@ -0,0 +1,159 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.soundgood.jdbc.model.Instrument;
+import se.kth.iv1351.soundgood.jdbc.model.RentalResult;
+import se.kth.iv1351.soundgood.jdbc.model.Student;
+
+/**
+ * Checks that the stock in the database converges to the instruments that were rented, when rentals are made from
+ * stock reservations and the reservations are settled by the process that claimed them, or by another process after
+ * a crash. The tests are skipped if there is no local soundgood_school database, see <code>TestDatabase</code>.
+ */
+public class StockReservationsTest {
+    private static final int FIRST_STUDENT = TestDatabase.FIRST_STUDENT_ID;
+    private static final int STUDENTS = 8;
+    private static final int STOCK = 5;
+    private static final long SETTLE_WAIT_MILLIS = 10_000;
+
+    private Connection conn;
+    private SoundgoodDAO dao;
+
+    @BeforeEach
+    public void addStudents() throws SQLException {
+        conn = TestDatabase.connect();
+        assumeTrue(conn != null, "No local soundgood_school database.");
+        TestDatabase.removeTestData(conn);
+        for (int i = 0; i < STUDENTS; i++) {
+            TestDatabase.addStudent(conn, FIRST_STUDENT + i);
+        }
+    }
+
+    @AfterEach
+    public void removeStudents() throws SQLException {
+        if (dao != null) {
+            dao.close();
+        }
+        if (conn != null) {
+            TestDatabase.removeTestData(conn);
+            conn.close();
+        }
+    }
+
+    /**
+     * The units of a reservation that were not rented are back in stock once the DAO is closed.
+     */
+    @Test
+    public void testUnrentedUnitsAreGivenBackOnClose() throws Exception {
+        dao = createDAO(4, 60_000);
+        String instrument = TestDatabase.addInstrument(conn, "A", 10);
+        for (int i = 0; i < 2; i++) {
+            RentalResult result = dao.createRental(new Instrument(instrument), new Student(FIRST_STUDENT + i), null);
+            assertTrue(result.isRented(), result.toString());
+        }
+        assertEquals(6, TestDatabase.stockOf(conn, instrument));
+        assertEquals(1, reservationsOf(instrument));
+
+        dao.close();
+        dao = null;
+        assertEquals(8, TestDatabase.stockOf(conn, instrument));
+        assertEquals(0, reservationsOf(instrument));
+    }
+
+    /**
+     * Concurrent rentals get exactly the instruments in stock, and once the reservations are settled the stock in the
+     * database is what was not rented.
+     */
+    @Test
+    public void testConcurrentRentalsConverge() throws Exception {
+        dao = createDAO(2, 60_000);
+        String instrument = TestDatabase.addInstrument(conn, "A", STOCK);
+        ExecutorService executor = Executors.newFixedThreadPool(STUDENTS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<RentalResult>> rentals = new ArrayList<>();
+        try {
+            for (int i = 0; i < STUDENTS; i++) {
+                Student student = new Student(FIRST_STUDENT + i);
+                rentals.add(executor.submit(() -> {
+                    start.await();
+                    return dao.createRental(new Instrument(instrument), student, null);
+                }));
+            }
+            start.countDown();
+            int rented = 0;
+            for (Future<RentalResult> rental : rentals) {
+                rented += rental.get().isRented() ? 1 : 0;
+            }
+            assertEquals(STOCK, rented);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        dao.close();
+        dao = null;
+        assertEquals(0, TestDatabase.stockOf(conn, instrument));
+        assertEquals(STOCK, rentalsOfInstrument(instrument));
+        assertEquals(0, reservationsOf(instrument));
+    }
+
+    /**
+     * A reservation left behind by a process that crashed is settled by another process once it has expired, also if
+     * that process does not use reservations itself.
+     */
+    @Test
+    public void testReservationOfCrashedProcessIsSettled() throws Exception {
+        String instrument = TestDatabase.addInstrument(conn, "A", 10);
+        long reservationID = TestDatabase.queryInt(conn, "SELECT reservation_id FROM claim_stock(?, 4, 200)",
+                instrument);
+        assertEquals("OK", TestDatabase.queryString(conn, "SELECT rent_instrument('TESTR1', LOCALTIMESTAMP, "
+                + "LOCALTIMESTAMP + INTERVAL '1 month', NULL, ?, ?, ?)", instrument, FIRST_STUDENT, reservationID));
+        assertEquals(6, TestDatabase.stockOf(conn, instrument));
+
+        Thread.sleep(250);
+        dao = createDAO(0, 60_000);
+        dao.getStockReservations().start();
+        long deadline = System.currentTimeMillis() + SETTLE_WAIT_MILLIS;
+        while (reservationsOf(instrument) > 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "The expired reservation was not settled.");
+            Thread.sleep(20);
+        }
+        assertEquals(9, TestDatabase.stockOf(conn, instrument));
+        assertEquals(1, rentalsOfInstrument(instrument));
+    }
+
+    private int reservationsOf(String instrumentID) throws SQLException {
+        return TestDatabase.queryInt(conn, "SELECT COUNT(*) FROM stock_reservation WHERE instrument_id = ?",
+                instrumentID);
+    }
+
+    private int rentalsOfInstrument(String instrumentID) throws SQLException {
+        return TestDatabase.queryInt(conn, "SELECT COUNT(*) FROM instrument_rental WHERE instrument_id = ?",
+                instrumentID);
+    }
+
+    private static SoundgoodDAO createDAO(int blockSize, long ttlMillis) throws SQLException {
+        ConnectionPool pool = new ConnectionPool(TestDatabase.url(), TestDatabase.user(), TestDatabase.password(), 0,
+                STUDENTS, 5000, true);
+        Properties settings = new Properties();
+        settings.setProperty("soundgood.reservations.blockSize", String.valueOf(blockSize));
+        settings.setProperty("soundgood.reservations.ttlMillis", String.valueOf(ttlMillis));
+        return new SoundgoodDAO(pool, new DataSourceConfig(settings));
+    }
+}
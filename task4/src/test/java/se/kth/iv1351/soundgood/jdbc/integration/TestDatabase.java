@@ -0,0 +1,124 @@
+package se.kth.iv1351.soundgood.jdbc.integration;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The local soundgood_school database used by the tests that need one, and the students and instruments they add to
+ * it. The connection can be changed with the system properties <code>soundgood.test.url</code>,
+ * <code>soundgood.test.user</code> and <code>soundgood.test.password</code>. Test students have IDs from
+ * <code>FIRST_STUDENT_ID</code> and test instruments have IDs starting with <code>TEST</code>, so that
+ * <code>removeTestData</code> removes them, and everything made from them, without touching other data.
+ */
+final class TestDatabase {
+    static final int FIRST_STUDENT_ID = 900_000;
+    private static final String INSTRUMENT_PREFIX = "TEST";
+
+    private TestDatabase() {
+    }
+
+    /**
+     * @return A new connection in auto-commit mode, or <code>null</code> if there is no database to connect to.
+     */
+    static Connection connect() {
+        try {
+            return DriverManager.getConnection(url(), user(), password());
+        } catch (SQLException noDatabase) {
+            return null;
+        }
+    }
+
+    static String url() {
+        return System.getProperty("soundgood.test.url", SoundgoodDAO.DB_URL);
+    }
+
+    static String user() {
+        return System.getProperty("soundgood.test.user", SoundgoodDAO.DB_USER);
+    }
+
+    static String password() {
+        return System.getProperty("soundgood.test.password", SoundgoodDAO.DB_PASSWORD);
+    }
+
+    /**
+     * Adds a student, and the person the student is.
+     */
+    static void addStudent(Connection conn, int studentID) throws SQLException {
+        execute(conn, "INSERT INTO person (person_id, person_number, first_name, last_name) VALUES (?, ?, 'Test', "
+                + "'Student')", studentID, String.format("%012d", studentID));
+        execute(conn, "INSERT INTO student (student_id, person_id, skill_level) VALUES (?, ?, 'beginner')",
+                studentID, studentID);
+    }
+
+    /**
+     * Adds an instrument with a current price whose ID is the instrument ID followed by <code>-P</code>.
+     *
+     * @param name The instrument ID, without the <code>TEST</code> prefix.
+     * @return The instrument ID.
+     */
+    static String addInstrument(Connection conn, String name, int stock) throws SQLException {
+        String instrumentID = INSTRUMENT_PREFIX + name;
+        execute(conn, "INSERT INTO instrument (instrument_id, instrument_type, instrument_brand, available_stock) "
+                + "VALUES (?, 'Test', 'Test', ?)", instrumentID, stock);
+        execute(conn, "INSERT INTO rental_price_history (rental_price_id, instrument_id, start_date, end_date, "
+                + "is_current, price) VALUES (?, ?, DATE '2020-01-01', DATE '2099-12-31', true, 100)",
+                instrumentID + "-P", instrumentID);
+        return instrumentID;
+    }
+
+    static int stockOf(Connection conn, String instrumentID) throws SQLException {
+        return queryInt(conn, "SELECT available_stock FROM instrument WHERE instrument_id = ?", instrumentID);
+    }
+
+    static int rentalsOf(Connection conn, int studentID) throws SQLException {
+        return queryInt(conn, "SELECT COUNT(*) FROM instrument_rental WHERE student_id = ?", studentID);
+    }
+
+    /**
+     * Removes the test students and instruments, their rentals, stock reservations and outbox events.
+     */
+    static void removeTestData(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM instrument WHERE instrument_id LIKE '" + INSTRUMENT_PREFIX + "%'");
+            stmt.execute("DELETE FROM person WHERE person_id >= " + FIRST_STUDENT_ID);
+            stmt.execute("DELETE FROM rental_event WHERE instrument_id LIKE '" + INSTRUMENT_PREFIX + "%'");
+        }
+    }
+
+    static void execute(Connection conn, String sql, Object... params) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) {
+                stmt.setObject(i + 1, params[i]);
+            }
+            stmt.execute();
+        }
+    }
+
+    static int queryInt(Connection conn, String sql, Object... params) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) {
+                stmt.setObject(i + 1, params[i]);
+            }
+            try (ResultSet result = stmt.executeQuery()) {
+                result.next();
+                return result.getInt(1);
+            }
+        }
+    }
+
+    static String queryString(Connection conn, String sql, Object... params) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) {
+                stmt.setObject(i + 1, params[i]);
+            }
+            try (ResultSet result = stmt.executeQuery()) {
+                result.next();
+                return result.getString(1);
+            }
+        }
+    }
+}
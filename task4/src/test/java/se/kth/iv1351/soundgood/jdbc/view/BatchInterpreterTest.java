@@ -0,0 +1,56 @@
+package se.kth.iv1351.soundgood.jdbc.view;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks which commands of a batch are ordered after each other.
+ */
+public class BatchInterpreterTest {
+
+    @Test
+    public void testRentalsOfSameStudentShareKey() {
+        assertFalse(Collections.disjoint(keys("rent i001 5"), keys("rent I002 05 P002")));
+    }
+
+    @Test
+    public void testRentalsOfSameInstrumentShareKey() {
+        assertFalse(Collections.disjoint(keys("rent i001 5"), keys("rent I001 6")));
+    }
+
+    @Test
+    public void testUnrelatedRentalsAreNotOrdered() {
+        assertTrue(Collections.disjoint(keys("rent I001 5"), keys("rent I002 6")));
+    }
+
+    @Test
+    public void testBasketSharesKeysWithItsInstruments() {
+        Set<String> basket = keys("basket 5 i001:p001 I002");
+        assertEquals(3, basket.size());
+        assertFalse(Collections.disjoint(basket, keys("rent I001 6")));
+        assertFalse(Collections.disjoint(basket, keys("history 5")));
+    }
+
+    @Test
+    public void testCommandsOfUnknownEffectAreOrderedAfterAll() {
+        assertNull(keys("terminate R001"));
+        assertNull(keys("list guitar"));
+        assertNull(keys("rent I001"));
+    }
+
+    @Test
+    public void testHelpIsNotOrdered() {
+        assertTrue(keys("help").isEmpty());
+    }
+
+    private static Set<String> keys(String line) {
+        return BatchInterpreter.orderingKeys(new CmdLine(line));
+    }
+}